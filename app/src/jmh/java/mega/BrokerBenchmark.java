@@ -0,0 +1,82 @@
+package mega;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Eight producer threads spread over {@code topicCount} in-memory topics through the {@link Broker}:
+ * with one topic they all contend on the same offset reservation, with more they should scale until
+ * they run out of cores. Throughput in batches per microsecond, summed over the threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class BrokerBenchmark {
+    private static final long RETAINED_RECORDS = 1_000_000;
+
+    @Param({ "1", "8", "64" })
+    public int topicCount;
+
+    @Param({ "1", "16" })
+    public int batchSize;
+
+    private Broker broker;
+
+    @Setup
+    public void setUp() {
+        BrokerConfig config = new BrokerConfig(BrokerConfig.StorageMode.MEMORY, Path.of("unused"), 1 << 20, 4096, 0,
+                0, 10_000, new TopicConfig(-1, -1, RETAINED_RECORDS, false), 100);
+        broker = new Broker(config);
+        for (int i = 0; i < topicCount; i++) {
+            broker.createTopic("topic-" + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        broker.close();
+    }
+
+    /** The topic a thread produces to, and its batch. */
+    @State(Scope.Thread)
+    public static class Producer {
+        private String topic;
+        private final List<ByteBuffer> payloads = new ArrayList<>();
+
+        @Setup
+        public void setUp(BrokerBenchmark benchmark, ThreadParams threads) {
+            topic = "topic-" + threads.getThreadIndex() % benchmark.topicCount;
+            byte[] payload = Requests.payload(100);
+            for (int i = 0; i < benchmark.batchSize; i++) {
+                payloads.add(ByteBuffer.wrap(payload));
+            }
+        }
+    }
+
+    @Benchmark
+    public long produceBatch(Producer producer) {
+        return broker.produceBatch(producer.topic, 0, System.currentTimeMillis(), null, producer.payloads);
+    }
+}
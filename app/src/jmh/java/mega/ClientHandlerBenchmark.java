@@ -0,0 +1,140 @@
+package mega;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request round trips over loopback through a {@link Server} and its {@link ClientHandler}s, one
+ * connection per benchmark thread, against the in-memory broker. This is the latency a client sees,
+ * so it includes the kernel's socket path; compare runs on the same machine only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dmega.storage=memory")
+public class ClientHandlerBenchmark {
+    private static final String TOPIC = "bench";
+    private static final int PRELOADED_RECORDS = 10_000;
+
+    @Param({ "100" })
+    public int payloadBytes;
+
+    private Server server;
+    private Thread acceptor;
+    private final Queue<Socket> sockets = new ConcurrentLinkedQueue<>();
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        server = new Server(0, Server.ThreadModel.VIRTUAL, 0);
+        acceptor = new Thread(server::start, "bench-acceptor");
+        acceptor.start();
+        while (server.getLocalPort() < 0) {
+            Thread.sleep(10);
+        }
+        Broker broker = Broker.getInstance();
+        broker.createTopic(TOPIC);
+        List<ByteBuffer> payloads = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            payloads.add(ByteBuffer.wrap(Requests.payload(payloadBytes)));
+        }
+        for (int i = 0; i < PRELOADED_RECORDS; i += payloads.size()) {
+            broker.produceBatch(TOPIC, 0, System.currentTimeMillis(), null, payloads);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        for (Socket socket : sockets) {
+            socket.close(); // so the handlers see end of stream rather than wait out their read timeout
+        }
+        server.close();
+        acceptor.join();
+    }
+
+    /** A thread's connection, speaking protocol version 0, and its prepared requests. */
+    @State(Scope.Thread)
+    public static class Connection {
+        private DataInputStream input;
+        private DataOutputStream output;
+        private byte[] produce;
+        private byte[] fetch;
+
+        @Setup
+        public void setUp(ClientHandlerBenchmark benchmark) throws IOException {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), benchmark.server.getLocalPort());
+            socket.setTcpNoDelay(true);
+            benchmark.sockets.add(socket);
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            produce = Requests.produce(1, TOPIC, Requests.payload(benchmark.payloadBytes));
+            fetch = Requests.fetch(2, TOPIC, Message.VERSION_0, 0, 100, 64 * 1024);
+        }
+
+        /** Sends a request and reads the success flag of its answer, failing on an error response. */
+        private void send(byte[] request) throws IOException {
+            output.write(request);
+            output.flush();
+            input.readInt(); // correlation ID
+            if (input.readByte() != 1) {
+                throw new IllegalStateException("Request failed with error code " + input.readByte());
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long produce(Connection connection) throws IOException {
+        return produceRoundTrip(connection);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long produceConcurrent(Connection connection) throws IOException {
+        return produceRoundTrip(connection);
+    }
+
+    private static long produceRoundTrip(Connection connection) throws IOException {
+        connection.send(connection.produce);
+        connection.input.readLong(); // timestamp
+        return connection.input.readInt(); // offset
+    }
+
+    /** Fetches the same 100 records from the start of the topic. */
+    @Benchmark
+    @Threads(1)
+    public int fetch(Connection connection) throws IOException {
+        connection.send(connection.fetch);
+        connection.input.readInt(); // next offset
+        connection.input.readInt(); // record count
+        int batchSize = connection.input.readInt();
+        connection.input.skipNBytes(batchSize);
+        return batchSize;
+    }
+}
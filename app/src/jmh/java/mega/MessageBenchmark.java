@@ -0,0 +1,97 @@
+package mega;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The wire codec: decoding requests with {@link Message}, slicing a batch into its payloads,
+ * encoding records in {@link RecordFormat} and compressing a batch with {@link Compression#LZ}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+    @Param({ "100", "1000" })
+    public int payloadBytes;
+
+    private Message batch;
+    private ByteBuffer entries;
+    private byte[] payload;
+    private final ByteBuffer record = ByteBuffer.allocate(64 * 1024);
+    private final TopicNameCache topicNames = new TopicNameCache();
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = Requests.payload(payloadBytes);
+        batch = decode(Requests.produceBatch(1, "bench", Message.VERSION_2, 32, payloadBytes));
+        entries = ByteBuffer.wrap(batch.getPayload());
+    }
+
+    private Message decode(byte[] bytes) throws IOException {
+        return new Message(new DataInputStream(new ByteArrayInputStream(bytes)), topicNames, Message.VERSION_2);
+    }
+
+    /** The request {@link #decode} reads; only that benchmark varies by type. */
+    @State(Scope.Thread)
+    public static class Request {
+        @Param({ "PRODUCE", "FETCH", "PRODUCE_BATCH" })
+        public String type;
+
+        private byte[] bytes;
+
+        @Setup
+        public void setUp(MessageBenchmark benchmark) {
+            switch (MessageType.valueOf(type)) {
+                case PRODUCE:
+                    bytes = Requests.produce(1, "bench", benchmark.payload);
+                    break;
+                case FETCH:
+                    bytes = Requests.fetch(1, "bench", Message.VERSION_2, 123_456_789L, 500, 1 << 20);
+                    break;
+                default:
+                    bytes = Requests.produceBatch(1, "bench", Message.VERSION_2, 32, benchmark.payloadBytes);
+            }
+        }
+    }
+
+    @Benchmark
+    public Message decode(Request request) throws IOException {
+        return decode(request.bytes);
+    }
+
+    @Benchmark
+    public List<ByteBuffer> sliceBatch() {
+        return batch.getBatchPayloads();
+    }
+
+    @Benchmark
+    public int encodeRecord() {
+        record.clear();
+        RecordFormat.write(record, 42, 1_700_000_000_000L, payload);
+        return record.position();
+    }
+
+    @Benchmark
+    public byte[] compressBatch() {
+        return Compression.LZ.compress(entries);
+    }
+}
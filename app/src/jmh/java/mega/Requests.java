@@ -0,0 +1,92 @@
+package mega;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/** Encodes requests as a client sends them, for the benchmarks; see docs/PROTOCOL.md. */
+final class Requests {
+    private Requests() {
+    }
+
+    static byte[] produce(int correlationId, String topic, byte[] payload) {
+        return encode(correlationId, MessageType.PRODUCE, topic, out -> {
+        }, payload);
+    }
+
+    static byte[] fetch(int correlationId, String topic, short version, long offset, int maxRecords, int maxBytes) {
+        return encode(correlationId, MessageType.FETCH, topic, out -> {
+            out.writeInt(0); // partition
+            writeOffset(out, version, offset);
+            out.writeInt(maxRecords);
+            out.writeInt(maxBytes);
+            out.writeInt(0); // max wait
+            out.writeInt(0); // min bytes
+        }, new byte[0]);
+    }
+
+    /** An unkeyed, uncompressed batch for partition 0 of {@code count} payloads of {@code payloadBytes}. */
+    static byte[] produceBatch(int correlationId, String topic, short version, int count, int payloadBytes) {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+        try {
+            for (int i = 0; i < count; i++) {
+                out.writeInt(payloadBytes);
+                out.write(payload(payloadBytes));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return encode(correlationId, MessageType.PRODUCE_BATCH, topic, fields -> {
+            fields.writeInt(0); // partition
+            fields.writeInt(-1); // no key
+            fields.writeInt(count);
+            if (version >= Message.VERSION_2) {
+                fields.writeByte(Compression.NONE.getCode());
+            }
+        }, entries.toByteArray());
+    }
+
+    /** A payload of printable, somewhat repetitive bytes, like the JSON most topics carry. */
+    static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) ('a' + i % 23);
+        }
+        return payload;
+    }
+
+    private static void writeOffset(DataOutputStream out, short version, long offset) throws IOException {
+        if (version >= Message.VERSION_1) {
+            out.writeLong(offset);
+        } else {
+            out.writeInt((int) offset);
+        }
+    }
+
+    private static byte[] encode(int correlationId, MessageType type, String topic, Fields fields, byte[] payload) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(correlationId);
+            out.writeByte(type.getCode());
+            out.writeInt(name.length);
+            out.write(name);
+            out.writeLong(System.currentTimeMillis());
+            fields.write(out);
+            out.writeInt(payload.length);
+            out.write(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @FunctionalInterface
+    private interface Fields {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,164 @@
+package mega;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single-record produce and consume on one partition of a {@link Topic}, in memory and on disk.
+ * Consumes read a window of {@value #WINDOW} offsets at the head, middle or tail of a preloaded
+ * partition, so index lookups and page-cache behaviour at different depths show up. The contended
+ * variants run four threads on the same partition. Produces are kept from filling the heap or disk by
+ * a cleaner retaining {@value #RETAINED_RECORDS} records, as the broker's would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicBenchmark {
+    private static final int PRELOADED_RECORDS = 200_000;
+    private static final int RETAINED_RECORDS = 1_000_000;
+    private static final int WINDOW = 1024;
+
+    @Param({ "memory", "disk" })
+    public String storage;
+
+    @Param({ "100" })
+    public int payloadBytes;
+
+    private Path dir;
+    private Topic topic;
+    private Message message;
+    private ScheduledExecutorService cleaner;
+
+    @Setup
+    public void setUp() throws IOException {
+        TopicConfig config = new TopicConfig(-1, -1, RETAINED_RECORDS, false);
+        if (storage.equals("disk")) {
+            dir = Files.createTempDirectory("mega-bench");
+            BrokerConfig brokerConfig = new BrokerConfig(BrokerConfig.StorageMode.DISK, dir, 16 * 1024 * 1024, 4096,
+                    0, 0);
+            topic = new Topic("bench", List.of(new FileLog(dir, brokerConfig)), config);
+        } else {
+            topic = new Topic("bench", 1, config);
+        }
+        byte[] payload = Requests.payload(payloadBytes);
+        List<ByteBuffer> chunk = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            chunk.add(ByteBuffer.wrap(payload));
+        }
+        for (int i = 0; i < PRELOADED_RECORDS; i += chunk.size()) {
+            topic.produceBatch(0, System.currentTimeMillis(), null, chunk);
+        }
+        topic.flush();
+        message = new Message(new DataInputStream(new ByteArrayInputStream(Requests.produce(1, "bench", payload))),
+                new TopicNameCache());
+        cleaner = Executors.newSingleThreadScheduledExecutor();
+        cleaner.scheduleWithFixedDelay(this::clean, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    private void clean() {
+        try {
+            topic.clean(System.currentTimeMillis());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        cleaner.shutdown();
+        cleaner.awaitTermination(10, TimeUnit.SECONDS);
+        topic.close();
+        if (dir != null) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /** Where in the preloaded partition the consume window lies; only the consume benchmarks use it. */
+    @State(Scope.Benchmark)
+    public static class Window {
+        @Param({ "HEAD", "MIDDLE", "TAIL" })
+        public String position;
+
+        private long start;
+
+        @Setup
+        public void setUp() {
+            switch (position) {
+                case "HEAD":
+                    start = 0;
+                    break;
+                case "MIDDLE":
+                    start = PRELOADED_RECORDS / 2;
+                    break;
+                default:
+                    start = PRELOADED_RECORDS - WINDOW;
+            }
+        }
+    }
+
+    /** Each thread's place in the consume window. */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        long next(Window window) {
+            return window.start + (next++ & (WINDOW - 1));
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long produce() {
+        return topic.produce(message);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long produceContended() {
+        return topic.produce(message);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Record consume(Window window, Cursor cursor) {
+        return topic.consume(0, cursor.next(window));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Record consumeContended(Window window, Cursor cursor) {
+        return topic.consume(0, cursor.next(window));
+    }
+}
@@ -0,0 +1,372 @@
+package mega;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a running broker at a fixed request rate from many connections and reports the latency
+ * clients saw, to find how much load the broker sustains before latency or errors climb.
+ *
+ * Every connection runs on its own virtual thread with one request outstanding and follows a fixed
+ * schedule: request i is due at start + i * interval, whether or not the previous answer was late.
+ * Latency is measured from when a request was due, not from when it could be sent, which corrects
+ * for coordinated omission: a broker that stalls for a second delays every request scheduled in
+ * that second, and all of them show up in the percentiles instead of the one that was in flight.
+ * The service time, from sending to answer, is reported alongside for comparison.
+ *
+ * Produces are PRODUCE_BATCH requests to partitions the broker picks; fetches follow one partition
+ * per connection from offset 0. Options are given as {@code name=value} arguments, or as
+ * {@code mega.loadgen.<name>} system properties or environment variables; see {@link #main}.
+ */
+public class LoadGenerator {
+    private static final int READ_TIMEOUT_MS = 30_000;
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long RECONNECT_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final double produceRate;
+    private final double fetchRate;
+    private final int batchSize;
+    private final int payloadBytes;
+    private final int fetchMaxRecords;
+    private final String topic;
+    private final int partitions;
+    private final long warmupNanos;
+    private final long durationNanos;
+
+    private final Stats produceStats = new Stats();
+    private final Stats fetchStats = new Stats();
+    private final LongAdder[] errors = new LongAdder[ErrorCode.values().length];
+    private final LongAdder connectionErrors = new LongAdder();
+
+    /**
+     * Options, with their defaults: {@code host=localhost}, {@code port=8080},
+     * {@code connections=1000}, {@code produce.rate=10000} and {@code fetch.rate=1000} requests per
+     * second across all connections, {@code batch=1} records of {@code payload.bytes=100} per produce,
+     * {@code fetch.max.records=100}, {@code topic=loadgen} with {@code partitions=8}, created if
+     * missing, and {@code warmup.seconds=10} before {@code duration.seconds=60} of measurement.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                System.err.println("Options are name=value, got: " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    LoadGenerator(Map<String, String> options) {
+        host = option(options, "host", "localhost");
+        port = Integer.parseInt(option(options, "port", "8080"));
+        connections = Integer.parseInt(option(options, "connections", "1000"));
+        produceRate = Double.parseDouble(option(options, "produce.rate", "10000"));
+        fetchRate = Double.parseDouble(option(options, "fetch.rate", "1000"));
+        batchSize = Integer.parseInt(option(options, "batch", "1"));
+        payloadBytes = Integer.parseInt(option(options, "payload.bytes", "100"));
+        fetchMaxRecords = Integer.parseInt(option(options, "fetch.max.records", "100"));
+        topic = option(options, "topic", "loadgen");
+        partitions = Integer.parseInt(option(options, "partitions", "8"));
+        warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "warmup.seconds", "10")));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "duration.seconds", "60")));
+        if (connections <= 0 || produceRate < 0 || fetchRate < 0 || produceRate + fetchRate <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Need at least one connection, a positive rate and batch size");
+        }
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new LongAdder();
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value.trim() : BrokerConfig.get("mega.loadgen." + name, defaultValue);
+    }
+
+    void run() throws InterruptedException {
+        try (Client client = new Client()) {
+            client.createTopic();
+        } catch (IOException e) {
+            System.err.println("Cannot reach broker at " + host + ":" + port + ": " + e.getMessage());
+            return;
+        }
+        System.out.printf(Locale.ROOT, "%d connections to %s:%d, produce %.0f/s (batch %d x %d bytes), fetch %.0f/s,"
+                + " %d s warmup, %d s measured%n", connections, host, port, produceRate, batchSize, payloadBytes,
+                fetchRate, TimeUnit.NANOSECONDS.toSeconds(warmupNanos), TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+
+        // Connections open during the first second, spread out so the accept backlog is not swamped
+        long startNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        long measureNanos = startNanos + warmupNanos;
+        long endNanos = measureNanos + durationNanos;
+        try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < connections; i++) {
+                int index = i;
+                workers.execute(() -> drive(index, startNanos, measureNanos, endNanos));
+            }
+            report(measureNanos, endNanos);
+        }
+        printSummary();
+    }
+
+    /** Prints the progress of the run every few seconds until it ends. */
+    private void report(long measureNanos, long endNanos) {
+        long produced = 0;
+        long fetched = 0;
+        long next = System.nanoTime() + REPORT_INTERVAL_NANOS;
+        while (next < endNanos) {
+            LockSupport.parkNanos(next - System.nanoTime());
+            long producedNow = produceStats.requests.sum();
+            long fetchedNow = fetchStats.requests.sum();
+            double seconds = (double) REPORT_INTERVAL_NANOS / TimeUnit.SECONDS.toNanos(1);
+            System.out.printf(Locale.ROOT, "%s produce %.0f/s, fetch %.0f/s, errors %d, connection errors %d%n",
+                    next > measureNanos ? "[measure]" : "[warmup] ", (producedNow - produced) / seconds,
+                    (fetchedNow - fetched) / seconds, totalErrors(), connectionErrors.sum());
+            produced = producedNow;
+            fetched = fetchedNow;
+            next += REPORT_INTERVAL_NANOS;
+        }
+    }
+
+    /**
+     * Runs one connection's schedule, reconnecting after failures. Requests that fall due while the
+     * connection is down are sent late once it is back, and their latency counts the wait. Only
+     * requests due from {@code measureNanos} on are recorded, errors included.
+     */
+    private void drive(int index, long startNanos, long measureNanos, long endNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double rate = (produceRate + fetchRate) / connections;
+        long intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        long due = startNanos + random.nextLong(Math.min(intervalNanos, TimeUnit.SECONDS.toNanos(1)));
+        int partition = index % partitions;
+        long fetchOffset = 0;
+        while (due < endNanos) {
+            LockSupport.parkNanos(due - System.nanoTime());
+            try (Client client = new Client()) {
+                client.negotiateVersion();
+                while (due < endNanos) {
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    boolean produce = random.nextDouble() * (produceRate + fetchRate) < produceRate;
+                    long sentNanos = System.nanoTime();
+                    ErrorCode error;
+                    if (produce) {
+                        error = client.produce();
+                    } else {
+                        error = client.fetch(partition, fetchOffset);
+                        if (error == null) {
+                            fetchOffset = client.nextOffset;
+                        }
+                    }
+                    long answeredNanos = System.nanoTime();
+                    if (error != null) {
+                        if (due >= measureNanos) {
+                            errors[error.ordinal()].increment(); // same window as the latencies
+                        }
+                    } else {
+                        (produce ? produceStats : fetchStats).record(due >= measureNanos, answeredNanos - due,
+                                answeredNanos - sentNanos);
+                    }
+                    due += intervalNanos;
+                }
+            } catch (IOException e) {
+                connectionErrors.increment();
+                if (connectionErrors.sum() <= 10) {
+                    System.err.println("Connection " + index + " failed: " + e.getMessage());
+                }
+                LockSupport.parkNanos(RECONNECT_DELAY_NANOS);
+            }
+        }
+    }
+
+    private long totalErrors() {
+        long total = 0;
+        for (LongAdder error : errors) {
+            total += error.sum();
+        }
+        return total;
+    }
+
+    private void printSummary() {
+        double seconds = (double) durationNanos / TimeUnit.SECONDS.toNanos(1);
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-8s %10s %10s %10s %9s %9s %9s %9s %14s%n", "request", "count", "rate/s",
+                "target/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "p99 service ms");
+        printRow("produce", produceStats, produceRate, seconds);
+        printRow("fetch", fetchStats, fetchRate, seconds);
+        long failed = totalErrors();
+        long answered = produceStats.latency.snapshot().getCount() + fetchStats.latency.snapshot().getCount();
+        System.out.printf(Locale.ROOT, "%nerrors: %d (%.3f%% of answered requests)%n", failed,
+                answered + failed == 0 ? 0.0 : 100.0 * failed / (answered + failed));
+        for (ErrorCode code : ErrorCode.values()) {
+            long count = errors[code.ordinal()].sum();
+            if (count > 0) {
+                System.out.printf(Locale.ROOT, "  %-20s %d%n", code, count);
+            }
+        }
+        System.out.println("connection errors: " + connectionErrors.sum());
+    }
+
+    private static void printRow(String name, Stats stats, double targetRate, double seconds) {
+        Histogram.Snapshot latency = stats.latency.snapshot();
+        Histogram.Snapshot service = stats.serviceTime.snapshot();
+        double rate = latency.getCount() / seconds;
+        System.out.printf(Locale.ROOT, "%-8s %10d %10.0f %10.0f %9.2f %9.2f %9.2f %9.2f %14.2f%s%n", name,
+                latency.getCount(), rate, targetRate, millis(latency.getPercentile(50)),
+                millis(latency.getPercentile(99)), millis(latency.getPercentile(99.9)), millis(latency.getMax()),
+                millis(service.getPercentile(99)), rate < targetRate * 0.95 ? "  (target rate not sustained)" : "");
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /** Latencies of one request type: from when each request was due, and from when it was sent. */
+    private static final class Stats {
+        final LongAdder requests = new LongAdder();
+        final Histogram latency = new Histogram();
+        final Histogram serviceTime = new Histogram();
+
+        void record(boolean recording, long latencyNanos, long serviceNanos) {
+            requests.increment();
+            if (recording) {
+                latency.record(latencyNanos);
+                serviceTime.record(serviceNanos);
+            }
+        }
+    }
+
+    /** One connection speaking protocol version 1, with one request outstanding at a time. */
+    private final class Client implements AutoCloseable {
+        private final Socket socket;
+        private final DataInputStream input;
+        private final DataOutputStream output;
+        private final byte[] topicName = topic.getBytes(StandardCharsets.UTF_8);
+        private final ByteBuffer produceRequest;
+        private long nextOffset; // Of the last successful fetch
+
+        Client() throws IOException {
+            socket = new Socket(host, port);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            produceRequest = encodeProduceBatch();
+        }
+
+        private ByteBuffer encodeProduceBatch() {
+            ByteBuffer request = ByteBuffer.allocate(4 + 1 + 4 + topicName.length + 8 + 12 + 4
+                    + batchSize * (4 + payloadBytes));
+            request.putInt(0).put(MessageType.PRODUCE_BATCH.getCode()).putInt(topicName.length).put(topicName);
+            request.putLong(0); // timestamp, set on every send
+            request.putInt(Topic.ANY_PARTITION).putInt(-1).putInt(batchSize);
+            request.putInt(batchSize * (4 + payloadBytes));
+            byte[] payload = new byte[payloadBytes];
+            for (int i = 0; i < payloadBytes; i++) {
+                payload[i] = (byte) ('a' + i % 23);
+            }
+            for (int i = 0; i < batchSize; i++) {
+                request.putInt(payloadBytes).put(payload);
+            }
+            return request.flip();
+        }
+
+        private void writeHeader(MessageType type) throws IOException {
+            output.writeInt(0);
+            output.writeByte(type.getCode());
+            output.writeInt(topicName.length);
+            output.write(topicName);
+            output.writeLong(System.currentTimeMillis());
+        }
+
+        /** Reads the start of an answer and returns its error, or null on success. */
+        private ErrorCode readStatus() throws IOException {
+            input.readInt(); // correlation ID; there is only ever one request outstanding
+            if (input.readByte() == 1) {
+                return null;
+            }
+            return ErrorCode.fromCode(input.readByte());
+        }
+
+        void createTopic() throws IOException {
+            writeHeader(MessageType.CREATE_TOPIC);
+            output.writeInt(4);
+            output.writeInt(partitions);
+            output.flush();
+            ErrorCode error = readStatus();
+            if (error == null) {
+                input.readLong(); // timestamp
+                input.readUTF(); // topic
+                System.out.println("Created topic " + topic + " with " + partitions + " partitions");
+            } else if (error != ErrorCode.TOPIC_ALREADY_EXISTS) {
+                throw new IOException("Cannot create topic " + topic + ": " + error);
+            }
+        }
+
+        void negotiateVersion() throws IOException {
+            writeHeader(MessageType.API_VERSIONS);
+            output.writeInt(2);
+            output.writeShort(Message.VERSION_1);
+            output.flush();
+            ErrorCode error = readStatus();
+            if (error != null || input.readShort() != Message.VERSION_1) {
+                throw new IOException("Broker does not speak protocol version 1");
+            }
+        }
+
+        ErrorCode produce() throws IOException {
+            produceRequest.putLong(4 + 1 + 4 + topicName.length, System.currentTimeMillis());
+            output.write(produceRequest.array(), 0, produceRequest.limit());
+            output.flush();
+            ErrorCode error = readStatus();
+            if (error == null) {
+                input.skipNBytes(8 + 4 + 8 + 4); // timestamp, partition, base offset, record count
+            }
+            return error;
+        }
+
+        ErrorCode fetch(int partition, long offset) throws IOException {
+            writeHeader(MessageType.FETCH);
+            output.writeInt(partition);
+            output.writeLong(offset);
+            output.writeInt(fetchMaxRecords);
+            output.writeInt(1024 * 1024); // max bytes
+            output.writeInt(0); // max wait: answer at once, even when empty
+            output.writeInt(0); // min bytes
+            output.writeInt(0); // payload length
+            output.flush();
+            ErrorCode error = readStatus();
+            if (error == null) {
+                nextOffset = input.readLong();
+                input.readInt(); // record count
+                input.skipNBytes(input.readInt());
+            }
+            return error;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
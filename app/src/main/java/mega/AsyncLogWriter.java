@@ -0,0 +1,106 @@
+package mega;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background thread that drains the {@link LogRing} and does all formatting and I/O, so logging
+ * callers only pay for publishing into the ring. Events at WARN and above go to stderr, the rest to
+ * stdout; both streams are flushed whenever the ring runs empty.
+ */
+public final class AsyncLogWriter implements Runnable {
+    private static final long IDLE_PARK_NANOS = 1_000_000; // 1ms
+
+    private final LogRing ring;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Thread thread;
+    private final StringBuilder line = new StringBuilder(256);
+    private final LogRing.Event event = new LogRing.Event();
+    private volatile boolean running = true;
+
+    public AsyncLogWriter(LogRing ring, PrintStream out, PrintStream err) {
+        this.ring = ring;
+        this.out = out;
+        this.err = err;
+        this.thread = new Thread(this, "mega-log-writer");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            if (!drain()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        drain();
+    }
+
+    /** Writes every queued event; returns false if there was none. */
+    private boolean drain() {
+        boolean wrote = false;
+        while (ring.poll(event)) {
+            write(event);
+            wrote = true;
+        }
+        long dropped = ring.takeDropped();
+        if (dropped > 0) {
+            err.println(Instant.now() + " WARN  [Logger] Dropped " + dropped + " log events, ring buffer full");
+            wrote = true;
+        }
+        if (wrote) {
+            out.flush();
+            err.flush();
+        }
+        event.arg1 = event.arg2 = event.arg3 = null;
+        event.throwable = null;
+        return wrote;
+    }
+
+    private void write(LogRing.Event event) {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(event.timestamp)).append(' ');
+        line.append(event.level);
+        for (int i = event.level.name().length(); i < 6; i++) {
+            line.append(' ');
+        }
+        line.append('[').append(event.component).append("] ");
+        format(event.template, event.arg1, event.arg2, event.arg3);
+        PrintStream target = event.level.compareTo(Logger.Level.WARN) >= 0 ? err : out;
+        target.println(line);
+        if (event.throwable != null) {
+            event.throwable.printStackTrace(target);
+        }
+    }
+
+    /** Substitutes each {@code {}} in the template with the next argument. */
+    private void format(String template, Object arg1, Object arg2, Object arg3) {
+        int argument = 0;
+        int start = 0;
+        int placeholder;
+        while ((placeholder = template.indexOf("{}", start)) >= 0 && argument < 3) {
+            line.append(template, start, placeholder);
+            line.append(argument == 0 ? arg1 : argument == 1 ? arg2 : arg3);
+            argument++;
+            start = placeholder + 2;
+        }
+        line.append(template, start, template.length());
+    }
+
+    /** Stops the thread after writing everything already queued. */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,48 +1,366 @@
 package mega;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
-public class Broker {
-    private final Map<String, Topic> topics = new ConcurrentHashMap<>();
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class Broker implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(Broker.class);
+    private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<>();
+    private final BrokerConfig config;
+    private final ScheduledExecutorService scheduler;
+    // Retention and compaction get their own thread, so a long compaction cannot hold up flushes
+    private final ScheduledExecutorService cleaner;
+    private final GroupCoordinator groups;
+    private final Metrics metrics = new Metrics();
+    private final RequestMetrics requestMetrics = new RequestMetrics(metrics);
+    private final Meter connectionsOpened = metrics.meter("connections.opened");
+    private final Meter connectionsClosed = metrics.meter("connections.closed");
+    private final ReplicationConfig replication;
+    // Seeded from the clock so IDs handed out before a restart, whose sequences are forgotten, are not reused
+    private final AtomicLong nextProducerId = new AtomicLong(System.currentTimeMillis() << 16);
+    private final Cluster cluster; // null when standalone
+    private final Quotas quotas;
+    private final TieredStorage tiered; // null unless disk topics are offloaded
+    private ObjectName mbeanName;
     private static volatile Broker instance;
     private static final int MAX_TOPIC_NAME_LENGTH = 255;
+    static final int MAX_PARTITIONS = 1024;
+    /** Directory of the internal log of committed group offsets; the "__" prefix is reserved. */
+    static final String OFFSETS_TOPIC = "__consumer_offsets";
+    private static final String RESERVED_PREFIX = "__";
+    private static final Pattern PARTITION_DIR = Pattern.compile("^(0|[1-9][0-9]*)$");
+    private static final Pattern VALID_TOPIC_NAME = Pattern.compile("^[a-zA-Z0-9._-]+$");
+    private static final String MBEAN_NAME = "mega:type=Broker";
+
+    Broker(BrokerConfig config) {
+        this(config, ReplicationConfig.STANDALONE);
+    }
+
+    /** Creates a broker that joins the cluster {@code replication} describes, unless it is standalone. */
+    Broker(BrokerConfig config, ReplicationConfig replication) {
+        this(config, replication, QuotaConfig.NONE);
+    }
+
+    /** Creates a broker like {@link #Broker(BrokerConfig, ReplicationConfig)} that enforces {@code quotas}. */
+    Broker(BrokerConfig config, ReplicationConfig replication, QuotaConfig quotas) {
+        this(config, replication, quotas, TieringConfig.DISABLED);
+    }
+
+    /** Creates a broker like {@link #Broker(BrokerConfig, ReplicationConfig, QuotaConfig)} with tiered storage. */
+    Broker(BrokerConfig config, ReplicationConfig replication, QuotaConfig quotas, TieringConfig tiering) {
+        LOG.info("Initializing broker instance with {} storage", config.getStorageMode());
+        this.config = config;
+        this.replication = replication;
+        this.quotas = new Quotas(quotas, metrics, topics::containsKey);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mega-broker-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mega-log-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (config.getStorageMode() == BrokerConfig.StorageMode.DISK && tiering.isEnabled()) {
+            try {
+                tiered = new TieredStorage(new LocalObjectStore(tiering.getStoreDir()), tiering, config, metrics);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to open tiered storage in " + tiering.getStoreDir(), e);
+            }
+            LOG.info("Offloading closed segments to {}", tiering.getStoreDir());
+        } else {
+            tiered = null;
+        }
+        if (config.getStorageMode() == BrokerConfig.StorageMode.DISK) {
+            loadTopics();
+            try {
+                groups = new GroupCoordinator(new FileLog(config.getDataDir().resolve(OFFSETS_TOPIC), config),
+                        config.getGroupSessionTimeoutMs());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to load committed offsets", e);
+            }
+            if (config.getFlushIntervalMs() > 0) {
+                scheduler.scheduleWithFixedDelay(this::flushAll, config.getFlushIntervalMs(),
+                        config.getFlushIntervalMs(), TimeUnit.MILLISECONDS);
+            }
+        } else {
+            groups = new GroupCoordinator(null, config.getGroupSessionTimeoutMs());
+        }
+        long expiryCheckMs = Math.min(1000, config.getGroupSessionTimeoutMs());
+        scheduler.scheduleWithFixedDelay(groups::expireMembers, expiryCheckMs, expiryCheckMs, TimeUnit.MILLISECONDS);
+        long producerCheckMs = Math.min(60_000, config.getProducerExpiryMs());
+        scheduler.scheduleWithFixedDelay(this::expireProducers, producerCheckMs, producerCheckMs,
+                TimeUnit.MILLISECONDS);
+        cleaner.scheduleWithFixedDelay(this::cleanAll, config.getRetentionCheckMs(), config.getRetentionCheckMs(),
+                TimeUnit.MILLISECONDS);
+        metrics.gauge("connections.active", () -> connectionsOpened.getCount() - connectionsClosed.getCount());
+        metrics.gauge("topics", topics::size);
+        scheduler.scheduleAtFixedRate(metrics::tick, Meter.TICK_SECONDS, Meter.TICK_SECONDS, TimeUnit.SECONDS);
+        registerMBean();
+        if (replication.isEnabled()) {
+            LOG.info("Joining cluster {} as node {}", replication.getNodes().keySet(), replication.getNodeId());
+            cluster = new Cluster(this, replication, metrics);
+            long checkMs = Math.max(10, Math.min(replication.getReplicaLagMs(), replication.getAckTimeoutMs()) / 10);
+            scheduler.scheduleWithFixedDelay(this::checkReplicas, checkMs, checkMs, TimeUnit.MILLISECONDS);
+        } else {
+            cluster = null;
+        }
+    }
+
+    private void expireProducers() {
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(config.getProducerExpiryMs());
+        int expired = 0;
+        for (Topic topic : topics.values()) {
+            expired += topic.expireProducers(idleNanos);
+        }
+        if (expired > 0) {
+            LOG.debug("Expired {} idle producers", expired);
+        }
+    }
 
-    private Broker() {
-        System.out.println("[Broker] Initializing broker instance");
+    private void checkReplicas() {
+        try {
+            cluster.checkReplicas();
+        } catch (RuntimeException e) {
+            LOG.error("Error checking in-sync replicas", e);
+        }
+    }
+
+    /**
+     * Publishes the metrics over JMX. A broker created while another is registered, as in tests,
+     * takes the name over; failing to register only costs JMX access.
+     */
+    private void registerMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            try {
+                server.registerMBean(new MetricsMBean(metrics), name);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(name);
+                server.registerMBean(new MetricsMBean(metrics), name);
+            }
+            mbeanName = name;
+        } catch (JMException e) {
+            LOG.warn("Could not register metrics with JMX: {}", e.getMessage());
+        }
     }
 
     public static Broker getInstance() {
         if (instance == null) {
             synchronized (Broker.class) {
                 if (instance == null) {
-                    instance = new Broker();
+                    instance = new Broker(BrokerConfig.load(), ReplicationConfig.load(), QuotaConfig.load(),
+                            TieringConfig.load());
                 }
             }
         }
         return instance;
     }
 
-    public void createTopic(String topicName) {
-        validateTopicName(topicName);
-        lock.writeLock().lock();
+    private void loadTopics() {
+        Path dataDir = config.getDataDir();
         try {
-            System.out.println("[Broker] Attempting to create topic: " + topicName);
-            if (topics.containsKey(topicName)) {
-                throw new TopicAlreadyExistsException("Topic already exists: " + topicName);
-            }
-            topics.computeIfAbsent(topicName, name -> {
-                try {
-                    return new Topic(name);
-                } catch (Exception e) {
-                    throw new RuntimeException("Failed to create topic: " + name, e);
+            Files.createDirectories(dataDir);
+            try (Stream<Path> dirs = Files.list(dataDir)) {
+                for (Path dir : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                    String name = dir.getFileName().toString();
+                    if (name.startsWith(RESERVED_PREFIX)) {
+                        continue;
+                    }
+                    Topic topic = new Topic(name, loadPartitions(dir), TopicConfig.load(dir, config.getTopicDefaults()));
+                    topic.registerMetrics(metrics);
+                    topics.put(name, topic);
+                    LOG.info("Recovered topic {} with {} partitions", name, topic.getPartitionCount());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load topics from " + dataDir, e);
+        }
+    }
+
+    /**
+     * Opens the partitions under a topic directory, one numbered subdirectory each. A directory
+     * holding segment files directly predates partitions and is opened in place as partition 0.
+     */
+    private List<TopicLog> loadPartitions(Path topicDir) throws IOException {
+        int count = 0;
+        try (Stream<Path> entries = Files.list(topicDir)) {
+            for (Path entry : (Iterable<Path>) entries::iterator) {
+                String fileName = entry.getFileName().toString();
+                if (Files.isDirectory(entry) && PARTITION_DIR.matcher(fileName).matches()) {
+                    count = Math.max(count, Integer.parseInt(fileName) + 1);
+                }
+            }
+        }
+        String name = topicDir.getFileName().toString();
+        if (count == 0) {
+            return List.of(openLog(topicDir, name, 0));
+        }
+        List<TopicLog> partitions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            partitions.add(openLog(topicDir.resolve(Integer.toString(i)), name, i));
+        }
+        return partitions;
+    }
+
+    /** Opens a partition's log, which offloads under {@code <topic>/<partition>} if tiering is on. */
+    private FileLog openLog(Path dir, String topic, int partition) throws IOException {
+        return new FileLog(dir, config, tiered, topic + "/" + partition);
+    }
+
+    /**
+     * Creates the storage of a new topic. Settings given at creation are stored with a disk topic;
+     * one without them follows the broker defaults, also after a restart with different ones.
+     */
+    private Topic newTopic(String name, int partitionCount, TopicConfig topicConfig) throws IOException {
+        TopicConfig effective = topicConfig == null ? config.getTopicDefaults() : topicConfig;
+        if (config.getStorageMode() == BrokerConfig.StorageMode.DISK) {
+            Path topicDir = config.getDataDir().resolve(name);
+            if (topicConfig != null) {
+                topicConfig.store(topicDir);
+            }
+            List<TopicLog> partitions = new ArrayList<>(partitionCount);
+            for (int i = 0; i < partitionCount; i++) {
+                partitions.add(openLog(topicDir.resolve(Integer.toString(i)), name, i));
+            }
+            return new Topic(name, partitions, effective);
+        }
+        return new Topic(name, partitionCount, effective);
+    }
+
+    /**
+     * Applies retention and compaction to every topic and the committed offsets, and offloads closed
+     * segments if tiering is on. A failure is logged and the topic retried on the next run, since an
+     * exception escaping would cancel the schedule.
+     */
+    private void cleanAll() {
+        long now = System.currentTimeMillis();
+        for (Topic topic : topics.values()) {
+            try {
+                long removed = topic.clean(now);
+                if (removed > 0) {
+                    LOG.info("Cleaned {} records from topic {}", removed, topic.getName());
+                }
+                long offloaded = topic.offload();
+                if (offloaded > 0) {
+                    LOG.info("Offloaded {} segments of topic {}", offloaded, topic.getName());
                 }
-            });
-            System.out.println("[Broker] Topic created successfully: " + topicName);
-        } finally {
-            lock.writeLock().unlock();
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Error cleaning topic {}", topic.getName(), e);
+            }
+        }
+        try {
+            groups.clean(now);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error compacting committed offsets", e);
+        }
+    }
+
+    private void flushAll() {
+        for (Topic topic : topics.values()) {
+            try {
+                topic.flush();
+            } catch (IOException e) {
+                LOG.error("Error flushing topic {}", topic.getName(), e);
+            }
+        }
+        try {
+            groups.flush();
+        } catch (IOException e) {
+            LOG.error("Error flushing committed offsets", e);
+        }
+    }
+
+    /**
+     * Creates a topic atomically: when several clients race to create the same name, exactly one
+     * succeeds and the others get {@link TopicAlreadyExistsException}. Only a concurrent create of a
+     * name in the same map bin waits; produces and consumes never do.
+     */
+    public void createTopic(String topicName) {
+        createTopic(topicName, 1);
+    }
+
+    public void createTopic(String topicName, int partitionCount) {
+        createTopic(topicName, partitionCount, null);
+    }
+
+    /** Creates a topic with its own retention and compaction, or the broker defaults if {@code topicConfig} is null. */
+    public void createTopic(String topicName, int partitionCount, TopicConfig topicConfig) {
+        checkLeader();
+        validateTopicName(topicName);
+        if (partitionCount < 1 || partitionCount > MAX_PARTITIONS) {
+            throw new IllegalArgumentException("Partition count must be between 1 and " + MAX_PARTITIONS);
+        }
+        LOG.debug("Attempting to create topic {} with {} partitions", topicName, partitionCount);
+        boolean[] created = new boolean[1];
+        topics.computeIfAbsent(topicName, name -> {
+            try {
+                Topic topic = newTopic(name, partitionCount, topicConfig);
+                topic.registerMetrics(metrics);
+                created[0] = true;
+                return topic;
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to create topic: " + name, e);
+            }
+        });
+        if (!created[0]) {
+            throw new TopicAlreadyExistsException("Topic already exists: " + topicName);
+        }
+        LOG.info("Topic created: {} ({} partitions)", topicName, partitionCount);
+    }
+
+    /**
+     * Returns the topic a follower copies from the leader, creating it with the leader's partition
+     * count and settings if this node does not have it yet.
+     */
+    Topic createReplicaTopic(String topicName, int partitionCount, TopicConfig topicConfig) {
+        Topic existing = topics.get(topicName);
+        if (existing != null) {
+            return existing;
+        }
+        validateTopicName(topicName);
+        return topics.computeIfAbsent(topicName, name -> {
+            try {
+                Topic topic = newTopic(name, partitionCount, topicConfig);
+                topic.registerMetrics(metrics);
+                LOG.info("Replica of topic {} created ({} partitions)", name, partitionCount);
+                return topic;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to create replica of topic " + name, e);
+            }
+        });
+    }
+
+    /** Throws {@link NotLeaderException} unless this broker is standalone or leads its cluster. */
+    private void checkLeader() {
+        if (cluster != null && !cluster.isLeader()) {
+            throw new NotLeaderException(cluster.getLeaderId());
         }
     }
 
@@ -53,49 +371,252 @@ public class Broker {
         if (topicName.length() > MAX_TOPIC_NAME_LENGTH) {
             throw new IllegalArgumentException("Topic name exceeds maximum length of " + MAX_TOPIC_NAME_LENGTH);
         }
-        if (!topicName.matches("^[a-zA-Z0-9._-]+$")) {
+        if (!VALID_TOPIC_NAME.matcher(topicName).matches()) {
             throw new IllegalArgumentException("Topic name contains invalid characters");
         }
+        if (topicName.equals(".") || topicName.equals("..")) {
+            throw new IllegalArgumentException("Topic name cannot be '.' or '..'");
+        }
+        if (topicName.startsWith(RESERVED_PREFIX)) {
+            throw new IllegalArgumentException("Topic names starting with '" + RESERVED_PREFIX + "' are reserved");
+        }
     }
 
-    public int produce(String topicName, Message message) {
-        lock.readLock().lock();
-        try {
-            System.out.println("[Broker] Producing message for topic: " + topicName);
-            Topic topic = topics.get(topicName);
-            if (topic == null) {
-                System.out.println("[Broker] ERROR: Topic not found: " + topicName);
-                throw new TopicNotFoundException(topicName);
-            }
-            int offset = topic.produce(message);
-            System.out.println("[Broker] Message produced successfully at offset: " + offset);
-            return offset;
-        } catch (Exception e) {
-            System.err.println("[Broker] Error producing message: " + e.getMessage());
-            throw e;
-        } finally {
-            lock.readLock().unlock();
+    Topic getTopic(String topicName) {
+        Topic topic = topics.get(topicName);
+        if (topic == null) {
+            throw new TopicNotFoundException(topicName);
+        }
+        return topic;
+    }
+
+    public long produce(String topicName, Message message) {
+        checkLeader();
+        Topic topic = getTopic(topicName);
+        long offset = topic.produce(message);
+        LOG.debug("Produced message to topic {} at offset {}", topicName, offset);
+        return offset;
+    }
+
+    /** Hands out an ID for an idempotent producer; its sequences are tracked per topic it produces to. */
+    public long initProducerId() {
+        checkLeader();
+        return nextProducerId.getAndIncrement();
+    }
+
+    /**
+     * Runs {@code append}, a produce to a topic, unless producer {@code producerId} already appended
+     * {@code sequence} to it, and returns where the records are; see {@link ProducerStates}.
+     */
+    public ProducerStates.Append appendOnce(String topicName, long producerId, int sequence,
+            Supplier<ProducerStates.Append> append) {
+        checkLeader();
+        return getTopic(topicName).appendOnce(producerId, sequence, append);
+    }
+
+    /** Resolves the partition a produce lands in; see {@link Topic#partitionFor}. */
+    public int partitionFor(String topicName, int requested, byte[] key) {
+        return getTopic(topicName).partitionFor(requested, key);
+    }
+
+    /** Appends a batch to one partition of a topic, as resolved by {@link #partitionFor}, and returns its base offset. */
+    public long produceBatch(String topicName, int partition, long timestamp, byte[] key, List<ByteBuffer> payloads) {
+        checkLeader();
+        Topic topic = getTopic(topicName);
+        long baseOffset = topic.produceBatch(partition, timestamp, key, payloads);
+        LOG.debug("Produced batch to {}-{} at base offset {}", topicName, partition, baseOffset);
+        return baseOffset;
+    }
+
+    public long produceBatch(String topicName, int partition, long timestamp, byte[] key, Compression compression,
+            int recordCount, ByteBuffer compressed) {
+        checkLeader();
+        Topic topic = getTopic(topicName);
+        long baseOffset = topic.produceBatch(partition, timestamp, key, compression, recordCount, compressed);
+        LOG.debug("Produced compressed batch to {}-{} at base offset {}", topicName, partition, baseOffset);
+        return baseOffset;
+    }
+
+    public Record consume(String topicName, long offset) {
+        return consume(topicName, 0, offset);
+    }
+
+    public Record consume(String topicName, int partition, long offset) {
+        Topic topic = getTopic(topicName);
+        Record record = topic.consume(partition, offset);
+        LOG.debug("Consumed from {}-{} at offset {}", topicName, partition, offset);
+        return record;
+    }
+
+    public RecordBatch fetch(String topicName, int partition, long offset, int maxRecords, int maxBytes) {
+        LOG.debug("Fetching from {}-{} at offset {}", topicName, partition, offset);
+        Topic topic = getTopic(topicName);
+        return topic.fetch(partition, offset, maxRecords, maxBytes);
+    }
+
+    /**
+     * Returns the first offset of a partition whose record is at or after {@code timestamp}, or its
+     * next offset if there is none, for a consumer that wants to start from a point in time.
+     */
+    public long offsetForTime(String topicName, int partition, long timestamp) {
+        long offset = getTopic(topicName).offsetForTime(partition, timestamp);
+        LOG.debug("Looked up time {} in {}-{}", timestamp, topicName, partition);
+        return offset;
+    }
+
+    /** Parks a fetch on a partition until more data arrives; see {@link Topic#awaitData}. */
+    public FetchWaiters.Waiter awaitFetch(String topicName, int partition, long endOffset, int availableBytes,
+            int minBytes, long maxWaitNanos, Runnable onReady) {
+        return getTopic(topicName).awaitData(partition, endOffset, availableBytes, minBytes, maxWaitNanos, onReady);
+    }
+
+    /**
+     * Whether a produce asking for {@code acks} must wait for the in-sync replicas before it is
+     * answered; {@link Message#ACKS_DEFAULT} takes the broker's default. A standalone broker never waits.
+     */
+    public boolean awaitsReplicas(byte acks) {
+        if (acks != Message.ACKS_DEFAULT && acks != ReplicationConfig.ACKS_LEADER
+                && acks != ReplicationConfig.ACKS_ALL) {
+            throw new IllegalArgumentException("Invalid acks " + acks);
+        }
+        byte effective = acks == Message.ACKS_DEFAULT ? replication.getDefaultAcks() : acks;
+        return cluster != null && effective == ReplicationConfig.ACKS_ALL;
+    }
+
+    /**
+     * Runs {@code onDone} once the in-sync replicas have {@code partition} of a topic up to
+     * {@code lastOffset}, with null, or with the error the produce should fail with.
+     */
+    public void awaitReplication(String topicName, int partition, long lastOffset, Consumer<ErrorCode> onDone) {
+        if (cluster == null) {
+            onDone.accept(null);
+            return;
         }
+        cluster.awaitReplication(topicName, partition, lastOffset, onDone);
     }
 
-    public Message consume(String topicName, int offset) {
-        lock.readLock().lock();
+    /**
+     * Serves a follower's fetch of a partition like any other, after noting where it starts as how
+     * far follower {@code replicaId} has replicated it.
+     */
+    public RecordBatch replicaFetch(int replicaId, String topicName, int partition, long offset, int maxRecords,
+            int maxBytes) {
+        if (cluster == null) {
+            throw new NotLeaderException(ClusterMetadata.NO_LEADER);
+        }
+        Topic topic = getTopic(topicName);
+        cluster.onReplicaFetch(replicaId, topicName, partition, offset, topic.getNextOffset(partition));
+        return topic.fetch(partition, offset, maxRecords, maxBytes);
+    }
+
+    /** The cluster as this broker sees it; a standalone broker has no nodes, no leader and epoch 0. */
+    public ClusterMetadata getClusterMetadata() {
+        if (cluster != null) {
+            return cluster.getMetadata();
+        }
+        List<ClusterMetadata.TopicMetadata> described = new ArrayList<>();
+        for (Topic topic : topics.values()) {
+            described.add(new ClusterMetadata.TopicMetadata(topic.getName(), topic.getConfig(),
+                    new long[topic.getPartitionCount()], topic.getNextOffsets()));
+        }
+        return new ClusterMetadata(ClusterMetadata.NO_LEADER, 0, Map.of(), Set.of(), described);
+    }
+
+    Collection<Topic> getTopics() {
+        return topics.values();
+    }
+
+    /** Joins a consumer group on a topic and returns the member's share of its partitions. */
+    public ConsumerGroup.Assignment joinGroup(String groupId, String topicName, String memberId) {
+        checkLeader();
+        return groups.join(groupId, topicName, getTopic(topicName).getPartitionCount(), memberId);
+    }
+
+    /** Keeps a group member alive and returns the group's generation. */
+    public int heartbeat(String groupId, String memberId) {
+        checkLeader();
+        return groups.heartbeat(groupId, memberId);
+    }
+
+    /** Removes a member from its group, rebalancing the rest, and returns the new generation. */
+    public int leaveGroup(String groupId, String memberId) {
+        checkLeader();
+        return groups.leave(groupId, memberId);
+    }
+
+    public void commitOffset(String groupId, String topicName, String memberId, int generation, int partition,
+            long offset) {
+        checkLeader();
+        groups.commit(groupId, topicName, memberId, generation, partition, offset);
+        LOG.debug("Group {} committed offset {} for partition {}", groupId, offset, partition);
+    }
+
+    public long committedOffset(String groupId, String topicName, int partition) {
+        checkLeader();
+        return groups.committedOffset(groupId, topicName, partition);
+    }
+
+    /** The rate limits clients are held to; each connection takes its share with {@link Quotas#newClient()}. */
+    Quotas getQuotas() {
+        return quotas;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public RequestMetrics getRequestMetrics() {
+        return requestMetrics;
+    }
+
+    /** Counts a client connection, for the {@code connections.*} metrics. */
+    void connectionOpened() {
+        connectionsOpened.mark();
+    }
+
+    void connectionClosed() {
+        connectionsClosed.mark();
+    }
+
+    @Override
+    public void close() {
+        if (cluster != null) {
+            cluster.close();
+        }
+        LOG.info("Closing topics");
+        scheduler.shutdownNow();
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                LOG.debug("Metrics already unregistered from JMX: {}", e.getMessage());
+            }
+        }
+        // Not interrupted: that would close the segment channel a cleaner read is running on
+        cleaner.shutdown();
         try {
-            System.out.println("[Broker] Consuming message from topic: " + topicName + " at offset: " + offset);
-            Topic topic = topics.get(topicName);
-            if (topic == null) {
-                System.out.println("[Broker] ERROR: Topic not found: " + topicName);
-                throw new TopicNotFoundException(topicName);
+            cleaner.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            groups.close();
+        } catch (IOException e) {
+            LOG.error("Error closing committed offsets", e);
+        }
+        for (Topic topic : topics.values()) {
+            try {
+                topic.close();
+            } catch (IOException e) {
+                LOG.error("Error closing topic {}", topic.getName(), e);
             }
-            Message message = topic.consume(offset);
-            if (message != null) {
-                System.out.println("[Broker] Retrieved message from topic: " + topicName);
-            } else {
-                System.out.println("[Broker] No message found at offset: " + offset);
+        }
+        if (tiered != null) {
+            try {
+                tiered.close();
+            } catch (IOException e) {
+                LOG.error("Error closing tiered storage", e);
             }
-            return message;
-        } finally {
-            lock.readLock().unlock();
         }
     }
-}
\ No newline at end of file
+}
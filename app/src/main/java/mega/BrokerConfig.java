@@ -0,0 +1,145 @@
+package mega;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Broker settings. Each value is read from a system property (e.g. {@code -Dmega.storage=disk}) and
+ * falls back to the matching environment variable ({@code MEGA_STORAGE}), then to a default.
+ */
+public class BrokerConfig {
+    public enum StorageMode {
+        MEMORY, DISK
+    }
+
+    private final StorageMode storageMode;
+    private final Path dataDir;
+    private final int segmentBytes;
+    private final int indexIntervalBytes;
+    private final int flushIntervalMessages;
+    private final long flushIntervalMs;
+    private final long groupSessionTimeoutMs;
+    private final TopicConfig topicDefaults;
+    private final long retentionCheckMs;
+    private final long producerExpiryMs;
+
+    public BrokerConfig(StorageMode storageMode, Path dataDir, int segmentBytes, int indexIntervalBytes,
+            int flushIntervalMessages, long flushIntervalMs) {
+        this(storageMode, dataDir, segmentBytes, indexIntervalBytes, flushIntervalMessages, flushIntervalMs, 10_000);
+    }
+
+    public BrokerConfig(StorageMode storageMode, Path dataDir, int segmentBytes, int indexIntervalBytes,
+            int flushIntervalMessages, long flushIntervalMs, long groupSessionTimeoutMs) {
+        this(storageMode, dataDir, segmentBytes, indexIntervalBytes, flushIntervalMessages, flushIntervalMs,
+                groupSessionTimeoutMs, TopicConfig.RETAIN_ALL, 30_000);
+    }
+
+    public BrokerConfig(StorageMode storageMode, Path dataDir, int segmentBytes, int indexIntervalBytes,
+            int flushIntervalMessages, long flushIntervalMs, long groupSessionTimeoutMs, TopicConfig topicDefaults,
+            long retentionCheckMs) {
+        this(storageMode, dataDir, segmentBytes, indexIntervalBytes, flushIntervalMessages, flushIntervalMs,
+                groupSessionTimeoutMs, topicDefaults, retentionCheckMs, 15 * 60 * 1000);
+    }
+
+    public BrokerConfig(StorageMode storageMode, Path dataDir, int segmentBytes, int indexIntervalBytes,
+            int flushIntervalMessages, long flushIntervalMs, long groupSessionTimeoutMs, TopicConfig topicDefaults,
+            long retentionCheckMs, long producerExpiryMs) {
+        if (retentionCheckMs <= 0) {
+            throw new IllegalArgumentException("Retention check interval must be positive");
+        }
+        if (groupSessionTimeoutMs <= 0) {
+            throw new IllegalArgumentException("Group session timeout must be positive");
+        }
+        if (producerExpiryMs <= 0) {
+            throw new IllegalArgumentException("Producer expiry must be positive");
+        }
+        if (segmentBytes <= 0 || indexIntervalBytes <= 0) {
+            throw new IllegalArgumentException("Segment and index interval sizes must be positive");
+        }
+        if (flushIntervalMessages < 0 || flushIntervalMs < 0) {
+            throw new IllegalArgumentException("Flush intervals cannot be negative");
+        }
+        this.storageMode = storageMode;
+        this.dataDir = dataDir;
+        this.segmentBytes = segmentBytes;
+        this.indexIntervalBytes = indexIntervalBytes;
+        this.flushIntervalMessages = flushIntervalMessages;
+        this.flushIntervalMs = flushIntervalMs;
+        this.groupSessionTimeoutMs = groupSessionTimeoutMs;
+        this.topicDefaults = topicDefaults;
+        this.retentionCheckMs = retentionCheckMs;
+        this.producerExpiryMs = producerExpiryMs;
+    }
+
+    public static BrokerConfig load() {
+        return new BrokerConfig(
+                StorageMode.valueOf(get("mega.storage", "memory").toUpperCase()),
+                Paths.get(get("mega.data.dir", "data")),
+                Integer.parseInt(get("mega.segment.bytes", String.valueOf(128 * 1024 * 1024))),
+                Integer.parseInt(get("mega.index.interval.bytes", "4096")),
+                Integer.parseInt(get("mega.flush.messages", "0")),
+                Long.parseLong(get("mega.flush.ms", "1000")),
+                Long.parseLong(get("mega.group.session.timeout.ms", "10000")),
+                new TopicConfig(
+                        Long.parseLong(get("mega.retention.ms", "-1")),
+                        Long.parseLong(get("mega.retention.bytes", "-1")),
+                        Long.parseLong(get("mega.retention.records", "-1")),
+                        Boolean.parseBoolean(get("mega.compact", "false"))),
+                Long.parseLong(get("mega.retention.check.ms", "30000")),
+                Long.parseLong(get("mega.producer.expiry.ms", String.valueOf(15 * 60 * 1000))));
+    }
+
+    static String get(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = System.getenv(key.toUpperCase().replace('.', '_'));
+        }
+        return value == null ? defaultValue : value.trim();
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public Path getDataDir() {
+        return dataDir;
+    }
+
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public int getIndexIntervalBytes() {
+        return indexIntervalBytes;
+    }
+
+    /** Number of appends after which a log is fsynced; 0 disables count-based flushing. */
+    public int getFlushIntervalMessages() {
+        return flushIntervalMessages;
+    }
+
+    /** Period of the background fsync of all logs; 0 disables time-based flushing. */
+    public long getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    /** How long a consumer group member may go without a heartbeat before it is removed. */
+    public long getGroupSessionTimeoutMs() {
+        return groupSessionTimeoutMs;
+    }
+
+    /** Retention and compaction of topics created without settings of their own. */
+    public TopicConfig getTopicDefaults() {
+        return topicDefaults;
+    }
+
+    /** Period of the background cleaner that applies retention and compaction. */
+    public long getRetentionCheckMs() {
+        return retentionCheckMs;
+    }
+
+    /** How long an idempotent producer may go without producing before its sequences are forgotten. */
+    public long getProducerExpiryMs() {
+        return producerExpiryMs;
+    }
+}
@@ -3,25 +3,86 @@ package mega;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Serves one connection. Requests are decoded continuously and each is processed on its own virtual
+ * thread, so a client may pipeline many requests and match the responses, which can complete in any
+ * order, by correlation ID. Responses are written whole under a lock into a buffered stream that is
+ * flushed once no request is left in flight, so one flush covers every response ready at that point.
+ * A fetch that asks to wait for data is parked on its partition without a thread and stays in
+ * flight until an append or its deadline wakes it. Subscriptions push records on their own, outside
+ * the request flow, see {@link Subscription}.
+ *
+ * A request that takes the connection over one of its {@link Quotas} is held back before it is
+ * served, see {@link #throttle}.
+ *
+ * A connection speaks protocol version 0, with 4-byte offsets, until an API_VERSIONS request agrees
+ * on a newer one. Each response is written in the version its request was decoded with; a version 0
+ * request whose answer holds an offset past the 4-byte range gets UNSUPPORTED_VERSION instead.
+ */
 public class ClientHandler implements Runnable, AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(ClientHandler.class);
     private final Socket clientSocket;
     private final Broker broker;
+    private final RequestMetrics requestMetrics;
+    private final Quotas.Client quota;
     private final AtomicBoolean running;
     private DataInputStream input;
     private DataOutputStream output;
     private final String clientId;
+    private final ByteBuffer responseHeader;
+    private final TopicNameCache topicNames = new TopicNameCache();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Set<FetchWaiters.Waiter> parkedFetches = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final CountDownLatch closed = new CountDownLatch(1); // Cuts a throttle short
+    private volatile boolean draining;
+    private short version = Message.VERSION_0; // Only used by the reader thread, to decode requests
+    private static final ExecutorService DISPATCHER = Executors.newVirtualThreadPerTaskExecutor();
     private static final int READ_TIMEOUT_MS = 30000; // 30 seconds
     // private static final int WRITE_TIMEOUT_MS = 30000; // 30 seconds
-    private static final int MAX_MESSAGE_SIZE = 1024 * 1024; // 1MB
+    private static final int RESPONSE_HEADER_SIZE = 25;
+    private static final int MAX_IN_FLIGHT = 128; // Requests processed concurrently per connection
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    // Fetch waits are capped well inside the read timeout so a long-polling client is never cut off
+    private static final int MAX_FETCH_WAIT_MS = READ_TIMEOUT_MS / 2;
+    private static final int MAX_SUBSCRIPTIONS = 64; // Per connection
+    private static final int MAX_PUSH_RECORDS = 500;
+    private static final int MAX_PUSH_BYTES = 1024 * 1024; // 1MB
 
     public ClientHandler(Socket clientSocket) {
+        this(clientSocket, Broker.getInstance());
+    }
+
+    public ClientHandler(Socket clientSocket, Broker broker) {
         this.clientSocket = clientSocket;
-        this.broker = Broker.getInstance();
+        this.broker = broker;
+        this.requestMetrics = broker.getRequestMetrics();
+        this.quota = broker.getQuotas().newClient();
+        broker.connectionOpened();
         this.running = new AtomicBoolean(true);
         this.clientId = clientSocket.getInetAddress() + ":" + clientSocket.getPort();
-        logInfo("New client connected");
+        this.responseHeader = ByteBuffer.allocateDirect(RESPONSE_HEADER_SIZE);
+        LOG.debug("New client connected: {}", clientId);
     }
 
     @Override
@@ -30,47 +91,198 @@ public class ClientHandler implements Runnable, AutoCloseable {
             initializeStreams();
             handleClientRequests();
         } catch (IOException e) {
-            handleError("Error handling client", e);
+            LOG.warn("Error handling client {}: {}", clientId, e.getMessage());
         } finally {
             close();
         }
     }
 
     private void initializeStreams() throws IOException {
-        logInfo("Initializing streams for client");
         try {
             clientSocket.setSoTimeout(READ_TIMEOUT_MS);
-            input = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
-            output = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+            // Responses are coalesced by the buffered stream; Nagle would only delay split writes.
+            clientSocket.setTcpNoDelay(true);
+            input = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream(), STREAM_BUFFER_SIZE));
+            output = new DataOutputStream(
+                    new BufferedOutputStream(clientSocket.getOutputStream(), STREAM_BUFFER_SIZE));
         } catch (IOException e) {
-            handleError("Failed to initialize streams", e);
+            LOG.warn("Failed to initialize streams for client {}: {}", clientId, e.getMessage());
             throw e;
         }
     }
 
     private void handleClientRequests() throws IOException {
-        while (running.get()) {
+        try {
+            while (running.get()) {
+                try {
+                    awaitRequest();
+                    Message message = new Message(input, topicNames, version);
+                    LOG.debug("Received {} from client {}", message, clientId);
+                    if (message.getMessageType() == MessageType.API_VERSIONS) {
+                        // Served on the reader thread, since it changes how the requests after it are read
+                        pending.incrementAndGet();
+                        try {
+                            handleApiVersions(message);
+                            recordLatency(message);
+                        } finally {
+                            completeRequest();
+                        }
+                        continue;
+                    }
+                    throttle(message);
+                    dispatch(message);
+                } catch (EOFException e) {
+                    LOG.debug("Client {} disconnected", clientId);
+                    break;
+                } catch (IOException e) {
+                    LOG.warn("Network error for client {}: {}", clientId, e.getMessage());
+                    sendErrorResponse(0, ErrorCode.NETWORK_ERROR);
+                    break;
+                }
+            }
+        } finally {
+            // Let requests already read finish writing their responses before the socket is closed,
+            // answering parked fetches with whatever they have rather than waiting out their deadlines.
+            draining = true;
+            for (FetchWaiters.Waiter waiter : parkedFetches) {
+                waiter.expire();
+            }
+            for (Subscription subscription : subscriptions.values()) {
+                subscription.cancel();
+            }
+            subscriptions.clear();
+            inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+        }
+    }
+
+    /**
+     * Blocks until the next request starts to arrive. A connection with live subscriptions may stay
+     * quiet for as long as it likes; any other is dropped after {@link #READ_TIMEOUT_MS} of silence.
+     * The timeout can only strike here between requests, so retrying leaves the stream intact.
+     */
+    private void awaitRequest() throws IOException {
+        while (true) {
             try {
-                Message message = new Message(input);
-                logInfo("Received message: " + message);
-                processMessage(message);
-            } catch (EOFException e) {
-                logInfo("Client disconnected");
-                break;
-            } catch (IOException e) {
-                handleError("Network error", e);
-                sendErrorResponse(0, ErrorCode.NETWORK_ERROR);
-                break;
+                input.mark(1);
+                if (input.read() < 0) {
+                    throw new EOFException();
+                }
+                input.reset();
+                return;
+            } catch (SocketTimeoutException e) {
+                if (subscriptions.isEmpty()) {
+                    throw e;
+                }
             }
         }
     }
 
-    private void processMessage(Message message) throws IOException {
-        if (message.getPayloadLength() > MAX_MESSAGE_SIZE) {
-            handleError("Message size exceeds maximum allowed size", null);
-            sendErrorResponse(message.getCorrelationId(), ErrorCode.MESSAGE_TOO_LARGE);
+    /**
+     * Charges a request to the connection's quotas and, when it goes over one, waits out the throttle
+     * time on the reader thread before the request is served, so its answer is delayed by that much
+     * and reports it. Nothing more is read from the connection meanwhile: further requests wait in the
+     * socket buffers and then the client's, which bounds what a throttled connection can tie up,
+     * while requests already in flight are answered as usual.
+     */
+    private void throttle(Message message) {
+        long throttleNanos = quota.charge(message);
+        if (throttleNanos <= 0) {
             return;
         }
+        long throttleMs = (throttleNanos + 999_999) / 1_000_000; // rounded up, so a throttled reply never says 0
+        message.setThrottleTimeMs((int) Math.min(throttleMs, Integer.MAX_VALUE));
+        LOG.debug("Throttling {} from client {} for {} ms", message.getMessageType(), clientId, throttleMs);
+        try {
+            closed.await(throttleNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands a request to its own virtual thread, or serves it on the reader thread when nothing else
+     * is in flight or buffered and there is nothing to overlap it with. Blocks the reader once
+     * {@link #MAX_IN_FLIGHT} requests are outstanding, which bounds the memory one connection can tie up.
+     */
+    private void dispatch(Message message) throws IOException {
+        boolean inline = pending.get() == 0 && input.available() == 0;
+        inFlight.acquireUninterruptibly();
+        pending.incrementAndGet();
+        if (inline) {
+            serve(message);
+        } else {
+            DISPATCHER.execute(() -> serve(message));
+        }
+    }
+
+    private void serve(Message message) {
+        boolean responded = true;
+        try {
+            responded = processMessage(message);
+            if (responded) {
+                recordLatency(message);
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to send response to client {}: {}", clientId, e.getMessage());
+            close();
+        } finally {
+            // A parked request keeps its in-flight permit but must not hold back the flush of others.
+            completeRequest();
+            if (responded) {
+                inFlight.release();
+            }
+        }
+    }
+
+    /** Serves a parked fetch again once its waiter fires; it completes or parks anew. */
+    private void resumeFetch(Message message, long deadlineNanos) {
+        parkedFetches.removeIf(FetchWaiters.Waiter::isDone);
+        pending.incrementAndGet();
+        boolean responded = true;
+        try {
+            responded = handleFetch(message, deadlineNanos);
+            if (responded) {
+                recordLatency(message);
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to send response to client {}: {}", clientId, e.getMessage());
+            close();
+        } finally {
+            completeRequest();
+            if (responded) {
+                inFlight.release();
+            }
+        }
+    }
+
+    /** Records how long a request took from being read to being answered, parked time included. */
+    private void recordLatency(Message message) {
+        requestMetrics.record(message.getMessageType(), System.nanoTime() - message.getReceivedNanos());
+    }
+
+    private void completeRequest() {
+        if (pending.decrementAndGet() > 0) {
+            return; // A request still in flight will flush our response along with its own.
+        }
+        writeLock.lock();
+        try {
+            output.flush();
+        } catch (IOException e) {
+            LOG.warn("Error flushing responses to client {}: {}", clientId, e.getMessage());
+            close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Processes a request and returns whether it has been answered, false when it was parked. */
+    private boolean processMessage(Message message) throws IOException {
+        if (message.isTooLarge()) {
+            LOG.warn("Message of {} bytes from client {} exceeds maximum allowed size", message.getPayloadLength(),
+                    clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.MESSAGE_TOO_LARGE);
+            return true;
+        }
 
         try {
             switch (message.getMessageType()) {
@@ -78,147 +290,878 @@ public class ClientHandler implements Runnable, AutoCloseable {
                     handleCreateTopic(message);
                     break;
                 case PRODUCE:
-                    handleProduce(message);
-                    break;
+                    return handleProduce(message);
+                case PRODUCE_BATCH:
+                    return handleProduceBatch(message);
                 case CONSUME:
                     handleConsume(message);
                     break;
+                case FETCH:
+                case REPLICA_FETCH:
+                    return handleFetch(message, System.nanoTime()
+                            + TimeUnit.MILLISECONDS.toNanos(Math.min(message.getMaxWaitMs(), MAX_FETCH_WAIT_MS)));
+                case SUBSCRIBE:
+                    handleSubscribe(message);
+                    break;
+                case CREDIT:
+                    handleCredit(message);
+                    break;
+                case UNSUBSCRIBE:
+                    handleUnsubscribe(message);
+                    break;
+                case JOIN_GROUP:
+                case HEARTBEAT:
+                case LEAVE_GROUP:
+                case COMMIT_OFFSET:
+                case FETCH_OFFSET:
+                    handleGroupRequest(message);
+                    break;
+                case STATS:
+                    handleStats(message);
+                    break;
+                case METADATA:
+                    handleMetadata(message);
+                    break;
+                case INIT_PRODUCER_ID:
+                    handleInitProducerId(message);
+                    break;
+                case OFFSET_FOR_TIME:
+                    handleOffsetForTime(message);
+                    break;
                 default:
                     handleUnknownMessageType(message);
             }
-            output.flush();
         } catch (TopicNotFoundException e) {
-            handleError("Topic not found: " + message.getTopic(), e);
+            LOG.debug("Topic not found: {} (client {})", message.getTopic(), clientId);
             sendErrorResponse(message.getCorrelationId(), ErrorCode.TOPIC_NOT_FOUND);
+        } catch (NotLeaderException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.NOT_LEADER);
         } catch (IllegalArgumentException e) {
-            handleError("Invalid request", e);
+            LOG.debug("Invalid request from client {}: {}", clientId, e.getMessage());
             sendErrorResponse(message.getCorrelationId(), ErrorCode.INVALID_REQUEST);
         } catch (IllegalStateException e) {
-            handleError("Resource exhausted", e);
+            LOG.warn("Resource exhausted for client {}: {}", clientId, e.getMessage());
             sendErrorResponse(message.getCorrelationId(), ErrorCode.RESOURCE_EXHAUSTED);
         } catch (Exception e) {
-            handleError("Error processing message", e);
+            LOG.error("Error processing message from client {}", clientId, e);
             sendErrorResponse(message.getCorrelationId(), ErrorCode.INTERNAL_ERROR);
         }
+        return true;
+    }
+
+    /** Agrees on the newest version both sides speak and answers with it; the client must use it from then on. */
+    private void handleApiVersions(Message message) throws IOException {
+        short requested;
+        try {
+            requested = message.getRequestedVersion();
+        } catch (IllegalArgumentException e) {
+            requested = -1;
+        }
+        if (requested < 0) {
+            LOG.debug("Invalid API versions request from client {}", clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.INVALID_REQUEST);
+            return;
+        }
+        short agreed = (short) Math.min(requested, Message.MAX_VERSION);
+        writeResponse(() -> {
+            output.writeInt(message.getCorrelationId());
+            output.writeByte(1);
+            output.writeShort(agreed);
+        });
+        version = agreed;
+        LOG.debug("Client {} speaks protocol version {}", clientId, agreed);
+    }
+
+    /** Checks that {@code offset} can be answered in the request's version, which version 0 limits to 4 bytes. */
+    private static void checkOffset(Message message, long offset) {
+        if (message.getVersion() < Message.VERSION_1 && offset > Integer.MAX_VALUE) {
+            throw new UnsupportedVersionException(offset, message.getVersion());
+        }
     }
 
     private void handleCreateTopic(Message message) throws IOException {
         try {
-            broker.createTopic(message.getTopic());
+            broker.createTopic(message.getTopic(), message.getPartitionCount(), message.getTopicConfig());
             sendCreateTopicResponse(message.getCorrelationId(), true, message.getTimestamp(), message.getTopic());
-            logInfo("Topic created successfully: " + message.getTopic());
+            LOG.debug("Topic {} created for client {}", message.getTopic(), clientId);
         } catch (TopicAlreadyExistsException e) {
-            logInfo("Topic already exists: " + message.getTopic());
+            LOG.debug("Topic {} already exists (client {})", message.getTopic(), clientId);
             sendErrorResponse(message.getCorrelationId(), ErrorCode.TOPIC_ALREADY_EXISTS);
+        } catch (NotLeaderException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.NOT_LEADER);
+        } catch (IllegalArgumentException e) {
+            LOG.debug("Invalid create topic request from client {}: {}", clientId, e.getMessage());
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.INVALID_REQUEST);
         } catch (Exception e) {
-            handleError("Failed to create topic: " + message.getTopic(), e);
+            LOG.error("Failed to create topic {} for client {}", message.getTopic(), clientId, e);
             sendErrorResponse(message.getCorrelationId(), ErrorCode.INTERNAL_ERROR);
         }
     }
 
-    private void handleProduce(Message message) throws IOException {
+    /**
+     * Appends a record and answers with its offset, or parks the answer until the in-sync replicas
+     * have the record when the produce waits for them, returning false in that case.
+     */
+    private boolean handleProduce(Message message) throws IOException {
         try {
-            int offset = broker.produce(message.getTopic(), message);
-            sendProduceResponse(message.getCorrelationId(), true, message.getTimestamp(), offset);
-            logInfo("Message produced successfully at offset: " + offset);
+            boolean awaitReplicas = broker.awaitsReplicas(message.getAcks());
+            long offset;
+            if (message.getProducerId() == Message.NO_PRODUCER_ID) {
+                offset = broker.produce(message.getTopic(), message);
+            } else {
+                ProducerStates.Append appended = broker.appendOnce(message.getTopic(), message.getProducerId(),
+                        message.getSequence(),
+                        () -> new ProducerStates.Append(0, broker.produce(message.getTopic(), message), 1));
+                offset = appended.baseOffset;
+                if (appended.duplicate) {
+                    LOG.debug("Duplicate produce at offset {} for client {}", offset, clientId);
+                }
+            }
+            checkOffset(message, offset);
+            ResponseWriter respond = () -> sendProduceResponse(message, offset);
+            if (awaitReplicas) {
+                return awaitReplication(message, 0, offset, respond); // single produces go to partition 0
+            }
+            respond.write();
+            LOG.debug("Produced message at offset {} for client {}", offset, clientId);
         } catch (TopicNotFoundException e) {
-            handleError("Topic not found for produce: " + message.getTopic(), e);
+            LOG.debug("Topic not found for produce: {} (client {})", message.getTopic(), clientId);
             sendErrorResponse(message.getCorrelationId(), ErrorCode.TOPIC_NOT_FOUND);
+        } catch (UnsupportedVersionException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.UNSUPPORTED_VERSION);
+        } catch (NotLeaderException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.NOT_LEADER);
+        } catch (OutOfOrderSequenceException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.OUT_OF_ORDER_SEQUENCE);
+        } catch (IllegalArgumentException e) {
+            LOG.debug("Invalid produce request from client {}: {}", clientId, e.getMessage());
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.INVALID_REQUEST);
+        } catch (Exception e) {
+            LOG.error("Failed to produce message for client {}", clientId, e);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.INTERNAL_ERROR);
+        }
+        return true;
+    }
+
+    /** Appends a batch like {@link #handleProduce} appends a record, parking the answer the same way. */
+    private boolean handleProduceBatch(Message message) throws IOException {
+        try {
+            boolean awaitReplicas = broker.awaitsReplicas(message.getAcks());
+            ProducerStates.Append appended;
+            if (message.getProducerId() == Message.NO_PRODUCER_ID) {
+                appended = appendBatch(message);
+            } else {
+                // The partition is chosen inside, so a retry is answered with the original's even if unkeyed
+                appended = broker.appendOnce(message.getTopic(), message.getProducerId(), message.getSequence(),
+                        () -> appendBatch(message));
+                if (appended.duplicate) {
+                    LOG.debug("Duplicate batch at offset {} for client {}", appended.baseOffset, clientId);
+                }
+            }
+            long lastOffset = appended.baseOffset + appended.recordCount - 1;
+            checkOffset(message, lastOffset);
+            ResponseWriter respond = () -> sendProduceBatchResponse(message, appended.partition,
+                    appended.baseOffset, appended.recordCount);
+            if (awaitReplicas) {
+                return awaitReplication(message, appended.partition, lastOffset, respond);
+            }
+            respond.write();
+            LOG.debug("Produced {} messages at offset {} for client {}", appended.recordCount, appended.baseOffset,
+                    clientId);
+        } catch (TopicNotFoundException e) {
+            LOG.debug("Topic not found for produce: {} (client {})", message.getTopic(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.TOPIC_NOT_FOUND);
+        } catch (UnsupportedVersionException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.UNSUPPORTED_VERSION);
+        } catch (NotLeaderException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.NOT_LEADER);
+        } catch (OutOfOrderSequenceException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.OUT_OF_ORDER_SEQUENCE);
+        } catch (IllegalArgumentException e) {
+            LOG.debug("Invalid produce batch from client {}: {}", clientId, e.getMessage());
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.INVALID_REQUEST);
+        } catch (IllegalStateException e) {
+            LOG.warn("Resource exhausted for client {}: {}", clientId, e.getMessage());
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.RESOURCE_EXHAUSTED);
         } catch (Exception e) {
-            handleError("Failed to produce message", e);
+            LOG.error("Failed to produce batch for client {}", clientId, e);
             sendErrorResponse(message.getCorrelationId(), ErrorCode.INTERNAL_ERROR);
         }
+        return true;
+    }
+
+    /** Appends a produce batch to the partition the broker resolves for it. */
+    private ProducerStates.Append appendBatch(Message message) {
+        int partition = broker.partitionFor(message.getTopic(), message.getPartition(), message.getKey());
+        Compression compression = message.getCompression();
+        if (compression == Compression.NONE) {
+            List<ByteBuffer> payloads = message.getBatchPayloads();
+            return new ProducerStates.Append(partition, broker.produceBatch(message.getTopic(), partition,
+                    message.getTimestamp(), message.getKey(), payloads), payloads.size());
+        }
+        // Stored as sent; the broker never decompresses on the produce path
+        return new ProducerStates.Append(partition, broker.produceBatch(message.getTopic(), partition,
+                message.getTimestamp(), message.getKey(), compression, message.getRecordCount(),
+                ByteBuffer.wrap(message.getPayload())), message.getRecordCount());
+    }
+
+    /**
+     * Parks a produce's answer until the in-sync replicas have its records up to {@code lastOffset},
+     * keeping its in-flight permit like a parked fetch; the answer is then sent from a virtual thread,
+     * or the error the replication failed with in its place.
+     */
+    private boolean awaitReplication(Message message, int partition, long lastOffset, ResponseWriter respond) {
+        broker.awaitReplication(message.getTopic(), partition, lastOffset,
+                error -> DISPATCHER.execute(() -> completeProduce(message, error, respond)));
+        LOG.debug("Awaiting replication of offset {} for client {}", lastOffset, clientId);
+        return false;
+    }
+
+    private void completeProduce(Message message, ErrorCode error, ResponseWriter respond) {
+        pending.incrementAndGet();
+        try {
+            if (error == null) {
+                respond.write();
+            } else {
+                LOG.debug("Replication for client {} failed with {}", clientId, error);
+                sendErrorResponse(message.getCorrelationId(), error);
+            }
+            recordLatency(message);
+        } catch (IOException e) {
+            LOG.warn("Failed to send response to client {}: {}", clientId, e.getMessage());
+            close();
+        } finally {
+            completeRequest();
+            inFlight.release();
+        }
     }
 
     private void handleConsume(Message message) throws IOException {
         try {
-            Message msg = broker.consume(message.getTopic(), message.getOffset());
-            if (msg == null) {
-                handleError("Invalid offset: " + message.getOffset(), null);
+            Record record = broker.consume(message.getTopic(), message.getOffset());
+            if (record == null) {
+                LOG.debug("Invalid offset {} (client {})", message.getOffset(), clientId);
                 sendErrorResponse(message.getCorrelationId(), ErrorCode.INVALID_OFFSET);
                 return;
             }
-            sendConsumeResponse(message.getCorrelationId(), true, message.getOffset(),
-                    msg.getTimestamp(), msg.getPayload().length, msg.getPayload());
-            logInfo("Message consumed successfully from offset: " + message.getOffset());
+            checkOffset(message, message.getOffset() + 1);
+            if (record instanceof FileRecord && clientSocket.getChannel() != null) {
+                sendConsumeResponse(message, (FileRecord) record);
+            } else {
+                sendConsumeResponse(message.getCorrelationId(), message.getVersion(), message.getOffset(),
+                        record.getTimestamp(), record.getPayloadLength(), record.getPayload());
+            }
+            LOG.debug("Consumed message at offset {} for client {}", message.getOffset(), clientId);
+        } catch (TopicNotFoundException e) {
+            LOG.debug("Topic not found for consume: {} (client {})", message.getTopic(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.TOPIC_NOT_FOUND);
+        } catch (UnsupportedVersionException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.UNSUPPORTED_VERSION);
+        } catch (Exception e) {
+            LOG.error("Failed to consume message for client {}", clientId, e);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.INTERNAL_ERROR);
+        }
+    }
+
+    /**
+     * Answers a fetch, or parks it when it found fewer than its min bytes and {@code deadlineNanos}
+     * has not passed, returning false in that case. The min bytes are capped at the max bytes, which
+     * bound what a single response could ever hold.
+     */
+    private boolean handleFetch(Message message, long deadlineNanos) throws IOException {
+        try {
+            if (message.getMaxWaitMs() < 0 || message.getMinBytes() < 0) {
+                throw new IllegalArgumentException("Fetch wait and min bytes cannot be negative");
+            }
+            RecordBatch batch;
+            if (message.getMessageType() == MessageType.REPLICA_FETCH) {
+                if (message.getVersion() < Message.VERSION_3) {
+                    throw new IllegalArgumentException("Replica fetches need protocol version 3");
+                }
+                batch = broker.replicaFetch(message.getReplicaId(), message.getTopic(), message.getPartition(),
+                        message.getOffset(), message.getMaxRecords(), message.getMaxBytes());
+            } else {
+                batch = broker.fetch(message.getTopic(), message.getPartition(), message.getOffset(),
+                        message.getMaxRecords(), message.getMaxBytes());
+            }
+            if (batch == null) {
+                LOG.debug("Invalid offset {} (client {})", message.getOffset(), clientId);
+                sendErrorResponse(message.getCorrelationId(), ErrorCode.INVALID_OFFSET);
+                return true;
+            }
+            int minBytes = Math.min(message.getMinBytes(), message.getMaxBytes());
+            long waitNanos = deadlineNanos - System.nanoTime();
+            if (batch.getSizeInBytes() < minBytes && batch.getRecordCount() < message.getMaxRecords()
+                    && waitNanos > 0 && !draining && running.get()) {
+                FetchWaiters.Waiter waiter = broker.awaitFetch(message.getTopic(), message.getPartition(),
+                        batch.getNextOffset(), batch.getSizeInBytes(), minBytes, waitNanos,
+                        () -> DISPATCHER.execute(() -> resumeFetch(message, deadlineNanos)));
+                if (waiter != null) {
+                    parkedFetches.add(waiter);
+                    if (waiter.isDone()) {
+                        parkedFetches.remove(waiter);
+                    }
+                    LOG.debug("Parked fetch at offset {} for client {}", message.getOffset(), clientId);
+                    return false;
+                }
+                // The partition grew past this batch while we looked; answer now and let the client re-poll.
+            }
+            checkOffset(message, batch.getNextOffset());
+            sendFetchResponse(message.getCorrelationId(), message.getVersion(), message.getOffset(), batch);
+            LOG.debug("Fetched {} messages from offset {} for client {}", batch.getRecordCount(), message.getOffset(),
+                    clientId);
+        } catch (TopicNotFoundException e) {
+            LOG.debug("Topic not found for fetch: {} (client {})", message.getTopic(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.TOPIC_NOT_FOUND);
+        } catch (UnsupportedVersionException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.UNSUPPORTED_VERSION);
+        } catch (NotLeaderException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.NOT_LEADER);
+        } catch (IllegalArgumentException e) {
+            LOG.debug("Invalid fetch request from client {}: {}", clientId, e.getMessage());
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.INVALID_REQUEST);
+        } catch (IOException e) {
+            throw e; // the connection is gone, as when the server closes it under a parked fetch
+        } catch (Exception e) {
+            LOG.error("Failed to fetch messages for client {}", clientId, e);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.INTERNAL_ERROR);
+        }
+        return true;
+    }
+
+    private void handleSubscribe(Message message) throws IOException {
+        int id = message.getCorrelationId();
+        try {
+            if (message.getCredit() < 0) {
+                throw new IllegalArgumentException("Credit cannot be negative");
+            }
+            if (broker.fetch(message.getTopic(), message.getPartition(), message.getOffset(), 1, 1) == null) {
+                LOG.debug("Invalid offset {} (client {})", message.getOffset(), clientId);
+                sendErrorResponse(id, ErrorCode.INVALID_OFFSET);
+                return;
+            }
+            if (subscriptions.size() >= MAX_SUBSCRIPTIONS) {
+                throw new IllegalStateException("Too many subscriptions on one connection");
+            }
+            Subscription subscription = new Subscription(id, message.getVersion(), message.getTopic(),
+                    message.getPartition(), message.getOffset(), message.getCredit());
+            if (subscriptions.putIfAbsent(id, subscription) != null) {
+                throw new IllegalArgumentException("Subscription " + id + " already exists");
+            }
+            // The acknowledgement is an empty push, written before the first real one can be.
+            writeResponse(() -> writeFetchHeader(id, message.getVersion(), message.getOffset(), 0, 0));
+            subscription.signal();
+            LOG.debug("Subscribed client {} to {} from offset {}", clientId, message.getTopic(),
+                    message.getOffset());
+        } catch (TopicNotFoundException e) {
+            LOG.debug("Topic not found for subscribe: {} (client {})", message.getTopic(), clientId);
+            sendErrorResponse(id, ErrorCode.TOPIC_NOT_FOUND);
+        } catch (IllegalArgumentException e) {
+            LOG.debug("Invalid subscribe request from client {}: {}", clientId, e.getMessage());
+            sendErrorResponse(id, ErrorCode.INVALID_REQUEST);
+        } catch (IllegalStateException e) {
+            LOG.warn("Resource exhausted for client {}: {}", clientId, e.getMessage());
+            sendErrorResponse(id, ErrorCode.RESOURCE_EXHAUSTED);
+        }
+    }
+
+    /** Adds credit to the subscription named by the correlation ID; only a failure is answered. */
+    private void handleCredit(Message message) throws IOException {
+        Subscription subscription = subscriptions.get(message.getCorrelationId());
+        if (subscription == null || message.getCredit() <= 0) {
+            LOG.debug("Invalid credit {} for subscription {} (client {})", message.getCredit(),
+                    message.getCorrelationId(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.INVALID_REQUEST);
+            return;
+        }
+        subscription.addCredit(message.getCredit());
+    }
+
+    private void handleUnsubscribe(Message message) throws IOException {
+        Subscription subscription = subscriptions.remove(message.getCorrelationId());
+        if (subscription == null) {
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.INVALID_REQUEST);
+            return;
+        }
+        // Cancelling under the write lock makes the answer, an empty push, the last frame of the stream.
+        writeResponse(() -> {
+            subscription.cancel();
+            writeFetchHeader(subscription.id, subscription.version, subscription.nextOffset, 0, 0);
+        });
+        LOG.debug("Unsubscribed client {} from {} at offset {}", clientId, subscription.topic,
+                subscription.nextOffset);
+    }
+
+    /**
+     * Serves the consumer group requests. Each is answered with one value: the group's 4-byte
+     * generation, or for FETCH_OFFSET the committed offset. JOIN_GROUP adds the member's partitions.
+     */
+    private void handleGroupRequest(Message message) throws IOException {
+        String groupId = message.getGroupId();
+        try {
+            switch (message.getMessageType()) {
+                case JOIN_GROUP:
+                    ConsumerGroup.Assignment assignment = broker.joinGroup(groupId, message.getTopic(),
+                            message.getMemberId());
+                    sendGroupResponse(message.getCorrelationId(), assignment.getGeneration(),
+                            assignment.getPartitions());
+                    break;
+                case HEARTBEAT:
+                    sendGroupResponse(message.getCorrelationId(), broker.heartbeat(groupId, message.getMemberId()),
+                            null);
+                    break;
+                case LEAVE_GROUP:
+                    sendGroupResponse(message.getCorrelationId(), broker.leaveGroup(groupId, message.getMemberId()),
+                            null);
+                    break;
+                case COMMIT_OFFSET:
+                    broker.commitOffset(groupId, message.getTopic(), message.getMemberId(), message.getGeneration(),
+                            message.getPartition(), message.getOffset());
+                    sendGroupResponse(message.getCorrelationId(), message.getGeneration(), null);
+                    break;
+                default:
+                    long offset = broker.committedOffset(groupId, message.getTopic(), message.getPartition());
+                    checkOffset(message, offset);
+                    sendCommittedOffsetResponse(message.getCorrelationId(), message.getVersion(), offset);
+            }
+            LOG.debug("Served {} for group {} (client {})", message.getMessageType(), groupId, clientId);
         } catch (TopicNotFoundException e) {
-            handleError("Topic not found for consume: " + message.getTopic(), e);
+            LOG.debug("Topic not found for group {}: {} (client {})", groupId, message.getTopic(), clientId);
             sendErrorResponse(message.getCorrelationId(), ErrorCode.TOPIC_NOT_FOUND);
+        } catch (UnknownMemberException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.UNKNOWN_MEMBER);
+        } catch (IllegalGenerationException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.ILLEGAL_GENERATION);
+        } catch (NotLeaderException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.NOT_LEADER);
+        } catch (UnsupportedVersionException e) {
+            LOG.debug("{} (client {})", e.getMessage(), clientId);
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.UNSUPPORTED_VERSION);
+        } catch (IllegalArgumentException e) {
+            LOG.debug("Invalid group request from client {}: {}", clientId, e.getMessage());
+            sendErrorResponse(message.getCorrelationId(), ErrorCode.INVALID_REQUEST);
         } catch (Exception e) {
-            handleError("Failed to consume message", e);
+            LOG.error("Failed to serve group {} for client {}", groupId, clientId, e);
             sendErrorResponse(message.getCorrelationId(), ErrorCode.INTERNAL_ERROR);
         }
     }
 
+    /**
+     * Answers with the broker's metrics whose names start with the request's topic field, all of them
+     * when it is empty, as UTF-8 lines of a name and a value separated by a space.
+     */
+    private void handleStats(Message message) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Number> entry : broker.getMetrics().snapshot(message.getTopic()).entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        byte[] payload = text.toString().getBytes(StandardCharsets.UTF_8);
+        writeResponse(() -> {
+            output.writeInt(message.getCorrelationId());
+            output.writeByte(1);
+            output.writeInt(payload.length);
+            output.write(payload);
+        });
+        LOG.debug("Sent {} bytes of stats to client {}", payload.length, clientId);
+    }
+
+    /** Answers with the cluster as this broker sees it, in the form {@link ClusterMetadata#writeTo} writes. */
+    private void handleMetadata(Message message) throws IOException {
+        if (message.getVersion() < Message.VERSION_3) {
+            throw new IllegalArgumentException("Metadata requests need protocol version 3");
+        }
+        ClusterMetadata metadata = broker.getClusterMetadata();
+        writeResponse(() -> {
+            output.writeInt(message.getCorrelationId());
+            output.writeByte(1);
+            metadata.writeTo(output);
+        });
+        LOG.debug("Sent cluster metadata {} to client {}", metadata, clientId);
+    }
+
+    /** Answers with a new producer ID (8 bytes) for the client's idempotent produces. */
+    private void handleInitProducerId(Message message) throws IOException {
+        if (message.getVersion() < Message.VERSION_4) {
+            throw new IllegalArgumentException("Producer IDs need protocol version 4");
+        }
+        long producerId = broker.initProducerId();
+        writeResponse(() -> {
+            output.writeInt(message.getCorrelationId());
+            output.writeByte(1);
+            output.writeLong(producerId);
+        });
+        LOG.debug("Assigned producer ID {} to client {}", producerId, clientId);
+    }
+
+    /**
+     * Answers with the offset (8 bytes) of the first record of the partition at or after the
+     * requested timestamp, or the partition's next offset if every record is older.
+     */
+    private void handleOffsetForTime(Message message) throws IOException {
+        if (message.getVersion() < Message.VERSION_5) {
+            throw new IllegalArgumentException("Offset for time requests need protocol version 5");
+        }
+        long offset = broker.offsetForTime(message.getTopic(), message.getPartition(), message.getTargetTimestamp());
+        writeResponse(() -> {
+            output.writeInt(message.getCorrelationId());
+            output.writeByte(1);
+            output.writeLong(offset);
+        });
+    }
+
     private void handleUnknownMessageType(Message message) throws IOException {
-        handleError("Unknown message type: " + message.getMessageType(), null);
+        LOG.warn("Unknown message type {} from client {}", message.getMessageType(), clientId);
         sendErrorResponse(message.getCorrelationId(), ErrorCode.INVALID_MESSAGE_TYPE);
     }
 
     private void sendCreateTopicResponse(int correlationId, boolean success, long timestamp, String topic)
             throws IOException {
-        output.writeInt(correlationId);
-        output.writeByte(success ? 1 : 0);
-        output.writeLong(timestamp);
-        output.writeUTF(topic);
+        writeResponse(() -> {
+            output.writeInt(correlationId);
+            output.writeByte(success ? 1 : 0);
+            output.writeLong(timestamp);
+            output.writeUTF(topic);
+        });
+    }
+
+    /** Writes an offset as the given protocol version has it: 8 bytes from version 1, 4 before. */
+    private void writeOffset(short version, long offset) throws IOException {
+        if (version >= Message.VERSION_1) {
+            output.writeLong(offset);
+        } else {
+            output.writeInt((int) offset);
+        }
+    }
+
+    private void putOffset(short version, long offset) {
+        if (version >= Message.VERSION_1) {
+            responseHeader.putLong(offset);
+        } else {
+            responseHeader.putInt((int) offset);
+        }
+    }
+
+    private void sendProduceResponse(Message message, long offset) throws IOException {
+        writeResponse(() -> {
+            output.writeInt(message.getCorrelationId());
+            output.writeByte(1);
+            output.writeLong(message.getTimestamp());
+            writeOffset(message.getVersion(), offset);
+            writeThrottleTime(message);
+        });
     }
 
-    private void sendProduceResponse(int correlationId, boolean success, long timestamp, int offset)
+    private void sendProduceBatchResponse(Message message, int partition, long baseOffset, int recordCount)
             throws IOException {
-        output.writeInt(correlationId);
-        output.writeByte(success ? 1 : 0);
-        output.writeLong(timestamp);
-        output.writeInt(offset);
+        writeResponse(() -> {
+            output.writeInt(message.getCorrelationId());
+            output.writeByte(1);
+            output.writeLong(message.getTimestamp());
+            output.writeInt(partition);
+            writeOffset(message.getVersion(), baseOffset);
+            output.writeInt(recordCount);
+            writeThrottleTime(message);
+        });
+    }
+
+    /** Writes how long a quota held the request back (4 bytes, in milliseconds), from version 6. */
+    private void writeThrottleTime(Message message) throws IOException {
+        if (message.getVersion() >= Message.VERSION_6) {
+            output.writeInt(message.getThrottleTimeMs());
+        }
+    }
+
+    private void sendCommittedOffsetResponse(int correlationId, short version, long offset) throws IOException {
+        writeResponse(() -> {
+            output.writeInt(correlationId);
+            output.writeByte(1);
+            writeOffset(version, offset);
+        });
+    }
+
+    private void sendGroupResponse(int correlationId, int value, int[] partitions) throws IOException {
+        writeResponse(() -> {
+            output.writeInt(correlationId);
+            output.writeByte(1);
+            output.writeInt(value);
+            if (partitions != null) {
+                output.writeInt(partitions.length);
+                for (int partition : partitions) {
+                    output.writeInt(partition);
+                }
+            }
+        });
     }
 
-    private void sendConsumeResponse(int correlationId, boolean success, int offset, long timestamp,
+    private void sendConsumeResponse(int correlationId, short version, long offset, long timestamp,
             int payloadLength, byte[] payload)
             throws IOException {
+        writeResponse(() -> {
+            output.writeInt(correlationId);
+            output.writeByte(1);
+            output.writeLong(timestamp);
+            writeOffset(version, offset + 1);
+            output.writeInt(payloadLength);
+            output.write(payload);
+        });
+    }
+
+    /**
+     * Sends a consume response whose payload goes straight from the segment file to the socket. The
+     * header is built in a reused direct buffer; the buffered stream is flushed first so the
+     * channel write cannot overtake earlier responses.
+     */
+    private void sendConsumeResponse(Message message, FileRecord record) throws IOException {
+        writeResponse(() -> {
+            output.flush();
+            SocketChannel channel = clientSocket.getChannel();
+            responseHeader.clear();
+            responseHeader.putInt(message.getCorrelationId());
+            responseHeader.put((byte) 1);
+            responseHeader.putLong(record.getTimestamp());
+            putOffset(message.getVersion(), message.getOffset() + 1);
+            responseHeader.putInt(record.getPayloadLength());
+            responseHeader.flip();
+            while (responseHeader.hasRemaining()) {
+                channel.write(responseHeader);
+            }
+            record.transferPayloadTo(channel);
+        });
+    }
 
-        int nextOffset = offset + 1;
+    /**
+     * Sends a fetch response: the next offset, the record count and the batch size, followed by
+     * the records in {@link RecordFormat}. Batches stored on disk go to the socket via sendfile.
+     */
+    private void sendFetchResponse(int correlationId, short version, long fromOffset, RecordBatch batch)
+            throws IOException {
+        writeResponse(() -> writeFetchResponse(correlationId, version, fromOffset, batch));
+    }
+
+    /** Writes a fetch response, or a subscription push, which has the same shape; the write lock must be held. */
+    private void writeFetchResponse(int correlationId, short version, long fromOffset, RecordBatch batch)
+            throws IOException {
+        if (version < Message.VERSION_2) {
+            batch = batch.decompressed(fromOffset); // a client from before compression cannot read compressed records
+        }
+        output.flush();
+        SocketChannel channel = clientSocket.getChannel();
+        if (channel == null) {
+            writeFetchHeader(correlationId, version, batch.getNextOffset(), batch.getRecordCount(),
+                    batch.getSizeInBytes());
+            output.flush();
+            batch.writeTo(Channels.newChannel(output));
+            return;
+        }
+        responseHeader.clear();
+        responseHeader.putInt(correlationId);
+        responseHeader.put((byte) 1);
+        putOffset(version, batch.getNextOffset());
+        responseHeader.putInt(batch.getRecordCount());
+        responseHeader.putInt(batch.getSizeInBytes());
+        responseHeader.flip();
+        while (responseHeader.hasRemaining()) {
+            channel.write(responseHeader);
+        }
+        batch.writeTo(channel);
+    }
+
+    private void writeFetchHeader(int correlationId, short version, long nextOffset, int recordCount,
+            int batchSize) throws IOException {
         output.writeInt(correlationId);
-        output.writeByte(success ? 1 : 0);
-        output.writeLong(timestamp);
-        output.writeInt(nextOffset);
-        output.writeInt(payloadLength);
-        output.write(payload);
+        output.writeByte(1);
+        writeOffset(version, nextOffset);
+        output.writeInt(recordCount);
+        output.writeInt(batchSize);
     }
 
     private void sendErrorResponse(int correlationId, ErrorCode errorCode) throws IOException {
+        requestMetrics.error(errorCode);
         try {
-            new ErrorResponse(correlationId, errorCode).writeTo(output);
-            output.flush();
-            handleError("Sent error response", null);
+            writeResponse(() -> new ErrorResponse(correlationId, errorCode).writeTo(output));
+            LOG.debug("Sent {} to client {}", errorCode, clientId);
         } catch (IOException e) {
-            handleError("Failed to send error response", e);
+            LOG.warn("Failed to send error response to client {}: {}", clientId, e.getMessage());
             throw e;
         }
     }
 
-    private void handleError(String message, Exception e) {
-        String errorMessage = String.format("[ClientHandler] %s - Client: %s", message, clientId);
-        if (e != null) {
-            System.err.println(errorMessage + " - Error: " + e.getMessage());
-            e.printStackTrace();
-        } else {
-            System.err.println(errorMessage);
+    /** Writes one whole response, so concurrently completing requests never interleave on the wire. */
+    private void writeResponse(ResponseWriter writer) throws IOException {
+        writeLock.lock();
+        try {
+            writer.write();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * A SUBSCRIBE stream. Records are pushed as fetch-shaped frames under the subscribe's correlation
+     * ID while the subscription has credit, and once it catches up it parks on the partition until the
+     * next append. Credit counts records and is spent as they are written, so a slow subscriber can
+     * never have more than its credit outstanding and the broker keeps nothing for it but a position.
+     * Appends, credit and cancellation all just {@link #signal()}; a drain loop makes sure exactly one
+     * thread pumps a subscription at a time and that no signal is lost.
+     */
+    private final class Subscription {
+        private final int id;
+        private final short version;
+        private final String topic;
+        private final int partition;
+        private long nextOffset; // Guarded by writeLock
+        private final AtomicInteger credit;
+        private final AtomicInteger signals = new AtomicInteger();
+        private volatile FetchWaiters.Waiter waiter;
+        private volatile boolean cancelled;
+
+        Subscription(int id, short version, String topic, int partition, long offset, int credit) {
+            this.id = id;
+            this.version = version;
+            this.topic = topic;
+            this.partition = partition;
+            this.nextOffset = offset;
+            this.credit = new AtomicInteger(credit);
+        }
+
+        void addCredit(int amount) {
+            credit.accumulateAndGet(amount, (current, added) -> (int) Math.min((long) current + added,
+                    Integer.MAX_VALUE));
+            signal();
+        }
+
+        void signal() {
+            if (signals.getAndIncrement() == 0) {
+                DISPATCHER.execute(this::pump);
+            }
+        }
+
+        /** Stops the stream; a parked waiter is released so it leaves the partition's queue. */
+        void cancel() {
+            cancelled = true;
+            FetchWaiters.Waiter parked = waiter;
+            if (parked != null) {
+                parked.expire();
+            }
+        }
+
+        private void pump() {
+            int missed = 1;
+            do {
+                try {
+                    drain();
+                } catch (IOException e) {
+                    LOG.warn("Failed to push to client {}: {}", clientId, e.getMessage());
+                    close();
+                } catch (Exception e) {
+                    LOG.error("Subscription {} for client {} failed", id, clientId, e);
+                    end(ErrorCode.INTERNAL_ERROR);
+                }
+                missed = signals.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /** Ends the stream with an error frame, which the client sees as its last. */
+        private void end(ErrorCode errorCode) {
+            subscriptions.remove(id, this);
+            cancelled = true;
+            pending.incrementAndGet();
+            try {
+                sendErrorResponse(id, errorCode);
+            } catch (IOException e) {
+                LOG.debug("Could not end subscription {} for client {}: {}", id, clientId, e.getMessage());
+            } finally {
+                completeRequest();
+            }
+        }
+
+        private void drain() throws IOException {
+            while (!cancelled && running.get() && credit.get() > 0) {
+                FetchWaiters.Waiter parked = waiter;
+                if (parked != null && !parked.isDone()) {
+                    return; // Still waiting for an append, which will signal us.
+                }
+                long offset = position();
+                RecordBatch batch = broker.fetch(topic, partition, offset, Math.min(credit.get(), MAX_PUSH_RECORDS),
+                        MAX_PUSH_BYTES);
+                if (batch == null) {
+                    LOG.debug("Subscription {} for client {} lost offset {}", id, clientId, offset);
+                    end(ErrorCode.INVALID_OFFSET);
+                    return;
+                }
+                if (version < Message.VERSION_1 && batch.getNextOffset() > Integer.MAX_VALUE) {
+                    end(ErrorCode.UNSUPPORTED_VERSION);
+                    return;
+                }
+                if (batch.getRecordCount() == 0) {
+                    waiter = broker.awaitFetch(topic, partition, batch.getNextOffset(), 0, 1, 0, this::signal);
+                    continue; // Either parked, or the partition grew meanwhile and we fetch again.
+                }
+                push(batch);
+            }
+        }
+
+        private long position() {
+            writeLock.lock();
+            try {
+                return nextOffset;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void push(RecordBatch batch) throws IOException {
+            pending.incrementAndGet();
+            try {
+                writeResponse(() -> {
+                    if (!cancelled) {
+                        writeFetchResponse(id, version, nextOffset, batch);
+                        nextOffset = batch.getNextOffset();
+                    }
+                });
+                credit.addAndGet(-batch.getRecordCount());
+            } finally {
+                completeRequest();
+            }
         }
     }
 
-    private void logInfo(String message) {
-        System.out.println(String.format("[ClientHandler] %s - Client: %s", message, clientId));
+    @FunctionalInterface
+    private interface ResponseWriter {
+        void write() throws IOException;
     }
 
     @Override
     public void close() {
-        logInfo("Closing connection");
-        running.set(false);
+        if (!running.getAndSet(false)) {
+            return;
+        }
+        closed.countDown();
+        LOG.debug("Closing connection to client {}", clientId);
+        broker.connectionClosed();
 
         if (output != null) {
+            writeLock.lock();
             try {
                 output.flush();
             } catch (IOException e) {
-                handleError("Error flushing output stream", e);
+                LOG.warn("Error flushing output stream for client {}: {}", clientId, e.getMessage());
+            } finally {
+                writeLock.unlock();
             }
         }
 
@@ -232,7 +1175,7 @@ public class ClientHandler implements Runnable, AutoCloseable {
             try {
                 resource.close();
             } catch (Exception e) {
-                handleError("Error closing " + resourceName, e);
+                LOG.warn("Error closing {} for client {}", resourceName, clientId);
             }
         }
     }
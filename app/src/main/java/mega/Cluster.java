@@ -0,0 +1,426 @@
+package mega;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A broker's part in a replicated cluster. One node leads every topic; the others follow it, copying
+ * each partition with a {@link ReplicaFetcher}, and refuse writes. Each node exchanges METADATA
+ * with the leader every poll interval, which creates the leader's topics on the followers and tells
+ * them the in-sync replicas. The leader tracks its followers in {@link InSyncReplicas}.
+ *
+ * Leadership comes with an epoch that grows with every change of leader. A node that has not heard
+ * from the leader for the leader timeout, or has no leader yet, asks every node it can reach: it
+ * follows whichever claims leadership in the newest epoch, and if none does, the lowest reachable
+ * node of the newest in-sync replicas known takes over with the next epoch. Should none of those be
+ * reachable, as when the leader fails before its followers learn they caught up, the node of the
+ * newest epoch with the longest log takes over instead. A leader that finds
+ * another in a newer epoch, or in the same one with a lower ID, steps down and follows it.
+ *
+ * When a node starts following a leader in a new epoch, it cuts each partition back to the offset
+ * at which the leader's epoch started, dropping records the old leader appended but never
+ * replicated to the new one. There is no consensus protocol: nodes that cannot see each other can
+ * each elect a leader, and the one that steps down when they meet again loses what it took since.
+ * Epochs are not persisted, so a cluster restarted as a whole elects its lowest node afresh.
+ *
+ * Leadership changes, truncation and the fetchers are all handled by one controller thread.
+ */
+final class Cluster implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(Cluster.class);
+
+    private final Broker broker;
+    private final ReplicationConfig config;
+    private final int nodeId;
+    private final int requestTimeoutMs;
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private final Thread controller;
+    private volatile Leadership leadership = new Leadership(ClusterMetadata.NO_LEADER, 0);
+    private volatile InSyncReplicas replicas; // while this node leads
+    private volatile Set<Integer> knownInSync = Set.of(); // as the leader last reported them
+    // Per topic, the log end of each partition when the current epoch began; absent for topics created since
+    private final Map<String, long[]> epochStartOffsets = new ConcurrentHashMap<>();
+    // The rest is only touched by the controller thread
+    private final Map<String, Integer> truncatedEpochs = new HashMap<>();
+    private final Map<String, List<ReplicaFetcher>> fetchers = new HashMap<>();
+    private final Map<Integer, ReplicaClient> peers = new HashMap<>();
+    private long lastLeaderContactMs;
+
+    Cluster(Broker broker, ReplicationConfig config, Metrics metrics) {
+        this.broker = broker;
+        this.config = config;
+        this.nodeId = config.getNodeId();
+        this.requestTimeoutMs = (int) config.getLeaderTimeoutMs();
+        metrics.gauge("cluster.leader", () -> leadership.leaderId);
+        metrics.gauge("cluster.epoch", () -> leadership.epoch);
+        metrics.gauge("cluster.in_sync_replicas", () -> getInSyncReplicas().size());
+        this.controller = Thread.ofVirtual().name("mega-cluster-" + nodeId).start(this::run);
+    }
+
+    boolean isLeader() {
+        return leadership.leaderId == nodeId;
+    }
+
+    int getLeaderId() {
+        return leadership.leaderId;
+    }
+
+    int getEpoch() {
+        return leadership.epoch;
+    }
+
+    /** The nodes in sync with the leader, the leader included, as far as this node knows. */
+    Set<Integer> getInSyncReplicas() {
+        InSyncReplicas tracker = replicas;
+        if (tracker == null) {
+            return knownInSync;
+        }
+        Set<Integer> inSync = new TreeSet<>(tracker.getInSyncFollowers());
+        inSync.add(nodeId);
+        return inSync;
+    }
+
+    /** Describes the cluster as this node sees it, for a METADATA response. */
+    ClusterMetadata getMetadata() {
+        Leadership current = leadership;
+        List<ClusterMetadata.TopicMetadata> topics = new ArrayList<>();
+        for (Topic topic : broker.getTopics()) {
+            long[] starts = epochStartOffsets.get(topic.getName());
+            if (starts == null || starts.length != topic.getPartitionCount()) {
+                starts = new long[topic.getPartitionCount()];
+            }
+            topics.add(new ClusterMetadata.TopicMetadata(topic.getName(), topic.getConfig(), starts,
+                    topic.getNextOffsets()));
+        }
+        return new ClusterMetadata(current.leaderId, current.epoch, config.getNodes(), getInSyncReplicas(), topics);
+    }
+
+    /** Notes a follower's fetch; see {@link InSyncReplicas#onFetch}. */
+    void onReplicaFetch(int replicaId, String topic, int partition, long offset, long logEnd) {
+        InSyncReplicas tracker = replicas;
+        if (tracker == null) {
+            throw new NotLeaderException(leadership.leaderId);
+        }
+        tracker.onFetch(replicaId, topic, partition, offset, logEnd);
+    }
+
+    /**
+     * Waits for the in-sync replicas to have a partition up to {@code lastOffset}; see
+     * {@link InSyncReplicas#awaitReplication}.
+     */
+    void awaitReplication(String topic, int partition, long lastOffset, Consumer<ErrorCode> onDone) {
+        InSyncReplicas tracker = replicas;
+        if (tracker == null) {
+            onDone.accept(ErrorCode.NOT_LEADER);
+            return;
+        }
+        tracker.awaitReplication(topic, partition, lastOffset, onDone);
+    }
+
+    /** Shrinks the in-sync replicas and times out acks; run often by the broker's scheduler. */
+    void checkReplicas() {
+        InSyncReplicas tracker = replicas;
+        if (tracker != null) {
+            tracker.check();
+        }
+    }
+
+    private void run() {
+        while (closed.getCount() > 0) {
+            try {
+                step();
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Error in cluster node {}", nodeId, e);
+            }
+            try {
+                closed.await(config.getPollIntervalMs(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void step() throws IOException {
+        int leaderId = leadership.leaderId;
+        if (leaderId == nodeId) {
+            watchForNewerLeader();
+        } else if (leaderId != ClusterMetadata.NO_LEADER) {
+            pollLeader(leaderId);
+        }
+        if (leadership.leaderId == ClusterMetadata.NO_LEADER) {
+            elect();
+        }
+    }
+
+    /**
+     * Steps down if another node leads in a newer epoch, as after nodes that could not see each other
+     * meet again, or if any node has seen a newer epoch, which means this node's leadership is stale.
+     */
+    private void watchForNewerLeader() throws IOException {
+        for (int peer : config.getNodes().keySet()) {
+            ClusterMetadata view = peer == nodeId ? null : query(peer);
+            if (view != null && view.getLeaderId() == peer && outranks(peer, view.getEpoch())) {
+                LOG.warn("Node {} leads epoch {}, stepping down", peer, view.getEpoch());
+                follow(peer, view);
+                return;
+            }
+            if (view != null && view.getEpoch() > leadership.epoch) {
+                LOG.warn("Node {} has seen epoch {}, stepping down", peer, view.getEpoch());
+                stepDown();
+                return;
+            }
+        }
+    }
+
+    private void stepDown() {
+        InSyncReplicas tracker = replicas;
+        replicas = null;
+        if (tracker != null) {
+            tracker.failAll(ErrorCode.NOT_LEADER);
+        }
+        leadership = new Leadership(ClusterMetadata.NO_LEADER, leadership.epoch);
+    }
+
+    private boolean outranks(int otherId, int otherEpoch) {
+        int epoch = leadership.epoch;
+        return otherEpoch > epoch || (otherEpoch == epoch && otherId < nodeId);
+    }
+
+    private void pollLeader(int leaderId) throws IOException {
+        ClusterMetadata view = query(leaderId);
+        long now = System.currentTimeMillis();
+        if (view == null) {
+            if (now - lastLeaderContactMs > config.getLeaderTimeoutMs()) {
+                LOG.warn("Lost contact with leader {}, electing a new one", leaderId);
+                stopFetchers();
+                leadership = new Leadership(ClusterMetadata.NO_LEADER, leadership.epoch);
+            }
+            return;
+        }
+        if (view.getLeaderId() != leaderId) {
+            LOG.info("Node {} no longer leads, electing a new leader", leaderId);
+            stopFetchers();
+            leadership = new Leadership(ClusterMetadata.NO_LEADER, leadership.epoch);
+        } else if (view.getEpoch() != leadership.epoch) {
+            follow(leaderId, view);
+        } else {
+            lastLeaderContactMs = now;
+            apply(view);
+        }
+    }
+
+    /**
+     * Asks every reachable node for its view. Follows the newest leader among them; failing that,
+     * takes over if this node is the lowest reachable one of the newest in-sync replicas known, or if
+     * none of them is reachable, the one of the newest epoch with the longest log.
+     */
+    private void elect() throws IOException {
+        Map<Integer, ClusterMetadata> views = new TreeMap<>();
+        for (int peer : config.getNodes().keySet()) {
+            ClusterMetadata view = peer == nodeId ? null : query(peer);
+            if (view != null) {
+                views.put(peer, view);
+            }
+        }
+        int leader = ClusterMetadata.NO_LEADER;
+        ClusterMetadata leaderView = null;
+        int newestEpoch = leadership.epoch;
+        Set<Integer> newestInSync = new TreeSet<>(knownInSync);
+        for (Map.Entry<Integer, ClusterMetadata> entry : views.entrySet()) {
+            ClusterMetadata view = entry.getValue();
+            if (view.getLeaderId() == entry.getKey()
+                    && (leaderView == null || view.getEpoch() > leaderView.getEpoch())) {
+                leader = entry.getKey();
+                leaderView = view;
+            }
+            if (view.getEpoch() > newestEpoch) {
+                newestEpoch = view.getEpoch();
+                newestInSync.clear();
+            }
+            if (view.getEpoch() == newestEpoch) {
+                newestInSync.addAll(view.getInSyncReplicas());
+            }
+        }
+        if (leaderView != null && leaderView.getEpoch() >= leadership.epoch) {
+            follow(leader, leaderView);
+            return;
+        }
+        Set<Integer> candidates = new TreeSet<>(views.keySet());
+        candidates.add(nodeId);
+        if (!newestInSync.isEmpty()) {
+            candidates.retainAll(newestInSync);
+        }
+        if (candidates.isEmpty()) {
+            int longest = longestLog(views, newestEpoch);
+            LOG.warn("None of the in-sync replicas {} is reachable, node {} has the longest log", newestInSync,
+                    longest);
+            candidates.add(longest);
+        }
+        if (candidates.iterator().next() == nodeId) {
+            promote(newestEpoch + 1, candidates);
+        } else {
+            LOG.debug("Node {} waiting for one of {} to take over", nodeId, candidates);
+        }
+    }
+
+    /** The node of {@code epoch} holding the most records, this one included; the lowest ID on a tie. */
+    private int longestLog(Map<Integer, ClusterMetadata> views, int epoch) {
+        int longest = ClusterMetadata.NO_LEADER;
+        long longestEnd = -1;
+        if (leadership.epoch == epoch) {
+            longest = nodeId;
+            longestEnd = getMetadata().getLogEnd();
+        }
+        for (Map.Entry<Integer, ClusterMetadata> entry : views.entrySet()) {
+            ClusterMetadata view = entry.getValue();
+            long end = view.getLogEnd();
+            if (view.getEpoch() == epoch
+                    && (end > longestEnd || (end == longestEnd && entry.getKey() < longest))) {
+                longest = entry.getKey();
+                longestEnd = end;
+            }
+        }
+        return longest;
+    }
+
+    /** Makes this node the leader of {@code epoch}, with the other {@code inSync} nodes counted as in sync for now. */
+    private void promote(int epoch, Set<Integer> inSync) {
+        stopFetchers();
+        epochStartOffsets.clear();
+        for (Topic topic : broker.getTopics()) {
+            epochStartOffsets.put(topic.getName(), topic.getNextOffsets());
+        }
+        Set<Integer> followers = new TreeSet<>(config.getNodes().keySet());
+        followers.remove(nodeId);
+        replicas = new InSyncReplicas(followers, inSync, config.getReplicaLagMs(), config.getAckTimeoutMs());
+        leadership = new Leadership(nodeId, epoch);
+        LOG.info("Node {} is now the leader in epoch {}", nodeId, epoch);
+    }
+
+    private void follow(int leaderId, ClusterMetadata view) throws IOException {
+        stepDown();
+        stopFetchers();
+        leadership = new Leadership(leaderId, view.getEpoch());
+        lastLeaderContactMs = System.currentTimeMillis();
+        LOG.info("Following leader {} in epoch {}", leaderId, view.getEpoch());
+        apply(view);
+    }
+
+    /**
+     * Brings this follower in line with the leader's metadata: creates topics it lacks, cuts
+     * partitions back to where the epoch started the first time it sees them in this epoch, and
+     * starts fetching partitions nothing fetches yet.
+     */
+    private void apply(ClusterMetadata view) throws IOException {
+        knownInSync = view.getInSyncReplicas();
+        int epoch = view.getEpoch();
+        InetSocketAddress leaderAddress = config.getNodes().get(view.getLeaderId());
+        for (ClusterMetadata.TopicMetadata metadata : view.getTopics()) {
+            String name = metadata.getName();
+            Topic topic = broker.createReplicaTopic(name, metadata.getPartitionCount(), metadata.getConfig());
+            if (topic.getPartitionCount() != metadata.getPartitionCount()) {
+                LOG.warn("Topic {} has {} partitions on the leader but not here, not replicating it", name,
+                        metadata.getPartitionCount());
+                continue;
+            }
+            long[] starts = new long[metadata.getPartitionCount()];
+            for (int partition = 0; partition < starts.length; partition++) {
+                starts[partition] = metadata.getEpochStartOffset(partition);
+            }
+            epochStartOffsets.put(name, starts);
+            Integer truncated = truncatedEpochs.get(name);
+            if (truncated == null || truncated != epoch) {
+                for (int partition = 0; partition < starts.length; partition++) {
+                    if (topic.getNextOffset(partition) > starts[partition]) {
+                        LOG.info("Truncating {} to offset {} where the leader's epoch began", name + "-" + partition,
+                                starts[partition]);
+                        topic.truncateTo(partition, starts[partition]);
+                    }
+                }
+                truncatedEpochs.put(name, epoch);
+            }
+            if (!fetchers.containsKey(name)) {
+                List<ReplicaFetcher> started = new ArrayList<>(starts.length);
+                for (int partition = 0; partition < starts.length; partition++) {
+                    ReplicaFetcher fetcher = new ReplicaFetcher(topic, partition, nodeId, leaderAddress, config);
+                    fetcher.start();
+                    started.add(fetcher);
+                }
+                fetchers.put(name, started);
+            }
+        }
+    }
+
+    private void stopFetchers() {
+        for (List<ReplicaFetcher> topicFetchers : fetchers.values()) {
+            for (ReplicaFetcher fetcher : topicFetchers) {
+                fetcher.stop();
+            }
+        }
+        fetchers.clear();
+    }
+
+    /** Returns the metadata of node {@code id}, or null if it cannot be reached. */
+    private ClusterMetadata query(int id) {
+        ReplicaClient client = peers.get(id);
+        try {
+            if (client == null) {
+                client = ReplicaClient.connect(config.getNodes().get(id), requestTimeoutMs);
+                peers.put(id, client);
+            }
+            return client.metadata();
+        } catch (IOException e) {
+            LOG.debug("Node {} unreachable: {}", id, e.getMessage());
+            peers.remove(id);
+            closeQuietly(client);
+            return null;
+        }
+    }
+
+    private static void closeQuietly(ReplicaClient client) {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing node connection: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed.countDown();
+        try {
+            controller.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stopFetchers();
+        for (ReplicaClient client : peers.values()) {
+            closeQuietly(client);
+        }
+        peers.clear();
+        stepDown();
+    }
+
+    /** The leader a node follows, or is, and its epoch, replaced as a whole so they are read consistently. */
+    private static final class Leadership {
+        final int leaderId;
+        final int epoch;
+
+        Leadership(int leaderId, int epoch) {
+            this.leaderId = leaderId;
+            this.epoch = epoch;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package mega;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * What a node knows of its cluster, as a METADATA response carries it: the leader it follows (or is)
+ * and that leader's epoch, every node's address, the in-sync replicas and the topics with, per
+ * partition, the offset at which the current epoch started and the answering node's log end. A
+ * follower cuts its log back to the former before fetching from a new leader, dropping whatever the
+ * old leader never replicated; the latter tells an election which node holds the most.
+ */
+public class ClusterMetadata {
+    /** Leader ID while a cluster has none, and of a standalone broker. */
+    public static final int NO_LEADER = -1;
+
+    private final int leaderId;
+    private final int epoch;
+    private final Map<Integer, InetSocketAddress> nodes;
+    private final Set<Integer> inSyncReplicas;
+    private final List<TopicMetadata> topics;
+
+    public ClusterMetadata(int leaderId, int epoch, Map<Integer, InetSocketAddress> nodes, Set<Integer> inSyncReplicas,
+            List<TopicMetadata> topics) {
+        this.leaderId = leaderId;
+        this.epoch = epoch;
+        this.nodes = Collections.unmodifiableMap(new TreeMap<>(nodes));
+        this.inSyncReplicas = Collections.unmodifiableSet(new TreeSet<>(inSyncReplicas));
+        this.topics = List.copyOf(topics);
+    }
+
+    /**
+     * Writes the metadata after the response status: leader ID, epoch, the nodes as ID, host and port,
+     * the in-sync replica IDs, then each topic's name, partition count, config and per partition its
+     * epoch start and log end offsets.
+     */
+    public void writeTo(DataOutputStream output) throws IOException {
+        output.writeInt(leaderId);
+        output.writeInt(epoch);
+        output.writeInt(nodes.size());
+        for (Map.Entry<Integer, InetSocketAddress> node : nodes.entrySet()) {
+            output.writeInt(node.getKey());
+            output.writeUTF(node.getValue().getHostString());
+            output.writeInt(node.getValue().getPort());
+        }
+        output.writeInt(inSyncReplicas.size());
+        for (int id : inSyncReplicas) {
+            output.writeInt(id);
+        }
+        output.writeInt(topics.size());
+        ByteBuffer config = ByteBuffer.allocate(TopicConfig.ENCODED_SIZE);
+        for (TopicMetadata topic : topics) {
+            output.writeUTF(topic.name);
+            output.writeInt(topic.epochStartOffsets.length);
+            output.write(topic.config.encode(config.clear()).array());
+            for (int partition = 0; partition < topic.epochStartOffsets.length; partition++) {
+                output.writeLong(topic.epochStartOffsets[partition]);
+                output.writeLong(topic.logEndOffsets[partition]);
+            }
+        }
+    }
+
+    /** Reads metadata written by {@link #writeTo}. */
+    public static ClusterMetadata readFrom(DataInputStream input) throws IOException {
+        int leaderId = input.readInt();
+        int epoch = input.readInt();
+        Map<Integer, InetSocketAddress> nodes = new TreeMap<>();
+        for (int i = input.readInt(); i > 0; i--) {
+            int id = input.readInt();
+            nodes.put(id, InetSocketAddress.createUnresolved(input.readUTF(), input.readInt()));
+        }
+        Set<Integer> inSyncReplicas = new TreeSet<>();
+        for (int i = input.readInt(); i > 0; i--) {
+            inSyncReplicas.add(input.readInt());
+        }
+        int topicCount = input.readInt();
+        List<TopicMetadata> topics = new ArrayList<>(topicCount);
+        byte[] config = new byte[TopicConfig.ENCODED_SIZE];
+        for (int i = 0; i < topicCount; i++) {
+            String name = input.readUTF();
+            int partitionCount = input.readInt();
+            if (partitionCount < 1 || partitionCount > Broker.MAX_PARTITIONS) {
+                throw new IOException("Invalid partition count " + partitionCount + " of topic " + name);
+            }
+            input.readFully(config);
+            long[] epochStartOffsets = new long[partitionCount];
+            long[] logEndOffsets = new long[partitionCount];
+            for (int partition = 0; partition < partitionCount; partition++) {
+                epochStartOffsets[partition] = input.readLong();
+                logEndOffsets[partition] = input.readLong();
+            }
+            topics.add(new TopicMetadata(name, TopicConfig.decode(ByteBuffer.wrap(config)), epochStartOffsets,
+                    logEndOffsets));
+        }
+        return new ClusterMetadata(leaderId, epoch, nodes, inSyncReplicas, topics);
+    }
+
+    public int getLeaderId() {
+        return leaderId;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public Map<Integer, InetSocketAddress> getNodes() {
+        return nodes;
+    }
+
+    public Set<Integer> getInSyncReplicas() {
+        return inSyncReplicas;
+    }
+
+    public List<TopicMetadata> getTopics() {
+        return topics;
+    }
+
+    /** The log end offsets of every partition of every topic, summed: how much the answering node holds. */
+    public long getLogEnd() {
+        long total = 0;
+        for (TopicMetadata topic : topics) {
+            for (long offset : topic.logEndOffsets) {
+                total += offset;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "{leader=" + leaderId + ", epoch=" + epoch + ", isr=" + inSyncReplicas + ", topics=" + topics.size()
+                + "}";
+    }
+
+    public static final class TopicMetadata {
+        private final String name;
+        private final TopicConfig config;
+        private final long[] epochStartOffsets;
+        private final long[] logEndOffsets;
+
+        public TopicMetadata(String name, TopicConfig config, long[] epochStartOffsets, long[] logEndOffsets) {
+            if (logEndOffsets.length != epochStartOffsets.length) {
+                throw new IllegalArgumentException("Expected " + epochStartOffsets.length + " log end offsets of "
+                        + name + ", got " + logEndOffsets.length);
+            }
+            this.name = name;
+            this.config = config;
+            this.epochStartOffsets = epochStartOffsets.clone();
+            this.logEndOffsets = logEndOffsets.clone();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public TopicConfig getConfig() {
+            return config;
+        }
+
+        public int getPartitionCount() {
+            return epochStartOffsets.length;
+        }
+
+        /** The leader's log end offset of {@code partition} when its epoch began. */
+        public long getEpochStartOffset(int partition) {
+            return epochStartOffsets[partition];
+        }
+
+        /** The answering node's log end offset of {@code partition}. */
+        public long getLogEndOffset(int partition) {
+            return logEndOffsets[partition];
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package mega;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Codec a producer compressed a batch with. The broker stores and serves a compressed batch as one
+ * record whose attributes name the codec and whose payload is the batch's record count (4 bytes)
+ * followed by the compressed entries, each a payload length (4 bytes) and payload, exactly as in an
+ * uncompressed PRODUCE_BATCH. That record takes the offset of the batch's last record, so offset
+ * lookups land on it, and the batch's records get the offsets before it. The broker only decompresses
+ * to answer CONSUME and clients too old to decompress themselves.
+ */
+public enum Compression {
+    NONE((byte) 0),
+    LZ((byte) 1); // see Lz
+
+    /** Bits of the record attributes that hold the codec. */
+    static final int ATTRIBUTES_MASK = 0x07;
+
+    /**
+     * Most records one compressed batch may hold. Every record takes an offset, and a slot in an
+     * in-memory log, so a few bytes of well compressed entries must not claim millions of them.
+     */
+    static final int MAX_BATCH_RECORDS = 1 << 16;
+
+    private final byte code;
+
+    Compression(byte code) {
+        this.code = code;
+    }
+
+    public static Compression fromCode(byte code) {
+        for (Compression compression : values()) {
+            if (compression.code == code) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression code: " + code);
+    }
+
+    public static Compression fromAttributes(byte attributes) {
+        return fromCode((byte) (attributes & ATTRIBUTES_MASK));
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    /** Compresses the remaining bytes of {@code entries} without changing its position. */
+    public byte[] compress(ByteBuffer entries) {
+        switch (this) {
+            case LZ:
+                return Lz.compress(entries);
+            default:
+                byte[] copy = new byte[entries.remaining()];
+                entries.get(entries.position(), copy);
+                return copy;
+        }
+    }
+
+    /** Decompresses the remaining bytes of {@code compressed}, consuming them. */
+    public byte[] decompress(ByteBuffer compressed) {
+        switch (this) {
+            case LZ:
+                return Lz.decompress(compressed);
+            default:
+                byte[] copy = new byte[compressed.remaining()];
+                compressed.get(copy);
+                return copy;
+        }
+    }
+
+    /**
+     * The most entries the remaining bytes of {@code compressed} can decompress to, each taking at
+     * least its 4-byte length, read from the stream header without decompressing, and at most
+     * {@link #MAX_BATCH_RECORDS}. Throws IllegalArgumentException if the header is invalid.
+     */
+    public int maxRecords(ByteBuffer compressed) {
+        int entries;
+        switch (this) {
+            case LZ:
+                entries = Lz.uncompressedLength(compressed) / 4;
+                break;
+            default:
+                entries = compressed.remaining() / 4;
+                break;
+        }
+        return Math.min(entries, MAX_BATCH_RECORDS);
+    }
+
+    /**
+     * Number of records in a compressed record's batch, read from the front of its payload. Throws
+     * IllegalArgumentException if the compressed entries cannot hold that many.
+     */
+    public static int recordCount(Record batch) {
+        return recordCount(batch, ByteBuffer.wrap(batch.getPayload()));
+    }
+
+    /** Reads the record count off the front of {@code payload}, which is left at the compressed entries. */
+    private static int recordCount(Record batch, ByteBuffer payload) {
+        if (payload.remaining() < 4) {
+            throw new IllegalArgumentException("Malformed compressed batch at offset " + batch.getOffset());
+        }
+        int count = payload.getInt();
+        if (count <= 0 || count > batch.getCompression().maxRecords(payload)) {
+            throw new IllegalArgumentException("Compressed batch at offset " + batch.getOffset()
+                    + " cannot hold the " + count + " records it claims");
+        }
+        return count;
+    }
+
+    /**
+     * Returns the records a compressed record holds, with their offsets, timestamp and key. Throws
+     * IllegalArgumentException if the payload does not hold as many entries as it claims.
+     */
+    public static List<Record> unpack(Record batch) {
+        ByteBuffer payload = ByteBuffer.wrap(batch.getPayload());
+        int count = recordCount(batch, payload);
+        ByteBuffer entries = ByteBuffer.wrap(batch.getCompression().decompress(payload));
+        long offset = batch.getOffset() - count + 1;
+        List<Record> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = entries.remaining() >= 4 ? entries.getInt() : -1;
+            if (length < 0 || length > entries.remaining()) {
+                throw new IllegalArgumentException("Malformed compressed batch at offset " + batch.getOffset());
+            }
+            byte[] entry = new byte[length];
+            entries.get(entry);
+            records.add(new Record(offset + i, batch.getTimestamp(), batch.getKey(), entry));
+        }
+        if (entries.hasRemaining()) {
+            throw new IllegalArgumentException("Malformed compressed batch at offset " + batch.getOffset());
+        }
+        return records;
+    }
+
+    /** The record at {@code offset} inside a compressed record, or null if its batch does not hold it. */
+    public static Record unpack(Record batch, long offset) {
+        long first = batch.getOffset() - recordCount(batch) + 1;
+        if (offset < first || offset > batch.getOffset()) {
+            return null;
+        }
+        return unpack(batch).get((int) (offset - first));
+    }
+}
@@ -0,0 +1,140 @@
+package mega;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Members sharing the consumption of one topic. Each member owns a contiguous range of the topic's
+ * partitions, so every partition is read by exactly one member. Any change of membership rebalances:
+ * the generation is bumped and the ranges are recomputed, and members learn of it from their next
+ * heartbeat and join again to collect their new assignment. Commits are fenced by generation, so a
+ * member acting on a stale assignment cannot overwrite the progress of the partition's new owner.
+ * Group operations are rare next to produces and fetches, so the group is simply synchronized.
+ */
+public class ConsumerGroup {
+    private final String groupId;
+    private final String topic;
+    private final int partitionCount;
+    private final long sessionTimeoutNanos;
+    // Sorted, so every rebalance over the same members gives the same ranges
+    private final TreeMap<String, Long> lastHeartbeat = new TreeMap<>();
+    private Map<String, int[]> assignment = Collections.emptyMap();
+    private int generation;
+
+    ConsumerGroup(String groupId, String topic, int partitionCount, long sessionTimeoutNanos) {
+        this.groupId = groupId;
+        this.topic = topic;
+        this.partitionCount = partitionCount;
+        this.sessionTimeoutNanos = sessionTimeoutNanos;
+    }
+
+    /** Adds the member, or refreshes it when it is already in the group, and returns its assignment. */
+    public synchronized Assignment join(String memberId, long nowNanos) {
+        if (lastHeartbeat.put(memberId, nowNanos) == null) {
+            rebalance();
+        }
+        return new Assignment(generation, assignment.get(memberId));
+    }
+
+    /** Records a heartbeat and returns the current generation, which differs from the member's after a rebalance. */
+    public synchronized int heartbeat(String memberId, long nowNanos) {
+        requireMember(memberId);
+        lastHeartbeat.put(memberId, nowNanos);
+        return generation;
+    }
+
+    /** Removes the member and returns the generation the group moves to. */
+    public synchronized int leave(String memberId) {
+        requireMember(memberId);
+        lastHeartbeat.remove(memberId);
+        rebalance();
+        return generation;
+    }
+
+    /** Removes the members whose session ran out and returns whether any did. */
+    public synchronized boolean expireMembers(long nowNanos) {
+        boolean expired = lastHeartbeat.values().removeIf(last -> nowNanos - last > sessionTimeoutNanos);
+        if (expired) {
+            rebalance();
+        }
+        return expired;
+    }
+
+    /**
+     * Checks that {@code memberId} owns {@code partition} in {@code memberGeneration}, which must be
+     * the current one. Callers hold the group's monitor across this check and the commit itself.
+     */
+    void checkOwner(String memberId, int memberGeneration, int partition) {
+        requireMember(memberId);
+        if (memberGeneration != generation) {
+            throw new IllegalGenerationException(groupId, memberGeneration, generation);
+        }
+        for (int owned : assignment.get(memberId)) {
+            if (owned == partition) {
+                return;
+            }
+        }
+        throw new IllegalGenerationException(groupId, memberGeneration, generation);
+    }
+
+    private void requireMember(String memberId) {
+        if (!lastHeartbeat.containsKey(memberId)) {
+            throw new UnknownMemberException(groupId, memberId);
+        }
+    }
+
+    private void rebalance() {
+        generation++;
+        Map<String, int[]> ranges = new HashMap<>();
+        List<String> members = new ArrayList<>(lastHeartbeat.keySet());
+        for (int i = 0; i < members.size(); i++) {
+            int start = (int) ((long) i * partitionCount / members.size());
+            int end = (int) ((long) (i + 1) * partitionCount / members.size());
+            int[] partitions = new int[end - start];
+            for (int p = start; p < end; p++) {
+                partitions[p - start] = p;
+            }
+            ranges.put(members.get(i), partitions);
+        }
+        assignment = ranges;
+    }
+
+    /** The partitions a member owns in one generation. */
+    public static final class Assignment {
+        private final int generation;
+        private final int[] partitions;
+
+        Assignment(int generation, int[] partitions) {
+            this.generation = generation;
+            this.partitions = partitions;
+        }
+
+        public int getGeneration() {
+            return generation;
+        }
+
+        public int[] getPartitions() {
+            return partitions.clone();
+        }
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    public synchronized int getMemberCount() {
+        return lastHeartbeat.size();
+    }
+}
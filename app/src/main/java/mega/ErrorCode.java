@@ -9,7 +9,13 @@ public enum ErrorCode {
     INVALID_OFFSET((byte) 6),
     INTERNAL_ERROR((byte) 7),
     NETWORK_ERROR((byte) 8),
-    RESOURCE_EXHAUSTED((byte) 9);
+    RESOURCE_EXHAUSTED((byte) 9),
+    UNKNOWN_MEMBER((byte) 10),
+    ILLEGAL_GENERATION((byte) 11),
+    UNSUPPORTED_VERSION((byte) 12),
+    NOT_LEADER((byte) 13),
+    REPLICATION_TIMEOUT((byte) 14),
+    OUT_OF_ORDER_SEQUENCE((byte) 15);
 
     private final byte code;
 
@@ -17,6 +23,15 @@ public enum ErrorCode {
         this.code = code;
     }
 
+    public static ErrorCode fromCode(byte code) {
+        for (ErrorCode errorCode : values()) {
+            if (errorCode.code == code) {
+                return errorCode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown error code: " + code);
+    }
+
     public byte getCode() {
         return code;
     }
@@ -0,0 +1,92 @@
+package mega;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches parked on one partition until enough data is appended or their wait runs out. A parked
+ * fetch holds no thread: it is an entry here plus a timer task, and whichever of an append, the
+ * timer or {@link Waiter#expire()} comes first runs its callback, exactly once, on its own thread.
+ * Callbacks should therefore only hand work off. Appends pay a single emptiness check when nothing
+ * is parked.
+ */
+final class FetchWaiters {
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mega-fetch-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Parks {@code onReady} until {@code minBytes} are available, counting {@code availableBytes}
+     * already readable plus everything appended from now on, or until {@code maxWaitNanos} elapse.
+     * A wait of 0 or less never times out, leaving {@link Waiter#expire()} as the only other way out.
+     */
+    Waiter park(int availableBytes, int minBytes, long maxWaitNanos, Runnable onReady) {
+        Waiter waiter = new Waiter(availableBytes, minBytes, onReady);
+        waiters.add(waiter);
+        if (maxWaitNanos > 0) {
+            waiter.timeout = TIMER.schedule(waiter::expire, maxWaitNanos, TimeUnit.NANOSECONDS);
+        }
+        return waiter;
+    }
+
+    boolean isEmpty() {
+        return waiters.isEmpty();
+    }
+
+    /** Credits {@code bytes} of newly readable records to every parked fetch and wakes the satisfied ones. */
+    void onAppend(int bytes) {
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+            Waiter waiter = it.next();
+            if (waiter.bytes.addAndGet(bytes) >= waiter.minBytes) {
+                it.remove();
+                waiter.complete();
+            }
+        }
+    }
+
+    final class Waiter {
+        private final AtomicLong bytes;
+        private final int minBytes;
+        private final Runnable onReady;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile ScheduledFuture<?> timeout;
+
+        private Waiter(int availableBytes, int minBytes, Runnable onReady) {
+            this.bytes = new AtomicLong(availableBytes);
+            this.minBytes = minBytes;
+            this.onReady = onReady;
+        }
+
+        /** Wakes the fetch now, whatever has been appended. */
+        void expire() {
+            waiters.remove(this);
+            complete();
+        }
+
+        boolean isDone() {
+            return done.get();
+        }
+
+        private void complete() {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            ScheduledFuture<?> pendingTimeout = timeout;
+            if (pendingTimeout != null) {
+                pendingTimeout.cancel(false);
+            }
+            onReady.run();
+        }
+    }
+}
@@ -0,0 +1,583 @@
+package mega;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Disk-backed {@link TopicLog}: a directory of rolling {@link LogSegment}s named after their base
+ * offsets. Appends are serialized by a lock and written through the active segment's FileChannel;
+ * reads locate the segment by base offset and the record through the segment's sparse index.
+ *
+ * The cleaner removes whole closed segments from the oldest end and swaps closed segments for
+ * compacted copies by replacing entries of the concurrent segment map, so it never takes the append
+ * lock. A compacted segment keeps its base offset as its name even if its first record is gone.
+ *
+ * With {@link TieredStorage}, {@link #offload()} uploads closed segments and then deletes the oldest
+ * local ones beyond the local retention. The log goes on below its first local segment with the
+ * segments only the object store has, which are read through its cache; reads at or above it never
+ * touch the object store.
+ */
+public class FileLog implements TopicLog {
+    private static final Logger LOG = Logger.getLogger(FileLog.class);
+    private static final BufferPool ENCODE_BUFFERS = new BufferPool(64 * 1024, 256);
+    private final Path dir;
+    private final int segmentBytes;
+    private final int indexIntervalBytes;
+    private final int flushIntervalMessages;
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    // Every uploaded segment, including those still on local disk; null without tiered storage
+    private final TieredStorage tiered;
+    private final String remotePrefix;
+    private final ConcurrentSkipListMap<Long, RemoteSegment> remoteSegments = new ConcurrentSkipListMap<>();
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private volatile LogSegment activeSegment;
+    private volatile long nextOffset;
+    private int unflushedMessages;
+    private volatile int truncations; // Changed under the append lock, so cleaning can tell its view is stale
+
+    public FileLog(Path dir, BrokerConfig config) throws IOException {
+        this(dir, config, null, null);
+    }
+
+    /** Opens a log that offloads to {@code tiered}, if not null, under the key prefix {@code remotePrefix}. */
+    FileLog(Path dir, BrokerConfig config, TieredStorage tiered, String remotePrefix) throws IOException {
+        this.dir = dir;
+        this.tiered = tiered;
+        this.remotePrefix = remotePrefix;
+        this.segmentBytes = config.getSegmentBytes();
+        this.indexIntervalBytes = config.getIndexIntervalBytes();
+        this.flushIntervalMessages = config.getFlushIntervalMessages();
+        Files.createDirectories(dir);
+        load();
+    }
+
+    private void load() throws IOException {
+        List<Long> baseOffsets = new ArrayList<>();
+        List<Path> leftovers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".log")) {
+                    baseOffsets.add(Long.parseLong(name.substring(0, name.length() - 4)));
+                } else if (name.endsWith(LogSegment.DELETED_SUFFIX) || name.endsWith(LogSegment.CLEANED_SUFFIX)) {
+                    leftovers.add(path); // from a cleaner run cut short by a restart
+                }
+            }
+        }
+        for (Path leftover : leftovers) {
+            Files.delete(leftover);
+        }
+        baseOffsets.sort(null);
+        for (long baseOffset : baseOffsets) {
+            segments.put(baseOffset, new LogSegment(dir, baseOffset, segmentBytes, indexIntervalBytes));
+        }
+        if (tiered != null) {
+            remoteSegments.putAll(tiered.load(remotePrefix));
+        }
+        if (segments.isEmpty()) {
+            // Everything may have been offloaded when the local disk was lost
+            long baseOffset = remoteSegments.isEmpty() ? 0 : remoteSegments.lastEntry().getValue().getEndOffset();
+            segments.put(baseOffset, new LogSegment(dir, baseOffset, segmentBytes, indexIntervalBytes));
+        }
+
+        for (LogSegment segment : segments.headMap(segments.lastKey()).values()) {
+            if (segment.needsRecovery()) {
+                segment.recover();
+            }
+        }
+        activeSegment = segments.lastEntry().getValue();
+        nextOffset = activeSegment.recover();
+    }
+
+    @Override
+    public long append(long timestamp, byte[] payload) {
+        return append(timestamp, null, List.of(ByteBuffer.wrap(payload)));
+    }
+
+    /**
+     * Encodes the whole batch before taking the lock, then assigns its offsets and writes it to the
+     * active segment with one positional write. A batch is never split across segments.
+     */
+    @Override
+    public long append(long timestamp, byte[] key, List<ByteBuffer> payloads) {
+        int size = 0;
+        for (ByteBuffer payload : payloads) {
+            size += RecordFormat.sizeInBytes(key, payload.remaining());
+        }
+        ByteBuffer records = ENCODE_BUFFERS.acquire(size);
+        for (int i = 0; i < payloads.size(); i++) {
+            RecordFormat.write(records, i, timestamp, key, payloads.get(i));
+        }
+        records.flip();
+        return append(records, payloads.size());
+    }
+
+    /** Stores the compressed batch as one record carrying the offset of its last record. */
+    @Override
+    public long append(long timestamp, byte[] key, Compression compression, int recordCount, ByteBuffer compressed) {
+        ByteBuffer records = ENCODE_BUFFERS.acquire(RecordFormat.sizeInBytes(key, 4 + compressed.remaining()));
+        RecordFormat.writeCompressed(records, recordCount - 1, timestamp, key, compression, recordCount, compressed);
+        records.flip();
+        return append(records, recordCount);
+    }
+
+    /**
+     * Writes encoded records whose offsets are relative to the batch and which take up
+     * {@code offsetCount} offsets, and returns the first of those.
+     */
+    private long append(ByteBuffer records, int offsetCount) {
+        appendLock.lock();
+        try {
+            long offset = nextOffset;
+            RecordFormat.shiftOffsets(records, offset);
+            // Index entries hold offsets relative to the segment's base, so those must stay within an int
+            if (activeSegment.getSize() > 0 && (activeSegment.getSize() + records.remaining() > segmentBytes
+                    || offset + offsetCount - 1 - activeSegment.getBaseOffset() > Integer.MAX_VALUE)) {
+                roll(offset);
+            }
+            activeSegment.append(offset, records);
+            nextOffset = offset + offsetCount;
+            unflushedMessages += offsetCount;
+            if (flushIntervalMessages > 0 && unflushedMessages >= flushIntervalMessages) {
+                activeSegment.flush();
+                unflushedMessages = 0;
+            }
+            return offset;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to append to " + dir, e);
+        } finally {
+            appendLock.unlock();
+            ENCODE_BUFFERS.release(records);
+        }
+    }
+
+    /**
+     * Writes the records as they are, after checking each one's checksum. An empty log is moved to
+     * the first record's offset instead of keeping a segment that starts below it.
+     */
+    @Override
+    public void appendReplicated(ByteBuffer records, long next) {
+        long first = records.hasRemaining() ? records.getLong(records.position()) : next;
+        long last = first - 1;
+        for (int position = records.position(); position < records.limit();) {
+            long offset = records.getLong(position);
+            if (offset <= last || !RecordFormat.isValid(records.duplicate().position(position))) {
+                throw new IllegalArgumentException("Invalid replicated record at offset " + offset + " in " + dir);
+            }
+            last = offset;
+            position += RecordFormat.LOG_OVERHEAD + records.getInt(position + 8);
+        }
+        appendLock.lock();
+        try {
+            if (first < nextOffset && records.hasRemaining()) {
+                throw new IllegalArgumentException(
+                        "Replicated offset " + first + " is below the next offset " + nextOffset + " of " + dir);
+            }
+            if (records.hasRemaining()) {
+                if (activeSegment.getSize() == 0 && first > activeSegment.getBaseOffset() && segments.size() == 1) {
+                    LogSegment empty = activeSegment;
+                    roll(first);
+                    segments.remove(empty.getBaseOffset());
+                    empty.delete();
+                } else if (activeSegment.getSize() > 0
+                        && (activeSegment.getSize() + records.remaining() > segmentBytes
+                                || last - activeSegment.getBaseOffset() > Integer.MAX_VALUE)) {
+                    roll(first);
+                }
+                activeSegment.append(first, records);
+            }
+            nextOffset = Math.max(Math.max(nextOffset, last + 1), next);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to append to " + dir, e);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments starting at or after {@code offset} and replaces the last one left with a
+     * copy cut short (see {@link LogSegment#truncateTo}). A log cut back past its first segment starts
+     * over with an empty segment at {@code offset}. Offloaded copies of anything cut off are deleted as
+     * well, since objects are never changed.
+     */
+    @Override
+    public void truncateTo(long offset) throws IOException {
+        appendLock.lock();
+        try {
+            if (offset >= nextOffset) {
+                return;
+            }
+            Map.Entry<Long, RemoteSegment> remote;
+            while ((remote = remoteSegments.lastEntry()) != null && remote.getValue().getEndOffset() > offset) {
+                remoteSegments.remove(remote.getKey());
+                tiered.delete(remotePrefix, remote.getValue());
+            }
+            while (!segments.isEmpty() && segments.lastKey() >= offset) {
+                segments.pollLastEntry().getValue().delete();
+            }
+            if (segments.isEmpty()) {
+                segments.put(offset, new LogSegment(dir, offset, segmentBytes, indexIntervalBytes));
+                activeSegment = segments.lastEntry().getValue();
+                nextOffset = offset;
+            } else {
+                // Swapped for a cut copy, so fetches already sending the old file's tail can finish
+                LogSegment truncated = segments.lastEntry().getValue().truncateTo(offset);
+                long next = truncated.recover();
+                segments.put(truncated.getBaseOffset(), truncated);
+                activeSegment = truncated;
+                nextOffset = next;
+            }
+            unflushedMessages = 0;
+            truncations++;
+            LOG.info("Truncated {} to offset {}", dir, nextOffset);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void roll(long baseOffset) throws IOException {
+        LogSegment segment = new LogSegment(dir, baseOffset, segmentBytes, indexIntervalBytes);
+        activeSegment.flush();
+        segments.put(baseOffset, segment);
+        activeSegment = segment;
+    }
+
+    @Override
+    public Record read(long offset) {
+        if (offset < getStartOffset() || offset >= nextOffset) {
+            return null;
+        }
+        try {
+            Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+            if (entry == null) {
+                // Below the local segments; offload uploads a segment before deleting it here
+                Map.Entry<Long, RemoteSegment> remote = remoteSegments.floorEntry(offset);
+                LogSegment segment = remote == null ? null : openRemote(remote.getValue());
+                return segment == null ? null : segment.read(offset);
+            }
+            return entry.getValue().read(offset);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read offset " + offset + " from " + dir, e);
+        }
+    }
+
+    @Override
+    public RecordBatch read(long offset, int maxRecords, int maxBytes) {
+        long end = nextOffset;
+        if (offset < 0 || offset > end) {
+            return null;
+        }
+        if (offset == end) {
+            return new RecordBatch(List.of(), offset);
+        }
+        Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+        try {
+            if (entry == null) {
+                RecordBatch batch = readRemote(offset, maxRecords, maxBytes);
+                if (batch != null) {
+                    return batch;
+                }
+                entry = segments.firstEntry(); // below the start offset: serve from the oldest record
+            }
+            // A segment may hold nothing at or after the offset once compaction has thinned it out
+            for (; entry != null; entry = segments.higherEntry(entry.getKey())) {
+                RecordBatch batch = entry.getValue().read(offset, maxRecords, maxBytes);
+                if (batch != null) {
+                    return batch;
+                }
+            }
+            return new RecordBatch(List.of(), end);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read from offset " + offset + " in " + dir, e);
+        }
+    }
+
+    /**
+     * Reads from the offloaded segments below the first local one, starting with the one holding
+     * {@code offset} or, below the start offset, the oldest. Returns null if none of them has a record
+     * at or after {@code offset}.
+     */
+    private RecordBatch readRemote(long offset, int maxRecords, int maxBytes) throws IOException {
+        Map.Entry<Long, RemoteSegment> entry = remoteSegments.floorEntry(offset);
+        if (entry == null) {
+            entry = remoteSegments.firstEntry();
+        }
+        for (; entry != null; entry = remoteSegments.higherEntry(entry.getKey())) {
+            if (entry.getKey() >= segments.firstKey()) {
+                return null; // still on local disk
+            }
+            LogSegment segment = openRemote(entry.getValue());
+            RecordBatch batch = segment == null ? null : segment.read(offset, maxRecords, maxBytes);
+            if (batch != null) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    /** Returns an offloaded segment from the cache, or null if retention deleted it meanwhile. */
+    private LogSegment openRemote(RemoteSegment remote) throws IOException {
+        try {
+            return tiered.open(remotePrefix, remote);
+        } catch (NoSuchFileException e) {
+            if (remoteSegments.get(remote.getBaseOffset()) != remote) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Skips the segments whose newest record is older than {@code timestamp}, which each know their
+     * newest timestamp, and asks the first one left, which searches its time index. Offloaded segments
+     * below the local ones are only downloaded if their metadata says they hold a match.
+     */
+    @Override
+    public long offsetForTime(long timestamp) {
+        long end = nextOffset;
+        try {
+            for (RemoteSegment remote : remoteSegments.headMap(segments.firstKey()).values()) {
+                LogSegment segment = remote.getMaxTimestamp() < timestamp ? null : openRemote(remote);
+                long offset = segment == null ? -1 : segment.offsetForTime(timestamp);
+                if (offset >= 0) {
+                    return offset;
+                }
+            }
+            for (LogSegment segment : segments.values()) {
+                long offset = segment.offsetForTime(timestamp);
+                if (offset >= 0) {
+                    return offset;
+                }
+            }
+            return end;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to look up timestamp " + timestamp + " in " + dir, e);
+        }
+    }
+
+    @Override
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    @Override
+    public long getStartOffset() {
+        long localStart = segments.firstKey();
+        Map.Entry<Long, RemoteSegment> oldest = remoteSegments.firstEntry();
+        return oldest == null ? localStart : Math.min(oldest.getKey(), localStart);
+    }
+
+    /** Counts offloaded segments as well, once for those still on local disk. */
+    @Override
+    public long getSizeInBytes() {
+        long size = 0;
+        for (LogSegment segment : segments.values()) {
+            size += segment.getSize();
+        }
+        for (RemoteSegment remote : remoteSegments.headMap(segments.firstKey()).values()) {
+            size += remote.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * Deletes closed segments from the oldest end while {@code config} allows, starting with those only
+     * the object store has, then, for a compacted topic, rewrites every closed segment holding records
+     * superseded by a later one with the same key. Records of the active segment count as later ones
+     * but are never rewritten themselves.
+     */
+    @Override
+    public long clean(TopicConfig config, long nowMs) throws IOException {
+        long removed = 0;
+        long totalBytes = getSizeInBytes();
+        boolean retained = false;
+        Map.Entry<Long, RemoteSegment> remote;
+        while ((remote = remoteSegments.firstEntry()) != null && remote.getKey() < segments.firstKey()) {
+            Long higher = remoteSegments.higherKey(remote.getKey());
+            long nextBaseOffset = higher == null ? segments.firstKey() : Math.min(higher, segments.firstKey());
+            long bytesAfter = totalBytes - remote.getValue().getSize();
+            long recordsAfter = nextOffset - nextBaseOffset;
+            if (!config.canDrop(remote.getValue().getMaxTimestamp(), bytesAfter, recordsAfter, nowMs)) {
+                retained = true;
+                break;
+            }
+            appendLock.lock();
+            try {
+                // A follower may have truncated the segment away since
+                if (remoteSegments.get(remote.getKey()) != remote.getValue()) {
+                    break;
+                }
+                remoteSegments.remove(remote.getKey());
+                tiered.delete(remotePrefix, remote.getValue());
+            } finally {
+                appendLock.unlock();
+            }
+            totalBytes = bytesAfter;
+            removed += nextBaseOffset - remote.getKey();
+            LOG.debug("Deleted offloaded segment {} of {}", remote.getKey(), dir);
+        }
+        while (!retained) {
+            Map.Entry<Long, LogSegment> oldest = segments.firstEntry();
+            Long nextBaseOffset = segments.higherKey(oldest.getKey());
+            LogSegment segment = oldest.getValue();
+            if (nextBaseOffset == null || segment == activeSegment) {
+                break;
+            }
+            long bytesAfter = totalBytes - segment.getSize();
+            if (!config.canDrop(segment.getMaxTimestamp(), bytesAfter, nextOffset - nextBaseOffset, nowMs)) {
+                break;
+            }
+            appendLock.lock();
+            try {
+                if (!deleteClosed(oldest.getKey(), segment)) {
+                    break;
+                }
+                RemoteSegment copy = remoteSegments.remove(oldest.getKey());
+                if (copy != null) {
+                    tiered.delete(remotePrefix, copy);
+                }
+            } finally {
+                appendLock.unlock();
+            }
+            totalBytes = bytesAfter;
+            removed += nextBaseOffset - oldest.getKey();
+            LOG.debug("Deleted segment {} of {}", oldest.getKey(), dir);
+        }
+        if (config.isCompact()) {
+            removed += compact();
+        }
+        return removed;
+    }
+
+    private int compact() throws IOException {
+        int truncated = truncations;
+        LogSegment active = activeSegment;
+        Map<ByteBuffer, Long> latest = new HashMap<>();
+        for (LogSegment segment : segments.headMap(active.getBaseOffset(), true).values()) {
+            segment.collectLatest(latest);
+        }
+        int removed = 0;
+        for (LogSegment segment : segments.headMap(active.getBaseOffset()).values()) {
+            int superseded = segment.countSuperseded(latest);
+            if (superseded == 0) {
+                continue;
+            }
+            // Held through the rewrite, as a truncation swapping the same segment's files would clash with it.
+            // After a truncation the later records that supersede this segment's may be gone, so it stops.
+            appendLock.lock();
+            try {
+                if (truncations != truncated) {
+                    break;
+                }
+                if (segments.get(segment.getBaseOffset()) == segment) {
+                    segments.put(segment.getBaseOffset(), segment.compact(latest));
+                    removed += superseded;
+                }
+            } finally {
+                appendLock.unlock();
+            }
+        }
+        if (removed > 0) {
+            LOG.debug("Compacted away {} records of {}", removed, dir);
+        }
+        return removed;
+    }
+
+    /**
+     * Uploads every closed segment that is not in the object store yet, oldest first, then deletes
+     * uploaded segments from the oldest end of the local disk while the partition takes up more than
+     * the local retention there. Returns the number of segments deleted locally.
+     */
+    @Override
+    public long offload() throws IOException {
+        if (tiered == null) {
+            return 0;
+        }
+        LogSegment active = activeSegment;
+        for (Map.Entry<Long, LogSegment> entry : segments.headMap(active.getBaseOffset()).entrySet()) {
+            Long endOffset = segments.higherKey(entry.getKey());
+            if (remoteSegments.containsKey(entry.getKey()) || endOffset == null) {
+                continue;
+            }
+            RemoteSegment uploaded = tiered.upload(remotePrefix, dir, entry.getValue(), endOffset);
+            // A follower may have truncated the segment away during the upload
+            appendLock.lock();
+            try {
+                if (segments.get(entry.getKey()) == entry.getValue()) {
+                    remoteSegments.put(entry.getKey(), uploaded);
+                    uploaded = null;
+                }
+            } finally {
+                appendLock.unlock();
+            }
+            if (uploaded != null) {
+                tiered.delete(remotePrefix, uploaded);
+            }
+        }
+        long localBytes = 0;
+        for (LogSegment segment : segments.values()) {
+            localBytes += segment.getSize();
+        }
+        long removed = 0;
+        while (localBytes > tiered.getLocalRetentionBytes()) {
+            Map.Entry<Long, LogSegment> oldest = segments.firstEntry();
+            if (oldest.getValue() == activeSegment || !remoteSegments.containsKey(oldest.getKey())) {
+                break;
+            }
+            appendLock.lock();
+            try {
+                if (!deleteClosed(oldest.getKey(), oldest.getValue())) {
+                    break;
+                }
+            } finally {
+                appendLock.unlock();
+            }
+            localBytes -= oldest.getValue().getSize();
+            removed++;
+            LOG.debug("Offloaded segment {} of {}", oldest.getKey(), dir);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes and deletes {@code segment} unless a truncation replaced or removed it, or made it the
+     * active segment, since it was looked up; the append lock must be held.
+     */
+    private boolean deleteClosed(long baseOffset, LogSegment segment) throws IOException {
+        if (segments.get(baseOffset) != segment || segment == activeSegment) {
+            return false;
+        }
+        segments.remove(baseOffset);
+        segment.delete();
+        return true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // FileChannel.force is safe to call concurrently with writes, so appends are not held up.
+        activeSegment.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            for (LogSegment segment : segments.values()) {
+                segment.close();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package mega;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A record whose payload is still in a segment file. The payload is only read into the heap if
+ * {@link #getPayload()} is called; {@link #transferPayloadTo} hands it to the kernel instead.
+ */
+public class FileRecord extends Record {
+    private final FileChannel channel;
+    private final long payloadPosition;
+    private final int payloadLength;
+
+    public FileRecord(long offset, long timestamp, byte[] key, byte attributes, FileChannel channel,
+            long payloadPosition, int payloadLength) {
+        super(offset, timestamp, key, null, attributes);
+        this.channel = channel;
+        this.payloadPosition = payloadPosition;
+        this.payloadLength = payloadLength;
+    }
+
+    @Override
+    public byte[] getPayload() {
+        ByteBuffer buffer = ByteBuffer.allocate(payloadLength);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, payloadPosition + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of segment");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read payload at offset " + getOffset(), e);
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /** Throws EOFException if the segment was cut short under the record, like {@link FileRecordBatch#writeTo}. */
+    @Override
+    public void transferPayloadTo(WritableByteChannel target) throws IOException {
+        long position = payloadPosition;
+        long remaining = payloadLength;
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            if (transferred == 0 && channel.size() < position + remaining) {
+                throw new EOFException("Segment truncated below position " + (position + remaining));
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package mega;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A run of records that are already laid out in {@link RecordFormat} inside a segment file, so they
+ * can be sent to a socket with {@link FileChannel#transferTo} without touching the heap.
+ */
+public class FileRecordBatch extends RecordBatch {
+    private final FileChannel channel;
+    private final long position;
+    private final int recordCount;
+
+    public FileRecordBatch(FileChannel channel, long position, int sizeInBytes, int recordCount, long nextOffset,
+            boolean compressed) {
+        super(nextOffset, sizeInBytes, compressed);
+        this.channel = channel;
+        this.position = position;
+        this.recordCount = recordCount;
+    }
+
+    @Override
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /** Reads the region into the heap and decodes it. */
+    @Override
+    public List<Record> getRecords() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(getSizeInBytes());
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+        buffer.flip();
+        List<Record> records = new ArrayList<>(recordCount);
+        while (buffer.hasRemaining()) {
+            records.add(RecordFormat.read(buffer));
+        }
+        return records;
+    }
+
+    /**
+     * Sends the region with {@link FileChannel#transferTo}. Throws EOFException if the file was cut
+     * short meanwhile, as when a follower truncates its log, which transferTo reports only by sending
+     * nothing.
+     */
+    @Override
+    public void writeTo(WritableByteChannel target) throws IOException {
+        long current = position;
+        long remaining = getSizeInBytes();
+        while (remaining > 0) {
+            long transferred = channel.transferTo(current, remaining, target);
+            if (transferred == 0 && channel.size() < current + remaining) {
+                throw new EOFException("Segment truncated below position " + (current + remaining));
+            }
+            current += transferred;
+            remaining -= transferred;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package mega;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consumer groups and the offsets they commit. When given a log, every commit is also appended to it
+ * as one small record keyed by group, topic and partition, with the 8-byte offset as payload, and the
+ * log is replayed on startup; a later record for a key supersedes the earlier ones.
+ */
+public class GroupCoordinator implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(GroupCoordinator.class);
+    /** Offset returned for a partition the group has never committed. */
+    public static final long NO_OFFSET = -1;
+    /** Only the latest commit of each key matters, so the log is compacted and never trimmed by age. */
+    private static final TopicConfig OFFSETS_RETENTION = new TopicConfig(-1, -1, -1, true);
+
+    private final ConcurrentMap<String, ConsumerGroup> groups = new ConcurrentHashMap<>();
+    private final ConcurrentMap<OffsetKey, Long> offsets = new ConcurrentHashMap<>();
+    private final TopicLog offsetsLog;
+    private final long sessionTimeoutNanos;
+
+    /** Creates a coordinator that keeps offsets in {@code offsetsLog}, or only in memory when it is null. */
+    GroupCoordinator(TopicLog offsetsLog, long sessionTimeoutMs) {
+        this.offsetsLog = offsetsLog;
+        this.sessionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sessionTimeoutMs);
+        if (offsetsLog != null) {
+            replay();
+        }
+    }
+
+    private void replay() {
+        long end = offsetsLog.getNextOffset();
+        for (long offset = offsetsLog.getStartOffset(); offset < end; offset++) {
+            Record record = offsetsLog.read(offset);
+            if (record != null && record.getKey() != null) {
+                offsets.put(OffsetKey.decode(record.getKey()), decodeOffset(record.getPayload()));
+            }
+        }
+        LOG.info("Loaded {} committed offsets from {} records", offsets.size(), end);
+    }
+
+    /** Reads a commit's offset; commits written before offsets were 64-bit hold 4 bytes. */
+    private static long decodeOffset(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        return payload.length == 4 ? buffer.getInt() : buffer.getLong();
+    }
+
+    /** Joins {@code memberId} to a group on {@code topic}, creating the group on first use. */
+    public ConsumerGroup.Assignment join(String groupId, String topic, int partitionCount, String memberId) {
+        if (groupId.isEmpty() || memberId.isEmpty()) {
+            throw new IllegalArgumentException("Group and member IDs cannot be empty");
+        }
+        ConsumerGroup group = groups.computeIfAbsent(groupId,
+                id -> new ConsumerGroup(id, topic, partitionCount, sessionTimeoutNanos));
+        checkTopic(group, topic);
+        ConsumerGroup.Assignment assignment = group.join(memberId, System.nanoTime());
+        LOG.debug("Member {} joined group {} in generation {}", memberId, groupId, assignment.getGeneration());
+        return assignment;
+    }
+
+    public int heartbeat(String groupId, String memberId) {
+        return getGroup(groupId, memberId).heartbeat(memberId, System.nanoTime());
+    }
+
+    public int leave(String groupId, String memberId) {
+        int generation = getGroup(groupId, memberId).leave(memberId);
+        LOG.debug("Member {} left group {}", memberId, groupId);
+        return generation;
+    }
+
+    /**
+     * Commits {@code offset} for a partition, provided {@code memberId} owns it in the group's current
+     * generation. The check, the log append and the update run under the group's monitor, so
+     * commits of one group are stored in the order they are applied.
+     */
+    public void commit(String groupId, String topic, String memberId, int generation, int partition, long offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Committed offset cannot be negative");
+        }
+        ConsumerGroup group = getGroup(groupId, memberId);
+        checkTopic(group, topic);
+        OffsetKey key = new OffsetKey(groupId, topic, partition);
+        synchronized (group) {
+            group.checkOwner(memberId, generation, partition);
+            if (offsetsLog != null) {
+                offsetsLog.append(System.currentTimeMillis(), key.encode(),
+                        List.of(ByteBuffer.allocate(8).putLong(0, offset)));
+            }
+            offsets.put(key, offset);
+        }
+    }
+
+    /** Returns the group's committed offset for a partition, or {@link #NO_OFFSET}. */
+    public long committedOffset(String groupId, String topic, int partition) {
+        return offsets.getOrDefault(new OffsetKey(groupId, topic, partition), NO_OFFSET);
+    }
+
+    /** Drops members whose session timed out, rebalancing their groups; run periodically. */
+    void expireMembers() {
+        long now = System.nanoTime();
+        for (ConsumerGroup group : groups.values()) {
+            if (group.expireMembers(now)) {
+                LOG.info("Expired members of group {}, now in generation {}", group.getGroupId(),
+                        group.getGeneration());
+            }
+        }
+    }
+
+    private ConsumerGroup getGroup(String groupId, String memberId) {
+        ConsumerGroup group = groups.get(groupId);
+        if (group == null) {
+            throw new UnknownMemberException(groupId, memberId);
+        }
+        return group;
+    }
+
+    private static void checkTopic(ConsumerGroup group, String topic) {
+        if (!group.getTopic().equals(topic)) {
+            throw new IllegalArgumentException(
+                    "Group " + group.getGroupId() + " consumes " + group.getTopic() + ", not " + topic);
+        }
+    }
+
+    /** Compacts the offsets log down to the latest commit per key; run periodically. */
+    void clean(long nowMs) throws IOException {
+        if (offsetsLog != null) {
+            offsetsLog.clean(OFFSETS_RETENTION, nowMs);
+        }
+    }
+
+    public void flush() throws IOException {
+        if (offsetsLog != null) {
+            offsetsLog.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (offsetsLog != null) {
+            offsetsLog.close();
+        }
+    }
+
+    /** Identifies one committed offset; its encoding is the key of the offset's log record. */
+    static final class OffsetKey {
+        private final String groupId;
+        private final String topic;
+        private final int partition;
+
+        OffsetKey(String groupId, String topic, int partition) {
+            this.groupId = groupId;
+            this.topic = topic;
+            this.partition = partition;
+        }
+
+        /** Group and topic as 2-byte length-prefixed UTF-8, then the 4-byte partition. */
+        byte[] encode() {
+            byte[] group = groupId.getBytes(StandardCharsets.UTF_8);
+            byte[] topicName = topic.getBytes(StandardCharsets.UTF_8);
+            return ByteBuffer.allocate(2 + group.length + 2 + topicName.length + 4)
+                    .putShort((short) group.length).put(group)
+                    .putShort((short) topicName.length).put(topicName)
+                    .putInt(partition)
+                    .array();
+        }
+
+        static OffsetKey decode(byte[] key) {
+            ByteBuffer buffer = ByteBuffer.wrap(key);
+            String groupId = readUTF(buffer);
+            String topic = readUTF(buffer);
+            return new OffsetKey(groupId, topic, buffer.getInt());
+        }
+
+        private static String readUTF(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof OffsetKey)) {
+                return false;
+            }
+            OffsetKey other = (OffsetKey) o;
+            return partition == other.partition && groupId.equals(other.groupId) && topic.equals(other.topic);
+        }
+
+        @Override
+        public int hashCode() {
+            return (groupId.hashCode() * 31 + topic.hashCode()) * 31 + partition;
+        }
+    }
+}
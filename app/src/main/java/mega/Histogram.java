@@ -0,0 +1,122 @@
+package mega;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values, such as latencies in nanoseconds, in the log-linear buckets
+ * of an HDR histogram: values below {@value #SUB_BUCKETS} are exact, and every power of two above
+ * is split into {@value #SUB_BUCKETS} equal buckets, so a reported value is within about 3% of the
+ * recorded one. Values past 2^{@value #MAX_EXPONENT} land in the last bucket.
+ *
+ * Recording is a single atomic increment on one of several stripes picked by thread, which keeps
+ * threads from contending on a hot bucket; {@link #snapshot()} adds the stripes up.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36; // about 137 seconds in nanoseconds
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int STRIPES = Math.min(8, Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+
+    public void record(long value) {
+        int stripe = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+        counts.getAndIncrement(stripe * BUCKETS + bucket(value));
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** The smallest value that falls in {@code bucket}. */
+    static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    /** The largest value that falls in {@code bucket}. */
+    static long highestValue(int bucket) {
+        return bucket < SUB_BUCKETS ? bucket : lowestValue(bucket) + (1L << (bucket / SUB_BUCKETS - 1)) - 1;
+    }
+
+    /** Adds up the stripes. Recordings made meanwhile may or may not be included. */
+    public Snapshot snapshot() {
+        long[] merged = new long[BUCKETS];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                merged[bucket] += counts.get(stripe * BUCKETS + bucket);
+            }
+        }
+        return new Snapshot(merged);
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long total = 0;
+            for (long bucketCount : counts) {
+                total += bucketCount;
+            }
+            this.count = total;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * The value below which {@code percentile} percent of the recorded values fall, reported as
+         * the highest value of its bucket; 0 if nothing was recorded.
+         */
+        public long getPercentile(double percentile) {
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) {
+                    return highestValue(bucket);
+                }
+            }
+            return 0;
+        }
+
+        public long getMax() {
+            for (int bucket = counts.length - 1; bucket >= 0; bucket--) {
+                if (counts[bucket] > 0) {
+                    return highestValue(bucket);
+                }
+            }
+            return 0;
+        }
+
+        /** The mean, taking each value as the middle of its bucket. */
+        public double getMean() {
+            if (count == 0) {
+                return 0;
+            }
+            double sum = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                if (counts[bucket] > 0) {
+                    sum += counts[bucket] * ((lowestValue(bucket) + highestValue(bucket)) / 2.0);
+                }
+            }
+            return sum / count;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package mega;
+
+public class IllegalGenerationException extends RuntimeException {
+    public IllegalGenerationException(String groupId, int memberGeneration, int currentGeneration) {
+        super("Generation " + memberGeneration + " of group " + groupId + " is stale or does not own the partition"
+                + " (current generation " + currentGeneration + ")");
+    }
+}
@@ -0,0 +1,451 @@
+package mega;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Append-only log held in fixed-size chunks, addressed directly by offset.
+ *
+ * Appenders reserve a contiguous range of offsets with a single CAS and then fill their slots
+ * independently, so concurrent producers never block each other. A slot that has been reserved
+ * but not yet filled reads as null, which readers treat the same as an offset past the tail.
+ *
+ * The chunks live in a ring indexed by chunk number. Once {@link #clean} drops the oldest chunk, its
+ * slot is reused for a later one; when the retained chunks outgrow the ring, it is doubled. Both are
+ * rare (once per {@value #CHUNK_SIZE} records) and done under a lock, while lookups only read the
+ * ring and check the chunk's base offset, so a reader racing with either sees the record or nothing.
+ * Offsets are 64-bit and the log has no size limit of its own unless given a capacity; what it holds
+ * is bounded by its topic's retention.
+ *
+ * A compressed batch is held as one record in the slot of its last offset, still compressed, with
+ * {@link #IN_BATCH} in the slots before it.
+ */
+public class InMemoryLog implements TopicLog {
+    private static final int CHUNK_SHIFT = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // 16384 records per chunk
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int INITIAL_RING_SIZE = 16; // chunks; doubled as needed
+    /** Fills the slot of a record removed by compaction, which readers skip instead of stopping at. */
+    private static final Record REMOVED = new Record(-1, 0, new byte[0]);
+    /** Fills the slots of a compressed batch but its last, which holds the batch. */
+    private static final Record IN_BATCH = new Record(-1, Long.MIN_VALUE, new byte[0]);
+
+    private volatile AtomicReferenceArray<Chunk> ring = new AtomicReferenceArray<>(INITIAL_RING_SIZE);
+    private final Object ringLock = new Object(); // Guards adding chunks to and removing them from the ring
+    private final AtomicLong nextOffset = new AtomicLong();
+    private final long capacity;
+    private volatile long startOffset;
+
+    /** Creates a log bounded only by retention. */
+    public InMemoryLog() {
+        this(Long.MAX_VALUE);
+    }
+
+    /** Creates a log that refuses appends while it retains {@code capacity} records. */
+    public InMemoryLog(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Log capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    @Override
+    public long append(long timestamp, byte[] payload) {
+        long offset = reserve(1);
+        set(offset, new Record(offset, timestamp, payload));
+        return offset;
+    }
+
+    @Override
+    public long append(long timestamp, byte[] key, List<ByteBuffer> payloads) {
+        long base = reserve(payloads.size());
+        for (int i = 0; i < payloads.size(); i++) {
+            ByteBuffer slice = payloads.get(i);
+            byte[] payload = new byte[slice.remaining()];
+            slice.get(slice.position(), payload);
+            set(base + i, new Record(base + i, timestamp, key, payload));
+        }
+        return base;
+    }
+
+    @Override
+    public long append(long timestamp, byte[] key, Compression compression, int recordCount, ByteBuffer compressed) {
+        byte[] payload = new byte[4 + compressed.remaining()];
+        ByteBuffer.wrap(payload).putInt(recordCount).put(compressed.duplicate());
+        long base = reserve(recordCount);
+        long last = base + recordCount - 1;
+        for (long offset = base; offset < last; offset++) {
+            set(offset, IN_BATCH);
+        }
+        set(last, new Record(last, timestamp, key, payload, compression.getCode()));
+        return base;
+    }
+
+    /**
+     * Reserves {@code count} consecutive offsets and returns the first one. The caller must fill
+     * every reserved slot with {@link #set(long, Record)}. Fails when the retained records would
+     * exceed the capacity, until the cleaner drops old ones.
+     */
+    public long reserve(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Reservation count must be positive");
+        }
+        while (true) {
+            long base = nextOffset.get();
+            if (base + count - startOffset > capacity) {
+                throw new IllegalStateException("Topic has reached maximum capacity");
+            }
+            if (nextOffset.compareAndSet(base, base + count)) {
+                return base;
+            }
+        }
+    }
+
+    public void set(long offset, Record record) {
+        Chunk chunk = chunkFor(offset);
+        chunk.records.set((int) offset & CHUNK_MASK, record);
+        if (record != IN_BATCH && record != REMOVED) {
+            chunk.bytes.addAndGet(RecordFormat.sizeInBytes(record.getKey(), record.getPayloadLength()));
+            long timestamp = chunk.maxTimestamp.get();
+            if (record.getTimestamp() > timestamp) {
+                chunk.maxTimestamp.accumulateAndGet(record.getTimestamp(), Math::max);
+            }
+        }
+        chunk.filled.incrementAndGet();
+    }
+
+    /**
+     * Fills the slots up to each record with {@link #REMOVED}, or {@link #IN_BATCH} inside a
+     * compressed batch, so the log reads the same as its source. A record more than a chunk past the
+     * end of the log, as after the source's retention dropped what this log has not copied yet,
+     * starts the log over at its chunk.
+     */
+    @Override
+    public void appendReplicated(ByteBuffer records, long next) {
+        ByteBuffer buffer = records.duplicate();
+        while (buffer.hasRemaining()) {
+            if (!RecordFormat.isValid(buffer)) {
+                throw new IllegalArgumentException(
+                        "Invalid replicated record at offset " + buffer.getLong(buffer.position()));
+            }
+            Record record = RecordFormat.read(buffer);
+            long offset = record.getOffset();
+            long first = record.isCompressed() ? offset - Compression.recordCount(record) + 1 : offset;
+            long end = nextOffset.get();
+            if (first < end) {
+                throw new IllegalArgumentException(
+                        "Replicated offset " + first + " is below the next offset " + end);
+            }
+            skipTo(first);
+            fill(first, offset, IN_BATCH);
+            nextOffset.set(offset + 1);
+            set(offset, record);
+        }
+        skipTo(next);
+    }
+
+    private void skipTo(long offset) {
+        long end = nextOffset.get();
+        if (offset > end && (offset - end >= CHUNK_SIZE || end == startOffset)) {
+            restartAt(offset);
+        }
+        fill(nextOffset.get(), offset, REMOVED);
+    }
+
+    private void fill(long from, long to, Record marker) {
+        if (from < to) {
+            nextOffset.set(to);
+            for (long offset = from; offset < to; offset++) {
+                set(offset, marker);
+            }
+        }
+    }
+
+    /** Empties the log and moves it to the chunk holding {@code offset}, with the slots before it removed. */
+    private void restartAt(long offset) {
+        long base = offset & ~CHUNK_MASK;
+        synchronized (ringLock) {
+            ring = new AtomicReferenceArray<>(INITIAL_RING_SIZE);
+            startOffset = base;
+            nextOffset.set(base);
+        }
+    }
+
+    /**
+     * Empties the slots from {@code offset} on; a reader racing with it may still return a record
+     * being removed. Cutting back below the start offset empties the log.
+     */
+    @Override
+    public void truncateTo(long offset) {
+        long end = nextOffset.get();
+        if (offset >= end) {
+            return;
+        }
+        if (offset <= startOffset) {
+            restartAt(offset);
+            fill(offset & ~CHUNK_MASK, offset, REMOVED);
+            return;
+        }
+        nextOffset.set(offset);
+        for (long position = offset; position < end; position++) {
+            Chunk chunk = chunkAt(position);
+            Record record = chunk == null ? null : chunk.records.getAndSet((int) position & CHUNK_MASK, null);
+            if (record != null) {
+                chunk.filled.decrementAndGet();
+                if (record != IN_BATCH && record != REMOVED) {
+                    chunk.bytes.addAndGet(-RecordFormat.sizeInBytes(record.getKey(), record.getPayloadLength()));
+                }
+            }
+        }
+    }
+
+    @Override
+    public Record read(long offset) {
+        long end = nextOffset.get();
+        if (offset < startOffset || offset >= end) {
+            return null;
+        }
+        Record record = slot(offset);
+        while (record == IN_BATCH && ++offset < end) {
+            record = slot(offset); // on to the batch's own slot
+        }
+        return record == REMOVED || record == IN_BATCH ? null : record;
+    }
+
+    @Override
+    public RecordBatch read(long offset, int maxRecords, int maxBytes) {
+        long end = nextOffset.get();
+        if (offset < 0 || offset > end) {
+            return null;
+        }
+        List<Record> records = new ArrayList<>();
+        int bytes = 0;
+        long position = Math.max(offset, startOffset);
+        while (records.size() < maxRecords && position < end) {
+            Record record = slot(position);
+            if (record == null) {
+                break; // not filled yet, or dropped by the cleaner under us
+            }
+            if (record != REMOVED && record != IN_BATCH) {
+                int size = RecordFormat.sizeInBytes(record.getKey(), record.getPayloadLength());
+                if (!records.isEmpty() && bytes + size > maxBytes) {
+                    break;
+                }
+                records.add(record);
+                bytes += size;
+            }
+            position++;
+        }
+        return new RecordBatch(records, position);
+    }
+
+    /**
+     * Skips whole chunks by their newest timestamp, which makes them a sparse index of one entry per
+     * {@value #CHUNK_SIZE} records, and scans the first chunk that may hold a match.
+     */
+    @Override
+    public long offsetForTime(long timestamp) {
+        long end = nextOffset.get();
+        for (long base = startOffset & ~CHUNK_MASK; base < end; base += CHUNK_SIZE) {
+            Chunk chunk = chunkAt(base);
+            if (chunk == null || chunk.maxTimestamp.get() < timestamp) {
+                continue;
+            }
+            for (long offset = Math.max(base, startOffset); offset < Math.min(base + CHUNK_SIZE, end); offset++) {
+                Record record = chunk.records.get((int) offset & CHUNK_MASK);
+                if (record == null || record == REMOVED || record == IN_BATCH || record.getTimestamp() < timestamp) {
+                    continue;
+                }
+                return record.isCompressed() ? offset - Compression.recordCount(record) + 1 : offset;
+            }
+        }
+        return end;
+    }
+
+    @Override
+    public long getNextOffset() {
+        return nextOffset.get();
+    }
+
+    @Override
+    public long getStartOffset() {
+        return startOffset;
+    }
+
+    @Override
+    public long getSizeInBytes() {
+        long size = 0;
+        AtomicReferenceArray<Chunk> chunks = ring;
+        for (int i = 0; i < chunks.length(); i++) {
+            Chunk chunk = chunks.get(i);
+            if (chunk != null && chunk.baseOffset >= startOffset) {
+                size += chunk.bytes.get();
+            }
+        }
+        return size;
+    }
+
+    /** Drops full chunks from the oldest end, then compacts the full chunks left if asked to. */
+    @Override
+    public long clean(TopicConfig config, long nowMs) {
+        long removed = 0;
+        long totalBytes = getSizeInBytes();
+        while (true) {
+            long start = startOffset;
+            long end = nextOffset.get();
+            Chunk chunk = chunkAt(start);
+            if (chunk == null || start + CHUNK_SIZE > end || chunk.filled.get() < CHUNK_SIZE) {
+                break;
+            }
+            long bytesAfter = totalBytes - chunk.bytes.get();
+            if (!config.canDrop(chunk.maxTimestamp.get(), bytesAfter, end - start - CHUNK_SIZE, nowMs)) {
+                break;
+            }
+            synchronized (ringLock) {
+                startOffset = start + CHUNK_SIZE;
+                AtomicReferenceArray<Chunk> current = ring;
+                current.compareAndSet(indexOf(current, start), chunk, null);
+            }
+            totalBytes = bytesAfter;
+            removed += CHUNK_SIZE - chunk.compacted;
+        }
+        if (config.isCompact()) {
+            removed += compact();
+        }
+        return removed;
+    }
+
+    /** Memory has no slower tier to move records to. */
+    @Override
+    public long offload() {
+        return 0;
+    }
+
+    /**
+     * Replaces every keyed record in a full chunk that a later record with the same key supersedes by
+     * {@link #REMOVED}. The chunk being filled is left alone, like the active segment on disk.
+     */
+    private long compact() {
+        long start = startOffset;
+        long end = nextOffset.get();
+        long cleanEnd = end & ~CHUNK_MASK;
+        if (cleanEnd <= start) {
+            return 0;
+        }
+        Map<ByteBuffer, Long> latest = new HashMap<>();
+        for (long offset = start; offset < end; offset++) {
+            Record record = slot(offset);
+            if (record != null && record.getKey() != null) {
+                latest.put(ByteBuffer.wrap(record.getKey()), offset);
+            }
+        }
+        long removed = 0;
+        for (long offset = start; offset < cleanEnd; offset++) {
+            Chunk chunk = chunkAt(offset);
+            Record record = chunk == null ? null : chunk.records.get((int) offset & CHUNK_MASK);
+            if (record == null || record.getKey() == null) {
+                continue;
+            }
+            Long latestOffset = latest.get(ByteBuffer.wrap(record.getKey()));
+            if (latestOffset == null || latestOffset == offset) {
+                continue; // filled after the first pass, or the latest of its key
+            }
+            if (chunk.records.compareAndSet((int) offset & CHUNK_MASK, record, REMOVED)) {
+                chunk.bytes.addAndGet(-RecordFormat.sizeInBytes(record.getKey(), record.getPayloadLength()));
+                chunk.compacted++;
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to persist.
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release.
+    }
+
+    private Record slot(long offset) {
+        Chunk chunk = chunkAt(offset);
+        return chunk == null ? null : chunk.records.get((int) offset & CHUNK_MASK);
+    }
+
+    private static int indexOf(AtomicReferenceArray<Chunk> chunks, long offset) {
+        return (int) ((offset >>> CHUNK_SHIFT) & (chunks.length() - 1));
+    }
+
+    /** The chunk holding {@code offset}, or null if it has not been created or was dropped. */
+    private Chunk chunkAt(long offset) {
+        AtomicReferenceArray<Chunk> chunks = ring;
+        Chunk chunk = chunks.get(indexOf(chunks, offset));
+        return chunk != null && chunk.baseOffset == (offset & ~CHUNK_MASK) ? chunk : null;
+    }
+
+    /**
+     * Returns the chunk for {@code offset}, creating it if needed. A slot still held by a retained
+     * chunk means the ring is too small for the retained range, so it is doubled first; anything else
+     * in the slot lies below the start offset and is replaced.
+     */
+    private Chunk chunkFor(long offset) {
+        Chunk chunk = chunkAt(offset);
+        if (chunk != null) {
+            return chunk;
+        }
+        synchronized (ringLock) {
+            chunk = chunkAt(offset);
+            if (chunk != null) {
+                return chunk;
+            }
+            AtomicReferenceArray<Chunk> chunks = ring;
+            Chunk occupant = chunks.get(indexOf(chunks, offset));
+            if (occupant != null && occupant.baseOffset >= startOffset) {
+                chunks = grow(offset);
+            }
+            chunk = new Chunk(offset & ~CHUNK_MASK);
+            chunks.set(indexOf(chunks, offset), chunk);
+            return chunk;
+        }
+    }
+
+    /** Replaces the ring with one large enough for every retained chunk and the one holding {@code offset}. */
+    private AtomicReferenceArray<Chunk> grow(long offset) {
+        AtomicReferenceArray<Chunk> chunks = ring;
+        long span = (Math.max(offset, nextOffset.get() - 1) >>> CHUNK_SHIFT) - (startOffset >>> CHUNK_SHIFT) + 1;
+        int length = chunks.length();
+        while (length < span) {
+            length <<= 1;
+        }
+        AtomicReferenceArray<Chunk> grown = new AtomicReferenceArray<>(length);
+        for (int i = 0; i < chunks.length(); i++) {
+            Chunk chunk = chunks.get(i);
+            if (chunk != null && chunk.baseOffset >= startOffset) {
+                grown.set(indexOf(grown, chunk.baseOffset), chunk);
+            }
+        }
+        ring = grown;
+        return grown;
+    }
+
+    private static final class Chunk {
+        final long baseOffset;
+        final AtomicReferenceArray<Record> records = new AtomicReferenceArray<>(CHUNK_SIZE);
+        final AtomicInteger filled = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong maxTimestamp = new AtomicLong(Long.MIN_VALUE);
+        int compacted; // only touched by the cleaner
+
+        Chunk(long baseOffset) {
+            this.baseOffset = baseOffset;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package mega;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * The leader's view of its followers: how far each has fetched every partition and when it last
+ * caught up. A fetch catches a follower up on a partition when it starts at or past the log end the
+ * follower's previous fetch saw, so a follower keeping pace with steady appends counts as caught up
+ * too. A follower is in sync while it has caught up on every partition within the replica lag, and
+ * joins again once it has.
+ *
+ * Produces with acks=all park here, holding no thread, until every in-sync follower has fetched past
+ * their last offset; a follower dropping out of sync releases them as well. Callbacks run once, on
+ * the thread of the fetch or check that completed them, so they should only hand work off.
+ */
+final class InSyncReplicas {
+    private static final Logger LOG = Logger.getLogger(InSyncReplicas.class);
+
+    private final Set<Integer> followers;
+    private final long lagMs;
+    private final long ackTimeoutMs;
+    private final ConcurrentMap<String, ConcurrentMap<Integer, Partition>> partitions = new ConcurrentHashMap<>();
+    private final Object membershipLock = new Object(); // Serializes changes to inSync
+    private volatile Set<Integer> inSync;
+
+    /**
+     * Starts tracking {@code followers}, of which those in {@code inSync} count as caught up for now
+     * and the others have to catch up before they do.
+     */
+    InSyncReplicas(Set<Integer> followers, Set<Integer> inSync, long lagMs, long ackTimeoutMs) {
+        this.followers = Set.copyOf(followers);
+        this.lagMs = lagMs;
+        this.ackTimeoutMs = ackTimeoutMs;
+        Set<Integer> initial = new TreeSet<>(inSync);
+        initial.retainAll(this.followers);
+        this.inSync = Collections.unmodifiableSet(initial);
+    }
+
+    /** The followers currently in sync, without the leader. */
+    Set<Integer> getInSyncFollowers() {
+        return inSync;
+    }
+
+    /**
+     * Records that follower {@code replicaId} fetches {@code partition} from {@code offset} while the
+     * log ends at {@code logEnd}.
+     */
+    void onFetch(int replicaId, String topic, int partition, long offset, long logEnd) {
+        if (!followers.contains(replicaId)) {
+            throw new IllegalArgumentException("Node " + replicaId + " is not a follower of this cluster");
+        }
+        long now = System.currentTimeMillis();
+        Partition state = partition(topic, partition);
+        Progress progress = state.progress.get(replicaId);
+        progress.offset = offset;
+        if (offset >= Math.min(logEnd, progress.previousLogEnd)) {
+            progress.caughtUpMs = now;
+            if (!inSync.contains(replicaId)) {
+                expand(replicaId, now);
+            }
+        }
+        progress.previousLogEnd = logEnd;
+        if (!state.acks.isEmpty()) {
+            state.complete(inSync, now);
+        }
+    }
+
+    /**
+     * Runs {@code onDone} once every in-sync follower has fetched past {@code lastOffset} of the
+     * partition, with null, or with {@link ErrorCode#REPLICATION_TIMEOUT} once the ack timeout passes.
+     */
+    void awaitReplication(String topic, int partition, long lastOffset, Consumer<ErrorCode> onDone) {
+        long now = System.currentTimeMillis();
+        Partition state = partition(topic, partition);
+        state.acks.add(new Ack(lastOffset, now + ackTimeoutMs, onDone));
+        state.complete(inSync, now); // a fetch may have gone past the offset before the ack was queued
+    }
+
+    /** Drops followers that fell behind from the in-sync replicas, then completes or times out the waiting acks. */
+    void check() {
+        long now = System.currentTimeMillis();
+        synchronized (membershipLock) {
+            Set<Integer> lagging = new TreeSet<>();
+            for (int follower : inSync) {
+                if (!isCaughtUpEverywhere(follower, now)) {
+                    lagging.add(follower);
+                }
+            }
+            if (!lagging.isEmpty()) {
+                Set<Integer> shrunk = new TreeSet<>(inSync);
+                shrunk.removeAll(lagging);
+                inSync = Collections.unmodifiableSet(shrunk);
+                LOG.warn("Followers {} fell out of sync, in-sync followers now {}", lagging, shrunk);
+            }
+        }
+        Set<Integer> current = inSync;
+        for (Map<Integer, Partition> topic : partitions.values()) {
+            for (Partition state : topic.values()) {
+                if (!state.acks.isEmpty()) {
+                    state.complete(current, now);
+                }
+            }
+        }
+    }
+
+    /** Fails every waiting ack with {@code errorCode}, as when this node stops being the leader. */
+    void failAll(ErrorCode errorCode) {
+        for (Map<Integer, Partition> topic : partitions.values()) {
+            for (Partition state : topic.values()) {
+                for (Ack ack; (ack = state.acks.poll()) != null;) {
+                    ack.finish(errorCode);
+                }
+            }
+        }
+    }
+
+    private void expand(int follower, long now) {
+        synchronized (membershipLock) {
+            if (inSync.contains(follower) || !isCaughtUpEverywhere(follower, now)) {
+                return;
+            }
+            Set<Integer> grown = new TreeSet<>(inSync);
+            grown.add(follower);
+            inSync = Collections.unmodifiableSet(grown);
+            LOG.info("Follower {} caught up, in-sync followers now {}", follower, grown);
+        }
+    }
+
+    private boolean isCaughtUpEverywhere(int follower, long now) {
+        for (Map<Integer, Partition> topic : partitions.values()) {
+            for (Partition state : topic.values()) {
+                if (now - state.progress.get(follower).caughtUpMs > lagMs) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private Partition partition(String topic, int partition) {
+        return partitions.computeIfAbsent(topic, name -> new ConcurrentHashMap<>())
+                .computeIfAbsent(partition, number -> new Partition());
+    }
+
+    /** Follower progress and waiting acks of one partition, created the first time either is needed. */
+    private final class Partition {
+        final Map<Integer, Progress> progress = new ConcurrentHashMap<>();
+        final Queue<Ack> acks = new ConcurrentLinkedQueue<>();
+
+        Partition() {
+            // Followers in sync are given the replica lag to start fetching a partition new to them
+            long now = System.currentTimeMillis();
+            Set<Integer> current = inSync;
+            for (int follower : followers) {
+                progress.put(follower, new Progress(current.contains(follower) ? now : Long.MIN_VALUE / 2));
+            }
+        }
+
+        void complete(Set<Integer> current, long now) {
+            for (Iterator<Ack> it = acks.iterator(); it.hasNext();) {
+                Ack ack = it.next();
+                if (isReplicated(ack.lastOffset, current)) {
+                    it.remove();
+                    ack.finish(null);
+                } else if (now >= ack.deadlineMs) {
+                    it.remove();
+                    ack.finish(ErrorCode.REPLICATION_TIMEOUT);
+                }
+            }
+        }
+
+        private boolean isReplicated(long lastOffset, Set<Integer> current) {
+            for (int follower : current) {
+                if (progress.get(follower).offset <= lastOffset) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Progress {
+        volatile long offset = -1; // where the follower's last fetch started: it has everything before
+        volatile long previousLogEnd = Long.MAX_VALUE;
+        volatile long caughtUpMs;
+
+        Progress(long caughtUpMs) {
+            this.caughtUpMs = caughtUpMs;
+        }
+    }
+
+    private static final class Ack {
+        final long lastOffset;
+        final long deadlineMs;
+        final Consumer<ErrorCode> onDone;
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Ack(long lastOffset, long deadlineMs, Consumer<ErrorCode> onDone) {
+            this.lastOffset = lastOffset;
+            this.deadlineMs = deadlineMs;
+            this.onDone = onDone;
+        }
+
+        void finish(ErrorCode errorCode) {
+            if (done.compareAndSet(false, true)) {
+                onDone.accept(errorCode);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package mega;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer, single-consumer ring of log events. Producers claim a slot with one CAS and
+ * never block: when the ring is full the event is rejected. Slots are preallocated and reused, so
+ * publishing an event allocates nothing.
+ *
+ * Each slot carries a sequence number: {@code position} while it is free for the producer claiming
+ * {@code position}, {@code position + 1} once that producer has published into it.
+ */
+public class LogRing {
+    /** A mutable log event; instances live in the ring and are overwritten on reuse. */
+    public static final class Event {
+        long timestamp;
+        Logger.Level level;
+        String component;
+        String template;
+        Object arg1;
+        Object arg2;
+        Object arg3;
+        Throwable throwable;
+
+        void copyFrom(Event other) {
+            timestamp = other.timestamp;
+            level = other.level;
+            component = other.component;
+            template = other.template;
+            arg1 = other.arg1;
+            arg2 = other.arg2;
+            arg3 = other.arg3;
+            throwable = other.throwable;
+        }
+    }
+
+    private final Event[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long head; // Consumer only
+
+    public LogRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two");
+        }
+        this.slots = new Event[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Event();
+            sequences.set(i, i);
+        }
+    }
+
+    /** Publishes an event; returns false, and counts a drop, if the ring is full. */
+    public boolean offer(long timestamp, Logger.Level level, String component, String template, Object arg1,
+            Object arg2, Object arg3, Throwable throwable) {
+        long position;
+        while (true) {
+            position = tail.get();
+            long difference = sequences.get((int) position & mask) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        int index = (int) position & mask;
+        Event event = slots[index];
+        event.timestamp = timestamp;
+        event.level = level;
+        event.component = component;
+        event.template = template;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.arg3 = arg3;
+        event.throwable = throwable;
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /** Copies the oldest published event into {@code target} and frees its slot; false if empty. */
+    public boolean poll(Event target) {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return false;
+        }
+        Event event = slots[index];
+        target.copyFrom(event);
+        event.arg1 = event.arg2 = event.arg3 = null; // Do not keep arguments reachable
+        event.throwable = null;
+        sequences.set(index, head + slots.length);
+        head++;
+        return true;
+    }
+
+    /** Returns the number of events rejected since the last call, and resets it. */
+    public long takeDropped() {
+        return dropped.getAndSet(0);
+    }
+}
@@ -0,0 +1,458 @@
+package mega;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One file of a {@link FileLog}: records starting at {@code baseOffset}, laid out as described in
+ * {@link RecordFormat}, plus a sparse {@link OffsetIndex} and {@link TimeIndex}. Appends are serialized
+ * by the owning log; reads may run concurrently and only ever see bytes below the published
+ * {@code size}.
+ *
+ * A segment removed by retention or replaced by its compacted or truncated copy is renamed with a
+ * {@code .deleted} suffix and closed only after {@link #DELETE_DELAY_MS}, so that reads and
+ * zero-copy transfers that already hold it can finish.
+ */
+public class LogSegment implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(LogSegment.class);
+    static final String DELETED_SUFFIX = ".deleted";
+    static final String CLEANED_SUFFIX = ".cleaned";
+    private static final long DELETE_DELAY_MS = 60_000;
+    private static final ScheduledExecutorService DELETER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mega-segment-deleter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path dir;
+    private final long baseOffset;
+    private final Path logPath;
+    private final FileChannel channel;
+    private final OffsetIndex index;
+    private final TimeIndex timeIndex;
+    private final boolean indexExisted;
+    private final int segmentBytes;
+    private final int indexIntervalBytes;
+    private volatile int size;
+    private int bytesSinceLastIndexEntry;
+    // Newest record timestamp, maintained by appends and recovery; scanned for on first use otherwise
+    private volatile long maxTimestamp = Long.MIN_VALUE;
+    private volatile boolean maxTimestampKnown;
+
+    public LogSegment(Path dir, long baseOffset, int segmentBytes, int indexIntervalBytes) throws IOException {
+        this.dir = dir;
+        this.baseOffset = baseOffset;
+        this.logPath = dir.resolve(fileName(baseOffset, ".log"));
+        this.segmentBytes = segmentBytes;
+        this.indexIntervalBytes = indexIntervalBytes;
+        this.channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        Path indexPath = dir.resolve(fileName(baseOffset, ".index"));
+        Path timeIndexPath = dir.resolve(fileName(baseOffset, ".timeindex"));
+        // A segment written before time indexes existed gets one when it is recovered
+        this.indexExisted = Files.exists(indexPath) && Files.exists(timeIndexPath);
+        this.index = new OffsetIndex(indexPath, baseOffset, segmentBytes / indexIntervalBytes + 1);
+        this.timeIndex = new TimeIndex(timeIndexPath, segmentBytes / indexIntervalBytes + 1);
+        this.size = (int) channel.size();
+        this.maxTimestampKnown = size == 0;
+    }
+
+    public static String fileName(long baseOffset, String suffix) {
+        return String.format("%020d%s", baseOffset, suffix);
+    }
+
+    /**
+     * Writes one or more encoded records, the first of which holds {@code offset}, at the end of the
+     * segment. Index entries are added at record boundaries inside the batch as well; a time index
+     * entry goes with an offset index entry whenever the records before it raised the newest timestamp.
+     */
+    public void append(long offset, ByteBuffer records) throws IOException {
+        int position = size;
+        int start = records.position();
+        int length = records.remaining();
+        for (int recordStart = start; recordStart < start + length;) {
+            int recordLength = RecordFormat.LOG_OVERHEAD + records.getInt(recordStart + 8);
+            if (bytesSinceLastIndexEntry >= indexIntervalBytes && position + recordStart - start > 0) {
+                index.append(records.getLong(recordStart), position + recordStart - start);
+                timeIndex.maybeAppend(maxTimestamp, position + recordStart - start);
+                bytesSinceLastIndexEntry = 0;
+            }
+            bytesSinceLastIndexEntry += recordLength;
+            maxTimestamp = Math.max(maxTimestamp, records.getLong(recordStart + RecordFormat.TIMESTAMP_POSITION));
+            recordStart += recordLength;
+        }
+        while (records.hasRemaining()) {
+            channel.write(records, position + records.position() - start);
+        }
+        size = position + length;
+    }
+
+    /**
+     * Returns the record stored at {@code offset}, or the first compressed record after it, which may
+     * hold it (see {@link Compression#unpack(Record, long)}), or null if this segment has neither. The
+     * payload is left in the file; see {@link FileRecord}.
+     */
+    public Record read(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RecordFormat.HEADER_SIZE);
+        int position = find(offset, header);
+        if (position < 0) {
+            return null;
+        }
+        boolean compressed = (header.get(RecordFormat.ATTRIBUTES_POSITION) & Compression.ATTRIBUTES_MASK) != 0;
+        return header.getLong(0) == offset || compressed ? toFileRecord(header, position) : null;
+    }
+
+    /**
+     * Returns the records from the first one at or after {@code offset} up to the end of this
+     * segment, limited to {@code maxRecords} and {@code maxBytes} (but never fewer than one), as a
+     * region of the file, or null if no record in this segment is at or after {@code offset}.
+     */
+    public RecordBatch read(long offset, int maxRecords, int maxBytes) throws IOException {
+        int limit = size;
+        ByteBuffer header = ByteBuffer.allocate(RecordFormat.HEADER_SIZE);
+        int start = find(offset, header);
+        if (start < 0) {
+            return null;
+        }
+        int position = start;
+        int count = 0;
+        long lastOffset = offset;
+        boolean compressed = false;
+        while (count < maxRecords && position + RecordFormat.HEADER_SIZE <= limit) {
+            readFully(header.clear().limit(RecordFormat.ATTRIBUTES_POSITION + 1), position);
+            int length = RecordFormat.LOG_OVERHEAD + header.getInt(8);
+            if (count > 0 && position - start + length > maxBytes) {
+                break;
+            }
+            lastOffset = header.getLong(0);
+            compressed |= (header.get(RecordFormat.ATTRIBUTES_POSITION) & Compression.ATTRIBUTES_MASK) != 0;
+            position += length;
+            count++;
+        }
+        // Compaction leaves gaps, so the next offset follows the last record rather than the count
+        return new FileRecordBatch(channel, start, position - start, count, lastOffset + 1, compressed);
+    }
+
+    /**
+     * Returns the position of the first record at or after {@code offset}, leaving its header in
+     * {@code header}, or -1 if this segment holds none.
+     */
+    private int find(long offset, ByteBuffer header) throws IOException {
+        int limit = size;
+        int position = index.lookup(offset);
+        while (position + RecordFormat.HEADER_SIZE <= limit) {
+            readFully(header.clear(), position);
+            long recordOffset = header.getLong(0);
+            int recordSize = header.getInt(8);
+            if (recordOffset >= offset) {
+                return position;
+            }
+            position += RecordFormat.LOG_OVERHEAD + recordSize;
+        }
+        return -1;
+    }
+
+    private FileRecord toFileRecord(ByteBuffer header, int position) throws IOException {
+        long timestamp = header.getLong(RecordFormat.TIMESTAMP_POSITION);
+        int keyLength = header.getInt(RecordFormat.KEY_LENGTH_POSITION);
+        long payloadLengthPosition = position + RecordFormat.KEY_LENGTH_POSITION + 4 + Math.max(keyLength, 0);
+        int payloadLength;
+        byte[] key = null;
+        if (keyLength >= 0) {
+            ByteBuffer keyAndLength = ByteBuffer.allocate(keyLength + 4);
+            readFully(keyAndLength, payloadLengthPosition - keyLength);
+            key = new byte[keyLength];
+            keyAndLength.get(0, key);
+            payloadLength = keyAndLength.getInt(keyLength);
+        } else {
+            payloadLength = header.getInt(RecordFormat.HEADER_SIZE - 4);
+        }
+        return new FileRecord(header.getLong(0), timestamp, key, header.get(RecordFormat.ATTRIBUTES_POSITION),
+                channel, payloadLengthPosition + 4, payloadLength);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment " + logPath);
+            }
+        }
+    }
+
+    /**
+     * Validates every record, rebuilds the indexes and truncates anything after the last intact
+     * record, such as a write torn by a crash. Returns the offset following the last valid record.
+     */
+    public long recover() throws IOException {
+        index.reset();
+        timeIndex.reset();
+        bytesSinceLastIndexEntry = 0;
+        long nextOffset = baseOffset;
+        int position = 0;
+        int fileSize = (int) channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RecordFormat.LOG_OVERHEAD);
+        ByteBuffer record = ByteBuffer.allocate(RecordFormat.HEADER_SIZE);
+        while (position + RecordFormat.HEADER_SIZE <= fileSize) {
+            readFully(header.clear(), position);
+            long offset = header.getLong(0);
+            int length = RecordFormat.LOG_OVERHEAD + header.getInt(8);
+            if (offset < nextOffset || length < RecordFormat.HEADER_SIZE || length > fileSize - position) {
+                break;
+            }
+            if (record.capacity() < length) {
+                record = ByteBuffer.allocate(length);
+            }
+            readFully(record.clear().limit(length), position);
+            if (!RecordFormat.isValid(record.flip())) {
+                break;
+            }
+            if (bytesSinceLastIndexEntry >= indexIntervalBytes && position > 0) {
+                index.append(offset, position);
+                timeIndex.maybeAppend(maxTimestamp, position);
+                bytesSinceLastIndexEntry = 0;
+            }
+            bytesSinceLastIndexEntry += length;
+            maxTimestamp = Math.max(maxTimestamp, record.getLong(RecordFormat.TIMESTAMP_POSITION));
+            nextOffset = offset + 1;
+            position += length;
+        }
+        if (position < fileSize) {
+            LOG.warn("Truncating {} invalid bytes from {}", fileSize - position, logPath);
+            channel.truncate(position);
+        }
+        size = position;
+        maxTimestampKnown = true;
+        return nextOffset;
+    }
+
+    /**
+     * Copies the records before the first one at or after {@code offset} into a new file that then
+     * takes this segment's place on disk, like {@link #compact}, and returns the segment opened on it,
+     * which the caller recovers. The file is not cut in place, since reads and zero-copy transfers
+     * may still hold the records being dropped; this segment keeps them until its delayed close.
+     */
+    LogSegment truncateTo(long offset) throws IOException {
+        int position = find(offset, ByteBuffer.allocate(RecordFormat.HEADER_SIZE));
+        int end = position < 0 ? size : position;
+        return rewrite((header, recordPosition) -> recordPosition < end);
+    }
+
+    /**
+     * True if an index points past the end of the log, which means it cannot be trusted, or went
+     * missing, e.g. in a crash while the segment was being replaced by its compacted copy.
+     */
+    public boolean needsRecovery() {
+        return index.lastPosition() >= size || timeIndex.lastPosition() >= size || (!indexExisted && size > 0);
+    }
+
+    /** The newest timestamp of any record in this segment, or {@link Long#MIN_VALUE} if it is empty. */
+    public long getMaxTimestamp() throws IOException {
+        if (!maxTimestampKnown) {
+            long[] newest = { Long.MIN_VALUE };
+            forEachRecord((header, position, length) ->
+                    newest[0] = Math.max(newest[0], header.getLong(RecordFormat.TIMESTAMP_POSITION)));
+            maxTimestamp = newest[0];
+            maxTimestampKnown = true;
+        }
+        return maxTimestamp;
+    }
+
+    /**
+     * Returns the offset of the first record with a timestamp at or after {@code timestamp}, the
+     * first offset of its batch if it is compressed, or -1 if this segment has no such record. The
+     * scan starts where the time index says every earlier record is older.
+     */
+    long offsetForTime(long timestamp) throws IOException {
+        if (getMaxTimestamp() < timestamp) {
+            return -1;
+        }
+        int limit = size;
+        int position = timeIndex.lookup(timestamp);
+        ByteBuffer header = ByteBuffer.allocate(RecordFormat.HEADER_SIZE);
+        while (position + RecordFormat.HEADER_SIZE <= limit) {
+            readFully(header.clear(), position);
+            if (header.getLong(RecordFormat.TIMESTAMP_POSITION) >= timestamp) {
+                long offset = header.getLong(0);
+                if ((header.get(RecordFormat.ATTRIBUTES_POSITION) & Compression.ATTRIBUTES_MASK) == 0) {
+                    return offset;
+                }
+                // The payload of a compressed record starts with its record count; see Compression
+                int keyLength = Math.max(header.getInt(RecordFormat.KEY_LENGTH_POSITION), 0);
+                ByteBuffer count = ByteBuffer.allocate(4);
+                readFully(count, position + RecordFormat.KEY_LENGTH_POSITION + 4 + keyLength + 4);
+                return offset - count.getInt(0) + 1;
+            }
+            position += RecordFormat.LOG_OVERHEAD + header.getInt(8);
+        }
+        return -1;
+    }
+
+    /** Maps each key in this segment to the offset of its record, so later segments overwrite earlier ones. */
+    void collectLatest(Map<ByteBuffer, Long> latest) throws IOException {
+        forEachRecord((header, position, length) -> {
+            byte[] key = readKey(header, position);
+            if (key != null) {
+                latest.put(ByteBuffer.wrap(key), header.getLong(0));
+            }
+        });
+    }
+
+    /** Counts the records in this segment that a later record with the same key supersedes. */
+    int countSuperseded(Map<ByteBuffer, Long> latest) throws IOException {
+        int[] count = { 0 };
+        forEachRecord((header, position, length) -> {
+            if (isSuperseded(latest, header, position)) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Copies the records {@code latest} does not supersede into a new file that then takes this
+     * segment's place on disk, and returns the segment opened on it. The indexes of this segment are
+     * moved aside first, so a crash part way leaves either file under the log name and indexes
+     * that are rebuilt on startup. This segment stays readable until its delayed close.
+     */
+    LogSegment compact(Map<ByteBuffer, Long> latest) throws IOException {
+        LogSegment replacement = rewrite((header, position) -> !isSuperseded(latest, header, position));
+        replacement.recover();
+        return replacement;
+    }
+
+    /**
+     * Writes the records {@code keep} accepts to a new file, swaps it in under the log name with the
+     * indexes moved aside, and returns the segment opened on it, not yet recovered.
+     */
+    private LogSegment rewrite(RecordFilter keep) throws IOException {
+        Path cleanedPath = dir.resolve(fileName(baseOffset, CLEANED_SUFFIX));
+        try (FileChannel cleaned = FileChannel.open(cleanedPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] record = { ByteBuffer.allocate(4096) };
+            forEachRecord((header, position, length) -> {
+                if (!keep.test(header, position)) {
+                    return;
+                }
+                if (record[0].capacity() < length) {
+                    record[0] = ByteBuffer.allocate(length);
+                }
+                ByteBuffer buffer = record[0].clear().limit(length);
+                readFully(buffer, position);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    cleaned.write(buffer);
+                }
+            });
+            cleaned.force(true);
+        }
+        Path deletedIndex = deletedPath(index.getPath());
+        Path deletedTimeIndex = deletedPath(timeIndex.getPath());
+        Files.move(index.getPath(), deletedIndex, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(timeIndex.getPath(), deletedTimeIndex, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(cleanedPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LogSegment replacement = new LogSegment(dir, baseOffset, segmentBytes, indexIntervalBytes);
+        closeLater(deletedIndex, deletedTimeIndex);
+        return replacement;
+    }
+
+    /** Removes the segment's files from the log directory and closes it after the delete delay. */
+    void delete() throws IOException {
+        Path deletedLog = deletedPath(logPath);
+        Path deletedIndex = deletedPath(index.getPath());
+        Path deletedTimeIndex = deletedPath(timeIndex.getPath());
+        Files.move(logPath, deletedLog, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(index.getPath(), deletedIndex, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(timeIndex.getPath(), deletedTimeIndex, StandardCopyOption.REPLACE_EXISTING);
+        closeLater(deletedLog, deletedIndex, deletedTimeIndex);
+    }
+
+    private void closeLater(Path... files) {
+        DELETER.schedule(() -> {
+            try {
+                index.close();
+                timeIndex.close();
+                channel.close();
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                LOG.error("Failed to delete segment {}", logPath, e);
+            }
+        }, DELETE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static Path deletedPath(Path path) {
+        return path.resolveSibling(path.getFileName() + DELETED_SUFFIX);
+    }
+
+    private boolean isSuperseded(Map<ByteBuffer, Long> latest, ByteBuffer header, int position) throws IOException {
+        byte[] key = readKey(header, position);
+        if (key == null) {
+            return false;
+        }
+        Long latestOffset = latest.get(ByteBuffer.wrap(key));
+        return latestOffset != null && latestOffset > header.getLong(0);
+    }
+
+    private byte[] readKey(ByteBuffer header, int position) throws IOException {
+        int keyLength = header.getInt(RecordFormat.KEY_LENGTH_POSITION);
+        if (keyLength < 0) {
+            return null;
+        }
+        ByteBuffer key = ByteBuffer.allocate(keyLength);
+        readFully(key, position + RecordFormat.KEY_LENGTH_POSITION + 4);
+        return key.array();
+    }
+
+    /** Calls {@code visitor} with the header of every record below the published size, in order. */
+    private void forEachRecord(RecordVisitor visitor) throws IOException {
+        int limit = size;
+        ByteBuffer header = ByteBuffer.allocate(RecordFormat.HEADER_SIZE);
+        int position = 0;
+        while (position + RecordFormat.HEADER_SIZE <= limit) {
+            readFully(header.clear(), position);
+            int length = RecordFormat.LOG_OVERHEAD + header.getInt(8);
+            visitor.visit(header, position, length);
+            position += length;
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(ByteBuffer header, int position, int length) throws IOException;
+    }
+
+    private interface RecordFilter {
+        boolean test(ByteBuffer header, int position) throws IOException;
+    }
+
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void flush() throws IOException {
+        channel.force(false);
+        index.flush();
+        timeIndex.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        index.close();
+        timeIndex.close();
+        channel.close();
+    }
+}
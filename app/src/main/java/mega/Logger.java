@@ -0,0 +1,158 @@
+package mega;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leveled logger for one component. Messages are templates whose {@code {}} placeholders are filled
+ * with up to three arguments on the background writer thread, so a disabled call costs one level
+ * check and an enabled one a single lock-free publish into the ring; nothing here blocks on I/O.
+ *
+ * The level is set with {@code mega.log.level} (default {@code info}); per-request logging is at
+ * DEBUG. WARN and ERROR events are rate-limited per logger, so a flood of failing requests cannot
+ * turn into a flood of output; the number of suppressed events is reported with the next one let
+ * through.
+ */
+public final class Logger {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final int RING_CAPACITY = 1 << 16;
+    private static final long ERROR_INTERVAL_NANOS = 100_000_000; // 10 events per second ...
+    private static final long ERROR_BURST_NANOS = 20 * ERROR_INTERVAL_NANOS; // ... after a burst of 20
+    private static final LogRing RING = new LogRing(RING_CAPACITY);
+    private static final AsyncLogWriter WRITER = new AsyncLogWriter(RING, System.out, System.err);
+    private static volatile Level threshold = Level.valueOf(BrokerConfig.get("mega.log.level", "info").toUpperCase());
+
+    static {
+        WRITER.start();
+    }
+
+    private final String component;
+    private final AtomicLong errorTheoreticalArrival = new AtomicLong(System.nanoTime());
+    private final AtomicLong suppressed = new AtomicLong();
+
+    private Logger(String component) {
+        this.component = component;
+    }
+
+    public static Logger getLogger(Class<?> type) {
+        return new Logger(type.getSimpleName());
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    /** Writes out everything logged so far and stops the writer; used on shutdown. */
+    public static void shutdown() {
+        WRITER.shutdown();
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String template) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, template, null, null, null, null);
+        }
+    }
+
+    public void debug(String template, Object arg) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, template, arg, null, null, null);
+        }
+    }
+
+    public void debug(String template, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, template, arg1, arg2, null, null);
+        }
+    }
+
+    public void debug(String template, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, template, arg1, arg2, arg3, null);
+        }
+    }
+
+    public void info(String template) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, template, null, null, null, null);
+        }
+    }
+
+    public void info(String template, Object arg) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, template, arg, null, null, null);
+        }
+    }
+
+    public void info(String template, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, template, arg1, arg2, null, null);
+        }
+    }
+
+    public void warn(String template, Object arg) {
+        if (isEnabled(Level.WARN) && permitError()) {
+            log(Level.WARN, template, arg, null, null, null);
+        }
+    }
+
+    public void warn(String template, Object arg1, Object arg2) {
+        if (isEnabled(Level.WARN) && permitError()) {
+            log(Level.WARN, template, arg1, arg2, null, null);
+        }
+    }
+
+    public void error(String template, Throwable throwable) {
+        if (isEnabled(Level.ERROR) && permitError()) {
+            log(Level.ERROR, template, null, null, null, throwable);
+        }
+    }
+
+    public void error(String template, Object arg, Throwable throwable) {
+        if (isEnabled(Level.ERROR) && permitError()) {
+            log(Level.ERROR, template, arg, null, null, throwable);
+        }
+    }
+
+    public void error(String template, Object arg1, Object arg2, Throwable throwable) {
+        if (isEnabled(Level.ERROR) && permitError()) {
+            log(Level.ERROR, template, arg1, arg2, null, throwable);
+        }
+    }
+
+    private void log(Level level, String template, Object arg1, Object arg2, Object arg3, Throwable throwable) {
+        if (level.compareTo(Level.WARN) >= 0) {
+            long count = suppressed.get();
+            if (count > 0 && suppressed.compareAndSet(count, 0)) {
+                RING.offer(System.currentTimeMillis(), Level.WARN, component,
+                        "Suppressed {} warnings and errors", count, null, null, null);
+            }
+        }
+        RING.offer(System.currentTimeMillis(), level, component, template, arg1, arg2, arg3, throwable);
+    }
+
+    /** Generic cell rate algorithm: a lock-free token bucket holding one timestamp. */
+    private boolean permitError() {
+        long now = System.nanoTime();
+        while (true) {
+            long arrival = errorTheoreticalArrival.get();
+            long next = Math.max(arrival, now) + ERROR_INTERVAL_NANOS;
+            if (next - now > ERROR_BURST_NANOS) {
+                suppressed.incrementAndGet();
+                return false;
+            }
+            if (errorTheoreticalArrival.compareAndSet(arrival, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package mega;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pure Java LZ77 codec using the sequence layout of LZ4 blocks, preceded by the uncompressed length
+ * (4 bytes). Each sequence is a token whose high nibble is the literal count and low nibble the match
+ * length minus 4, either extended by further bytes when 15 (each 255 means "add and continue"), then
+ * the literals, then the match distance (2 bytes, little-endian) and its length extension. The last
+ * sequence stops after its literals. The compressor is greedy with a single-entry hash table, which
+ * favours speed over ratio; text such as JSON still shrinks several times.
+ */
+final class Lz {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 14;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int LAST_LITERALS = 5; // as in LZ4, a match never reaches the last bytes
+    private static final int MAX_RATIO = 255; // no valid stream expands by more than this
+
+    private Lz() {
+    }
+
+    /**
+     * Reads the uncompressed length from the front of the remaining bytes of {@code source} without
+     * consuming it, and throws IllegalArgumentException if no stream that long could decompress to it.
+     */
+    static int uncompressedLength(ByteBuffer source) {
+        if (source.remaining() < 4) {
+            throw new IllegalArgumentException("Compressed stream too short");
+        }
+        int length = source.getInt(source.position());
+        if (length < 0 || (long) length > (long) (source.remaining() - 4) * MAX_RATIO + 15) {
+            throw new IllegalArgumentException("Invalid uncompressed length " + length);
+        }
+        return length;
+    }
+
+    /** Compresses the remaining bytes of {@code source} without changing its position. */
+    static byte[] compress(ByteBuffer source) {
+        int length = source.remaining();
+        byte[] src;
+        int base;
+        if (source.hasArray()) {
+            src = source.array();
+            base = source.arrayOffset() + source.position();
+        } else {
+            src = new byte[length];
+            source.get(source.position(), src);
+            base = 0;
+        }
+        byte[] out = new byte[4 + length + length / 255 + 16];
+        ByteBuffer.wrap(out).putInt(length);
+        int op = 4;
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+        int limit = length - LAST_LITERALS;
+        int anchor = 0;
+        int ip = 0;
+        while (ip + MIN_MATCH <= limit) {
+            int sequence = readInt(src, base + ip);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = ip;
+            if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, base + ref) != sequence) {
+                ip++;
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < limit && src[base + ip + matchLength] == src[base + ref + matchLength]) {
+                matchLength++;
+            }
+            op = writeLiterals(out, op, src, base + anchor, ip - anchor, matchLength - MIN_MATCH);
+            out[op++] = (byte) (ip - ref);
+            out[op++] = (byte) ((ip - ref) >>> 8);
+            if (matchLength - MIN_MATCH >= 15) {
+                op = writeLength(out, op, matchLength - MIN_MATCH - 15);
+            }
+            ip += matchLength;
+            anchor = ip;
+        }
+        op = writeLiterals(out, op, src, base + anchor, length - anchor, 0);
+        return Arrays.copyOf(out, op);
+    }
+
+    /**
+     * Decompresses the remaining bytes of {@code source}, consuming them. Throws
+     * IllegalArgumentException if they are not a complete, well-formed stream.
+     */
+    static byte[] decompress(ByteBuffer source) {
+        try {
+            int length = uncompressedLength(source);
+            source.position(source.position() + 4);
+            byte[] out = new byte[length];
+            int op = 0;
+            while (true) {
+                int token = source.get() & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    literals += readLength(source);
+                }
+                if (literals > length - op) {
+                    throw new IllegalArgumentException("Literals overrun the uncompressed length");
+                }
+                source.get(out, op, literals);
+                op += literals;
+                if (!source.hasRemaining()) {
+                    break;
+                }
+                int distance = (source.get() & 0xFF) | (source.get() & 0xFF) << 8;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    matchLength += readLength(source);
+                }
+                matchLength += MIN_MATCH;
+                if (distance == 0 || distance > op || matchLength > length - op) {
+                    throw new IllegalArgumentException("Invalid match at " + op);
+                }
+                for (int i = 0; i < matchLength; i++, op++) {
+                    out[op] = out[op - distance]; // byte by byte, since a match may overlap itself
+                }
+            }
+            if (op != length) {
+                throw new IllegalArgumentException("Stream ends " + (length - op) + " bytes short");
+            }
+            return out;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated compressed data");
+        }
+    }
+
+    private static int writeLiterals(byte[] out, int op, byte[] src, int from, int count, int matchNibble) {
+        out[op++] = (byte) (Math.min(count, 15) << 4 | Math.min(matchNibble, 15));
+        if (count >= 15) {
+            op = writeLength(out, op, count - 15);
+        }
+        System.arraycopy(src, from, out, op, count);
+        return op + count;
+    }
+
+    private static int writeLength(byte[] out, int op, int remaining) {
+        while (remaining >= 255) {
+            out[op++] = (byte) 255;
+            remaining -= 255;
+        }
+        out[op++] = (byte) remaining;
+        return op;
+    }
+
+    private static int readLength(ByteBuffer source) {
+        int length = 0;
+        int next;
+        do {
+            next = source.get() & 0xFF;
+            length += next;
+            if (length < 0) {
+                throw new IllegalArgumentException("Length overflow");
+            }
+        } while (next == 255);
+        return length;
+    }
+
+    private static int readInt(byte[] bytes, int index) {
+        return (bytes[index] & 0xFF) << 24 | (bytes[index + 1] & 0xFF) << 16 | (bytes[index + 2] & 0xFF) << 8
+                | (bytes[index + 3] & 0xFF);
+    }
+}
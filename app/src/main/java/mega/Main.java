@@ -1,14 +1,23 @@
 package mega;
 
 public class Main {
+    private static final Logger LOG = Logger.getLogger(Main.class);
+
     public static void main(String[] args) {
-        int port = 8080;
-        int poolSize = 10;
+        int port = Integer.parseInt(BrokerConfig.get("mega.port", "8080"));
+        Server.ThreadModel threadModel = Server.ThreadModel.valueOf(
+                BrokerConfig.get("mega.server.threads", "virtual").toUpperCase());
+        int poolSize = Integer.parseInt(BrokerConfig.get("mega.server.pool.size", "10"));
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            Broker.getInstance().close();
+            Logger.shutdown();
+        }));
 
-        try (Server server = new Server(port, poolSize)) {
+        try (Server server = new Server(port, threadModel, poolSize)) {
             server.start();
         } catch (Exception e) {
-            System.err.println("Server failed to start: " + e.getMessage());
+            LOG.error("Server failed to start on port {}", port, e);
         }
     }
 }
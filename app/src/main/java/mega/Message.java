@@ -2,21 +2,84 @@ package mega;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * A decoded request. Offsets are 4 bytes on the wire in protocol version 0, which every connection
+ * starts in, and 8 bytes from version 1 on, once API_VERSIONS has agreed on it. Version 2 adds
+ * compressed produce batches, version 3 the acks of produce requests and version 4 their producer ID
+ * and sequence; see docs/PROTOCOL.md.
+ */
 public class Message {
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+    static final int MAX_KEY_LENGTH = 64 * 1024;
+    static final int MAX_MESSAGE_SIZE = 1024 * 1024; // 1MB
+    static final int MAX_BATCH_SIZE = 16 * 1024 * 1024; // 16MB, for produce batches
+    /** The version a connection speaks until it negotiates another: 4-byte offsets. */
+    public static final short VERSION_0 = 0;
+    /** Adds 8-byte offsets in requests and responses. */
+    public static final short VERSION_1 = 1;
+    /** Adds the compression of produce batches, and compressed records in fetch responses. */
+    public static final short VERSION_2 = 2;
+    /** Adds the acks of produce requests, and the replication requests between nodes. */
+    public static final short VERSION_3 = 3;
+    /** Adds the producer ID and sequence of produce requests, for idempotent producers. */
+    public static final short VERSION_4 = 4;
+    /** Adds the offset for time request. */
+    public static final short VERSION_5 = 5;
+    /** Adds the throttle time of produce and produce batch responses. */
+    public static final short VERSION_6 = 6;
+    /** The newest version this broker speaks. */
+    public static final short MAX_VERSION = VERSION_6;
+    /** Acks of a produce request that leaves them to the broker, as every request before version 3 does. */
+    public static final byte ACKS_DEFAULT = 0;
+    /** Producer ID of a produce request that is not deduplicated, as every request before version 4. */
+    public static final long NO_PRODUCER_ID = -1;
+
     private int correlationId;
     private MessageType messageType;
     private String topic;
     private long timestamp;
-    private int offset = -1; // Default -1 for non-Consume messages
+    private int partition = 0; // Fetch and produce batch; legacy requests address partition 0
+    private byte[] key; // Produce batch only, null when the batch is unkeyed
+    private final short version;
+    private long offset = -1; // Default -1 for non-Consume messages
+    private int maxRecords = -1; // Fetch only
+    private int maxBytes = -1; // Fetch only
+    private int maxWaitMs = 0; // Fetch only
+    private int minBytes = 0; // Fetch only
+    private int recordCount = -1; // Produce batch only
+    private byte compression = Compression.NONE.getCode(); // Produce batch only, from version 2
+    private byte acks = ACKS_DEFAULT; // Produce and produce batch, from version 3
+    private long producerId = NO_PRODUCER_ID; // Produce and produce batch, from version 4
+    private int sequence = -1; // Produce and produce batch, from version 4
+    private int replicaId = -1; // Replica fetch only
+    private long targetTimestamp = -1; // Offset for time only
+    private int credit = 0; // Subscribe and credit only
+    private String groupId; // Group requests only
+    private String memberId; // Group requests except fetch offset
+    private int generation = -1; // Commit offset only
     private int payloadLength = -1;
     private byte[] payload;
+    private final long receivedNanos = System.nanoTime(); // When reading started, for request latency
+    private int throttleTimeMs; // How long a quota held the request back, set by the connection
+
+    public Message(DataInputStream dataInputStream, TopicNameCache topicNames) throws IOException {
+        this(dataInputStream, topicNames, VERSION_0);
+    }
 
-    public Message(DataInputStream dataInputStream) throws IOException {
-        parseMessage(dataInputStream);
+    public Message(DataInputStream dataInputStream, TopicNameCache topicNames, short version) throws IOException {
+        this.version = version;
+        parseMessage(dataInputStream, topicNames);
     }
 
-    private void parseMessage(DataInputStream dataInputStream) throws IOException {
+    private long readOffset(DataInputStream dataInputStream) throws IOException {
+        return version >= VERSION_1 ? dataInputStream.readLong() : dataInputStream.readInt();
+    }
+
+    private void parseMessage(DataInputStream dataInputStream, TopicNameCache topicNames) throws IOException {
 
         // Parse Correlation ID (4 bytes)
         this.correlationId = dataInputStream.readInt();
@@ -25,26 +88,126 @@ public class Message {
         byte messageTypeCode = dataInputStream.readByte();
         this.messageType = MessageType.fromCode(messageTypeCode);
 
-        // Parse Topic (String)
+        // Parse Topic (String, UTF-8), reusing the String from earlier requests for the same topic
         int topicLength = dataInputStream.readInt();
-        byte[] topicBytes = new byte[topicLength];
-        dataInputStream.readFully(topicBytes);
-        this.topic = new String(topicBytes);
+        this.topic = topicNames.read(dataInputStream, topicLength);
 
         // Parse Timestamp (8 bytes)
         this.timestamp = dataInputStream.readLong();
 
-        // Parse Offset (4 bytes, for Consume messages)
+        // Parse Acks (1 byte, from version 3) and Producer ID (8 bytes) and Sequence (4 bytes, from
+        // version 4), for Produce messages
+        if (this.messageType == MessageType.PRODUCE && version >= VERSION_3) {
+            this.acks = dataInputStream.readByte();
+            readProducer(dataInputStream);
+        }
+
+        // Parse Offset (4 bytes, 8 from version 1, for Consume messages)
         if (this.messageType == MessageType.CONSUME) {
-            this.offset = dataInputStream.readInt();
+            this.offset = readOffset(dataInputStream);
+        }
+
+        // Parse Partition, Offset, Max Records, Max Bytes, Max Wait and Min Bytes (4 bytes each, the
+        // offset 8 from version 1, for Fetch messages), and for Replica Fetch messages followed by the
+        // Replica ID (4 bytes)
+        if (this.messageType == MessageType.FETCH || this.messageType == MessageType.REPLICA_FETCH) {
+            this.partition = dataInputStream.readInt();
+            this.offset = readOffset(dataInputStream);
+            this.maxRecords = dataInputStream.readInt();
+            this.maxBytes = dataInputStream.readInt();
+            this.maxWaitMs = dataInputStream.readInt();
+            this.minBytes = dataInputStream.readInt();
+            if (this.messageType == MessageType.REPLICA_FETCH) {
+                this.replicaId = dataInputStream.readInt();
+            }
+        }
+
+        // Parse Partition, Offset and initial Credit (4 bytes each, the offset 8 from version 1, for
+        // Subscribe messages)
+        if (this.messageType == MessageType.SUBSCRIBE) {
+            this.partition = dataInputStream.readInt();
+            this.offset = readOffset(dataInputStream);
+            this.credit = dataInputStream.readInt();
+        }
+
+        // Parse Credit (4 bytes, for Credit messages)
+        if (this.messageType == MessageType.CREDIT) {
+            this.credit = dataInputStream.readInt();
+        }
+
+        // Parse Group ID (String, UTF-8) for group requests, and Member ID (String, UTF-8) for all of
+        // them but Fetch Offset
+        if (this.messageType.isGroupRequest()) {
+            this.groupId = topicNames.read(dataInputStream, dataInputStream.readInt());
+            if (this.messageType != MessageType.FETCH_OFFSET) {
+                this.memberId = topicNames.read(dataInputStream, dataInputStream.readInt());
+            }
+        }
+
+        // Parse Generation, Partition and Offset (4 bytes each, the offset 8 from version 1, for Commit
+        // Offset messages)
+        if (this.messageType == MessageType.COMMIT_OFFSET) {
+            this.generation = dataInputStream.readInt();
+            this.partition = dataInputStream.readInt();
+            this.offset = readOffset(dataInputStream);
+        }
+
+        // Parse Partition (4 bytes, for Fetch Offset messages)
+        if (this.messageType == MessageType.FETCH_OFFSET) {
+            this.partition = dataInputStream.readInt();
+        }
+
+        // Parse Partition (4 bytes) and the Timestamp to look up (8 bytes), for Offset For Time messages
+        if (this.messageType == MessageType.OFFSET_FOR_TIME) {
+            this.partition = dataInputStream.readInt();
+            this.targetTimestamp = dataInputStream.readLong();
+        }
+
+        // Parse Partition (4 bytes, -1 lets the broker choose), Key, Record Count (4 bytes) and, from
+        // version 2, Compression (1 byte), from version 3 Acks (1 byte) and from version 4 Producer ID
+        // (8 bytes) and Sequence (4 bytes), for Produce Batch messages
+        if (this.messageType == MessageType.PRODUCE_BATCH) {
+            this.partition = dataInputStream.readInt();
+            int keyLength = dataInputStream.readInt();
+            if (keyLength < -1 || keyLength > MAX_KEY_LENGTH) {
+                throw new IOException("Invalid key length: " + keyLength);
+            }
+            if (keyLength >= 0) {
+                this.key = new byte[keyLength];
+                dataInputStream.readFully(this.key);
+            }
+            this.recordCount = dataInputStream.readInt();
+            if (version >= VERSION_2) {
+                this.compression = dataInputStream.readByte();
+            }
+            if (version >= VERSION_3) {
+                this.acks = dataInputStream.readByte();
+                readProducer(dataInputStream);
+            }
         }
 
-        // Parse Payload (remaining bytes)
+        // Parse Payload (remaining bytes). One over the size limit is skipped without being read into
+        // memory, keeping the stream in step, and the connection answers it with MESSAGE_TOO_LARGE
         this.payloadLength = dataInputStream.readInt();
-        this.payload = new byte[payloadLength];
+        if (payloadLength < 0) {
+            throw new IOException("Invalid payload length: " + payloadLength);
+        }
+        if (isTooLarge()) {
+            dataInputStream.skipNBytes(payloadLength);
+            this.payload = EMPTY_PAYLOAD;
+            return;
+        }
+        this.payload = payloadLength == 0 ? EMPTY_PAYLOAD : new byte[payloadLength];
         dataInputStream.readFully(this.payload);
     }
 
+    private void readProducer(DataInputStream dataInputStream) throws IOException {
+        if (version >= VERSION_4) {
+            this.producerId = dataInputStream.readLong();
+            this.sequence = dataInputStream.readInt();
+        }
+    }
+
     // Getters
     public int getCorrelationId() {
         return this.correlationId;
@@ -62,19 +225,174 @@ public class Message {
         return this.timestamp;
     }
 
-    public int getOffset() {
+    public int getPartition() {
+        return this.partition;
+    }
+
+    public byte[] getKey() {
+        return this.key;
+    }
+
+    /** The protocol version the request was decoded with. */
+    public short getVersion() {
+        return this.version;
+    }
+
+    public long getOffset() {
         return this.offset;
     }
 
+    public int getMaxRecords() {
+        return this.maxRecords;
+    }
+
+    public int getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    public int getMaxWaitMs() {
+        return this.maxWaitMs;
+    }
+
+    public int getMinBytes() {
+        return this.minBytes;
+    }
+
+    public String getGroupId() {
+        return this.groupId;
+    }
+
+    public String getMemberId() {
+        return this.memberId;
+    }
+
+    public int getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * The acks a produce asks for: {@link ReplicationConfig#ACKS_LEADER}, {@link ReplicationConfig#ACKS_ALL}
+     * or {@link #ACKS_DEFAULT}.
+     */
+    public byte getAcks() {
+        return this.acks;
+    }
+
+    /** The idempotent producer a produce comes from, or {@link #NO_PRODUCER_ID}. */
+    public long getProducerId() {
+        return this.producerId;
+    }
+
+    /** The produce's sequence among those of its producer to its topic; meaningful with a producer ID. */
+    public int getSequence() {
+        return this.sequence;
+    }
+
+    /** The node a replica fetch comes from. */
+    public int getReplicaId() {
+        return this.replicaId;
+    }
+
+    public long getTargetTimestamp() {
+        return this.targetTimestamp;
+    }
+
+    public int getCredit() {
+        return this.credit;
+    }
+
+    public int getRecordCount() {
+        return this.recordCount;
+    }
+
+    /**
+     * How the produce batch payload is compressed; {@link Compression#NONE} for plain entries. Throws
+     * IllegalArgumentException for a codec this broker does not know.
+     */
+    public Compression getCompression() {
+        return Compression.fromCode(this.compression);
+    }
+
+    /**
+     * Splits a produce batch payload, which holds {@link #getRecordCount()} entries of a 4-byte length
+     * followed by that many bytes, into slices of the payload; no entry is copied.
+     */
+    public List<ByteBuffer> getBatchPayloads() {
+        if (recordCount <= 0) {
+            throw new IllegalArgumentException("Batch record count must be positive");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        List<ByteBuffer> payloads = new ArrayList<>(recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            int length = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalArgumentException("Malformed batch entry " + i);
+            }
+            payloads.add(buffer.slice(buffer.position(), length));
+            buffer.position(buffer.position() + length);
+        }
+        if (buffer.hasRemaining()) {
+            throw new IllegalArgumentException("Batch payload has trailing bytes");
+        }
+        return payloads;
+    }
+
+    /** The partition count a create topic request asks for: the 4-byte payload, or 1 when it is empty. */
+    public int getPartitionCount() {
+        if (payloadLength == 0) {
+            return 1;
+        }
+        if (payloadLength != 4 && payloadLength != 4 + TopicConfig.ENCODED_SIZE) {
+            throw new IllegalArgumentException(
+                    "Create topic payload must be empty, or a 4-byte partition count optionally followed by a topic config");
+        }
+        return ByteBuffer.wrap(payload).getInt();
+    }
+
+    /** The retention and compaction a CREATE_TOPIC request asks for, or null to use the broker defaults. */
+    public TopicConfig getTopicConfig() {
+        if (payloadLength != 4 + TopicConfig.ENCODED_SIZE) {
+            return null;
+        }
+        return TopicConfig.decode(ByteBuffer.wrap(payload, 4, TopicConfig.ENCODED_SIZE));
+    }
+
+    /** The newest protocol version the client of an API_VERSIONS request speaks: its 2-byte payload. */
+    public short getRequestedVersion() {
+        if (payloadLength != 2) {
+            throw new IllegalArgumentException("API versions payload must be a 2-byte version");
+        }
+        return ByteBuffer.wrap(payload).getShort();
+    }
+
     public int getPayloadLength() {
         return this.payloadLength;
     }
 
+    /** Whether the payload is over the size limit of the request type, so that it was skipped unread. */
+    public boolean isTooLarge() {
+        return payloadLength > (messageType == MessageType.PRODUCE_BATCH ? MAX_BATCH_SIZE : MAX_MESSAGE_SIZE);
+    }
+
+    /** The {@link System#nanoTime()} at which the request started to be read. */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
     public byte[] getPayload() {
         return this.payload;
     }
 
-    // String representation for testing
+    /** How long the connection held this request back for being over a quota, in milliseconds. */
+    public int getThrottleTimeMs() {
+        return throttleTimeMs;
+    }
+
+    void setThrottleTimeMs(int throttleTimeMs) {
+        this.throttleTimeMs = throttleTimeMs;
+    }
+
+    // String representation for logging; the payload is summarized by its length
     @Override
     public String toString() {
         return "{" +
@@ -82,8 +400,9 @@ public class Message {
                 ", messageType=" + getMessageType() +
                 ", topic='" + getTopic() + '\'' +
                 ", timestamp=" + getTimestamp() +
+                ", partition=" + getPartition() +
                 ", offset=" + getOffset() +
-                ", payload=" + new String(getPayload()) +
+                ", payloadLength=" + getPayloadLength() +
                 '}';
     }
 }
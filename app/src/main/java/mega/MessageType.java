@@ -3,7 +3,23 @@ package mega;
 public enum MessageType {
     PRODUCE((byte) 0x01), // Produce message
     CONSUME((byte) 0x02), // Consume message
-    CREATE_TOPIC((byte) 0x03);
+    CREATE_TOPIC((byte) 0x03),
+    FETCH((byte) 0x04), // Batch of consecutive messages
+    PRODUCE_BATCH((byte) 0x05), // Many messages under one offset reservation
+    SUBSCRIBE((byte) 0x06), // Stream messages from an offset as they are produced
+    CREDIT((byte) 0x07), // Allow a subscription to push more messages
+    UNSUBSCRIBE((byte) 0x08),
+    JOIN_GROUP((byte) 0x09), // Join a consumer group and get a share of the topic's partitions
+    HEARTBEAT((byte) 0x0A),
+    LEAVE_GROUP((byte) 0x0B),
+    COMMIT_OFFSET((byte) 0x0C), // Store a group's position in a partition
+    FETCH_OFFSET((byte) 0x0D),
+    API_VERSIONS((byte) 0x0E), // Agree on the protocol version of the connection
+    STATS((byte) 0x0F), // Read the broker's metrics
+    REPLICA_FETCH((byte) 0x10), // A follower copying a partition from the leader
+    METADATA((byte) 0x11), // The cluster's leader, nodes, in-sync replicas and topics
+    INIT_PRODUCER_ID((byte) 0x12), // A new producer ID for idempotent produces
+    OFFSET_FOR_TIME((byte) 0x13); // The first offset of a partition at or after a timestamp
 
     private final byte code;
 
@@ -20,6 +36,11 @@ public enum MessageType {
         throw new IllegalArgumentException("Unknown message type code: " + code);
     }
 
+    /** Whether this is one of the consumer group requests, which all start with a group ID. */
+    public boolean isGroupRequest() {
+        return code >= JOIN_GROUP.code && code <= FETCH_OFFSET.code;
+    }
+
     public byte getCode() {
         return code; // Return the byte value of the enum
     }
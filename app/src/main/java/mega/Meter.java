@@ -0,0 +1,42 @@
+package mega;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events, such as messages or bytes, and their rate. Marking only adds to a striped
+ * {@link LongAdder}, so concurrent threads do not contend; the rate is an exponentially weighted
+ * one-minute average that {@link Metrics} updates every {@link #TICK_SECONDS} seconds.
+ */
+public class Meter {
+    static final int TICK_SECONDS = 5;
+    private static final double ALPHA = 1 - Math.exp(-TICK_SECONDS / 60.0);
+
+    private final LongAdder count = new LongAdder();
+    private long lastCount; // Only touched by the ticking thread
+    private volatile double rate = -1; // Per second, -1 until the first tick
+
+    public void mark() {
+        count.increment();
+    }
+
+    public void mark(long events) {
+        count.add(events);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** Events per second, averaged over roughly the last minute. */
+    public double getOneMinuteRate() {
+        return Math.max(rate, 0);
+    }
+
+    void tick() {
+        long current = count.sum();
+        double instant = (double) (current - lastCount) / TICK_SECONDS;
+        lastCount = current;
+        double previous = rate;
+        rate = previous < 0 ? instant : previous + ALPHA * (instant - previous);
+    }
+}
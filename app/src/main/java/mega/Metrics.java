@@ -0,0 +1,99 @@
+package mega;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Named meters, histograms and gauges of a broker, read as one flat map of numbers by STATS and JMX.
+ * Names are dotted and lower case, such as {@code requests.produce} or {@code topic.orders.bytes_in};
+ * each metric contributes one or more values under its name:
+ * <ul>
+ * <li>a {@link Meter}: {@code .count} and {@code .rate}, per second over about a minute</li>
+ * <li>a {@link Histogram}: {@code .count}, {@code .mean}, {@code .p50}, {@code .p90}, {@code .p99},
+ * {@code .p999} and {@code .max}</li>
+ * <li>a gauge: its current value under the bare name</li>
+ * </ul>
+ * Looking a metric up is a map lookup, so hot paths hold on to the metric rather than the name.
+ */
+public class Metrics {
+    private final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+    /** Returns the meter called {@code name}, creating it on first use. */
+    public Meter meter(String name) {
+        return lookup(name, Meter.class, new Meter());
+    }
+
+    /** Returns the histogram called {@code name}, creating it on first use. */
+    public Histogram histogram(String name) {
+        return lookup(name, Histogram.class, new Histogram());
+    }
+
+    /** Adds a meter created elsewhere, such as by a topic before it joined the broker. */
+    public void register(String name, Meter meter) {
+        put(name, meter);
+    }
+
+    /** Adds a value read when the metrics are, such as a queue length; it must be cheap and thread-safe. */
+    public void gauge(String name, LongSupplier gauge) {
+        put(name, gauge);
+    }
+
+    private void put(String name, Object metric) {
+        if (metrics.putIfAbsent(name, metric) != null) {
+            throw new IllegalArgumentException("Metric already registered: " + name);
+        }
+    }
+
+    private <T> T lookup(String name, Class<T> type, T created) {
+        Object metric = metrics.computeIfAbsent(name, key -> created);
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric " + name + " is not a " + type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    /** Advances the rates of every meter; called every {@value Meter#TICK_SECONDS} seconds. */
+    void tick() {
+        for (Object metric : metrics.values()) {
+            if (metric instanceof Meter) {
+                ((Meter) metric).tick();
+            }
+        }
+    }
+
+    public SortedMap<String, Number> snapshot() {
+        return snapshot("");
+    }
+
+    /** Reads every metric whose name starts with {@code prefix}, sorted by name. */
+    public SortedMap<String, Number> snapshot(String prefix) {
+        SortedMap<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : metrics.tailMap(prefix).entrySet()) {
+            String name = entry.getKey();
+            if (!name.startsWith(prefix)) {
+                break;
+            }
+            Object metric = entry.getValue();
+            if (metric instanceof Meter) {
+                Meter meter = (Meter) metric;
+                values.put(name + ".count", meter.getCount());
+                values.put(name + ".rate", meter.getOneMinuteRate());
+            } else if (metric instanceof Histogram) {
+                Histogram.Snapshot snapshot = ((Histogram) metric).snapshot();
+                values.put(name + ".count", snapshot.getCount());
+                values.put(name + ".mean", snapshot.getMean());
+                values.put(name + ".p50", snapshot.getPercentile(50));
+                values.put(name + ".p90", snapshot.getPercentile(90));
+                values.put(name + ".p99", snapshot.getPercentile(99));
+                values.put(name + ".p999", snapshot.getPercentile(99.9));
+                values.put(name + ".max", snapshot.getMax());
+            } else {
+                values.put(name, ((LongSupplier) metric).getAsLong());
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,8 @@
+package mega;
+
+/** Thrown by a follower asked to do what only the cluster's leader may, such as appending records. */
+public class NotLeaderException extends RuntimeException {
+    public NotLeaderException(int leaderId) {
+        super(leaderId < 0 ? "The cluster has no leader" : "Node " + leaderId + " is the leader");
+    }
+}
@@ -0,0 +1,28 @@
+package mega;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Where tiered storage keeps the segments it offloads: whole files under keys made of
+ * {@code /}-separated names, such as {@code orders/0/00000000000000000000.log}. An object is written
+ * once and never changed, so implementations need no more than whole-object puts, gets and deletes,
+ * which any blob store offers. Implementations must allow concurrent calls.
+ */
+public interface ObjectStore extends AutoCloseable {
+    /** Stores the contents of {@code source} under {@code key}, replacing any object already there. */
+    void put(String key, Path source) throws IOException;
+
+    /** Copies the object under {@code key} to {@code target}; throws NoSuchFileException if there is none. */
+    void get(String key, Path target) throws IOException;
+
+    /** The keys of every object whose key starts with {@code prefix}, in no particular order. */
+    List<String> list(String prefix) throws IOException;
+
+    /** Removes the object under {@code key}, if there is one. */
+    void delete(String key) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,100 @@
+package mega;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Sparse index from offset to file position within one segment, kept in a memory-mapped file. Each
+ * entry is an offset relative to the segment's base offset (4 bytes) followed by a position (4 bytes).
+ * Position 0 is never indexed, so a zeroed entry marks the end of a preallocated file.
+ */
+public class OffsetIndex implements AutoCloseable {
+    private static final int ENTRY_SIZE = 8;
+
+    private final Path path;
+    private final long baseOffset;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int maxEntries;
+    private volatile int entries;
+
+    public OffsetIndex(Path path, long baseOffset, int maxEntries) throws IOException {
+        this.path = path;
+        this.baseOffset = baseOffset;
+        this.maxEntries = maxEntries;
+        this.file = new RandomAccessFile(path.toFile(), "rw");
+        file.setLength((long) maxEntries * ENTRY_SIZE);
+        this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) maxEntries * ENTRY_SIZE);
+        this.entries = countEntries();
+    }
+
+    private int countEntries() {
+        int count = 0;
+        while (count < maxEntries && buffer.getInt(count * ENTRY_SIZE + 4) != 0) {
+            count++;
+        }
+        return count;
+    }
+
+    /** Adds an entry; returns false if the index is full. Callers must append in offset order. */
+    public boolean append(long offset, int position) {
+        int count = entries;
+        if (count >= maxEntries) {
+            return false;
+        }
+        buffer.putInt(count * ENTRY_SIZE, (int) (offset - baseOffset));
+        buffer.putInt(count * ENTRY_SIZE + 4, position);
+        entries = count + 1;
+        return true;
+    }
+
+    /** Returns the position of the last indexed record at or before {@code offset}, or 0. */
+    public int lookup(long offset) {
+        long relative = offset - baseOffset;
+        int low = 0;
+        int high = entries - 1;
+        int position = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (buffer.getInt(mid * ENTRY_SIZE) <= relative) {
+                position = buffer.getInt(mid * ENTRY_SIZE + 4);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return position;
+    }
+
+    /** Position of the last entry, or 0 if the index is empty. */
+    public int lastPosition() {
+        int count = entries;
+        return count == 0 ? 0 : buffer.getInt((count - 1) * ENTRY_SIZE + 4);
+    }
+
+    /** Drops all entries, e.g. before rebuilding the index from the log. */
+    public void reset() {
+        for (int i = 0; i < entries * ENTRY_SIZE; i += 4) {
+            buffer.putInt(i, 0);
+        }
+        entries = 0;
+    }
+
+    public void flush() {
+        buffer.force();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        file.setLength((long) entries * ENTRY_SIZE);
+        file.close();
+    }
+}
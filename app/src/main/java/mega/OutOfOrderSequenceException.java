@@ -0,0 +1,12 @@
+package mega;
+
+/**
+ * Thrown for an idempotent produce whose sequence is too far behind the producer's newest to tell
+ * whether it is a retry of a batch already appended.
+ */
+public class OutOfOrderSequenceException extends RuntimeException {
+    public OutOfOrderSequenceException(long producerId, int sequence, int highestSequence) {
+        super("Sequence " + sequence + " of producer " + producerId + " is out of order: the newest is "
+                + highestSequence);
+    }
+}
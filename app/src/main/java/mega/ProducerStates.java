@@ -0,0 +1,125 @@
+package mega;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * The idempotent producers of one topic, each with where its last {@link #WINDOW} sequences were
+ * appended, so a retried produce is answered with the partition and offsets of the original rather
+ * than appended again. Pipelined requests may be served out of order, so any sequence within the
+ * window of a producer's newest is accepted; one further behind can no longer be told apart from a
+ * duplicate and is rejected. A producer's own appends to the topic run one at a time, while other
+ * producers and produces without a producer ID never wait on it.
+ *
+ * The window lives in memory only: a broker that restarts, or a follower that takes over as leader,
+ * starts without it, and may append a retry of a batch written before then a second time.
+ */
+final class ProducerStates {
+    /** Sequences remembered per producer, which bounds how many produces a producer should pipeline. */
+    static final int WINDOW = 32;
+
+    private final ConcurrentMap<Long, Producer> producers = new ConcurrentHashMap<>();
+
+    /**
+     * Runs {@code append} for {@code sequence} of producer {@code producerId}, unless the producer
+     * appended that sequence already, and returns where the batch is, marked as a duplicate in the
+     * latter case. Throws {@link OutOfOrderSequenceException} when the sequence is too old to tell.
+     */
+    Append append(long producerId, int sequence, Supplier<Append> append) {
+        if (producerId < 0 || sequence < 0) {
+            throw new IllegalArgumentException("Producer ID and sequence cannot be negative");
+        }
+        while (true) {
+            Producer producer = producers.computeIfAbsent(producerId, id -> new Producer());
+            producer.lock.lock(); // not a monitor, which would pin a virtual thread through the append
+            try {
+                if (producer.expired) {
+                    continue; // removed while we waited for it; start over with a fresh one
+                }
+                producer.lastUsedNanos = System.nanoTime();
+                if (producer.highestSequence - sequence >= WINDOW) {
+                    throw new OutOfOrderSequenceException(producerId, sequence, producer.highestSequence);
+                }
+                int slot = sequence % WINDOW;
+                if (producer.sequences[slot] == sequence) {
+                    return new Append(producer.partitions[slot], producer.baseOffsets[slot],
+                            producer.recordCounts[slot], true);
+                }
+                Append appended = append.get();
+                producer.sequences[slot] = sequence;
+                producer.partitions[slot] = appended.partition;
+                producer.baseOffsets[slot] = appended.baseOffset;
+                producer.recordCounts[slot] = appended.recordCount;
+                producer.highestSequence = Math.max(producer.highestSequence, sequence);
+                return appended;
+            } finally {
+                producer.lock.unlock();
+            }
+        }
+    }
+
+    /** Forgets producers that have not appended for {@code idleNanos}, and returns how many. */
+    int expire(long idleNanos) {
+        long now = System.nanoTime();
+        int expired = 0;
+        for (Iterator<Producer> it = producers.values().iterator(); it.hasNext();) {
+            Producer producer = it.next();
+            if (!producer.lock.tryLock()) {
+                continue; // appending right now, so not idle
+            }
+            try {
+                if (now - producer.lastUsedNanos > idleNanos) {
+                    producer.expired = true;
+                    it.remove();
+                    expired++;
+                }
+            } finally {
+                producer.lock.unlock();
+            }
+        }
+        return expired;
+    }
+
+    int size() {
+        return producers.size();
+    }
+
+    /** Where a produce's records went: their partition, first offset and count. */
+    static final class Append {
+        final int partition;
+        final long baseOffset;
+        final int recordCount;
+        final boolean duplicate; // answered from the window rather than appended
+
+        Append(int partition, long baseOffset, int recordCount) {
+            this(partition, baseOffset, recordCount, false);
+        }
+
+        private Append(int partition, long baseOffset, int recordCount, boolean duplicate) {
+            this.partition = partition;
+            this.baseOffset = baseOffset;
+            this.recordCount = recordCount;
+            this.duplicate = duplicate;
+        }
+    }
+
+    /** The window of one producer, as parallel arrays indexed by sequence modulo {@link #WINDOW}. */
+    private static final class Producer {
+        final ReentrantLock lock = new ReentrantLock();
+        final int[] sequences = new int[WINDOW];
+        final int[] partitions = new int[WINDOW];
+        final long[] baseOffsets = new long[WINDOW];
+        final int[] recordCounts = new int[WINDOW];
+        int highestSequence = -1;
+        long lastUsedNanos = System.nanoTime();
+        boolean expired;
+
+        Producer() {
+            Arrays.fill(sequences, -1);
+        }
+    }
+}
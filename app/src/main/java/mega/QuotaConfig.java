@@ -0,0 +1,45 @@
+package mega;
+
+/**
+ * Rate limits of a broker, read like {@link BrokerConfig}; each is off unless set to a positive
+ * value. A client here is one connection, since the protocol has no client IDs:
+ * {@code mega.quota.client.produce.bytes} limits the payload bytes per second one connection may
+ * produce and {@code mega.quota.client.requests} its requests per second, while
+ * {@code mega.quota.topic.produce.bytes} limits the payload bytes per second produced to one topic by
+ * all connections together.
+ */
+public class QuotaConfig {
+    /** A limit that is not enforced. */
+    public static final long UNLIMITED = -1;
+    public static final QuotaConfig NONE = new QuotaConfig(UNLIMITED, UNLIMITED, UNLIMITED);
+
+    private final long clientProduceBytesPerSecond;
+    private final long clientRequestsPerSecond;
+    private final long topicProduceBytesPerSecond;
+
+    public QuotaConfig(long clientProduceBytesPerSecond, long clientRequestsPerSecond,
+            long topicProduceBytesPerSecond) {
+        this.clientProduceBytesPerSecond = clientProduceBytesPerSecond;
+        this.clientRequestsPerSecond = clientRequestsPerSecond;
+        this.topicProduceBytesPerSecond = topicProduceBytesPerSecond;
+    }
+
+    public static QuotaConfig load() {
+        return new QuotaConfig(
+                Long.parseLong(BrokerConfig.get("mega.quota.client.produce.bytes", "-1")),
+                Long.parseLong(BrokerConfig.get("mega.quota.client.requests", "-1")),
+                Long.parseLong(BrokerConfig.get("mega.quota.topic.produce.bytes", "-1")));
+    }
+
+    public long getClientProduceBytesPerSecond() {
+        return clientProduceBytesPerSecond;
+    }
+
+    public long getClientRequestsPerSecond() {
+        return clientRequestsPerSecond;
+    }
+
+    public long getTopicProduceBytesPerSecond() {
+        return topicProduceBytesPerSecond;
+    }
+}
@@ -0,0 +1,76 @@
+package mega;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ * Enforces a broker's {@link QuotaConfig} with {@link TokenBucket}s: one per topic, shared by every
+ * connection, and one of each client limit per connection, which lives and dies with it. A request
+ * over a limit is not rejected but delayed; see {@link Client#charge}. Requests between the nodes
+ * of a cluster are never charged, so a quota cannot hold back replication.
+ */
+final class Quotas {
+    private final QuotaConfig config;
+    private final Predicate<String> topicExists;
+    private final ConcurrentMap<String, TokenBucket> topics = new ConcurrentHashMap<>();
+    private final Histogram throttleTimes;
+
+    /** Creates the quotas of a broker, which only keeps buckets for names that {@code topicExists} knows. */
+    Quotas(QuotaConfig config, Metrics metrics, Predicate<String> topicExists) {
+        this.config = config;
+        this.topicExists = topicExists;
+        this.throttleTimes = metrics.histogram("quota.throttle_ns");
+    }
+
+    /** The buckets of a new connection. */
+    Client newClient() {
+        return new Client(System.nanoTime());
+    }
+
+    private long chargeTopic(String topic, long bytes, long nowNanos) {
+        long rate = config.getTopicProduceBytesPerSecond();
+        if (rate <= 0 || !topicExists.test(topic)) {
+            return 0; // a produce to a missing topic fails without appending anything
+        }
+        return topics.computeIfAbsent(topic, name -> new TokenBucket(rate, nowNanos)).charge(bytes, nowNanos);
+    }
+
+    /** One connection's share of the quotas. */
+    final class Client {
+        private final TokenBucket produceBytes;
+        private final TokenBucket requests;
+
+        private Client(long nowNanos) {
+            long bytesRate = config.getClientProduceBytesPerSecond();
+            long requestRate = config.getClientRequestsPerSecond();
+            this.produceBytes = bytesRate > 0 ? new TokenBucket(bytesRate, nowNanos) : null;
+            this.requests = requestRate > 0 ? new TokenBucket(requestRate, nowNanos) : null;
+        }
+
+        /**
+         * Charges a request, and the payload bytes of a produce, to this connection and its topic, and
+         * returns how many nanoseconds to hold it back for: the longest any of the limits it went over
+         * takes to recover, or 0.
+         */
+        long charge(Message message) {
+            MessageType type = message.getMessageType();
+            if (type == MessageType.REPLICA_FETCH || type == MessageType.METADATA) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            long throttle = requests == null ? 0 : requests.charge(1, now);
+            if (type == MessageType.PRODUCE || type == MessageType.PRODUCE_BATCH) {
+                long bytes = message.getPayloadLength();
+                if (produceBytes != null) {
+                    throttle = Math.max(throttle, produceBytes.charge(bytes, now));
+                }
+                throttle = Math.max(throttle, chargeTopic(message.getTopic(), bytes, now));
+            }
+            if (throttle > 0) {
+                throttleTimes.record(throttle);
+            }
+            return throttle;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package mega;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public class Record {
+    private final long offset;
+    private final long timestamp;
+    private final byte[] key;
+    private final byte[] payload;
+    private final byte attributes;
+
+    public Record(long offset, long timestamp, byte[] payload) {
+        this(offset, timestamp, null, payload);
+    }
+
+    public Record(long offset, long timestamp, byte[] key, byte[] payload) {
+        this(offset, timestamp, key, payload, (byte) 0);
+    }
+
+    public Record(long offset, long timestamp, byte[] key, byte[] payload, byte attributes) {
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.key = key;
+        this.payload = payload;
+        this.attributes = attributes;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /** The key the record was produced with, or null. */
+    public byte[] getKey() {
+        return key;
+    }
+
+    public byte getAttributes() {
+        return attributes;
+    }
+
+    public Compression getCompression() {
+        return Compression.fromAttributes(attributes);
+    }
+
+    /** Whether this record holds a whole compressed batch; see {@link Compression}. */
+    public boolean isCompressed() {
+        return (attributes & Compression.ATTRIBUTES_MASK) != 0;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getPayloadLength() {
+        return payload.length;
+    }
+
+    /** Writes the payload to {@code target}, without copying it through the heap where possible. */
+    public void transferPayloadTo(WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package mega;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Consecutive records returned by a fetch, written to the wire in {@link RecordFormat}. A compressed
+ * batch produced by a client is one record here; see {@link Compression}.
+ */
+public class RecordBatch {
+    private final List<Record> records;
+    private final long nextOffset;
+    private final int sizeInBytes;
+    private final boolean compressed;
+
+    public RecordBatch(List<Record> records, long nextOffset) {
+        this.records = records;
+        this.nextOffset = nextOffset;
+        int size = 0;
+        boolean anyCompressed = false;
+        for (Record record : records) {
+            size += RecordFormat.sizeInBytes(record.getKey(), record.getPayloadLength());
+            anyCompressed |= record.isCompressed();
+        }
+        this.sizeInBytes = size;
+        this.compressed = anyCompressed;
+    }
+
+    protected RecordBatch(long nextOffset, int sizeInBytes, boolean compressed) {
+        this.records = List.of();
+        this.nextOffset = nextOffset;
+        this.sizeInBytes = sizeInBytes;
+        this.compressed = compressed;
+    }
+
+    public int getRecordCount() {
+        return records.size();
+    }
+
+    /** The offset a consumer should fetch from next. */
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    public int getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /** Whether any of the records is a compressed batch. */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /** The records themselves, for callers that need to look inside them. */
+    public List<Record> getRecords() throws IOException {
+        return records;
+    }
+
+    /**
+     * Returns this batch with every compressed record replaced by the records it holds from
+     * {@code fromOffset} on, for consumers that cannot decompress. The copy may be larger than the
+     * fetch asked for.
+     */
+    public RecordBatch decompressed(long fromOffset) throws IOException {
+        if (!compressed) {
+            return this;
+        }
+        List<Record> expanded = new ArrayList<>();
+        for (Record record : getRecords()) {
+            if (record.isCompressed()) {
+                for (Record inner : Compression.unpack(record)) {
+                    if (inner.getOffset() >= fromOffset) {
+                        expanded.add(inner);
+                    }
+                }
+            } else {
+                expanded.add(record);
+            }
+        }
+        return new RecordBatch(expanded, nextOffset);
+    }
+
+    public void writeTo(WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(sizeInBytes);
+        for (Record record : records) {
+            RecordFormat.write(buffer, record.getOffset(), record.getTimestamp(), record.getKey(),
+                    record.getAttributes(), ByteBuffer.wrap(record.getPayload()));
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package mega;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary layout of a stored record:
+ *
+ * <pre>
+ * offset        8 bytes
+ * size          4 bytes  (length of everything after this field)
+ * crc           4 bytes  (CRC32C of everything after this field)
+ * attributes    1 byte   (bits 0-2: the {@link Compression} of a compressed batch; rest reserved, 0)
+ * timestamp     8 bytes
+ * keyLength     4 bytes  (-1 when the record has no key)
+ * key           keyLength bytes
+ * payloadLength 4 bytes
+ * payload       payloadLength bytes
+ * </pre>
+ */
+public final class RecordFormat {
+    /** Bytes preceding the body: offset and size. */
+    public static final int LOG_OVERHEAD = 12;
+    /** Fixed part of the body: crc, attributes, timestamp, keyLength and payloadLength. */
+    public static final int BODY_OVERHEAD = 21;
+    public static final int HEADER_SIZE = LOG_OVERHEAD + BODY_OVERHEAD;
+
+    private static final int CRC_POSITION = LOG_OVERHEAD;
+    public static final int ATTRIBUTES_POSITION = CRC_POSITION + 4;
+    public static final int TIMESTAMP_POSITION = ATTRIBUTES_POSITION + 1;
+    public static final int KEY_LENGTH_POSITION = TIMESTAMP_POSITION + 8;
+
+    private RecordFormat() {
+    }
+
+    public static int sizeInBytes(int payloadLength) {
+        return HEADER_SIZE + payloadLength;
+    }
+
+    public static int sizeInBytes(byte[] key, int payloadLength) {
+        return HEADER_SIZE + (key == null ? 0 : key.length) + payloadLength;
+    }
+
+    /** Writes a record at the buffer's position and advances it. */
+    public static void write(ByteBuffer buffer, long offset, long timestamp, byte[] payload) {
+        write(buffer, offset, timestamp, null, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Writes a record with an optional key, whose payload is the remaining bytes of {@code payload},
+     * leaving it unchanged.
+     */
+    public static void write(ByteBuffer buffer, long offset, long timestamp, byte[] key, ByteBuffer payload) {
+        write(buffer, offset, timestamp, key, (byte) 0, payload);
+    }
+
+    /** Writes a record with the given attributes; see {@link #write(ByteBuffer, long, long, byte[], ByteBuffer)}. */
+    public static void write(ByteBuffer buffer, long offset, long timestamp, byte[] key, byte attributes,
+            ByteBuffer payload) {
+        int start = writeHeader(buffer, offset, timestamp, key, attributes, payload.remaining());
+        buffer.put(payload.duplicate());
+        buffer.putInt(start + CRC_POSITION, checksum(buffer, start + ATTRIBUTES_POSITION, buffer.position()));
+    }
+
+    /**
+     * Writes the single record a compressed batch is stored as: its payload is {@code recordCount}
+     * followed by the remaining bytes of {@code compressed}, left unchanged. See {@link Compression}.
+     */
+    public static void writeCompressed(ByteBuffer buffer, long offset, long timestamp, byte[] key,
+            Compression compression, int recordCount, ByteBuffer compressed) {
+        int start = writeHeader(buffer, offset, timestamp, key, compression.getCode(), 4 + compressed.remaining());
+        buffer.putInt(recordCount);
+        buffer.put(compressed.duplicate());
+        buffer.putInt(start + CRC_POSITION, checksum(buffer, start + ATTRIBUTES_POSITION, buffer.position()));
+    }
+
+    private static int writeHeader(ByteBuffer buffer, long offset, long timestamp, byte[] key, byte attributes,
+            int payloadLength) {
+        int start = buffer.position();
+        buffer.putLong(offset);
+        buffer.putInt(BODY_OVERHEAD + (key == null ? 0 : key.length) + payloadLength);
+        buffer.putInt(0); // crc, patched once the record is complete
+        buffer.put(attributes);
+        buffer.putLong(timestamp);
+        if (key == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(key.length);
+            buffer.put(key);
+        }
+        buffer.putInt(payloadLength);
+        return start;
+    }
+
+    /**
+     * Adds {@code delta} to the offset of every record between the buffer's position and limit. The
+     * offset is not covered by the checksum, so records can be encoded before their offsets are known.
+     */
+    public static void shiftOffsets(ByteBuffer buffer, long delta) {
+        int position = buffer.position();
+        while (position < buffer.limit()) {
+            buffer.putLong(position, buffer.getLong(position) + delta);
+            position += LOG_OVERHEAD + buffer.getInt(position + 8);
+        }
+    }
+
+    /**
+     * Reads the record at the buffer's position, which must hold the complete record, and advances
+     * past it.
+     */
+    public static Record read(ByteBuffer buffer) {
+        long offset = buffer.getLong();
+        buffer.getInt(); // size
+        buffer.getInt(); // crc
+        byte attributes = buffer.get();
+        long timestamp = buffer.getLong();
+        int keyLength = buffer.getInt();
+        byte[] key = null;
+        if (keyLength >= 0) {
+            key = new byte[keyLength];
+            buffer.get(key);
+        }
+        byte[] payload = new byte[buffer.getInt()];
+        buffer.get(payload);
+        return new Record(offset, timestamp, key, payload, attributes);
+    }
+
+    /**
+     * Checks that the record starting at the buffer's position is internally consistent: its size
+     * fits the buffer and its checksum matches.
+     */
+    public static boolean isValid(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        int size = buffer.getInt(start + 8);
+        if (size < BODY_OVERHEAD || size > buffer.remaining() - LOG_OVERHEAD) {
+            return false;
+        }
+        int end = start + LOG_OVERHEAD + size;
+        return buffer.getInt(start + CRC_POSITION) == checksum(buffer, start + ATTRIBUTES_POSITION, end);
+    }
+
+    private static int checksum(ByteBuffer buffer, int from, int to) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().limit(to).position(from));
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,50 @@
+package mega;
+
+import java.nio.ByteBuffer;
+
+/**
+ * What a {@link FileLog} knows of a segment offloaded to the object store without downloading it:
+ * the offsets it covers, its size and its newest timestamp. Stored next to the segment's files as
+ * its {@code .meta} object, which is written last and so marks the upload complete.
+ */
+final class RemoteSegment {
+    static final int SIZE = 24;
+
+    private final long baseOffset;
+    private final long endOffset;
+    private final long size;
+    private final long maxTimestamp;
+
+    RemoteSegment(long baseOffset, long endOffset, long size, long maxTimestamp) {
+        this.baseOffset = baseOffset;
+        this.endOffset = endOffset;
+        this.size = size;
+        this.maxTimestamp = maxTimestamp;
+    }
+
+    /** Reads the metadata of the segment at {@code baseOffset} as {@link #encode} wrote it. */
+    static RemoteSegment decode(long baseOffset, ByteBuffer buffer) {
+        return new RemoteSegment(baseOffset, buffer.getLong(0), buffer.getLong(8), buffer.getLong(16));
+    }
+
+    ByteBuffer encode() {
+        return ByteBuffer.allocate(SIZE).putLong(endOffset).putLong(size).putLong(maxTimestamp).flip();
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /** The base offset of the segment that followed this one, past its last record. */
+    long getEndOffset() {
+        return endOffset;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+}
@@ -0,0 +1,147 @@
+package mega;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One node's connection to another, speaking the client protocol at {@link Message#VERSION_3}: the
+ * METADATA requests nodes exchange and the REPLICA_FETCH requests followers copy partitions with, one
+ * at a time. Not thread-safe; the cluster and each replica fetcher have their own.
+ */
+final class ReplicaClient implements AutoCloseable {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final int timeoutMs;
+    private int nextCorrelationId;
+
+    private ReplicaClient(Socket socket, int timeoutMs) throws IOException {
+        this.socket = socket;
+        this.timeoutMs = timeoutMs;
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE));
+    }
+
+    /** Connects to {@code address} and agrees on version 3, waiting at most {@code timeoutMs} for each step. */
+    static ReplicaClient connect(InetSocketAddress address, int timeoutMs) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), timeoutMs);
+            socket.setSoTimeout(timeoutMs);
+            socket.setTcpNoDelay(true);
+            ReplicaClient client = new ReplicaClient(socket, timeoutMs);
+            client.negotiate();
+            return client;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void negotiate() throws IOException {
+        int correlationId = writeHeader(MessageType.API_VERSIONS, "");
+        output.writeInt(2);
+        output.writeShort(Message.VERSION_3);
+        output.flush();
+        readStatus(correlationId);
+        short version = input.readShort();
+        if (version < Message.VERSION_3) {
+            throw new IOException("Node at " + socket.getRemoteSocketAddress() + " only speaks version " + version);
+        }
+    }
+
+    ClusterMetadata metadata() throws IOException {
+        int correlationId = writeHeader(MessageType.METADATA, "");
+        output.writeInt(0);
+        output.flush();
+        readStatus(correlationId);
+        return ClusterMetadata.readFrom(input);
+    }
+
+    /**
+     * Fetches up to {@code maxBytes} of records of a partition from {@code offset} on as follower
+     * {@code replicaId}, waiting up to {@code maxWaitMs} for the first byte on the leader.
+     */
+    FetchResponse fetch(int replicaId, String topic, int partition, long offset, int maxBytes, int maxWaitMs)
+            throws IOException {
+        int correlationId = writeHeader(MessageType.REPLICA_FETCH, topic);
+        output.writeInt(partition);
+        output.writeLong(offset);
+        output.writeInt(Integer.MAX_VALUE); // max records: bounded by the bytes
+        output.writeInt(maxBytes);
+        output.writeInt(maxWaitMs);
+        output.writeInt(1); // min bytes
+        output.writeInt(replicaId);
+        output.writeInt(0);
+        output.flush();
+        socket.setSoTimeout(timeoutMs + maxWaitMs);
+        try {
+            expectCorrelationId(correlationId);
+            if (input.readByte() == 0) {
+                return new FetchResponse(ErrorCode.fromCode(input.readByte()), offset, 0, null);
+            }
+            long nextOffset = input.readLong();
+            int recordCount = input.readInt();
+            byte[] records = new byte[input.readInt()];
+            input.readFully(records);
+            return new FetchResponse(null, nextOffset, recordCount, ByteBuffer.wrap(records));
+        } finally {
+            socket.setSoTimeout(timeoutMs);
+        }
+    }
+
+    private int writeHeader(MessageType type, String topic) throws IOException {
+        int correlationId = nextCorrelationId++;
+        byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(correlationId);
+        output.writeByte(type.getCode());
+        output.writeInt(name.length);
+        output.write(name);
+        output.writeLong(System.currentTimeMillis());
+        return correlationId;
+    }
+
+    private void readStatus(int correlationId) throws IOException {
+        expectCorrelationId(correlationId);
+        if (input.readByte() == 0) {
+            throw new IOException("Node at " + socket.getRemoteSocketAddress() + " answered "
+                    + ErrorCode.fromCode(input.readByte()));
+        }
+    }
+
+    private void expectCorrelationId(int correlationId) throws IOException {
+        int received = input.readInt();
+        if (received != correlationId) {
+            throw new IOException("Expected response " + correlationId + " but got " + received);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /** A REPLICA_FETCH answer: an error, or the records in {@link RecordFormat} and where to fetch next. */
+    static final class FetchResponse {
+        final ErrorCode error;
+        final long nextOffset;
+        final int recordCount;
+        final ByteBuffer records;
+
+        FetchResponse(ErrorCode error, long nextOffset, int recordCount, ByteBuffer records) {
+            this.error = error;
+            this.nextOffset = nextOffset;
+            this.recordCount = recordCount;
+            this.records = records;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package mega;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies one partition from the leader into this node's log, on its own virtual thread and
+ * connection: it long-polls REPLICA_FETCH from the log's next offset and appends what comes back with
+ * the offsets unchanged. Where each fetch starts tells the leader how far this follower has got,
+ * which is what produces with acks=all wait for. Errors are logged and retried after a pause; the
+ * cluster stops the fetcher when the leader changes.
+ *
+ * Stopping closes the connection rather than interrupting the thread, since an interrupt would close
+ * the segment channel an append may be writing to.
+ */
+final class ReplicaFetcher {
+    private static final Logger LOG = Logger.getLogger(ReplicaFetcher.class);
+    private static final int MAX_FETCH_BYTES = 1024 * 1024;
+
+    private final Topic topic;
+    private final int partition;
+    private final String name; // topic-partition, for logging
+    private final int replicaId;
+    private final InetSocketAddress leader;
+    private final ReplicationConfig config;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile ReplicaClient client;
+    private boolean failing; // Warn once per outage rather than on every retry
+    private Thread thread;
+
+    ReplicaFetcher(Topic topic, int partition, int replicaId, InetSocketAddress leader, ReplicationConfig config) {
+        this.topic = topic;
+        this.partition = partition;
+        this.name = topic.getName() + "-" + partition;
+        this.replicaId = replicaId;
+        this.leader = leader;
+        this.config = config;
+    }
+
+    void start() {
+        thread = Thread.ofVirtual().name("mega-replica-fetcher-" + name).start(this::run);
+    }
+
+    /** Stops fetching and waits for an append in progress to finish, so the log can be truncated safely. */
+    void stop() {
+        stopped.countDown();
+        closeClient();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        int maxWaitMs = (int) config.getPollIntervalMs();
+        while (stopped.getCount() > 0) {
+            try {
+                if (client == null) {
+                    client = ReplicaClient.connect(leader, (int) config.getLeaderTimeoutMs());
+                    if (stopped.getCount() == 0) {
+                        break;
+                    }
+                }
+                ReplicaClient.FetchResponse response = client.fetch(replicaId, topic.getName(), partition,
+                        topic.getNextOffset(partition), MAX_FETCH_BYTES, maxWaitMs);
+                if (response.error != null) {
+                    // Cleared up by the cluster: a topic the leader has yet to create, or a new leader
+                    LOG.debug("Replica fetch of {} failed with {}", name, response.error);
+                    pause();
+                    continue;
+                }
+                topic.appendReplicated(partition, response.records, response.recordCount, response.nextOffset);
+                failing = false;
+            } catch (IOException e) {
+                if (stopped.getCount() > 0) {
+                    if (failing) {
+                        LOG.debug("Replica fetch of {} failed again: {}", name, e.getMessage());
+                    } else {
+                        LOG.warn("Replica fetch of {} failed: {}", name, e.getMessage());
+                        failing = true;
+                    }
+                    closeClient();
+                    pause();
+                }
+            } catch (RuntimeException e) {
+                LOG.error("Failed to append replicated records to {}", name, e);
+                closeClient();
+                pause();
+            }
+        }
+        closeClient();
+    }
+
+    private void pause() {
+        try {
+            stopped.await(config.getPollIntervalMs(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeClient() {
+        ReplicaClient current = client;
+        client = null;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing replica connection: {}", e.getMessage());
+            }
+        }
+    }
+}
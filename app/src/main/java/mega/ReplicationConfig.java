@@ -0,0 +1,125 @@
+package mega;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Settings of a broker's place in a replicated cluster, read like {@link BrokerConfig}. A broker
+ * without a node ID ({@code mega.node.id}, default -1) runs standalone. Otherwise
+ * {@code mega.cluster.nodes} lists every node of the cluster, itself included, as
+ * {@code id=host:port} separated by commas, e.g. {@code 0=localhost:8080,1=localhost:8081}.
+ */
+public class ReplicationConfig {
+    /** Acks value of a produce that returns once the leader has appended it. */
+    public static final byte ACKS_LEADER = 1;
+    /** Acks value of a produce that returns once every in-sync replica has it. */
+    public static final byte ACKS_ALL = -1;
+    public static final ReplicationConfig STANDALONE = new ReplicationConfig(-1, Map.of(), ACKS_ALL, 10_000, 3_000,
+            500, 10_000);
+
+    private final int nodeId;
+    private final Map<Integer, InetSocketAddress> nodes;
+    private final byte defaultAcks;
+    private final long replicaLagMs;
+    private final long leaderTimeoutMs;
+    private final long pollIntervalMs;
+    private final long ackTimeoutMs;
+
+    public ReplicationConfig(int nodeId, Map<Integer, InetSocketAddress> nodes, byte defaultAcks, long replicaLagMs,
+            long leaderTimeoutMs, long pollIntervalMs, long ackTimeoutMs) {
+        if (nodeId >= 0 && !nodes.containsKey(nodeId)) {
+            throw new IllegalArgumentException("Node " + nodeId + " is not one of the cluster nodes " + nodes.keySet());
+        }
+        if (defaultAcks != ACKS_LEADER && defaultAcks != ACKS_ALL) {
+            throw new IllegalArgumentException("Acks must be " + ACKS_LEADER + " or " + ACKS_ALL);
+        }
+        if (replicaLagMs <= 0 || leaderTimeoutMs <= 0 || pollIntervalMs <= 0 || ackTimeoutMs <= 0) {
+            throw new IllegalArgumentException("Replication timeouts and intervals must be positive");
+        }
+        this.nodeId = nodeId;
+        this.nodes = Collections.unmodifiableMap(new TreeMap<>(nodes));
+        this.defaultAcks = defaultAcks;
+        this.replicaLagMs = replicaLagMs;
+        this.leaderTimeoutMs = leaderTimeoutMs;
+        this.pollIntervalMs = pollIntervalMs;
+        this.ackTimeoutMs = ackTimeoutMs;
+    }
+
+    public static ReplicationConfig load() {
+        String acks = BrokerConfig.get("mega.acks", "all");
+        return new ReplicationConfig(
+                Integer.parseInt(BrokerConfig.get("mega.node.id", "-1")),
+                parseNodes(BrokerConfig.get("mega.cluster.nodes", "")),
+                acks.equalsIgnoreCase("all") ? ACKS_ALL : Byte.parseByte(acks),
+                Long.parseLong(BrokerConfig.get("mega.replica.lag.ms", "10000")),
+                Long.parseLong(BrokerConfig.get("mega.leader.timeout.ms", "3000")),
+                Long.parseLong(BrokerConfig.get("mega.cluster.poll.ms", "500")),
+                Long.parseLong(BrokerConfig.get("mega.ack.timeout.ms", "10000")));
+    }
+
+    /** Parses {@code id=host:port,...}; an empty string is no nodes. */
+    static Map<Integer, InetSocketAddress> parseNodes(String list) {
+        Map<Integer, InetSocketAddress> nodes = new TreeMap<>();
+        for (String entry : list.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            int colon = entry.lastIndexOf(':');
+            if (equals < 0 || colon < equals) {
+                throw new IllegalArgumentException("Cluster node must be id=host:port: " + entry);
+            }
+            int id = Integer.parseInt(entry.substring(0, equals).trim());
+            if (id < 0) {
+                throw new IllegalArgumentException("Node IDs cannot be negative: " + entry);
+            }
+            InetSocketAddress address = InetSocketAddress.createUnresolved(entry.substring(equals + 1, colon).trim(),
+                    Integer.parseInt(entry.substring(colon + 1).trim()));
+            if (nodes.put(id, address) != null) {
+                throw new IllegalArgumentException("Node " + id + " is listed twice");
+            }
+        }
+        return nodes;
+    }
+
+    /** Whether the broker is a node of a cluster rather than standalone. */
+    public boolean isEnabled() {
+        return nodeId >= 0;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /** Every node of the cluster by ID, in ID order. */
+    public Map<Integer, InetSocketAddress> getNodes() {
+        return nodes;
+    }
+
+    /** Acks of produce requests that do not carry their own, those from before protocol version 3. */
+    public byte getDefaultAcks() {
+        return defaultAcks;
+    }
+
+    /** How long a follower may go without catching up with the leader before it leaves the in-sync replicas. */
+    public long getReplicaLagMs() {
+        return replicaLagMs;
+    }
+
+    /** How long a follower goes without hearing from the leader before electing a new one. */
+    public long getLeaderTimeoutMs() {
+        return leaderTimeoutMs;
+    }
+
+    /** Period at which nodes exchange metadata with the leader, or with each other while there is none. */
+    public long getPollIntervalMs() {
+        return pollIntervalMs;
+    }
+
+    /** How long a produce with acks=all waits for the in-sync replicas before it fails. */
+    public long getAckTimeoutMs() {
+        return ackTimeoutMs;
+    }
+}
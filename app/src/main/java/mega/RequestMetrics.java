@@ -0,0 +1,41 @@
+package mega;
+
+import java.util.Locale;
+
+/**
+ * The request metrics of a broker: for each message type a meter {@code requests.<type>} and a
+ * histogram {@code requests.<type>.latency_ns} of the time from reading a request to answering it,
+ * and for each error code a meter {@code errors.<code>}. Looked up by ordinal, so recording costs
+ * no map lookup.
+ */
+public class RequestMetrics {
+    private final Meter[] requests;
+    private final Histogram[] latencies;
+    private final Meter[] errors;
+
+    public RequestMetrics(Metrics metrics) {
+        MessageType[] types = MessageType.values();
+        requests = new Meter[types.length];
+        latencies = new Histogram[types.length];
+        for (MessageType type : types) {
+            String name = "requests." + type.name().toLowerCase(Locale.ROOT);
+            requests[type.ordinal()] = metrics.meter(name);
+            latencies[type.ordinal()] = metrics.histogram(name + ".latency_ns");
+        }
+        ErrorCode[] codes = ErrorCode.values();
+        errors = new Meter[codes.length];
+        for (ErrorCode code : codes) {
+            errors[code.ordinal()] = metrics.meter("errors." + code.name().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /** Counts a request answered {@code latencyNanos} after it was read. */
+    public void record(MessageType type, long latencyNanos) {
+        requests[type.ordinal()].mark();
+        latencies[type.ordinal()].record(latencyNanos);
+    }
+
+    public void error(ErrorCode code) {
+        errors[code.ordinal()].mark();
+    }
+}
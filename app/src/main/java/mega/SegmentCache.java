@@ -0,0 +1,157 @@
+package mega;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Least recently used set of segments downloaded from the object store, bounded by their bytes. A
+ * miss loads the segment on the calling thread while other readers of the same segment wait for it
+ * rather than download it again. An evicted segment is {@link LogSegment#delete() deleted}, so reads
+ * that already hold it finish before its files go.
+ */
+final class SegmentCache implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(SegmentCache.class);
+
+    /** Downloads a segment that is not cached. */
+    interface Loader {
+        LogSegment load() throws IOException;
+    }
+
+    private final long capacityBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, LogSegment> segments = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentMap<String, CompletableFuture<LogSegment>> loading = new ConcurrentHashMap<>();
+    private final Meter hits;
+    private final Meter misses;
+    private long bytes;
+
+    /** Creates a cache that publishes {@code hits}, {@code misses} and {@code bytes} under {@code prefix}. */
+    SegmentCache(long capacityBytes, Metrics metrics, String prefix) {
+        this.capacityBytes = capacityBytes;
+        this.hits = metrics.meter(prefix + "hits");
+        this.misses = metrics.meter(prefix + "misses");
+        metrics.gauge(prefix + "bytes", this::getBytes);
+    }
+
+    /** Returns the segment cached under {@code key}, loading it with {@code loader} if there is none. */
+    LogSegment get(String key, Loader loader) throws IOException {
+        LogSegment cached = lookup(key);
+        if (cached != null) {
+            hits.mark();
+            return cached;
+        }
+        CompletableFuture<LogSegment> future = new CompletableFuture<>();
+        CompletableFuture<LogSegment> pending = loading.putIfAbsent(key, future);
+        if (pending != null) {
+            return await(pending);
+        }
+        try {
+            // Another reader may have finished loading it since the lookup
+            LogSegment segment = lookup(key);
+            if (segment == null) {
+                misses.mark();
+                segment = loader.load();
+                add(key, segment);
+            }
+            future.complete(segment);
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    private static LogSegment await(CompletableFuture<LogSegment> pending) throws IOException {
+        try {
+            return pending.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+            throw e;
+        }
+    }
+
+    private LogSegment lookup(String key) {
+        lock.lock();
+        try {
+            return segments.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(String key, LogSegment segment) {
+        lock.lock();
+        try {
+            segments.put(key, segment); // never there already, since only one reader loads it
+            bytes += segment.getSize();
+            // The segment just added is the most recently used, so it is the last to go
+            Iterator<Map.Entry<String, LogSegment>> eldest = segments.entrySet().iterator();
+            while (bytes > capacityBytes && segments.size() > 1) {
+                Map.Entry<String, LogSegment> entry = eldest.next();
+                eldest.remove();
+                bytes -= entry.getValue().getSize();
+                remove(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops the segment cached under {@code key}, e.g. once it is gone from the object store. */
+    void invalidate(String key) {
+        lock.lock();
+        try {
+            LogSegment segment = segments.remove(key);
+            if (segment != null) {
+                bytes -= segment.getSize();
+                remove(key, segment);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held, so a download of the same segment cannot write its files meanwhile
+    private static void remove(String key, LogSegment segment) {
+        try {
+            segment.delete();
+            LOG.debug("Evicted {} from the segment cache", key);
+        } catch (IOException e) {
+            LOG.error("Failed to evict {} from the segment cache", key, e);
+        }
+    }
+
+    long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            for (LogSegment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+            bytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,68 +1,141 @@
 package mega;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(Server.class);
+    private static final int ACCEPT_BACKLOG = 1024;
     private final int port;
+    private final Broker broker;
     private final ExecutorService executorService;
+    private final int poolSize; // 0 when every connection gets its own virtual thread
+    // Connections handed to the executor but not yet picked up by a thread, and those being served;
+    // connections queueing up mean the pool is saturated.
+    private final AtomicInteger queuedConnections = new AtomicInteger();
+    private final AtomicInteger servedConnections = new AtomicInteger();
+    // Closed on shutdown, since peers of a cluster keep their connections open for good
+    private final Set<ClientHandler> handlers = ConcurrentHashMap.newKeySet();
     private volatile boolean running;
-    private ServerSocket serverSocket;
+    private volatile ServerSocket serverSocket;
+
+    public enum ThreadModel {
+        /** One virtual thread per connection; idle connections cost no platform thread. */
+        VIRTUAL,
+        /** A fixed pool of platform threads, each serving one connection at a time. */
+        POOLED
+    }
 
     public Server(int port, int poolSize) {
+        this(port, ThreadModel.POOLED, poolSize);
+    }
+
+    public Server(int port, ThreadModel threadModel, int poolSize) {
+        this(port, threadModel, poolSize, Broker.getInstance());
+    }
+
+    /** Creates a server for {@code broker} rather than the process-wide one, as a node of a test cluster. */
+    public Server(int port, ThreadModel threadModel, int poolSize, Broker broker) {
         this.port = port;
-        this.executorService = Executors.newFixedThreadPool(poolSize);
+        this.broker = broker;
+        this.executorService = threadModel == ThreadModel.VIRTUAL
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("mega-client-", 0).factory())
+                : Executors.newFixedThreadPool(poolSize);
+        this.poolSize = threadModel == ThreadModel.VIRTUAL ? 0 : poolSize;
         this.running = true;
-        System.out.println("[Server] Initializing server on port " + port + " with pool size " + poolSize);
+        LOG.info("Initializing server on port {} with {}", port,
+                threadModel == ThreadModel.VIRTUAL ? "virtual threads" : "pool size " + poolSize);
     }
 
     public void start() {
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("[Server] Started successfully on port " + port);
+            // Bound through a channel so accepted sockets expose a SocketChannel for zero-copy sends.
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            LOG.info("Started successfully on port {}", port);
+            registerMetrics(broker.getMetrics());
 
             while (running) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    System.out.println("[Server] New client connection accepted from: " +
-                            clientSocket.getInetAddress() + ":" + clientSocket.getPort());
-                    executorService.submit(new ClientHandler(clientSocket));
+                    LOG.debug("New client connection accepted from {}:{}", clientSocket.getInetAddress(),
+                            clientSocket.getPort());
+                    ClientHandler handler = new ClientHandler(clientSocket, broker);
+                    queuedConnections.incrementAndGet();
+                    executorService.submit(() -> serve(handler));
                 } catch (IOException e) {
                     if (running) {
-                        System.err.println("[Server] Error accepting client connection: " + e.getMessage());
+                        LOG.warn("Error accepting client connection: {}", e.getMessage());
                     }
                 }
             }
         } catch (IOException e) {
-            System.err.println("[Server] Fatal error starting server: " + e.getMessage());
+            LOG.error("Fatal error starting server on port {}", port, e);
+        }
+    }
+
+    /** The port accepted connections arrive on, or -1 before {@link #start()} has bound it; see port 0. */
+    public int getLocalPort() {
+        ServerSocket socket = serverSocket;
+        return socket == null || !socket.isBound() ? -1 : socket.getLocalPort();
+    }
+
+    private void serve(ClientHandler handler) {
+        queuedConnections.decrementAndGet();
+        servedConnections.incrementAndGet();
+        handlers.add(handler);
+        try {
+            if (running) {
+                handler.run();
+            } else {
+                handler.close();
+            }
+        } finally {
+            handlers.remove(handler);
+            servedConnections.decrementAndGet();
         }
     }
 
+    /** Adds the {@code server.executor.*} gauges: pool size, connections queued and connections served. */
+    private void registerMetrics(Metrics metrics) {
+        metrics.gauge("server.executor.pool_size", () -> poolSize);
+        metrics.gauge("server.executor.queued", queuedConnections::get);
+        metrics.gauge("server.executor.active", servedConnections::get);
+    }
+
     @Override
     public void close() {
-        System.out.println("[Server] Initiating server shutdown");
+        LOG.info("Initiating server shutdown");
         running = false;
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
-                System.out.println("[Server] Server socket closed");
+                LOG.info("Server socket closed");
             }
 
             executorService.shutdown();
-            System.out.println("[Server] Waiting for executor service to terminate");
+            for (ClientHandler handler : handlers) {
+                handler.close();
+            }
+            LOG.info("Waiting for executor service to terminate");
 
             if (!executorService.awaitTermination(60, TimeUnit.SECONDS)) {
-                System.out.println("[Server] Forcing executor service shutdown");
+                LOG.info("Forcing executor service shutdown");
                 executorService.shutdownNow();
             }
 
-            System.out.println("[Server] Server shutdown completed");
+            LOG.info("Server shutdown completed");
         } catch (IOException | InterruptedException e) {
-            System.err.println("[Server] Error during server shutdown: " + e.getMessage());
+            LOG.error("Error during server shutdown on port {}", port, e);
             executorService.shutdownNow();
             running = false; // Reset the running flag
         }
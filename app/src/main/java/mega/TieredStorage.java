@@ -0,0 +1,162 @@
+package mega;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * The object store side of a broker's tiered storage, shared by the {@link FileLog}s of its topics.
+ * A partition's segments live under the key prefix {@code <topic>/<partition>}, each as its
+ * {@code .log}, {@code .index} and {@code .timeindex} objects, followed by the {@link RemoteSegment}
+ * written as its {@code .meta} object. Objects of a segment without one are left over from an upload
+ * cut short and are removed when the partition is loaded.
+ *
+ * Offloaded segments are read through a {@link SegmentCache} in {@value #CACHE_DIR} under the data
+ * directory, which is emptied on startup.
+ */
+final class TieredStorage implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(TieredStorage.class);
+    static final String CACHE_DIR = "__remote_cache";
+    private static final String META_SUFFIX = ".meta";
+    private static final List<String> SEGMENT_SUFFIXES = List.of(".log", ".index", ".timeindex");
+
+    private final ObjectStore store;
+    private final long localRetentionBytes;
+    private final Path cacheDir;
+    private final int segmentBytes;
+    private final int indexIntervalBytes;
+    private final SegmentCache cache;
+    private final Meter uploadedBytes;
+
+    TieredStorage(ObjectStore store, TieringConfig config, BrokerConfig brokerConfig, Metrics metrics)
+            throws IOException {
+        this.store = store;
+        this.localRetentionBytes = config.getLocalRetentionBytes();
+        this.cacheDir = brokerConfig.getDataDir().resolve(CACHE_DIR);
+        this.segmentBytes = brokerConfig.getSegmentBytes();
+        this.indexIntervalBytes = brokerConfig.getIndexIntervalBytes();
+        this.cache = new SegmentCache(config.getCacheBytes(), metrics, "tiering.cache.");
+        this.uploadedBytes = metrics.meter("tiering.uploaded_bytes");
+        if (Files.exists(cacheDir)) {
+            try (Stream<Path> files = Files.walk(cacheDir)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+        Files.createDirectories(cacheDir);
+    }
+
+    private static String key(String prefix, long baseOffset, String suffix) {
+        return prefix + "/" + LogSegment.fileName(baseOffset, suffix);
+    }
+
+    long getLocalRetentionBytes() {
+        return localRetentionBytes;
+    }
+
+    /** Returns the segments offloaded under {@code prefix} by base offset, removing incomplete uploads. */
+    NavigableMap<Long, RemoteSegment> load(String prefix) throws IOException {
+        Map<Long, List<String>> objects = new HashMap<>();
+        List<Long> complete = new ArrayList<>();
+        for (String key : store.list(prefix + "/")) {
+            String name = key.substring(prefix.length() + 1);
+            int dot = name.indexOf('.');
+            if (name.indexOf('/') >= 0 || dot < 0) {
+                continue;
+            }
+            long baseOffset = Long.parseLong(name.substring(0, dot));
+            objects.computeIfAbsent(baseOffset, offset -> new ArrayList<>()).add(key);
+            if (name.endsWith(META_SUFFIX)) {
+                complete.add(baseOffset);
+            }
+        }
+        NavigableMap<Long, RemoteSegment> segments = new TreeMap<>();
+        Path meta = Files.createTempFile(cacheDir, "load", META_SUFFIX);
+        try {
+            for (long baseOffset : complete) {
+                store.get(key(prefix, baseOffset, META_SUFFIX), meta);
+                segments.put(baseOffset, RemoteSegment.decode(baseOffset, ByteBuffer.wrap(Files.readAllBytes(meta))));
+            }
+        } finally {
+            Files.deleteIfExists(meta);
+        }
+        for (Map.Entry<Long, List<String>> entry : objects.entrySet()) {
+            if (!segments.containsKey(entry.getKey())) {
+                LOG.warn("Removing incomplete upload of segment {} of {}", entry.getKey(), prefix);
+                for (String key : entry.getValue()) {
+                    store.delete(key);
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Copies a closed segment of the log in {@code dir} to the object store and returns what the log
+     * needs to know of it; the segment that followed it starts at {@code endOffset}.
+     */
+    RemoteSegment upload(String prefix, Path dir, LogSegment segment, long endOffset) throws IOException {
+        long baseOffset = segment.getBaseOffset();
+        segment.flush();
+        for (String suffix : SEGMENT_SUFFIXES) {
+            store.put(key(prefix, baseOffset, suffix), dir.resolve(LogSegment.fileName(baseOffset, suffix)));
+        }
+        RemoteSegment remote = new RemoteSegment(baseOffset, endOffset, segment.getSize(), segment.getMaxTimestamp());
+        Path meta = Files.createTempFile(cacheDir, "upload", META_SUFFIX);
+        try {
+            Files.write(meta, remote.encode().array());
+            store.put(key(prefix, baseOffset, META_SUFFIX), meta);
+        } finally {
+            Files.deleteIfExists(meta);
+        }
+        uploadedBytes.mark(remote.getSize());
+        LOG.debug("Uploaded segment {} of {}", baseOffset, prefix);
+        return remote;
+    }
+
+    /** Removes an offloaded segment, its metadata first, so a failure part way leaves an incomplete upload. */
+    void delete(String prefix, RemoteSegment segment) throws IOException {
+        long baseOffset = segment.getBaseOffset();
+        store.delete(key(prefix, baseOffset, META_SUFFIX));
+        for (String suffix : SEGMENT_SUFFIXES) {
+            store.delete(key(prefix, baseOffset, suffix));
+        }
+        cache.invalidate(key(prefix, baseOffset, ".log"));
+    }
+
+    /** Returns the offloaded segment to read from, downloading it into the cache unless it is there. */
+    LogSegment open(String prefix, RemoteSegment segment) throws IOException {
+        long baseOffset = segment.getBaseOffset();
+        return cache.get(key(prefix, baseOffset, ".log"), () -> {
+            Path dir = cacheDir.resolve(prefix);
+            Files.createDirectories(dir);
+            for (String suffix : SEGMENT_SUFFIXES) {
+                store.get(key(prefix, baseOffset, suffix), dir.resolve(LogSegment.fileName(baseOffset, suffix)));
+            }
+            LogSegment downloaded = new LogSegment(dir, baseOffset, segmentBytes, indexIntervalBytes);
+            if (downloaded.needsRecovery()) {
+                downloaded.recover();
+            }
+            return downloaded;
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            cache.close();
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package mega;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Tiered storage settings of a disk broker, read like {@link BrokerConfig}. Tiering is on when
+ * {@code mega.tiering.dir} names the directory of the {@link LocalObjectStore} that closed segments
+ * are offloaded to; each broker of a cluster needs one of its own. A partition keeps its newest
+ * {@code mega.tiering.local.bytes} on the broker's disk, and consumes of older offsets go through a
+ * cache of downloaded segments of at most {@code mega.tiering.cache.bytes}.
+ */
+public class TieringConfig {
+    public static final TieringConfig DISABLED = new TieringConfig(null, 0, 0);
+
+    private final Path storeDir;
+    private final long localRetentionBytes;
+    private final long cacheBytes;
+
+    public TieringConfig(Path storeDir, long localRetentionBytes, long cacheBytes) {
+        if (storeDir != null && (localRetentionBytes < 0 || cacheBytes <= 0)) {
+            throw new IllegalArgumentException("Local retention cannot be negative and the cache must have room");
+        }
+        this.storeDir = storeDir;
+        this.localRetentionBytes = localRetentionBytes;
+        this.cacheBytes = cacheBytes;
+    }
+
+    public static TieringConfig load() {
+        String dir = BrokerConfig.get("mega.tiering.dir", "");
+        return new TieringConfig(dir.isEmpty() ? null : Paths.get(dir),
+                Long.parseLong(BrokerConfig.get("mega.tiering.local.bytes", String.valueOf(1L << 30))),
+                Long.parseLong(BrokerConfig.get("mega.tiering.cache.bytes", String.valueOf(512L << 20))));
+    }
+
+    public boolean isEnabled() {
+        return storeDir != null;
+    }
+
+    /** Directory of the object store, or null if tiering is off. */
+    public Path getStoreDir() {
+        return storeDir;
+    }
+
+    /** Bytes of a partition kept on local disk; older segments stay only in the object store. */
+    public long getLocalRetentionBytes() {
+        return localRetentionBytes;
+    }
+
+    /** Upper bound on the bytes of offloaded segments downloaded for reads at any one time. */
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+}
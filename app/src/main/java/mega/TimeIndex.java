@@ -0,0 +1,109 @@
+package mega;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Sparse index from timestamp to file position within one segment, kept in a memory-mapped file next
+ * to the {@link OffsetIndex}. Each entry is a timestamp (8 bytes) followed by a position (4 bytes),
+ * and says that every record before that position has a timestamp no newer than it. Entries are only
+ * added when that timestamp has grown, so they are in increasing order even when producer clocks are
+ * not, and can be binary searched. Position 0 is never indexed, so a zeroed entry marks the end of a
+ * preallocated file.
+ */
+public class TimeIndex implements AutoCloseable {
+    private static final int ENTRY_SIZE = 12;
+
+    private final Path path;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int maxEntries;
+    private volatile int entries;
+
+    public TimeIndex(Path path, int maxEntries) throws IOException {
+        this.path = path;
+        this.maxEntries = maxEntries;
+        this.file = new RandomAccessFile(path.toFile(), "rw");
+        file.setLength((long) maxEntries * ENTRY_SIZE);
+        this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) maxEntries * ENTRY_SIZE);
+        this.entries = countEntries();
+    }
+
+    private int countEntries() {
+        int count = 0;
+        while (count < maxEntries && buffer.getInt(count * ENTRY_SIZE + 8) != 0) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Records that every record before {@code position} is at most {@code timestamp} old, unless the
+     * last entry already covers it. Returns false if the index is full.
+     */
+    public boolean maybeAppend(long timestamp, int position) {
+        int count = entries;
+        if (count > 0 && timestamp <= buffer.getLong((count - 1) * ENTRY_SIZE)) {
+            return true;
+        }
+        if (count >= maxEntries) {
+            return false;
+        }
+        buffer.putLong(count * ENTRY_SIZE, timestamp);
+        buffer.putInt(count * ENTRY_SIZE + 8, position);
+        entries = count + 1;
+        return true;
+    }
+
+    /**
+     * Returns the position of the last entry whose records are all older than {@code timestamp}, or 0,
+     * from where a scan finds the first record at or after it.
+     */
+    public int lookup(long timestamp) {
+        int low = 0;
+        int high = entries - 1;
+        int position = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (buffer.getLong(mid * ENTRY_SIZE) < timestamp) {
+                position = buffer.getInt(mid * ENTRY_SIZE + 8);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return position;
+    }
+
+    /** Position of the last entry, or 0 if the index is empty. */
+    public int lastPosition() {
+        int count = entries;
+        return count == 0 ? 0 : buffer.getInt((count - 1) * ENTRY_SIZE + 8);
+    }
+
+    /** Drops all entries, e.g. before rebuilding the index from the log. */
+    public void reset() {
+        for (int i = 0; i < entries * ENTRY_SIZE; i += 4) {
+            buffer.putInt(i, 0);
+        }
+        entries = 0;
+    }
+
+    public void flush() {
+        buffer.force();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        file.setLength((long) entries * ENTRY_SIZE);
+        file.close();
+    }
+}
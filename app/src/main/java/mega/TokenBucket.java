@@ -0,0 +1,34 @@
+package mega;
+
+/**
+ * Rate limit of {@code ratePerSecond} units that may be exceeded in bursts of up to one second's
+ * worth. Charging more than the bucket holds leaves it in debt rather than failing, and answers with
+ * how long paying the debt back takes, which is what the caller holds the client back for; the debt
+ * is paid back before the client gets further, so the rate holds on average.
+ */
+final class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastNanos;
+
+    TokenBucket(long ratePerSecond, long nowNanos) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive");
+        }
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.capacity = ratePerSecond;
+        this.tokens = capacity;
+        this.lastNanos = nowNanos;
+    }
+
+    /** Takes {@code amount} units out and returns how many nanoseconds the bucket stays in debt, or 0. */
+    synchronized long charge(long amount, long nowNanos) {
+        if (nowNanos > lastNanos) {
+            tokens = Math.min(capacity, tokens + (nowNanos - lastNanos) * tokensPerNano);
+            lastNanos = nowNanos;
+        }
+        tokens -= amount;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+}
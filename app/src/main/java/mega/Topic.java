@@ -1,55 +1,370 @@
 package mega;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A named set of partitions, each an independent {@link TopicLog} with its own offsets and append
+ * path, so producers writing to different partitions never contend with each other. Records with a
+ * key always land in the same partition; unkeyed records are spread round-robin. Fetches that find
+ * too little data can park on a partition until its appends catch up, see {@link #awaitData}.
+ * How much of each partition is kept is set by the topic's {@link TopicConfig}; see {@link #clean}.
+ * Records and bytes in and out are metered across partitions, bytes as encoded in {@link RecordFormat}
+ * and a compressed batch as one record going out; see {@link #registerMetrics}.
+ */
+public class Topic implements AutoCloseable {
+    /** Partition value in a request that asks the broker to pick one. */
+    public static final int ANY_PARTITION = -1;
 
-public class Topic {
     private final String name;
-    private final Queue<Message> messages;
-    private AtomicInteger currentOffset;
-    private static final int MAX_MESSAGES = 1_000_000;
+    private final TopicLog[] partitions;
+    private final FetchWaiters[] waiters;
+    private final TopicConfig config;
+    private final AtomicInteger nextPartition = new AtomicInteger();
+    private final Meter messagesIn = new Meter();
+    private final Meter bytesIn = new Meter();
+    private final Meter messagesOut = new Meter();
+    private final Meter bytesOut = new Meter();
+    private final ProducerStates producers = new ProducerStates();
 
     public Topic(String name) {
+        this(name, 1);
+    }
+
+    /** Creates a topic with {@code partitionCount} in-memory partitions. */
+    public Topic(String name, int partitionCount) {
+        this(name, partitionCount, TopicConfig.RETAIN_ALL);
+    }
+
+    public Topic(String name, int partitionCount, TopicConfig config) {
+        this(name, inMemoryPartitions(partitionCount), config);
+    }
+
+    public Topic(String name, TopicLog log) {
+        this(name, List.of(log));
+    }
+
+    public Topic(String name, List<TopicLog> partitions) {
+        this(name, partitions, TopicConfig.RETAIN_ALL);
+    }
+
+    public Topic(String name, List<TopicLog> partitions, TopicConfig config) {
         if (name == null) {
             throw new IllegalArgumentException("Topic name cannot be null");
         }
+        if (partitions == null || partitions.isEmpty()) {
+            throw new IllegalArgumentException("Topic must have at least one partition");
+        }
         this.name = name;
-        this.messages = new ConcurrentLinkedQueue<>();
-        this.currentOffset = new AtomicInteger(0);
+        this.config = config;
+        this.partitions = partitions.toArray(new TopicLog[0]);
+        this.waiters = new FetchWaiters[this.partitions.length];
+        for (int i = 0; i < waiters.length; i++) {
+            waiters[i] = new FetchWaiters();
+        }
+    }
+
+    private static List<TopicLog> inMemoryPartitions(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Partition count must be positive");
+        }
+        TopicLog[] logs = new TopicLog[count];
+        for (int i = 0; i < count; i++) {
+            logs[i] = new InMemoryLog();
+        }
+        return Arrays.asList(logs);
+    }
+
+    /**
+     * Resolves the partition a record goes to: {@code requested} when it is not
+     * {@link #ANY_PARTITION}, otherwise a hash of {@code key}, otherwise the next partition in turn.
+     */
+    public int partitionFor(int requested, byte[] key) {
+        if (requested != ANY_PARTITION) {
+            partition(requested);
+            return requested;
+        }
+        if (key != null) {
+            return (Arrays.hashCode(key) & 0x7fffffff) % partitions.length;
+        }
+        return (nextPartition.getAndIncrement() & 0x7fffffff) % partitions.length;
     }
 
-    public int produce(Message message) {
+    private TopicLog partition(int partition) {
+        if (partition < 0 || partition >= partitions.length) {
+            throw new IllegalArgumentException(
+                    "Partition " + partition + " out of range for topic " + name + " with " + partitions.length);
+        }
+        return partitions[partition];
+    }
+
+    /** Appends a single unkeyed message to partition 0, the partition legacy PRODUCE addresses. */
+    public long produce(Message message) {
         if (message == null) {
             throw new IllegalArgumentException("Message cannot be null");
         }
+        long offset = partitions[0].append(message.getTimestamp(), message.getPayload());
+        int bytes = RecordFormat.sizeInBytes(message.getPayloadLength());
+        messagesIn.mark();
+        bytesIn.mark(bytes);
+        if (!waiters[0].isEmpty()) {
+            waiters[0].onAppend(bytes);
+        }
+        return offset;
+    }
+
+    /** Appends every payload to {@code partition} under one offset reservation and returns the first offset. */
+    public long produceBatch(int partition, long timestamp, byte[] key, List<ByteBuffer> payloads) {
+        if (payloads == null || payloads.isEmpty()) {
+            throw new IllegalArgumentException("Batch cannot be empty");
+        }
+        long baseOffset = partition(partition).append(timestamp, key, payloads);
+        int bytes = 0;
+        for (ByteBuffer payload : payloads) {
+            bytes += RecordFormat.sizeInBytes(key, payload.remaining());
+        }
+        messagesIn.mark(payloads.size());
+        bytesIn.mark(bytes);
+        FetchWaiters parked = waiters[partition];
+        if (!parked.isEmpty()) {
+            parked.onAppend(bytes);
+        }
+        return baseOffset;
+    }
+
+    /**
+     * Appends a batch the producer compressed, as one record (see {@link Compression}), and returns
+     * the offset of its first record.
+     */
+    public long produceBatch(int partition, long timestamp, byte[] key, Compression compression, int recordCount,
+            ByteBuffer compressed) {
+        if (recordCount <= 0) {
+            throw new IllegalArgumentException("Batch record count must be positive");
+        }
+        // Offsets are reserved for every record claimed, so the claim must fit what was sent
+        int maxRecords = compression.maxRecords(compressed);
+        if (recordCount > maxRecords) {
+            throw new IllegalArgumentException(
+                    "Batch claims " + recordCount + " records but may hold at most " + maxRecords);
+        }
+        int bytes = RecordFormat.sizeInBytes(key, 4 + compressed.remaining());
+        long baseOffset = partition(partition).append(timestamp, key, compression, recordCount, compressed);
+        messagesIn.mark(recordCount);
+        bytesIn.mark(bytes);
+        FetchWaiters parked = waiters[partition];
+        if (!parked.isEmpty()) {
+            parked.onAppend(bytes);
+        }
+        return baseOffset;
+    }
+
+    /**
+     * Appends records a follower fetched from its leader, keeping their offsets; see
+     * {@link TopicLog#appendReplicated}. Counted as records in, a compressed batch as one.
+     */
+    void appendReplicated(int partition, ByteBuffer records, int recordCount, long nextOffset) {
+        int bytes = records.remaining();
+        partition(partition).appendReplicated(records, nextOffset);
+        if (recordCount > 0) {
+            messagesIn.mark(recordCount);
+            bytesIn.mark(bytes);
+            FetchWaiters parked = waiters[partition];
+            if (!parked.isEmpty()) {
+                parked.onAppend(bytes);
+            }
+        }
+    }
+
+    /** Drops the records of {@code partition} from {@code offset} on; see {@link TopicLog#truncateTo}. */
+    void truncateTo(int partition, long offset) throws IOException {
+        partition(partition).truncateTo(offset);
+    }
 
-        if (currentOffset.get() >= MAX_MESSAGES) {
-            throw new IllegalStateException("Topic has reached maximum capacity");
+    /**
+     * Returns the record at {@code offset}, or null. A record inside a compressed batch is
+     * decompressed out of it, which makes this the slow way to read compressed topics.
+     */
+    public Record consume(int partition, long offset) {
+        Record record = partition(partition).read(offset);
+        if (record != null && record.isCompressed()) {
+            record = Compression.unpack(record, offset);
         }
-        if (!messages.offer(message)) {
-            throw new IllegalStateException("Failed to add message to topic");
+        if (record != null) {
+            messagesOut.mark();
+            bytesOut.mark(RecordFormat.sizeInBytes(record.getKey(), record.getPayloadLength()));
         }
-        return currentOffset.getAndIncrement();
+        return record;
     }
 
-    public Message consume(int offset) {
-        if (offset < 0 || offset >= currentOffset.get()) {
+    public RecordBatch fetch(int partition, long offset, int maxRecords, int maxBytes) {
+        if (maxRecords <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Fetch limits must be positive");
+        }
+        RecordBatch batch = partition(partition).read(offset, maxRecords, maxBytes);
+        if (batch != null && batch.getRecordCount() > 0) {
+            messagesOut.mark(batch.getRecordCount());
+            bytesOut.mark(batch.getSizeInBytes());
+        }
+        return batch;
+    }
+
+    /**
+     * Parks a fetch that read {@code availableBytes} up to {@code endOffset} until at least
+     * {@code minBytes} are readable from where it started, or {@code maxWaitNanos} pass, then runs
+     * {@code onReady} once. Returns null without parking when the partition no longer ends at
+     * {@code endOffset}, having grown past it or been truncated below it, since fetching again is
+     * then the quicker answer.
+     */
+    public FetchWaiters.Waiter awaitData(int partition, long endOffset, int availableBytes, int minBytes,
+            long maxWaitNanos, Runnable onReady) {
+        TopicLog log = partition(partition);
+        if (log.getNextOffset() != endOffset) {
             return null;
         }
+        FetchWaiters.Waiter waiter = waiters[partition].park(availableBytes, minBytes, maxWaitNanos, onReady);
+        if (log.getNextOffset() != endOffset) {
+            waiter.expire(); // an append or truncation landed before we parked and would otherwise go unnoticed
+        }
+        return waiter;
+    }
+
+    /**
+     * Runs {@code append} unless idempotent producer {@code producerId} already appended
+     * {@code sequence} to this topic, in which case the original append is returned; see
+     * {@link ProducerStates}.
+     */
+    ProducerStates.Append appendOnce(long producerId, int sequence, Supplier<ProducerStates.Append> append) {
+        return producers.append(producerId, sequence, append);
+    }
+
+    /** Forgets the sequences of producers idle for {@code idleNanos} and returns how many were dropped. */
+    int expireProducers(long idleNanos) {
+        return producers.expire(idleNanos);
+    }
+
+    /**
+     * Applies the topic's retention and compaction to every partition and returns the number of
+     * records removed. Called periodically by the broker's cleaner; appends carry on meanwhile.
+     */
+    public long clean(long nowMs) throws IOException {
+        long removed = 0;
+        if (config.needsCleaning()) {
+            for (TopicLog partition : partitions) {
+                removed += partition.clean(config, nowMs);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Offloads closed segments of every partition to tiered storage and returns how many left local
+     * disk. Compacted topics stay local, since compaction rewrites closed segments.
+     */
+    public long offload() throws IOException {
+        if (config.isCompact()) {
+            return 0;
+        }
+        long offloaded = 0;
+        for (TopicLog partition : partitions) {
+            offloaded += partition.offload();
+        }
+        return offloaded;
+    }
 
-        return messages.stream()
-                .skip(offset)
-                .findFirst()
-                .orElse(null);
+    /**
+     * Adds the topic's metrics to {@code metrics} under {@code topic.<name>.}: meters
+     * {@code messages_in}, {@code bytes_in}, {@code messages_out} and {@code bytes_out}, and gauges
+     * {@code records} and {@code size_bytes} of what its partitions retain. Called once, by the broker
+     * that serves the topic.
+     */
+    void registerMetrics(Metrics metrics) {
+        String prefix = "topic." + name + ".";
+        metrics.register(prefix + "messages_in", messagesIn);
+        metrics.register(prefix + "bytes_in", bytesIn);
+        metrics.register(prefix + "messages_out", messagesOut);
+        metrics.register(prefix + "bytes_out", bytesOut);
+        metrics.gauge(prefix + "records", this::getRecordCount);
+        metrics.gauge(prefix + "size_bytes", this::getSizeInBytes);
+        metrics.gauge(prefix + "producers", producers::size);
+    }
+
+    /** Offsets retained across partitions, counting those compaction removed records from. */
+    public long getRecordCount() {
+        long count = 0;
+        for (TopicLog partition : partitions) {
+            count += partition.getNextOffset() - partition.getStartOffset();
+        }
+        return count;
+    }
 
+    public long getSizeInBytes() {
+        long size = 0;
+        for (TopicLog partition : partitions) {
+            size += partition.getSizeInBytes();
+        }
+        return size;
     }
 
     public String getName() {
         return name;
     }
 
-    public int getCurrentOffset() {
-        return currentOffset.get();
+    public TopicConfig getConfig() {
+        return config;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    public long getNextOffset(int partition) {
+        return partition(partition).getNextOffset();
+    }
+
+    /** The next offset of every partition, by partition. */
+    long[] getNextOffsets() {
+        long[] offsets = new long[partitions.length];
+        for (int partition = 0; partition < offsets.length; partition++) {
+            offsets[partition] = partitions[partition].getNextOffset();
+        }
+        return offsets;
+    }
+
+    public long getStartOffset(int partition) {
+        return partition(partition).getStartOffset();
+    }
+
+    /** The first offset of {@code partition} at or after {@code timestamp}; see {@link TopicLog#offsetForTime}. */
+    public long offsetForTime(int partition, long timestamp) {
+        return partition(partition).offsetForTime(timestamp);
+    }
+
+    public void flush() throws IOException {
+        for (TopicLog partition : partitions) {
+            partition.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (TopicLog partition : partitions) {
+            try {
+                partition.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
     }
 }
@@ -0,0 +1,115 @@
+package mega;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * How much of a topic the broker keeps. Each partition is trimmed from its oldest end while its
+ * records are older than {@code retentionMs}, take more than {@code retentionBytes} or number more
+ * than {@code retentionRecords}; -1 disables a limit. Trimming works on whole segments (chunks, in
+ * memory), so a partition may briefly hold up to one segment more than its limits. A compacted topic
+ * additionally keeps only the latest record of each key outside the segment being appended to.
+ */
+public final class TopicConfig {
+    /** Keeps everything: no limits and no compaction. */
+    public static final TopicConfig RETAIN_ALL = new TopicConfig(-1, -1, -1, false);
+    /** Size of the config in a CREATE_TOPIC payload: three limits and the compaction flag. */
+    public static final int ENCODED_SIZE = 8 + 8 + 8 + 1;
+    static final String FILE_NAME = "topic.properties";
+
+    private final long retentionMs;
+    private final long retentionBytes;
+    private final long retentionRecords;
+    private final boolean compact;
+
+    public TopicConfig(long retentionMs, long retentionBytes, long retentionRecords, boolean compact) {
+        if (retentionMs < -1 || retentionBytes < -1 || retentionRecords < -1) {
+            throw new IllegalArgumentException("Retention limits must be -1 (unlimited) or non-negative");
+        }
+        this.retentionMs = retentionMs;
+        this.retentionBytes = retentionBytes;
+        this.retentionRecords = retentionRecords;
+        this.compact = compact;
+    }
+
+    /** Reads the config laid out as in {@link #encode}. */
+    public static TopicConfig decode(ByteBuffer buffer) {
+        return new TopicConfig(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.get() != 0);
+    }
+
+    public ByteBuffer encode(ByteBuffer buffer) {
+        return buffer.putLong(retentionMs).putLong(retentionBytes).putLong(retentionRecords)
+                .put((byte) (compact ? 1 : 0));
+    }
+
+    /** Reads the config stored in a topic directory, or returns {@code defaults} if there is none. */
+    public static TopicConfig load(Path topicDir, TopicConfig defaults) throws IOException {
+        Path file = topicDir.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return defaults;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            properties.load(reader);
+        }
+        return new TopicConfig(
+                Long.parseLong(properties.getProperty("retention.ms", String.valueOf(defaults.retentionMs))),
+                Long.parseLong(properties.getProperty("retention.bytes", String.valueOf(defaults.retentionBytes))),
+                Long.parseLong(properties.getProperty("retention.records", String.valueOf(defaults.retentionRecords))),
+                Boolean.parseBoolean(properties.getProperty("compact", String.valueOf(defaults.compact))));
+    }
+
+    public void store(Path topicDir) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("retention.ms", String.valueOf(retentionMs));
+        properties.setProperty("retention.bytes", String.valueOf(retentionBytes));
+        properties.setProperty("retention.records", String.valueOf(retentionRecords));
+        properties.setProperty("compact", String.valueOf(compact));
+        Files.createDirectories(topicDir);
+        try (Writer writer = Files.newBufferedWriter(topicDir.resolve(FILE_NAME))) {
+            properties.store(writer, null);
+        }
+    }
+
+    /** True if the cleaner has anything to do for a topic with this config. */
+    public boolean needsCleaning() {
+        return compact || retentionMs >= 0 || retentionBytes >= 0 || retentionRecords >= 0;
+    }
+
+    /**
+     * Decides whether the oldest segment of a partition may go: it may when its newest record is past
+     * the age limit, or when the records left behind it still meet the size or count limit.
+     */
+    public boolean canDrop(long segmentMaxTimestamp, long bytesAfter, long recordsAfter, long nowMs) {
+        return (retentionMs >= 0 && segmentMaxTimestamp < nowMs - retentionMs)
+                || (retentionBytes >= 0 && bytesAfter >= retentionBytes)
+                || (retentionRecords >= 0 && recordsAfter >= retentionRecords);
+    }
+
+    public long getRetentionMs() {
+        return retentionMs;
+    }
+
+    public long getRetentionBytes() {
+        return retentionBytes;
+    }
+
+    public long getRetentionRecords() {
+        return retentionRecords;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    @Override
+    public String toString() {
+        return "retention.ms=" + retentionMs + ", retention.bytes=" + retentionBytes + ", retention.records="
+                + retentionRecords + ", compact=" + compact;
+    }
+}
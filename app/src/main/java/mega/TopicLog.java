@@ -0,0 +1,100 @@
+package mega;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Storage behind a {@link Topic}. Implementations must allow concurrent appends and reads.
+ */
+public interface TopicLog extends AutoCloseable {
+    /** Appends a record and returns the offset assigned to it. */
+    long append(long timestamp, byte[] payload);
+
+    /**
+     * Appends {@code payloads} as consecutive records sharing {@code timestamp} and {@code key} (which
+     * may be null) under a single offset reservation, and returns the offset of the first one. Each
+     * payload is the remaining bytes of its buffer, typically a slice of the request, and is copied
+     * before this method returns.
+     */
+    long append(long timestamp, byte[] key, List<ByteBuffer> payloads);
+
+    /**
+     * Appends a batch of {@code recordCount} records that the producer compressed with
+     * {@code compression} as the single record described in {@link Compression}, reserving an offset
+     * for each of them, and returns the first. The compressed bytes are the remaining bytes of
+     * {@code compressed}, copied before this method returns; they are not looked into.
+     */
+    long append(long timestamp, byte[] key, Compression compression, int recordCount, ByteBuffer compressed);
+
+    /**
+     * Returns the record at {@code offset}, or null if there is none (yet) or it was cleaned away. An
+     * offset inside a compressed batch may return the batch's record instead, which the caller
+     * unpacks with {@link Compression#unpack(Record, long)}.
+     */
+    Record read(long offset);
+
+    /**
+     * Returns up to {@code maxRecords} records from {@code offset} on whose encoded size stays within
+     * {@code maxBytes}. The first record is always included so a consumer can make progress past an
+     * oversized record. A compressed batch counts as one record and is returned whole even when
+     * {@code offset} falls inside it. Offsets removed by compaction are skipped, and a fetch from below
+     * {@link #getStartOffset()} starts at the oldest retained record; the records carry their own
+     * offsets, so the consumer sees what it missed. Returns an empty batch at the tail and null if
+     * {@code offset} is negative or past the tail.
+     */
+    RecordBatch read(long offset, int maxRecords, int maxBytes);
+
+    /**
+     * Appends records copied from another replica's log, in {@link RecordFormat} with their offsets
+     * unchanged, which must lie at or past {@link #getNextOffset()}, then moves the next offset up to
+     * {@code nextOffset} if it is not there yet. Offsets skipped on the way, such as those the source
+     * compacted away, stay empty; a log with nothing retained starts over at the first record. Throws
+     * IllegalArgumentException for a record that fails its checksum or goes back in offset. Only
+     * called by the replica fetcher, never together with the other appends.
+     */
+    void appendReplicated(ByteBuffer records, long nextOffset);
+
+    /**
+     * Removes every record at or after {@code offset}, so the next append gets {@code offset} or, on
+     * disk, the offset after the last record kept. Used by a follower to drop records a new leader
+     * does not have; does nothing if the log ends at or before {@code offset}.
+     */
+    void truncateTo(long offset) throws IOException;
+
+    /**
+     * Returns the offset of the first retained record whose timestamp is at or after
+     * {@code timestamp}, the first offset of its batch if it was compressed, or the next offset if
+     * there is none. Timestamps are set by producers and need not grow with the offset; the first
+     * record in offset order wins.
+     */
+    long offsetForTime(long timestamp);
+
+    /** The offset the next appended record will receive. */
+    long getNextOffset();
+
+    /** The oldest offset retention has kept; everything below it has been dropped. */
+    long getStartOffset();
+
+    /** Bytes the retained records take up in {@link RecordFormat}, as retention by size counts them. */
+    long getSizeInBytes();
+
+    /**
+     * Drops whole segments from the oldest end while {@code config} allows it, then compacts the
+     * remaining closed segments if the topic is compacted, and returns the number of records
+     * removed. The segment being appended to is never touched, and appends are not held up; run by
+     * one cleaner thread at a time.
+     */
+    long clean(TopicConfig config, long nowMs) throws IOException;
+
+    /**
+     * Moves closed segments to tiered storage, if the log has any, and returns how many segments
+     * left local storage. Offloaded records stay readable; run by the cleaner thread.
+     */
+    long offload() throws IOException;
+
+    void flush() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,45 @@
+package mega;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Maps the UTF-8 bytes of a topic name to one canonical String, so decoding a request for a topic the
+ * connection has already seen allocates nothing and later map lookups reuse the String's cached hash.
+ * Not thread-safe: each connection's reader owns one.
+ */
+public class TopicNameCache {
+    private static final int SLOTS = 64; // Must be a power of two
+    private static final int MAX_NAME_BYTES = 4 * 1024;
+
+    private final byte[][] keys = new byte[SLOTS][];
+    private final String[] names = new String[SLOTS];
+    private byte[] scratch = new byte[256];
+
+    /** Reads a {@code length}-byte topic name from {@code input}. */
+    public String read(DataInputStream input, int length) throws IOException {
+        if (length < 0 || length > MAX_NAME_BYTES) {
+            throw new IOException("Invalid topic length: " + length);
+        }
+        if (scratch.length < length) {
+            scratch = new byte[length];
+        }
+        input.readFully(scratch, 0, length);
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + scratch[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (SLOTS - 1);
+        byte[] key = keys[slot];
+        if (key != null && Arrays.equals(key, 0, key.length, scratch, 0, length)) {
+            return names[slot];
+        }
+        key = Arrays.copyOf(scratch, length);
+        String name = new String(key, StandardCharsets.UTF_8);
+        keys[slot] = key;
+        names[slot] = name;
+        return name;
+    }
+}
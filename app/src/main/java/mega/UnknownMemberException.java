@@ -0,0 +1,7 @@
+package mega;
+
+public class UnknownMemberException extends RuntimeException {
+    public UnknownMemberException(String groupId, String memberId) {
+        super("Unknown member " + memberId + " of group " + groupId);
+    }
+}
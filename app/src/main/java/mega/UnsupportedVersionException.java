@@ -0,0 +1,8 @@
+package mega;
+
+/** Thrown when a response cannot be expressed in the protocol version the request was made in. */
+public class UnsupportedVersionException extends RuntimeException {
+    public UnsupportedVersionException(long offset, short version) {
+        super("Offset " + offset + " does not fit protocol version " + version);
+    }
+}
@@ -0,0 +1,205 @@
+package mega;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class BrokerTest {
+    @TempDir
+    Path dataDir;
+
+    private static Broker memoryBroker() {
+        return new Broker(new BrokerConfig(BrokerConfig.StorageMode.MEMORY, Path.of("unused"), 1 << 20, 4096, 0, 0));
+    }
+
+    private static List<ByteBuffer> payload(int value) {
+        return List.of(ByteBuffer.wrap(new byte[] { (byte) value }));
+    }
+
+    @Test
+    void exactlyOneConcurrentCreateSucceeds() throws InterruptedException {
+        Broker broker = memoryBroker();
+        AtomicInteger created = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 16; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    broker.createTopic("race");
+                    created.incrementAndGet();
+                } catch (TopicAlreadyExistsException e) {
+                    rejected.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, created.get());
+        assertEquals(15, rejected.get());
+    }
+
+    @Test
+    void producesToDistinctTopicsConcurrently() throws InterruptedException {
+        Broker broker = memoryBroker();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            String topic = "topic-" + t;
+            broker.createTopic(topic);
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 5_000; i++) {
+                    assertEquals(i, broker.produceBatch(topic, 0, 0L, null, payload(i)));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int t = 0; t < 8; t++) {
+            assertEquals(4_999 & 0xFF, broker.consume("topic-" + t, 4_999).getPayload()[0] & 0xFF);
+        }
+        broker.close();
+    }
+
+    @Test
+    void partitionsKeepIndependentOffsets() {
+        Broker broker = memoryBroker();
+        broker.createTopic("orders", 4);
+        for (int partition = 0; partition < 4; partition++) {
+            assertEquals(0, broker.produceBatch("orders", partition, 0L, null, payload(partition)));
+        }
+        assertEquals(1, broker.produceBatch("orders", 2, 0L, null, payload(9)));
+        assertEquals(9, broker.consume("orders", 2, 1).getPayload()[0]);
+        assertNull(broker.consume("orders", 3, 1));
+        assertThrows(IllegalArgumentException.class, () -> broker.consume("orders", 4, 0));
+        assertThrows(IllegalArgumentException.class, () -> broker.createTopic("too-many", Broker.MAX_PARTITIONS + 1));
+    }
+
+    @Test
+    void routesByKeyThenRoundRobin() {
+        Broker broker = memoryBroker();
+        broker.createTopic("orders", 4);
+        byte[] key = { 'k' };
+        int keyed = broker.partitionFor("orders", Topic.ANY_PARTITION, key);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(keyed, broker.partitionFor("orders", Topic.ANY_PARTITION, key));
+        }
+        boolean[] seen = new boolean[4];
+        for (int i = 0; i < 4; i++) {
+            seen[broker.partitionFor("orders", Topic.ANY_PARTITION, null)] = true;
+        }
+        assertArrayEquals(new boolean[] { true, true, true, true }, seen);
+        assertEquals(3, broker.partitionFor("orders", 3, key));
+    }
+
+    @Test
+    void loadsPartitionedAndLegacyTopicsFromDisk() throws IOException {
+        BrokerConfig config = new BrokerConfig(BrokerConfig.StorageMode.DISK, dataDir, 1 << 20, 4096, 0, 0);
+        try (FileLog legacy = new FileLog(dataDir.resolve("legacy"), config)) {
+            legacy.append(0L, new byte[] { 7 });
+        }
+        Broker broker = new Broker(config);
+        broker.createTopic("orders", 3);
+        broker.produceBatch("orders", 2, 0L, null, payload(5));
+        broker.close();
+
+        Broker reopened = new Broker(config);
+        assertEquals(5, reopened.consume("orders", 2, 0).getPayload()[0]);
+        assertEquals(7, reopened.consume("legacy", 0).getPayload()[0]);
+        assertThrows(IllegalArgumentException.class, () -> reopened.consume("orders", 3, 0));
+        reopened.close();
+    }
+
+    @Test
+    void parkedFetchWakesOnAppendOrDeadline() throws InterruptedException, IOException {
+        Broker broker = memoryBroker();
+        broker.createTopic("tail");
+        CountDownLatch woken = new CountDownLatch(1);
+        FetchWaiters.Waiter waiter = broker.awaitFetch("tail", 0, 0, 0, 1, TimeUnit.SECONDS.toNanos(30),
+                woken::countDown);
+        assertNotNull(waiter);
+        assertFalse(waiter.isDone());
+        broker.produceBatch("tail", 0, 0L, null, payload(1));
+        assertTrue(woken.await(1, TimeUnit.SECONDS));
+
+        CountDownLatch expired = new CountDownLatch(1);
+        broker.awaitFetch("tail", 0, 1, 0, 1 << 20, TimeUnit.MILLISECONDS.toNanos(50), expired::countDown);
+        broker.produceBatch("tail", 0, 0L, null, payload(2));
+        assertTrue(expired.await(1, TimeUnit.SECONDS), "too few bytes, so only the deadline wakes it");
+
+        assertNull(broker.awaitFetch("tail", 0, 1, 0, 1, TimeUnit.SECONDS.toNanos(30), () -> { }),
+                "a fetch behind the tail is answered instead of parked");
+
+        broker.getTopic("tail").truncateTo(0, 1);
+        assertNull(broker.awaitFetch("tail", 0, 3, 0, 1, TimeUnit.SECONDS.toNanos(30), () -> { }),
+                "a fetch past a truncated tail is answered instead of parked");
+    }
+
+    @Test
+    void rejectsUnknownTopic() {
+        Broker broker = memoryBroker();
+        assertThrows(TopicNotFoundException.class, () -> broker.produceBatch("missing", 0, 0L, null, payload(1)));
+        assertThrows(TopicNotFoundException.class, () -> broker.consume("missing", 0));
+    }
+
+    private static ProducerStates.Append produceOnce(Broker broker, long producerId, int sequence, int value) {
+        return broker.appendOnce("idempotent", producerId, sequence, () -> {
+            int partition = broker.partitionFor("idempotent", Topic.ANY_PARTITION, null);
+            return new ProducerStates.Append(partition,
+                    broker.produceBatch("idempotent", partition, 0L, null, payload(value)), 1);
+        });
+    }
+
+    @Test
+    void retriedProduceIsAnsweredWithTheOriginalAppend() {
+        Broker broker = memoryBroker();
+        broker.createTopic("idempotent", 3);
+        long producerId = broker.initProducerId();
+        ProducerStates.Append first = produceOnce(broker, producerId, 0, 1);
+        assertFalse(first.duplicate);
+        produceOnce(broker, producerId, 1, 2);
+
+        ProducerStates.Append retry = produceOnce(broker, producerId, 0, 1);
+        assertTrue(retry.duplicate);
+        assertEquals(first.partition, retry.partition, "an unkeyed retry goes back to its first partition");
+        assertEquals(first.baseOffset, retry.baseOffset);
+        long records = 0;
+        for (int partition = 0; partition < 3; partition++) {
+            records += broker.fetch("idempotent", partition, 0, 100, 1 << 20).getRecordCount();
+        }
+        assertEquals(2, records);
+        assertFalse(produceOnce(broker, broker.initProducerId(), 0, 3).duplicate, "sequences are per producer");
+        broker.close();
+    }
+
+    @Test
+    void sequencesOutsideTheWindowAreRejected() {
+        Broker broker = memoryBroker();
+        broker.createTopic("idempotent");
+        long producerId = broker.initProducerId();
+        produceOnce(broker, producerId, 5, 0);
+        assertFalse(produceOnce(broker, producerId, 3, 0).duplicate, "pipelined produces may arrive out of order");
+        produceOnce(broker, producerId, 5 + ProducerStates.WINDOW, 0);
+        assertThrows(OutOfOrderSequenceException.class, () -> produceOnce(broker, producerId, 5, 0));
+        assertFalse(produceOnce(broker, producerId, 6, 0).duplicate, "still within the window");
+        broker.close();
+    }
+}
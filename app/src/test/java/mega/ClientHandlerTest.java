@@ -0,0 +1,258 @@
+package mega;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class ClientHandlerTest {
+    private Broker broker;
+    private Server server;
+    private int port;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        broker = new Broker(new BrokerConfig(BrokerConfig.StorageMode.MEMORY, Path.of("unused"), 1 << 20, 4096, 0,
+                0));
+        server = new Server(port, Server.ThreadModel.VIRTUAL, 0, broker);
+        Thread.ofVirtual().start(server::start);
+        while (server.getLocalPort() < 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+        broker.close();
+    }
+
+    private void produce(String topic, int count) {
+        List<ByteBuffer> payloads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            payloads.add(ByteBuffer.wrap(("record-" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        broker.produceBatch(topic, 0, System.currentTimeMillis(), null, payloads);
+    }
+
+    /** A frame of a fetch-shaped answer, or of an error when {@code error} is set. */
+    private record Frame(int correlationId, ErrorCode error, long nextOffset, int recordCount) {
+    }
+
+    /** A connection speaking version 1, whose offsets are 8 bytes. */
+    private static final class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final DataInputStream input;
+        private final DataOutputStream output;
+
+        Connection(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writeHeader(0, MessageType.API_VERSIONS, "");
+            output.writeInt(2);
+            output.writeShort(Message.VERSION_1);
+            output.flush();
+            input.readInt();
+            assertEquals(1, input.readByte());
+            assertEquals(Message.VERSION_1, input.readShort());
+        }
+
+        void writeHeader(int correlationId, MessageType type, String topic) throws IOException {
+            byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(correlationId);
+            output.writeByte(type.getCode());
+            output.writeInt(name.length);
+            output.write(name);
+            output.writeLong(System.currentTimeMillis());
+        }
+
+        void subscribe(int id, String topic, long offset, int credit) throws IOException {
+            writeHeader(id, MessageType.SUBSCRIBE, topic);
+            output.writeInt(0);
+            output.writeLong(offset);
+            output.writeInt(credit);
+            output.writeInt(0);
+            output.flush();
+        }
+
+        void credit(int id, int credit) throws IOException {
+            writeHeader(id, MessageType.CREDIT, "");
+            output.writeInt(credit);
+            output.writeInt(0);
+            output.flush();
+        }
+
+        /** Writes a fetch without flushing it, so that several requests can go out back to back. */
+        void fetch(int id, String topic, long offset, int maxWaitMs) throws IOException {
+            writeHeader(id, MessageType.FETCH, topic);
+            output.writeInt(0);
+            output.writeLong(offset);
+            output.writeInt(100);
+            output.writeInt(1 << 20);
+            output.writeInt(maxWaitMs);
+            output.writeInt(1);
+            output.writeInt(0);
+        }
+
+        /** Writes a produce without flushing it, like {@link #fetch}. */
+        void produce(int id, String topic, String value) throws IOException {
+            byte[] payload = value.getBytes(StandardCharsets.UTF_8);
+            writeHeader(id, MessageType.PRODUCE, topic);
+            output.writeInt(payload.length);
+            output.write(payload);
+        }
+
+        void flush() throws IOException {
+            output.flush();
+        }
+
+        /** Reads a fetch-shaped frame or an error, skipping the records. */
+        Frame readFrame() throws IOException {
+            return readFrame(Map.of());
+        }
+
+        /**
+         * Reads the answer to one of the requests in {@code produces}, which is shaped as a frame of the
+         * record it appended, or else a fetch-shaped frame or an error.
+         */
+        Frame readFrame(Map<Integer, MessageType> produces) throws IOException {
+            int correlationId = input.readInt();
+            if (input.readByte() == 0) {
+                return new Frame(correlationId, ErrorCode.fromCode(input.readByte()), -1, 0);
+            }
+            if (produces.get(correlationId) == MessageType.PRODUCE) {
+                input.readLong(); // the produce's timestamp
+                return new Frame(correlationId, null, input.readLong() + 1, 1);
+            }
+            long nextOffset = input.readLong();
+            int recordCount = input.readInt();
+            input.skipNBytes(input.readInt());
+            return new Frame(correlationId, null, nextOffset, recordCount);
+        }
+
+        /** True if nothing arrives within {@code millis}. */
+        boolean quietFor(int millis) throws IOException {
+            socket.setSoTimeout(millis);
+            try {
+                input.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /** Reads pushes of subscription {@code id} until {@code records} have arrived, and returns the next offset. */
+    private static long readPushes(Connection connection, int id, int records) throws IOException {
+        long nextOffset = -1;
+        for (int received = 0; received < records;) {
+            Frame frame = connection.readFrame();
+            assertEquals(id, frame.correlationId());
+            assertNull(frame.error(), "stream failed");
+            assertTrue(frame.recordCount() > 0, "a push holds records");
+            received += frame.recordCount();
+            assertTrue(received <= records, "pushed past the credit");
+            nextOffset = frame.nextOffset();
+        }
+        return nextOffset;
+    }
+
+    @Test
+    void subscriptionStopsAtItsCreditAndResumesWhenGrantedMore() throws Exception {
+        broker.createTopic("stream");
+        produce("stream", 10);
+        try (Connection connection = new Connection(port)) {
+            connection.subscribe(7, "stream", 0, 4);
+            Frame start = connection.readFrame();
+            assertEquals(new Frame(7, null, 0, 0), start, "the stream opens with an empty push");
+
+            assertEquals(4, readPushes(connection, 7, 4));
+            assertTrue(connection.quietFor(300), "nothing is pushed once the credit is spent");
+
+            connection.credit(7, 3);
+            assertEquals(7, readPushes(connection, 7, 3));
+            assertTrue(connection.quietFor(300));
+
+            connection.credit(7, 100);
+            assertEquals(10, readPushes(connection, 7, 3));
+            produce("stream", 2);
+            assertEquals(12, readPushes(connection, 7, 2), "new records are pushed as they are produced");
+
+            // A new leader cuts the log back below the stream; the next append reveals the lost offset
+            broker.getTopic("stream").truncateTo(0, 5);
+            produce("stream", 1);
+            Frame end = connection.readFrame();
+            assertEquals(7, end.correlationId());
+            assertEquals(ErrorCode.INVALID_OFFSET, end.error());
+            assertTrue(connection.quietFor(300), "the error is the stream's last frame");
+        }
+    }
+
+    @Test
+    void pipelinedRequestsAreNotHeldUpByAParkedFetch() throws Exception {
+        broker.createTopic("events");
+        broker.createTopic("idle");
+        produce("events", 1);
+        try (Connection connection = new Connection(port)) {
+            long start = System.nanoTime();
+            connection.fetch(1, "events", 0, 0);
+            connection.fetch(2, "idle", 0, 2000); // nothing comes, so it waits out its time
+            connection.produce(3, "events", "pipelined");
+            connection.fetch(4, "events", 1, 0);
+            connection.produce(5, "events", "pipelined again");
+            connection.flush();
+
+            Map<Integer, MessageType> produces = Map.of(3, MessageType.PRODUCE, 5, MessageType.PRODUCE);
+            Map<Integer, Frame> answers = new HashMap<>();
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                Frame frame = connection.readFrame(produces);
+                assertNull(answers.put(frame.correlationId(), frame), "answered twice: " + frame);
+                assertNull(frame.error(), "failed: " + frame);
+                order.add(frame.correlationId());
+                if (i == 3) {
+                    long waitedMs = (System.nanoTime() - start) / 1_000_000;
+                    assertTrue(waitedMs < 1500, "the later requests waited " + waitedMs + " ms");
+                }
+            }
+            assertEquals(Set.of(1, 2, 3, 4, 5), new HashSet<>(order));
+            assertEquals(2, (int) order.get(4), "the parked fetch is answered last, in " + order);
+            assertTrue(connection.quietFor(300), "every request is answered once");
+
+            assertEquals(new Frame(1, null, 1, 1), answers.get(1));
+            assertEquals(new Frame(2, null, 0, 0), answers.get(2), "the wait ends with nothing to fetch");
+            assertEquals(new Frame(3, null, 2, 1), answers.get(3));
+            assertEquals(new Frame(5, null, 3, 1), answers.get(5));
+            assertEquals(2, answers.get(4).nextOffset(), "the fetch sees the produce sent ahead of it");
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package mega;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+class CompressionTest {
+    static ByteBuffer entries(String... payloads) {
+        int size = 0;
+        for (String payload : payloads) {
+            size += 4 + payload.getBytes(StandardCharsets.UTF_8).length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (String payload : payloads) {
+            byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length).put(bytes);
+        }
+        return buffer.flip();
+    }
+
+    @Test
+    void roundTripsRepetitiveAndRandomInput() {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            json.append("{\"user\":\"user-").append(i % 37).append("\",\"event\":\"page_view\",\"ms\":").append(i)
+                    .append("}\n");
+        }
+        byte[] text = json.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = Compression.LZ.compress(ByteBuffer.wrap(text));
+        assertTrue(compressed.length * 5 < text.length, "JSON should shrink at least 5x, got " + compressed.length);
+        assertArrayEquals(text, Compression.LZ.decompress(ByteBuffer.wrap(compressed)));
+
+        byte[] random = new byte[10_000];
+        new Random(7).nextBytes(random);
+        assertArrayEquals(random, Compression.LZ.decompress(ByteBuffer.wrap(Compression.LZ.compress(ByteBuffer.wrap(random)))));
+        for (int length = 0; length < 20; length++) {
+            byte[] small = new byte[length];
+            assertArrayEquals(small, Compression.LZ.decompress(ByteBuffer.wrap(Compression.LZ.compress(ByteBuffer.wrap(small)))));
+        }
+    }
+
+    @Test
+    void rejectsCorruptInput() {
+        byte[] compressed = Compression.LZ.compress(ByteBuffer.wrap(new byte[1000]));
+        ByteBuffer truncated = ByteBuffer.wrap(compressed, 0, compressed.length - 1);
+        assertThrows(IllegalArgumentException.class, () -> Compression.LZ.decompress(truncated));
+        // Length, token, one literal zero, then the first match's distance: point it before the start
+        compressed[7] = (byte) 0x7F;
+        assertThrows(IllegalArgumentException.class, () -> Compression.LZ.decompress(ByteBuffer.wrap(compressed)));
+    }
+
+    @Test
+    void unpacksRecordsWithTheirOffsets() {
+        byte[] compressed = Compression.LZ.compress(entries("a", "bb", "ccc"));
+        byte[] payload = ByteBuffer.allocate(4 + compressed.length).putInt(3).put(compressed).array();
+        Record batch = new Record(12, 99, new byte[] { 1 }, payload, Compression.LZ.getCode());
+
+        List<Record> records = Compression.unpack(batch);
+        assertEquals(3, records.size());
+        assertEquals(10, records.get(0).getOffset());
+        assertArrayEquals("bb".getBytes(StandardCharsets.UTF_8), records.get(1).getPayload());
+        assertEquals(99, records.get(2).getTimestamp());
+        assertEquals(11, Compression.unpack(batch, 11).getOffset());
+        assertNull(Compression.unpack(batch, 9));
+    }
+
+    @Test
+    void rejectsBatchesClaimingMoreRecordsThanTheyHold() {
+        Topic topic = new Topic("claims", 1);
+        byte[] compressed = Compression.LZ.compress(entries("a", "bb", "ccc"));
+        // 18 bytes of entries could hold at most 4 empty ones
+        assertEquals(4, Compression.LZ.maxRecords(ByteBuffer.wrap(compressed)));
+        assertThrows(IllegalArgumentException.class, () -> topic.produceBatch(0, 1, null, Compression.LZ,
+                Integer.MAX_VALUE, ByteBuffer.wrap(compressed)));
+        assertThrows(IllegalArgumentException.class, () -> topic.produceBatch(0, 1, null, Compression.LZ, 5,
+                ByteBuffer.wrap(compressed)));
+        assertEquals(0, topic.getRecordCount(), "no offsets are reserved for a rejected batch");
+        assertEquals(0, topic.produceBatch(0, 1, null, Compression.LZ, 3, ByteBuffer.wrap(compressed)));
+        assertEquals(3, topic.getRecordCount());
+
+        byte[] forged = ByteBuffer.allocate(4 + compressed.length).putInt(1 << 20).put(compressed).array();
+        Record batch = new Record(1 << 20, 1, null, forged, Compression.LZ.getCode());
+        assertThrows(IllegalArgumentException.class, () -> Compression.recordCount(batch));
+        assertThrows(IllegalArgumentException.class, () -> Compression.unpack(batch));
+    }
+
+    @Test
+    void capsTheRecordsOfACompressedBatch() {
+        Topic topic = new Topic("capped", 1);
+        ByteBuffer empty = ByteBuffer.allocate(4 * (Compression.MAX_BATCH_RECORDS + 1));
+        byte[] compressed = Compression.LZ.compress(empty);
+        assertTrue(compressed.length < 4096, "empty entries compress well");
+        assertEquals(Compression.MAX_BATCH_RECORDS, Compression.LZ.maxRecords(ByteBuffer.wrap(compressed)));
+        assertThrows(IllegalArgumentException.class, () -> topic.produceBatch(0, 1, null, Compression.LZ,
+                Compression.MAX_BATCH_RECORDS + 1, ByteBuffer.wrap(compressed)));
+        assertEquals(0, topic.getRecordCount());
+        assertEquals(0, topic.produceBatch(0, 1, null, Compression.LZ, Compression.MAX_BATCH_RECORDS,
+                ByteBuffer.wrap(compressed)));
+        assertEquals(Compression.MAX_BATCH_RECORDS, topic.getRecordCount());
+    }
+}
@@ -0,0 +1,376 @@
+package mega;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+class FileLogTest {
+    @TempDir
+    Path dir;
+
+    private BrokerConfig config(int segmentBytes) {
+        return new BrokerConfig(BrokerConfig.StorageMode.DISK, dir, segmentBytes, 256, 0, 0);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void readsBackAppendedRecordsAcrossSegments() throws IOException {
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i, log.append(i, bytes("message-" + i)));
+            }
+            for (int i = 0; i < 1000; i++) {
+                Record record = log.read(i);
+                assertEquals(i, record.getOffset());
+                assertEquals(i, record.getTimestamp());
+                assertArrayEquals(bytes("message-" + i), record.getPayload());
+            }
+            assertNull(log.read(1000));
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.filter(p -> p.toString().endsWith(".log")).count() > 1, "log should have rolled");
+        }
+    }
+
+    @Test
+    void recoversRecordsAfterReopening() throws IOException {
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            for (int i = 0; i < 500; i++) {
+                log.append(i, bytes("message-" + i));
+            }
+        }
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            assertEquals(500, log.getNextOffset());
+            assertArrayEquals(bytes("message-321"), log.read(321).getPayload());
+            assertEquals(500, log.append(500, bytes("after restart")));
+        }
+    }
+
+    @Test
+    void truncatesTornWriteOnRecovery() throws IOException {
+        try (FileLog log = new FileLog(dir, config(1 << 20))) {
+            for (int i = 0; i < 10; i++) {
+                log.append(i, bytes("message-" + i));
+            }
+        }
+        Path segment = dir.resolve(LogSegment.fileName(0, ".log"));
+        long intactSize = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(intactSize - 3);
+        }
+        try (FileLog log = new FileLog(dir, config(1 << 20))) {
+            assertEquals(9, log.getNextOffset());
+            assertNull(log.read(9));
+            assertEquals(9, log.append(9, bytes("rewritten")));
+            assertArrayEquals(bytes("rewritten"), log.read(9).getPayload());
+        }
+    }
+
+    @Test
+    void fetchesBatchesWithinLimits() throws IOException {
+        try (FileLog log = new FileLog(dir, config(1 << 20))) {
+            for (int i = 0; i < 100; i++) {
+                log.append(i, bytes("message-" + i));
+            }
+            RecordBatch batch = log.read(10, 20, 1 << 20);
+            assertEquals(20, batch.getRecordCount());
+            assertEquals(30, batch.getNextOffset());
+
+            int recordSize = RecordFormat.sizeInBytes(bytes("message-10").length);
+            RecordBatch limited = log.read(10, 20, recordSize * 3 + 1);
+            assertEquals(3, limited.getRecordCount());
+            assertEquals(recordSize * 3, limited.getSizeInBytes());
+
+            assertEquals(1, log.read(10, 20, 1).getRecordCount(), "first record is always returned");
+            assertEquals(0, log.read(100, 20, 1024).getRecordCount());
+            assertNull(log.read(101, 20, 1024));
+        }
+    }
+
+    @Test
+    void appendsBatchUnderOneReservation() throws IOException {
+        List<ByteBuffer> payloads = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            payloads.add(ByteBuffer.wrap(bytes("batched-" + i)));
+        }
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            log.append(0, bytes("single"));
+            assertEquals(1, log.append(7, null, payloads));
+            assertEquals(201, log.append(8, bytes("key"), payloads));
+            assertEquals(401, log.getNextOffset());
+        }
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            assertEquals(401, log.getNextOffset());
+            assertNull(log.read(1).getKey());
+            for (int i = 0; i < 200; i++) {
+                Record record = log.read(201 + i);
+                assertEquals(201 + i, record.getOffset());
+                assertEquals(8, record.getTimestamp());
+                assertArrayEquals(bytes("key"), record.getKey());
+                assertArrayEquals(bytes("batched-" + i), record.getPayload());
+            }
+        }
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".log")).count();
+        }
+    }
+
+    @Test
+    void retentionDeletesOldestClosedSegments() throws IOException {
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            for (int i = 0; i < 1000; i++) {
+                log.append(i, bytes("message-" + i));
+            }
+            long segments = segmentCount();
+            assertEquals(0, log.clean(new TopicConfig(-1, -1, 1000, false), 0));
+
+            long removed = log.clean(new TopicConfig(-1, -1, 500, false), 0);
+            long start = log.getStartOffset();
+            assertTrue(removed > 0 && start == removed, "whole segments from the start are dropped");
+            assertTrue(1000 - start >= 500, "at least the retained count is kept");
+            assertTrue(segmentCount() < segments);
+            assertNull(log.read(start - 1));
+            assertArrayEquals(bytes("message-" + start), log.read(start).getPayload());
+            assertEquals(start + 1, log.read(0, 1, 1024).getNextOffset(), "fetch below the start serves the oldest record");
+
+            log.clean(new TopicConfig(-1, 0, -1, false), 0);
+            assertEquals(1, segmentCount(), "the active segment is always kept");
+            assertEquals(1000, log.append(0, bytes("after")));
+        }
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            assertEquals(1001, log.getNextOffset());
+            assertTrue(log.getStartOffset() > 0);
+        }
+    }
+
+    @Test
+    void retentionByAgeUsesNewestTimestampOfSegment() throws IOException {
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            for (int i = 0; i < 1000; i++) {
+                log.append(i, bytes("message-" + i));
+            }
+        }
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            assertEquals(0, log.clean(new TopicConfig(1000, -1, -1, false), 1000));
+            log.clean(new TopicConfig(1000, -1, -1, false), 1500);
+            long start = log.getStartOffset();
+            assertTrue(start > 0 && start <= 500, "segments holding records newer than 500 are kept");
+        }
+    }
+
+    @Test
+    void storesCompressedBatchAsOneRecordAndRecoversIt() throws IOException {
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            log.append(0, bytes("plain"));
+            ByteBuffer compressed = ByteBuffer.wrap(Compression.LZ.compress(CompressionTest.entries("x", "y", "z")));
+            assertEquals(1, log.append(7, bytes("k"), Compression.LZ, 3, compressed));
+            assertEquals(4, log.append(8, bytes("after")));
+        }
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            assertEquals(5, log.getNextOffset());
+            Record batch = log.read(2);
+            assertTrue(batch.isCompressed());
+            assertEquals(3, batch.getOffset());
+            assertArrayEquals(bytes("y"), Compression.unpack(batch, 2).getPayload());
+
+            RecordBatch fetched = log.read(1, 10, 1 << 20);
+            assertEquals(2, fetched.getRecordCount());
+            assertTrue(fetched.isCompressed());
+            RecordBatch plain = fetched.decompressed(2);
+            assertEquals(3, plain.getRecordCount(), "records before the fetch offset are left out");
+            assertEquals(5, plain.getNextOffset());
+            assertEquals(2, plain.getRecords().get(0).getOffset());
+            assertArrayEquals(bytes("k"), plain.getRecords().get(0).getKey());
+            assertFalse(log.read(4, 10, 1 << 20).isCompressed());
+        }
+    }
+
+    /** The first offset whose timestamp is at or after {@code target}, by scanning every one. */
+    private static long firstAtOrAfter(long[] timestamps, long target) {
+        for (int i = 0; i < timestamps.length; i++) {
+            if (timestamps[i] >= target) {
+                return i;
+            }
+        }
+        return timestamps.length;
+    }
+
+    @Test
+    void findsOffsetsByTimestampAcrossSegmentsAndRestarts() throws IOException {
+        long[] timestamps = new long[1000];
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            for (int i = 0; i < timestamps.length; i++) {
+                // Mostly increasing, with every seventh record from a producer whose clock lags behind
+                timestamps[i] = i % 7 == 6 ? 10L * i - 500 : 10L * i;
+                log.append(timestamps[i], bytes("message-" + i));
+            }
+            for (long target = -600; target <= 10_010; target += 37) {
+                assertEquals(firstAtOrAfter(timestamps, target), log.offsetForTime(target), "time " + target);
+            }
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.toString().endsWith(".timeindex")) {
+                    Files.delete(file); // as if written before time indexes existed
+                }
+            }
+        }
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            for (long target = -600; target <= 10_010; target += 41) {
+                assertEquals(firstAtOrAfter(timestamps, target), log.offsetForTime(target), "time " + target);
+            }
+        }
+    }
+
+    @Test
+    void offsetForTimeFindsTheStartOfACompressedBatch() throws IOException {
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            log.append(5, bytes("plain"));
+            ByteBuffer compressed = ByteBuffer.wrap(Compression.LZ.compress(CompressionTest.entries("x", "y", "z")));
+            log.append(20, bytes("k"), Compression.LZ, 3, compressed);
+            assertEquals(0, log.offsetForTime(5));
+            assertEquals(1, log.offsetForTime(6), "the whole batch shares its timestamp");
+            assertEquals(4, log.offsetForTime(21));
+        }
+    }
+
+    @Test
+    void compactionKeepsLatestRecordPerKey() throws IOException {
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            for (int i = 0; i < 1000; i++) {
+                log.append(i, bytes("key-" + i % 10), List.of(ByteBuffer.wrap(bytes("value-" + i))));
+            }
+            log.append(0, bytes("unkeyed"));
+            log.append(0, bytes("key-3"), List.of(ByteBuffer.wrap(bytes("latest"))));
+
+            assertTrue(log.clean(new TopicConfig(-1, -1, -1, true), 0) > 900);
+            assertNull(log.read(0));
+            assertArrayEquals(bytes("unkeyed"), log.read(1000).getPayload());
+            RecordBatch batch = log.read(0, 1000, 1 << 20);
+            assertTrue(batch.getRecordCount() > 0);
+            assertTrue(batch.getNextOffset() > 10, "compacted offsets are skipped");
+            assertEquals(0, log.clean(new TopicConfig(-1, -1, -1, true), 0), "nothing left to compact");
+        }
+        try (FileLog log = new FileLog(dir, config(4096))) {
+            assertEquals(1002, log.getNextOffset());
+            assertArrayEquals(bytes("latest"), log.read(1001).getPayload());
+            assertArrayEquals(bytes("value-999"), log.read(999).getPayload());
+            int live = 0;
+            for (int offset = 0; offset < 1002; offset++) {
+                if (log.read(offset) != null) {
+                    live++;
+                }
+            }
+            assertTrue(live < 100, "only the latest values and the active segment remain: " + live);
+        }
+    }
+
+    private static ByteBuffer encode(RecordBatch batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        batch.writeTo(Channels.newChannel(bytes));
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    @Test
+    void sendingABatchCutShortFailsInsteadOfSpinning() throws IOException {
+        try (FileLog log = new FileLog(dir, config(1 << 20))) {
+            for (int i = 0; i < 100; i++) {
+                log.append(i, bytes("message-" + i));
+            }
+            RecordBatch batch = log.read(0, 100, 1 << 20);
+            Record record = log.read(50);
+            assertInstanceOf(FileRecord.class, record);
+            try (FileChannel file = FileChannel.open(dir.resolve(LogSegment.fileName(0, ".log")),
+                    StandardOpenOption.WRITE)) {
+                file.truncate(200);
+            }
+            assertThrows(EOFException.class, () -> encode(batch));
+            assertThrows(EOFException.class,
+                    () -> record.transferPayloadTo(Channels.newChannel(new ByteArrayOutputStream())));
+        }
+    }
+
+    @Test
+    void truncationLeavesBatchesBeingSentIntact() throws IOException {
+        try (FileLog log = new FileLog(dir, config(1 << 20))) {
+            for (int i = 0; i < 100; i++) {
+                log.append(i, bytes("message-" + i));
+            }
+            RecordBatch batch = log.read(0, 100, 1 << 20);
+            log.truncateTo(50);
+            assertEquals(50, log.getNextOffset());
+            assertNull(log.read(60));
+            ByteBuffer sent = encode(batch);
+            assertEquals(batch.getSizeInBytes(), sent.remaining(), "the old file still backs the batch");
+            assertEquals(50, log.append(0, bytes("after")));
+        }
+        try (FileLog log = new FileLog(dir, config(1 << 20))) {
+            assertEquals(51, log.getNextOffset());
+            assertArrayEquals(bytes("message-49"), log.read(49).getPayload());
+            assertArrayEquals(bytes("after"), log.read(50).getPayload());
+        }
+    }
+
+    @Test
+    void replicatedRecordsKeepTheirOffsetsAndTruncateDropsTheTail() throws IOException {
+        try (FileLog leader = new FileLog(dir.resolve("leader"), config(4096));
+                FileLog follower = new FileLog(dir.resolve("follower"), config(4096))) {
+            for (int i = 0; i < 300; i++) {
+                leader.append(i, bytes("message-" + i));
+            }
+            for (long offset = 0; offset < leader.getNextOffset();) {
+                RecordBatch batch = leader.read(offset, 64, 1 << 20);
+                follower.appendReplicated(encode(batch), batch.getNextOffset());
+                offset = batch.getNextOffset();
+            }
+            assertEquals(300, follower.getNextOffset());
+            assertArrayEquals(bytes("message-123"), follower.read(123).getPayload());
+            assertThrows(IllegalArgumentException.class,
+                    () -> follower.appendReplicated(encode(leader.read(10, 1, 1 << 20)), 11), "offsets go back");
+
+            follower.truncateTo(150);
+            assertEquals(150, follower.getNextOffset());
+            assertNull(follower.read(150));
+            assertArrayEquals(bytes("message-149"), follower.read(149).getPayload());
+            assertEquals(150, follower.append(0, bytes("after truncation")));
+        }
+        try (FileLog follower = new FileLog(dir.resolve("follower"), config(4096))) {
+            assertEquals(151, follower.getNextOffset());
+            assertArrayEquals(bytes("after truncation"), follower.read(150).getPayload());
+        }
+    }
+
+    @Test
+    void emptyReplicaStartsAtTheLeadersFirstOffset() throws IOException {
+        try (FileLog leader = new FileLog(dir.resolve("leader"), config(4096));
+                FileLog follower = new FileLog(dir.resolve("follower"), config(4096))) {
+            for (int i = 0; i < 100; i++) {
+                leader.append(i, bytes("message-" + i));
+            }
+            follower.appendReplicated(encode(leader.read(40, 100, 1 << 20)), 100);
+            assertEquals(100, follower.getNextOffset());
+            assertNull(follower.read(39));
+            assertArrayEquals(bytes("message-40"), follower.read(40).getPayload());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package mega;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+class GroupCoordinatorTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void splitsPartitionsIntoRangesAndRebalancesOnMembershipChange() {
+        GroupCoordinator coordinator = new GroupCoordinator(null, 10_000);
+        ConsumerGroup.Assignment first = coordinator.join("g", "t", 5, "a");
+        assertArrayEquals(new int[] { 0, 1, 2, 3, 4 }, first.getPartitions());
+
+        ConsumerGroup.Assignment second = coordinator.join("g", "t", 5, "b");
+        assertEquals(first.getGeneration() + 1, second.getGeneration());
+        assertArrayEquals(new int[] { 2, 3, 4 }, second.getPartitions());
+        assertEquals(second.getGeneration(), coordinator.heartbeat("g", "a"), "a learns of the rebalance");
+        assertArrayEquals(new int[] { 0, 1 }, coordinator.join("g", "t", 5, "a").getPartitions());
+
+        int generation = coordinator.leave("g", "b");
+        assertArrayEquals(new int[] { 0, 1, 2, 3, 4 }, coordinator.join("g", "t", 5, "a").getPartitions());
+        assertEquals(generation, coordinator.heartbeat("g", "a"));
+        assertThrows(UnknownMemberException.class, () -> coordinator.heartbeat("g", "b"));
+        assertThrows(IllegalArgumentException.class, () -> coordinator.join("g", "other", 5, "c"));
+    }
+
+    @Test
+    void fencesCommitsFromStaleGenerationsAndUnownedPartitions() {
+        GroupCoordinator coordinator = new GroupCoordinator(null, 10_000);
+        int stale = coordinator.join("g", "t", 2, "a").getGeneration();
+        int current = coordinator.join("g", "t", 2, "b").getGeneration();
+
+        assertThrows(IllegalGenerationException.class, () -> coordinator.commit("g", "t", "a", stale, 0, 5));
+        assertThrows(IllegalGenerationException.class, () -> coordinator.commit("g", "t", "a", current, 1, 5));
+        coordinator.commit("g", "t", "a", current, 0, 5);
+        assertEquals(5, coordinator.committedOffset("g", "t", 0));
+        assertEquals(GroupCoordinator.NO_OFFSET, coordinator.committedOffset("g", "t", 1));
+    }
+
+    @Test
+    void expiresSilentMembers() throws InterruptedException {
+        GroupCoordinator coordinator = new GroupCoordinator(null, 20);
+        coordinator.join("g", "t", 2, "a");
+        Thread.sleep(50);
+        coordinator.expireMembers();
+        assertThrows(UnknownMemberException.class, () -> coordinator.heartbeat("g", "a"));
+    }
+
+    @Test
+    void replaysCommittedOffsetsFromLog() throws IOException {
+        BrokerConfig config = new BrokerConfig(BrokerConfig.StorageMode.DISK, dir, 4096, 256, 0, 0);
+        try (GroupCoordinator coordinator = new GroupCoordinator(new FileLog(dir, config), 10_000)) {
+            int generation = coordinator.join("g", "t", 2, "a").getGeneration();
+            for (int offset = 0; offset < 100; offset++) {
+                coordinator.commit("g", "t", "a", generation, offset % 2, offset);
+            }
+        }
+        try (GroupCoordinator coordinator = new GroupCoordinator(new FileLog(dir, config), 10_000)) {
+            assertEquals(98, coordinator.committedOffset("g", "t", 0));
+            assertEquals(99, coordinator.committedOffset("g", "t", 1));
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package mega;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+
+class InMemoryLogTest {
+    @Test
+    void consumeReturnsRecordAtEveryOffset() {
+        InMemoryLog log = new InMemoryLog(100_000);
+        for (int i = 0; i < 40_000; i++) {
+            long offset = log.reserve(1);
+            log.set(offset, new Record(offset, i, new byte[] { (byte) i }));
+        }
+        assertEquals(40_000, log.getNextOffset());
+        for (int i = 0; i < 40_000; i += 997) {
+            Record record = log.read(i);
+            assertNotNull(record);
+            assertEquals(i, record.getOffset());
+            assertEquals(i, record.getTimestamp());
+        }
+        assertNull(log.read(40_000));
+        assertNull(log.read(-1));
+    }
+
+    @Test
+    void reserveReturnsContiguousRanges() {
+        InMemoryLog log = new InMemoryLog(100);
+        assertEquals(0, log.reserve(10));
+        assertEquals(10, log.reserve(5));
+        assertEquals(15, log.getNextOffset());
+        assertNull(log.read(12), "reserved but unfilled slots read as missing");
+    }
+
+    @Test
+    void reserveFailsOnceCapacityIsReached() {
+        InMemoryLog log = new InMemoryLog(3);
+        log.reserve(2);
+        assertThrows(IllegalStateException.class, () -> log.reserve(2));
+        assertEquals(2, log.reserve(1));
+    }
+
+    @Test
+    void offsetsRunPastIntRange() {
+        InMemoryLog log = new InMemoryLog();
+        log.reserve(Integer.MAX_VALUE);
+        log.reserve(Integer.MAX_VALUE);
+        long offset = log.append(7, new byte[] { 1 });
+        assertEquals(2L * Integer.MAX_VALUE, offset);
+        assertEquals(offset, log.read(offset).getOffset());
+        assertEquals(offset + 1, log.read(offset, 10, 1024).getNextOffset());
+    }
+
+    @Test
+    void ringGrowsToHoldEveryRetainedChunk() {
+        InMemoryLog log = new InMemoryLog();
+        int count = 20 * 16_384 + 5;
+        for (int i = 0; i < count; i++) {
+            log.append(i, new byte[0]);
+        }
+        for (int i = 0; i < count; i += 4_099) {
+            assertEquals(i, log.read(i).getTimestamp());
+        }
+        assertEquals(count - 1, log.read(count - 1).getTimestamp());
+    }
+
+    @Test
+    void concurrentProducersGetDistinctOffsets() throws InterruptedException {
+        InMemoryLog log = new InMemoryLog(1_000_000);
+        Set<Long> offsets = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    long offset = log.reserve(1);
+                    log.set(offset, new Record(offset, 0L, new byte[0]));
+                    offsets.add(offset);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80_000, offsets.size());
+        for (int i = 0; i < 80_000; i++) {
+            assertNotNull(log.read(i));
+        }
+    }
+
+    @Test
+    void fetchReturnsConsecutiveRecords() {
+        InMemoryLog log = new InMemoryLog(100);
+        for (int i = 0; i < 10; i++) {
+            log.append(i, new byte[] { (byte) i });
+        }
+        RecordBatch batch = log.read(4, 3, 1024);
+        assertEquals(3, batch.getRecordCount());
+        assertEquals(7, batch.getNextOffset());
+        assertEquals(3 * RecordFormat.sizeInBytes(1), batch.getSizeInBytes());
+        assertEquals(6, log.read(4, 100, 1024).getRecordCount());
+        assertEquals(0, log.read(10, 3, 1024).getRecordCount());
+        assertNull(log.read(11, 3, 1024));
+    }
+
+    @Test
+    void appendsBatchAtConsecutiveOffsets() {
+        InMemoryLog log = new InMemoryLog(100);
+        log.append(0, new byte[0]);
+        assertEquals(1, log.append(5, null, List.of(ByteBuffer.wrap(new byte[] { 1 }),
+                ByteBuffer.wrap(new byte[] { 2 }), ByteBuffer.wrap(new byte[] { 3 }))));
+        assertEquals(4, log.getNextOffset());
+        assertArrayEquals(new byte[] { 3 }, log.read(3).getPayload());
+        assertEquals(5, log.read(2).getTimestamp());
+    }
+
+    @Test
+    void keepsCompressedBatchAsOneRecord() throws java.io.IOException {
+        InMemoryLog log = new InMemoryLog();
+        log.append(0, new byte[] { 9 });
+        ByteBuffer compressed = ByteBuffer.wrap(Compression.LZ.compress(CompressionTest.entries("a", "b", "c")));
+        assertEquals(1, log.append(5, null, Compression.LZ, 3, compressed));
+        assertEquals(4, log.getNextOffset());
+
+        RecordBatch batch = log.read(2, 10, 1024);
+        assertEquals(1, batch.getRecordCount());
+        assertEquals(4, batch.getNextOffset());
+        assertTrue(batch.isCompressed());
+        assertEquals(3, log.read(2).getOffset(), "an offset inside the batch finds the batch");
+        RecordBatch plain = log.read(0, 10, 1024).decompressed(0);
+        assertEquals(4, plain.getRecordCount());
+        assertArrayEquals(new byte[] { 'b' }, plain.getRecords().get(2).getPayload());
+        assertEquals(2, plain.getRecords().get(2).getOffset());
+    }
+
+    @Test
+    void retentionDropsWholeChunksAndFreesCapacity() {
+        InMemoryLog log = new InMemoryLog(40_000);
+        for (int i = 0; i < 40_000; i++) {
+            log.append(i, new byte[] { (byte) i });
+        }
+        assertThrows(IllegalStateException.class, () -> log.append(0, new byte[0]));
+
+        assertEquals(16_384, log.clean(new TopicConfig(-1, -1, 20_000, false), 0));
+        assertEquals(16_384, log.getStartOffset());
+        assertNull(log.read(100));
+        assertEquals(16_384, log.read(0, 1, 1024).getNextOffset() - 1, "fetch below the start serves the oldest record");
+
+        for (int i = 0; i < 16_384; i++) {
+            assertEquals(40_000 + i, log.append(0, new byte[] { 1 }), "dropping a chunk frees capacity");
+        }
+        assertArrayEquals(new byte[] { 1 }, log.read(56_383).getPayload());
+        assertEquals((byte) 30_000, log.read(30_000).getPayload()[0]);
+    }
+
+    @Test
+    void retentionByAgeKeepsChunksWithRecentRecords() {
+        InMemoryLog log = new InMemoryLog(100_000);
+        for (int i = 0; i < 40_000; i++) {
+            log.append(i < 20_000 ? 1_000 : 5_000, new byte[0]);
+        }
+        TopicConfig config = new TopicConfig(2_000, -1, -1, false);
+        assertEquals(0, log.clean(config, 2_500));
+        assertEquals(16_384, log.clean(config, 3_500), "second chunk holds records up to 5000");
+        assertEquals(16_384, log.getStartOffset());
+    }
+
+    @Test
+    void compactionKeepsLatestRecordPerKey() {
+        InMemoryLog log = new InMemoryLog(100_000);
+        for (int i = 0; i < 20_000; i++) {
+            byte[] key = { (byte) (i % 10) };
+            log.append(i, key, List.of(ByteBuffer.wrap(new byte[] { (byte) i })));
+        }
+        log.append(0, null, List.of(ByteBuffer.wrap(new byte[] { 42 })));
+
+        assertEquals(16_384, log.clean(new TopicConfig(-1, -1, -1, true), 0));
+        assertNull(log.read(0), "superseded by later records of its key");
+        RecordBatch batch = log.read(0, 10, 1 << 20);
+        assertEquals(10, batch.getRecordCount());
+        assertEquals(16_394, batch.getNextOffset(), "removed offsets are skipped");
+        assertNotNull(log.read(19_999));
+    }
+
+    private static ByteBuffer encode(RecordBatch batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        batch.writeTo(Channels.newChannel(bytes));
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    @Test
+    void replicatedRecordsKeepTheirOffsetsAcrossGaps() throws IOException {
+        InMemoryLog leader = new InMemoryLog(100_000);
+        for (int i = 0; i < 20_000; i++) {
+            leader.append(i, new byte[] { (byte) i });
+        }
+        InMemoryLog follower = new InMemoryLog(100_000);
+        follower.appendReplicated(encode(leader.read(17_000, 100, 1 << 20)), 17_100);
+        assertEquals(17_100, follower.getNextOffset());
+        assertNull(follower.read(16_999));
+        assertEquals(17_050, follower.read(17_050).getOffset());
+
+        follower.appendReplicated(encode(leader.read(17_200, 10, 1 << 20)), 17_300);
+        assertNull(follower.read(17_150), "offsets the leader skipped stay empty");
+        assertEquals((byte) 17_205, follower.read(17_205).getPayload()[0]);
+        assertEquals(17_300, follower.getNextOffset());
+        assertThrows(IllegalArgumentException.class,
+                () -> follower.appendReplicated(encode(leader.read(17_000, 1, 1 << 20)), 17_001));
+    }
+
+    @Test
+    void findsOffsetsByTimestampAcrossChunks() {
+        InMemoryLog log = new InMemoryLog();
+        for (int i = 0; i < 40_000; i++) {
+            // Every thousandth record comes from a producer whose clock runs ahead
+            log.append(i % 1000 == 999 ? i + 5_000 : i, new byte[] { (byte) i });
+        }
+        assertEquals(0, log.offsetForTime(Long.MIN_VALUE));
+        assertEquals(15_999, log.offsetForTime(20_000), "the first record that new wins, not the closest");
+        assertEquals(35_999, log.offsetForTime(40_000));
+        assertEquals(40_000, log.offsetForTime(45_000), "nothing that new: the next offset");
+
+        ByteBuffer compressed = ByteBuffer.wrap(Compression.LZ.compress(CompressionTest.entries("a", "b", "c")));
+        log.append(50_000, null, Compression.LZ, 3, compressed);
+        assertEquals(40_000, log.offsetForTime(45_000), "a compressed batch is found by its first offset");
+    }
+
+    @Test
+    void truncateDropsRecordsFromOffset() throws IOException {
+        InMemoryLog log = new InMemoryLog(100_000);
+        for (int i = 0; i < 1_000; i++) {
+            log.append(i, new byte[] { (byte) i });
+        }
+        log.truncateTo(600);
+        assertEquals(600, log.getNextOffset());
+        assertNull(log.read(600));
+        assertNotNull(log.read(599));
+        assertEquals(600, log.append(0, new byte[0]));
+    }
+}
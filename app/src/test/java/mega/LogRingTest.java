@@ -0,0 +1,70 @@
+package mega;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class LogRingTest {
+    private static boolean offer(LogRing ring, Object arg) {
+        return ring.offer(0L, Logger.Level.INFO, "Test", "{}", arg, null, null, null);
+    }
+
+    @Test
+    void pollsEventsInPublishOrder() {
+        LogRing ring = new LogRing(8);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(offer(ring, i));
+            LogRing.Event event = new LogRing.Event();
+            assertTrue(ring.poll(event));
+            assertEquals(i, event.arg1);
+        }
+        assertFalse(ring.poll(new LogRing.Event()));
+    }
+
+    @Test
+    void rejectsAndCountsEventsWhenFull() {
+        LogRing ring = new LogRing(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(offer(ring, i));
+        }
+        assertFalse(offer(ring, 4));
+        assertFalse(offer(ring, 5));
+        assertEquals(2, ring.takeDropped());
+        assertEquals(0, ring.takeDropped());
+
+        assertTrue(ring.poll(new LogRing.Event()));
+        assertTrue(offer(ring, 6), "a polled slot is reused");
+    }
+
+    @Test
+    void concurrentProducersLoseNothingThatWasAccepted() throws InterruptedException {
+        LogRing ring = new LogRing(1 << 16);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int producer = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    assertTrue(offer(ring, producer * 10_000 + i));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        boolean[] seen = new boolean[40_000];
+        LogRing.Event event = new LogRing.Event();
+        int count = 0;
+        while (ring.poll(event)) {
+            seen[(Integer) event.arg1] = true;
+            count++;
+        }
+        assertEquals(40_000, count);
+        for (boolean value : seen) {
+            assertTrue(value);
+        }
+    }
+}
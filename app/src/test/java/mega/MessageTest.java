@@ -0,0 +1,185 @@
+package mega;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+class MessageTest {
+    private static byte[] frame(MessageType type, String topic, byte[] payload, int... fields) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(42);
+        out.writeByte(type.getCode());
+        out.writeInt(topicBytes.length);
+        out.write(topicBytes);
+        out.writeLong(1234L);
+        for (int field : fields) {
+            out.writeInt(field);
+        }
+        out.writeInt(payload.length);
+        out.write(payload);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void reusesTopicNameAcrossRequests() throws IOException {
+        TopicNameCache topicNames = new TopicNameCache();
+        ByteArrayOutputStream both = new ByteArrayOutputStream();
+        both.write(frame(MessageType.PRODUCE, "orders", new byte[] { 1 }));
+        both.write(frame(MessageType.CONSUME, "orders", new byte[0], 7));
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(both.toByteArray()));
+
+        Message produce = new Message(input, topicNames);
+        Message consume = new Message(input, topicNames);
+        assertEquals("orders", produce.getTopic());
+        assertSame(produce.getTopic(), consume.getTopic());
+        assertEquals(7, consume.getOffset());
+        assertEquals(1234L, consume.getTimestamp());
+    }
+
+    @Test
+    void skipsAPayloadOverTheSizeLimit() throws IOException {
+        ByteArrayOutputStream both = new ByteArrayOutputStream();
+        both.write(frame(MessageType.PRODUCE, "big", new byte[Message.MAX_MESSAGE_SIZE + 1]));
+        both.write(frame(MessageType.PRODUCE, "small", new byte[] { 1 }));
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(both.toByteArray()));
+
+        Message big = new Message(input, new TopicNameCache());
+        assertTrue(big.isTooLarge());
+        assertEquals(0, big.getPayload().length, "the payload is not read into memory");
+        Message small = new Message(input, new TopicNameCache());
+        assertFalse(small.isTooLarge());
+        assertEquals("small", small.getTopic(), "the next request is read from where the skipped one ends");
+        assertArrayEquals(new byte[] { 1 }, small.getPayload());
+    }
+
+    @Test
+    void decodesTopicNameAsUtf8() throws IOException {
+        byte[] frame = frame(MessageType.PRODUCE, "événements", new byte[0]);
+        Message message = new Message(new DataInputStream(new ByteArrayInputStream(frame)), new TopicNameCache());
+        assertEquals("événements", message.getTopic());
+    }
+
+    @Test
+    void splitsBatchIntoPayloadSlices() throws IOException {
+        ByteBuffer batch = ByteBuffer.allocate(4 + 2 + 4 + 3);
+        batch.putInt(2).put(new byte[] { 1, 2 }).putInt(3).put(new byte[] { 3, 4, 5 });
+        byte[] frame = frame(MessageType.PRODUCE_BATCH, "t", batch.array(), -1, -1, 2);
+        Message message = new Message(new DataInputStream(new ByteArrayInputStream(frame)), new TopicNameCache());
+
+        List<ByteBuffer> payloads = message.getBatchPayloads();
+        assertEquals(2, payloads.size());
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2 }), payloads.get(0));
+        assertEquals(ByteBuffer.wrap(new byte[] { 3, 4, 5 }), payloads.get(1));
+    }
+
+    @Test
+    void readsCreateTopicPartitionCount() throws IOException {
+        byte[] legacy = frame(MessageType.CREATE_TOPIC, "t", new byte[0]);
+        byte[] partitioned = frame(MessageType.CREATE_TOPIC, "t", new byte[] { 0, 0, 0, 8 });
+        assertEquals(1, new Message(new DataInputStream(new ByteArrayInputStream(legacy)), new TopicNameCache())
+                .getPartitionCount());
+        assertEquals(8, new Message(new DataInputStream(new ByteArrayInputStream(partitioned)), new TopicNameCache())
+                .getPartitionCount());
+        assertNull(new Message(new DataInputStream(new ByteArrayInputStream(partitioned)), new TopicNameCache())
+                .getTopicConfig());
+    }
+
+    @Test
+    void readsTopicConfigAfterPartitionCount() throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(4 + TopicConfig.ENCODED_SIZE).putInt(3);
+        new TopicConfig(60_000, -1, 1000, true).encode(payload);
+        Message message = new Message(new DataInputStream(new ByteArrayInputStream(
+                frame(MessageType.CREATE_TOPIC, "t", payload.array()))), new TopicNameCache());
+
+        assertEquals(3, message.getPartitionCount());
+        TopicConfig config = message.getTopicConfig();
+        assertEquals(60_000, config.getRetentionMs());
+        assertEquals(-1, config.getRetentionBytes());
+        assertEquals(1000, config.getRetentionRecords());
+        assertTrue(config.isCompact());
+    }
+
+    @Test
+    void readsSubscribeAndCreditFields() throws IOException {
+        ByteArrayOutputStream both = new ByteArrayOutputStream();
+        both.write(frame(MessageType.SUBSCRIBE, "t", new byte[0], 2, 10, 500));
+        both.write(frame(MessageType.CREDIT, "", new byte[0], 250));
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(both.toByteArray()));
+
+        Message subscribe = new Message(input, new TopicNameCache());
+        assertEquals(2, subscribe.getPartition());
+        assertEquals(10, subscribe.getOffset());
+        assertEquals(500, subscribe.getCredit());
+        assertEquals(250, new Message(input, new TopicNameCache()).getCredit());
+    }
+
+    @Test
+    void readsEightByteOffsetsFromVersionOne() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(42);
+        out.writeByte(MessageType.FETCH.getCode());
+        out.writeInt(1);
+        out.write('t');
+        out.writeLong(1234L);
+        out.writeInt(3);
+        out.writeLong(5_000_000_000L);
+        out.writeInt(100);
+        out.writeInt(1 << 20);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        Message message = new Message(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                new TopicNameCache(), Message.VERSION_1);
+
+        assertEquals(Message.VERSION_1, message.getVersion());
+        assertEquals(3, message.getPartition());
+        assertEquals(5_000_000_000L, message.getOffset());
+    }
+
+    @Test
+    void readsBatchCompressionFromVersionTwo() throws IOException {
+        byte[] frame = frame(MessageType.PRODUCE_BATCH, "t", new byte[] { 1, 9, 9 }, 0, -1, 5);
+        // The compression byte follows the record count, just before the payload length
+        byte[] v2 = new byte[frame.length + 1];
+        int split = frame.length - 4 - 3;
+        System.arraycopy(frame, 0, v2, 0, split);
+        v2[split] = Compression.LZ.getCode();
+        System.arraycopy(frame, split, v2, split + 1, frame.length - split);
+
+        Message message = new Message(new DataInputStream(new ByteArrayInputStream(v2)), new TopicNameCache(),
+                Message.VERSION_2);
+        assertEquals(Compression.LZ, message.getCompression());
+        assertEquals(5, message.getRecordCount());
+        assertEquals(3, message.getPayloadLength());
+        assertEquals(Compression.NONE, new Message(new DataInputStream(new ByteArrayInputStream(frame)),
+                new TopicNameCache(), Message.VERSION_1).getCompression());
+    }
+
+    @Test
+    void readsRequestedVersion() throws IOException {
+        byte[] frame = frame(MessageType.API_VERSIONS, "", new byte[] { 0, 1 });
+        Message message = new Message(new DataInputStream(new ByteArrayInputStream(frame)), new TopicNameCache());
+        assertEquals(Message.VERSION_1, message.getRequestedVersion());
+        byte[] malformed = frame(MessageType.API_VERSIONS, "", new byte[] { 1 });
+        assertThrows(IllegalArgumentException.class, new Message(
+                new DataInputStream(new ByteArrayInputStream(malformed)), new TopicNameCache())::getRequestedVersion);
+    }
+
+    @Test
+    void rejectsMalformedBatch() throws IOException {
+        byte[] frame = frame(MessageType.PRODUCE_BATCH, "t", new byte[] { 0, 0, 0, 9, 1 }, -1, -1, 1);
+        Message message = new Message(new DataInputStream(new ByteArrayInputStream(frame)), new TopicNameCache());
+        assertThrows(IllegalArgumentException.class, message::getBatchPayloads);
+    }
+}
@@ -0,0 +1,99 @@
+package mega;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SortedMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+class MetricsTest {
+    @Test
+    void histogramPercentilesStayWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1000);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100_000, snapshot.getCount());
+        assertEquals(50_000_000, snapshot.getPercentile(50), 50_000_000 * 0.035);
+        assertEquals(99_000_000, snapshot.getPercentile(99), 99_000_000 * 0.035);
+        assertEquals(99_900_000, snapshot.getPercentile(99.9), 99_900_000 * 0.035);
+        assertEquals(100_000_000, snapshot.getMax(), 100_000_000 * 0.035);
+        assertEquals(50_000_500, snapshot.getMean(), 50_000_500 * 0.035);
+        assertTrue(snapshot.getPercentile(99) >= 99_000_000, "percentiles report the bucket's highest value");
+    }
+
+    @Test
+    void histogramBucketsCoverEveryValueOnce() {
+        for (int bucket = 0; bucket < 1000; bucket++) {
+            assertEquals(bucket, Histogram.bucket(Histogram.lowestValue(bucket)));
+            assertEquals(bucket, Histogram.bucket(Histogram.highestValue(bucket)));
+            assertEquals(Histogram.highestValue(bucket) + 1, Histogram.lowestValue(bucket + 1));
+        }
+        assertEquals(0, Histogram.bucket(-5));
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        assertTrue(histogram.snapshot().getMax() > 0);
+    }
+
+    @Test
+    void meterCountsAndAveragesRate() {
+        Meter meter = new Meter();
+        meter.mark();
+        meter.mark(49);
+        assertEquals(50, meter.getCount());
+        assertEquals(0.0, meter.getOneMinuteRate());
+        meter.tick();
+        assertEquals(10.0, meter.getOneMinuteRate(), 1e-9);
+        meter.tick();
+        assertTrue(meter.getOneMinuteRate() < 10.0 && meter.getOneMinuteRate() > 0);
+    }
+
+    @Test
+    void snapshotFlattensMetricsUnderPrefix() {
+        Metrics metrics = new Metrics();
+        metrics.meter("requests.produce").mark(3);
+        metrics.histogram("requests.produce.latency_ns").record(1000);
+        metrics.gauge("topics", () -> 7);
+        assertSame(metrics.meter("requests.produce"), metrics.meter("requests.produce"));
+        assertThrows(IllegalArgumentException.class, () -> metrics.histogram("requests.produce"));
+        assertThrows(IllegalArgumentException.class, () -> metrics.gauge("topics", () -> 8));
+
+        SortedMap<String, Number> all = metrics.snapshot();
+        assertEquals(7L, all.get("topics"));
+        assertEquals(3L, all.get("requests.produce.count"));
+        assertEquals(1L, all.get("requests.produce.latency_ns.count"));
+        SortedMap<String, Number> produce = metrics.snapshot("requests.");
+        assertFalse(produce.containsKey("topics"));
+        assertEquals(1000, produce.get("requests.produce.latency_ns.p50").doubleValue(), 1000 * 0.035);
+    }
+
+    @Test
+    void brokerMetersTopicTraffic() throws JMException {
+        Broker broker = new Broker(new BrokerConfig(BrokerConfig.StorageMode.MEMORY, Path.of("unused"),
+                1 << 20, 4096, 0, 0));
+        try {
+            broker.createTopic("metered", 2);
+            broker.produceBatch("metered", 1, 0, null,
+                    List.of(ByteBuffer.wrap(new byte[10]), ByteBuffer.wrap(new byte[20])));
+            broker.fetch("metered", 1, 0, 10, 1 << 20);
+            SortedMap<String, Number> topic = broker.getMetrics().snapshot("topic.metered.");
+            assertEquals(2L, topic.get("topic.metered.messages_in.count"));
+            assertEquals(2L, topic.get("topic.metered.messages_out.count"));
+            assertEquals(topic.get("topic.metered.bytes_in.count"), topic.get("topic.metered.bytes_out.count"));
+            assertEquals(2L, topic.get("topic.metered.records"));
+            assertEquals(topic.get("topic.metered.bytes_in.count"), topic.get("topic.metered.size_bytes"));
+            assertEquals(1L, broker.getMetrics().snapshot().get("topics"));
+            assertEquals(2L, ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(new ObjectName("mega:type=Broker"), "topic.metered.records"));
+        } finally {
+            broker.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package mega;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+class QuotasTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void bucketAllowsABurstThenHoldsTheRate() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+        assertEquals(0, bucket.charge(1000, 0), "a second's worth may go at once");
+        assertEquals(SECOND / 2, bucket.charge(500, 0), "the debt takes half a second to pay back");
+        assertEquals(0, bucket.charge(0, SECOND / 2));
+        assertEquals(SECOND / 10, bucket.charge(100, SECOND / 2));
+        assertEquals(0, bucket.charge(1000, 100 * SECOND), "idle time refills no more than a burst");
+        assertTrue(bucket.charge(1, 100 * SECOND) > 0);
+    }
+
+    /** A connection speaking version 6 that produces records and reads back the throttle time. */
+    private static final class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final DataInputStream input;
+        private final DataOutputStream output;
+        private int nextCorrelationId;
+
+        Connection(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writeHeader(MessageType.API_VERSIONS, "");
+            output.writeInt(2);
+            output.writeShort(Message.VERSION_6);
+            output.flush();
+            readStatus();
+            assertEquals(Message.VERSION_6, input.readShort());
+        }
+
+        private void writeHeader(MessageType type, String topic) throws IOException {
+            byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(nextCorrelationId++);
+            output.writeByte(type.getCode());
+            output.writeInt(name.length);
+            output.write(name);
+            output.writeLong(System.currentTimeMillis());
+        }
+
+        private void readStatus() throws IOException {
+            input.readInt();
+            assertEquals(1, input.readByte(), "request should succeed");
+        }
+
+        /** Produces one record and returns the throttle time of the answer. */
+        int produce(String topic, int payloadBytes) throws IOException {
+            writeHeader(MessageType.PRODUCE, topic);
+            output.writeByte(Message.ACKS_DEFAULT);
+            output.writeLong(Message.NO_PRODUCER_ID);
+            output.writeInt(-1);
+            output.writeInt(payloadBytes);
+            output.write(new byte[payloadBytes]);
+            output.flush();
+            readStatus();
+            input.readLong(); // timestamp
+            input.readLong(); // offset
+            return input.readInt();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Test
+    void throttlesTheClientOverItsQuotaWithoutHoldingUpOthers() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Broker broker = new Broker(new BrokerConfig(BrokerConfig.StorageMode.MEMORY, Path.of("unused"), 1 << 20,
+                4096, 0, 0), ReplicationConfig.STANDALONE, new QuotaConfig(100_000, QuotaConfig.UNLIMITED,
+                QuotaConfig.UNLIMITED));
+        Server server = new Server(port, Server.ThreadModel.VIRTUAL, 0, broker);
+        Thread.ofVirtual().start(server::start);
+        try {
+            while (server.getLocalPort() < 0) {
+                Thread.sleep(10);
+            }
+            broker.createTopic("throttled");
+            long start = System.nanoTime();
+            CompletableFuture<Integer> throttled = CompletableFuture.supplyAsync(() -> {
+                try (Connection greedy = new Connection(port)) {
+                    int throttleMs = 0;
+                    for (int i = 0; i < 30; i++) {
+                        throttleMs += greedy.produce("throttled", 10_000);
+                    }
+                    return throttleMs;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            Thread.sleep(300);
+            try (Connection polite = new Connection(port)) {
+                for (int i = 0; i < 5; i++) {
+                    long sent = System.nanoTime();
+                    assertEquals(0, polite.produce("throttled", 100));
+                    assertTrue(System.nanoTime() - sent < TimeUnit.MILLISECONDS.toNanos(500),
+                            "a client within its quota is not held back");
+                }
+            }
+            // 300 KB at 100 KB/s with one second of burst takes about two seconds, most of them throttled
+            int throttleMs = throttled.get(30, TimeUnit.SECONDS);
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(elapsedMs >= 1800, "took " + elapsedMs + " ms");
+            assertTrue(throttleMs >= 1000 && throttleMs <= elapsedMs, "throttled for " + throttleMs + " ms");
+            assertTrue(broker.getMetrics().snapshot("quota.").get("quota.throttle_ns.count").longValue() > 0);
+        } finally {
+            server.close();
+            broker.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package mega;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/** Runs a cluster of three in-memory brokers in this JVM, talking to each other over loopback. */
+class ReplicationTest {
+    private static final int NODES = 3;
+
+    private final Map<Integer, Broker> brokers = new TreeMap<>();
+    private final Map<Integer, Server> servers = new TreeMap<>();
+
+    @AfterEach
+    void stopCluster() {
+        for (int id : new ArrayList<>(brokers.keySet())) {
+            stop(id);
+        }
+    }
+
+    private void startCluster() throws IOException {
+        Map<Integer, InetSocketAddress> nodes = new TreeMap<>();
+        for (int id = 0; id < NODES; id++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                nodes.put(id, new InetSocketAddress("localhost", socket.getLocalPort()));
+            }
+        }
+        for (int id = 0; id < NODES; id++) {
+            ReplicationConfig replication = new ReplicationConfig(id, nodes, ReplicationConfig.ACKS_ALL, 1_000, 1_000,
+                    50, 5_000);
+            Broker broker = new Broker(new BrokerConfig(BrokerConfig.StorageMode.MEMORY, Path.of("unused"), 1 << 20,
+                    4096, 0, 0), replication);
+            Server server = new Server(nodes.get(id).getPort(), Server.ThreadModel.VIRTUAL, 0, broker);
+            Thread.ofVirtual().start(server::start);
+            brokers.put(id, broker);
+            servers.put(id, server);
+        }
+    }
+
+    private void stop(int id) {
+        servers.remove(id).close();
+        brokers.remove(id).close();
+    }
+
+    private static void await(BooleanSupplier condition, String description) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out waiting until " + description);
+            Thread.sleep(20);
+        }
+    }
+
+    /** Waits until every running node follows the same leader and returns its ID. */
+    private int awaitLeader() throws InterruptedException {
+        int[] leader = { ClusterMetadata.NO_LEADER };
+        await(() -> {
+            int agreed = ClusterMetadata.NO_LEADER;
+            for (Broker broker : brokers.values()) {
+                int leaderId = broker.getClusterMetadata().getLeaderId();
+                if (leaderId == ClusterMetadata.NO_LEADER
+                        || (agreed != ClusterMetadata.NO_LEADER && leaderId != agreed)) {
+                    return false;
+                }
+                agreed = leaderId;
+            }
+            leader[0] = agreed;
+            return brokers.containsKey(agreed);
+        }, "the nodes agree on a leader");
+        return leader[0];
+    }
+
+    private static ErrorCode produce(Broker leader, int partition, String payload) throws Exception {
+        long offset = leader.produceBatch("replicated", partition, 0L, null,
+                List.of(ByteBuffer.wrap(payload.getBytes())));
+        CompletableFuture<ErrorCode> acked = new CompletableFuture<>();
+        leader.awaitReplication("replicated", partition, offset, acked::complete);
+        return acked.get(10, TimeUnit.SECONDS);
+    }
+
+    private static List<String> payloads(Broker broker, int partition) throws IOException {
+        List<String> payloads = new ArrayList<>();
+        try {
+            for (Record record : broker.fetch("replicated", partition, 0, 100, 1 << 20).getRecords()) {
+                payloads.add(new String(record.getPayload()));
+            }
+        } catch (TopicNotFoundException e) {
+            // not replicated yet
+        }
+        return payloads;
+    }
+
+    @Test
+    void followersReplicateAndTakeOverWhenTheLeaderStops() throws Exception {
+        startCluster();
+        int leaderId = awaitLeader();
+        Broker leader = brokers.get(leaderId);
+        int epoch = leader.getClusterMetadata().getEpoch();
+        leader.createTopic("replicated", 2);
+        // Until the followers catch up on the topic, acks=all waits for the leader alone
+        // and the followers learn they are in sync only from the leader's metadata, which an election relies on
+        await(() -> brokers.values().stream()
+                .allMatch(broker -> broker.getClusterMetadata().getInSyncReplicas().size() == NODES),
+                "every node knows the followers are in sync");
+
+        for (int i = 0; i < 10; i++) {
+            assertNull(produce(leader, 1, "message-" + i), "acks=all produce should be replicated");
+        }
+        for (Map.Entry<Integer, Broker> node : brokers.entrySet()) {
+            if (node.getKey() != leaderId) {
+                assertEquals(payloads(leader, 1), payloads(node.getValue(), 1), "node " + node.getKey());
+                assertThrows(NotLeaderException.class, () -> node.getValue().createTopic("elsewhere"));
+            }
+        }
+
+        stop(leaderId);
+        int newLeaderId = awaitLeader();
+        assertNotEquals(leaderId, newLeaderId);
+        Broker newLeader = brokers.get(newLeaderId);
+        assertTrue(newLeader.getClusterMetadata().getEpoch() > epoch);
+        assertEquals(10, payloads(newLeader, 1).size(), "acknowledged records survive the failover");
+
+        assertNull(produce(newLeader, 1, "after failover"));
+        for (Broker broker : brokers.values()) {
+            await(() -> {
+                try {
+                    return payloads(broker, 1).size() == 11;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, "the remaining follower has the new record");
+        }
+    }
+}
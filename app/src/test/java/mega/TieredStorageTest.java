@@ -0,0 +1,140 @@
+package mega;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+class TieredStorageTest {
+    private static final long LOCAL_BYTES = 8192;
+    private static final long CACHE_BYTES = 8192;
+
+    @TempDir
+    Path dir;
+
+    private Metrics metrics;
+
+    private BrokerConfig config() {
+        return new BrokerConfig(BrokerConfig.StorageMode.DISK, dir.resolve("data"), 4096, 256, 0, 0);
+    }
+
+    private TieredStorage tiered() throws IOException {
+        Path store = dir.resolve("store");
+        metrics = new Metrics(); // one per broker, as each registers its own cache gauges
+        return new TieredStorage(new LocalObjectStore(store), new TieringConfig(store, LOCAL_BYTES, CACHE_BYTES),
+                config(), metrics);
+    }
+
+    private FileLog log(TieredStorage tiered) throws IOException {
+        return new FileLog(dir.resolve("data").resolve("events").resolve("0"), config(), tiered, "events/0");
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private long localSegments() throws IOException {
+        try (Stream<Path> files = Files.list(dir.resolve("data").resolve("events").resolve("0"))) {
+            return files.filter(path -> path.toString().endsWith(".log")).count();
+        }
+    }
+
+    private long remoteSegments() throws IOException {
+        return new LocalObjectStore(dir.resolve("store")).list("events/0/").stream()
+                .filter(key -> key.endsWith(".meta")).count();
+    }
+
+    private long metric(String name) {
+        return metrics.snapshot("tiering.").get(name).longValue();
+    }
+
+    @Test
+    void readsOffloadedSegmentsThroughTheCache() throws IOException {
+        try (TieredStorage tiered = tiered(); FileLog log = log(tiered)) {
+            for (int i = 0; i < 1000; i++) {
+                log.append(i, bytes("message-" + i));
+            }
+            long segments = localSegments();
+            long offloaded = log.offload();
+            assertTrue(offloaded > 0, "old segments should leave the local disk");
+            assertEquals(segments - offloaded, localSegments());
+            assertEquals(segments - 1, remoteSegments(), "every closed segment is uploaded");
+            assertEquals(0, log.offload(), "nothing new to offload");
+
+            assertEquals(0, log.getStartOffset());
+            for (int i = 0; i < 1000; i++) {
+                assertArrayEquals(bytes("message-" + i), log.read(i).getPayload());
+            }
+            long next = 0;
+            while (next < 1000) {
+                RecordBatch batch = log.read(next, 100, 1 << 20);
+                for (Record record : batch.getRecords()) {
+                    assertEquals(next++, record.getOffset(), "no gap between offloaded and local records");
+                }
+            }
+            assertEquals(10, log.offsetForTime(10));
+            assertEquals(990, log.offsetForTime(990));
+            assertTrue(metric("tiering.cache.misses.count") > 0);
+            assertTrue(metric("tiering.cache.hits.count") > 0);
+            assertTrue(metric("tiering.cache.bytes") <= CACHE_BYTES, "the cache stays within its bound");
+        }
+    }
+
+    @Test
+    void recoversOffloadedSegmentsAfterARestart() throws IOException {
+        try (TieredStorage tiered = tiered(); FileLog log = log(tiered)) {
+            for (int i = 0; i < 1000; i++) {
+                log.append(i, bytes("message-" + i));
+            }
+            log.offload();
+        }
+        Path orphan = dir.resolve("orphan.log");
+        Files.write(orphan, bytes("cut short"));
+        new LocalObjectStore(dir.resolve("store")).put("events/0/00000000000000099999.log", orphan);
+        long remote = remoteSegments();
+        try (TieredStorage tiered = tiered(); FileLog log = log(tiered)) {
+            assertEquals(0, log.getStartOffset());
+            assertEquals(1000, log.getNextOffset());
+            assertArrayEquals(bytes("message-3"), log.read(3).getPayload());
+            assertFalse(new LocalObjectStore(dir.resolve("store")).list("events/0/").stream()
+                    .anyMatch(key -> key.contains("99999")), "an upload without metadata is removed");
+        }
+
+        // With the local disk lost, the log goes on after the last offloaded segment
+        try (Stream<Path> files = Files.walk(dir.resolve("data"))) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        try (TieredStorage tiered = tiered(); FileLog log = log(tiered)) {
+            assertEquals(remote, remoteSegments());
+            assertEquals(0, log.getStartOffset());
+            long next = log.getNextOffset();
+            assertTrue(next > 0 && next < 1000);
+            assertArrayEquals(bytes("message-" + (next - 1)), log.read(next - 1).getPayload());
+            assertEquals(next, log.append(0, bytes("after")));
+        }
+    }
+
+    @Test
+    void retentionDeletesOffloadedSegments() throws IOException {
+        try (TieredStorage tiered = tiered(); FileLog log = log(tiered)) {
+            for (int i = 0; i < 1000; i++) {
+                log.append(i, bytes("message-" + i));
+            }
+            log.offload();
+            long remote = remoteSegments();
+            long removed = log.clean(new TopicConfig(-1, -1, 500, false), 0);
+            assertTrue(removed > 0 && removed <= 500, "removed " + removed);
+            assertEquals(removed, log.getStartOffset());
+            assertTrue(remoteSegments() < remote);
+            assertEquals(removed, log.read(0, 10, 1 << 20).getRecords().get(0).getOffset(),
+                    "a fetch from below the start gets the oldest retained record");
+            assertNull(log.read(removed - 1));
+        }
+    }
+}
@@ -2,12 +2,28 @@ import socket
 import struct
 import time
 from enum import Enum
-from typing import Dict, Any, Optional
+from typing import Dict, Any, List, Optional
 
 class MessageType(Enum):
     PRODUCE = 0x01
     CONSUME = 0x02
     CREATE_TOPIC = 0x03
+    FETCH = 0x04
+    PRODUCE_BATCH = 0x05
+    SUBSCRIBE = 0x06
+    CREDIT = 0x07
+    UNSUBSCRIBE = 0x08
+    JOIN_GROUP = 0x09
+    HEARTBEAT = 0x0A
+    LEAVE_GROUP = 0x0B
+    COMMIT_OFFSET = 0x0C
+    FETCH_OFFSET = 0x0D
+    API_VERSIONS = 0x0E
+    STATS = 0x0F
+    REPLICA_FETCH = 0x10
+    METADATA = 0x11
+    INIT_PRODUCER_ID = 0x12
+    OFFSET_FOR_TIME = 0x13
 
 class ErrorCode(Enum):
     INVALID_REQUEST = 1
@@ -19,12 +35,116 @@ class ErrorCode(Enum):
     INTERNAL_ERROR = 7
     NETWORK_ERROR = 8
     RESOURCE_EXHAUSTED = 9
+    UNKNOWN_MEMBER = 10
+    ILLEGAL_GENERATION = 11
+    UNSUPPORTED_VERSION = 12
+    NOT_LEADER = 13
+    REPLICATION_TIMEOUT = 14
+    OUT_OF_ORDER_SEQUENCE = 15
+
+class Compression(Enum):
+    NONE = 0
+    LZ = 1
+
+
+def lz_compress(data: bytes) -> bytes:
+    """Compresses in the broker's LZ format: uncompressed length, then LZ4-style sequences."""
+    out = bytearray(struct.pack('>i', len(data)))
+    table: Dict[bytes, int] = {}
+    limit = len(data) - 5
+    anchor = ip = 0
+
+    def put_length(remaining: int) -> None:
+        while remaining >= 255:
+            out.append(255)
+            remaining -= 255
+        out.append(remaining)
+
+    def put_literals(count: int, match_nibble: int) -> None:
+        out.append(min(count, 15) << 4 | min(match_nibble, 15))
+        if count >= 15:
+            put_length(count - 15)
+        out.extend(data[anchor:anchor + count])
+
+    while ip + 4 <= limit:
+        sequence = data[ip:ip + 4]
+        ref = table.get(sequence)
+        table[sequence] = ip
+        if ref is None or ip - ref > 0xFFFF:
+            ip += 1
+            continue
+        length = 4
+        while ip + length < limit and data[ip + length] == data[ref + length]:
+            length += 1
+        put_literals(ip - anchor, length - 4)
+        out.extend(struct.pack('<H', ip - ref))
+        if length - 4 >= 15:
+            put_length(length - 4 - 15)
+        ip += length
+        anchor = ip
+    put_literals(len(data) - anchor, 0)
+    return bytes(out)
+
+
+def lz_decompress(data: bytes) -> bytes:
+    length = struct.unpack('>i', data[:4])[0]
+    out = bytearray()
+    pos = 4
+
+    def read_length() -> int:
+        nonlocal pos
+        total = 0
+        while True:
+            value = data[pos]
+            pos += 1
+            total += value
+            if value != 255:
+                return total
+
+    while True:
+        token = data[pos]
+        pos += 1
+        literals = token >> 4
+        if literals == 15:
+            literals += read_length()
+        out.extend(data[pos:pos + literals])
+        pos += literals
+        if pos >= len(data):
+            break
+        distance = data[pos] | data[pos + 1] << 8
+        pos += 2
+        match = token & 0x0F
+        if match == 15:
+            match += read_length()
+        for _ in range(match + 4):
+            out.append(out[-distance])
+    if len(out) != length:
+        raise ValueError("Malformed LZ data")
+    return bytes(out)
+
 
 class MessageClient:
     def __init__(self, host: str = 'localhost', port: int = 8080):
         self.host = host
         self.port = port
         self.socket = None
+        self.version = 0  # Protocol version of the connection: offsets are 4 bytes in 0, 8 from 1
+
+    @property
+    def _offset(self) -> str:
+        return 'q' if self.version >= 1 else 'i'
+
+    @property
+    def _offset_size(self) -> int:
+        return struct.calcsize('>' + self._offset)
+
+    @property
+    def _throttle_size(self) -> int:
+        # Produce responses end with the milliseconds a quota held the request back, from version 6
+        return 4 if self.version >= 6 else 0
+
+    def _throttle_time(self, data: bytes) -> int:
+        return struct.unpack('>i', data[:4])[0] if self.version >= 6 else 0
 
     def connect(self) -> None:
         try:
@@ -37,37 +157,125 @@ class MessageClient:
         if self.socket:
             self.socket.close()
             self.socket = None
+            self.version = 0
 
-    def create_topic(self, topic_name: str, correlation_id: int = 1) -> Dict[str, Any]:
+    def api_versions(self, version: int = 6, correlation_id: int = 1) -> Dict[str, Any]:
+        """Asks for the given protocol version; the connection speaks the agreed one from then on."""
+        message = self._build_message(
+            correlation_id=correlation_id,
+            message_type=MessageType.API_VERSIONS,
+            topic_name="",
+            payload=""
+        )
+        message = message[:-4] + struct.pack('>ih', 2, version)
+        try:
+            self.socket.sendall(message)
+            data = self._receive_response(lambda: self._recv_exact(2))
+        except Exception as e:
+            raise RuntimeError(f"Error in api_versions operation: {e}")
+        correlation_id, success = struct.unpack('>ib', data[:5])
+        if not success:
+            return {'correlation_id': correlation_id, 'success': False,
+                    'error_code': ErrorCode(data[5]).name}
+        self.version = struct.unpack('>h', data[5:7])[0]
+        return {'correlation_id': correlation_id, 'success': True, 'version': self.version}
+
+    def create_topic(self, topic_name: str, partitions: int = 1, correlation_id: int = 1,
+                     retention_ms: Optional[int] = None, retention_bytes: int = -1,
+                     retention_records: int = -1, compact: bool = False) -> Dict[str, Any]:
+        """Creates a topic. Passing any retention setting (-1 = unlimited) replaces the broker defaults."""
         message = self._build_message(
             correlation_id=correlation_id,
             message_type=MessageType.CREATE_TOPIC,
             topic_name=topic_name,
             payload=""
         )
+        # The partition count, optionally followed by the topic config
+        if retention_ms is None and retention_bytes == -1 and retention_records == -1 and not compact:
+            message = message[:-4] + struct.pack('>ii', 4, partitions)
+        else:
+            config = struct.pack('>qqqB', -1 if retention_ms is None else retention_ms,
+                                 retention_bytes, retention_records, 1 if compact else 0)
+            message = message[:-4] + struct.pack('>ii', 4 + len(config), partitions) + config
         
         try:
             self.socket.sendall(message)
-            response_data = self._receive_data()
+            response_data = self._receive_response(self._create_topic_body)
             return self._parse_create_topic_response(response_data)
         except Exception as e:
             raise RuntimeError(f"Error in create_topic operation: {e}")
 
-    def produce(self, topic_name: str, payload: str, correlation_id: int = 1) -> Dict[str, Any]:
+    def produce(self, topic_name: str, payload: str, correlation_id: int = 1, acks: int = 0,
+                producer_id: int = -1, sequence: int = -1) -> Dict[str, Any]:
+        """Appends one record; acks (1 for the leader, -1 for all in-sync replicas) needs protocol version 3,
+        and a producer ID with a per-topic sequence, which makes retries safe, version 4."""
         message = self._build_message(
             correlation_id=correlation_id,
             message_type=MessageType.PRODUCE,
             topic_name=topic_name,
             payload=payload
         )
+        # From version 3 the acks go ahead of the payload length
+        if self.version >= 3:
+            length = len(payload.encode('utf-8')) if payload else 0
+            split = len(message) - 4 - length
+            message = message[:split] + struct.pack('b', acks) + self._producer(producer_id, sequence) + message[split:]
+        elif acks != 0:
+            raise ValueError("Acks need protocol version 3; call api_versions() first")
+        elif producer_id != -1:
+            raise ValueError("Producer IDs need protocol version 4; call api_versions() first")
         
         try:
             self.socket.sendall(message)
-            response_data = self._receive_data()
+            response_data = self._receive_response(
+                lambda: self._recv_exact(8 + self._offset_size + self._throttle_size))
             return self._parse_produce_response(response_data)
         except Exception as e:
             raise RuntimeError(f"Error in produce operation: {e}")
 
+    def produce_batch(self, topic_name: str, payloads: List[str], partition: int = -1,
+                      key: Optional[str] = None, correlation_id: int = 1,
+                      compression: Compression = Compression.NONE, acks: int = 0,
+                      producer_id: int = -1, sequence: int = -1) -> Dict[str, Any]:
+        """Appends the payloads under one offset reservation; compression needs protocol version 2, acks 3
+        and a producer ID 4."""
+        entries = [p.encode('utf-8') for p in payloads]
+        batch = b''.join(struct.pack('>i', len(e)) + e for e in entries)
+        if compression != Compression.NONE:
+            if self.version < 2:
+                raise ValueError("Compressed batches need protocol version 2; call api_versions() first")
+            batch = lz_compress(batch)
+        message = self._build_message(
+            correlation_id=correlation_id,
+            message_type=MessageType.PRODUCE_BATCH,
+            topic_name=topic_name,
+            payload=""
+        )
+        # Partition (-1 lets the broker choose), key and record count go ahead of the payload length;
+        # the payload is the length-prefixed entries
+        key_bytes = key.encode('utf-8') if key is not None else None
+        key_field = struct.pack('>i', len(key_bytes)) + key_bytes if key_bytes is not None else struct.pack('>i', -1)
+        # From version 2 the compression follows the record count
+        counts = struct.pack('>i', len(entries))
+        if self.version >= 2:
+            counts += struct.pack('b', compression.value)
+        if self.version >= 3:
+            counts += struct.pack('b', acks) + self._producer(producer_id, sequence)
+        elif acks != 0:
+            raise ValueError("Acks need protocol version 3; call api_versions() first")
+        elif producer_id != -1:
+            raise ValueError("Producer IDs need protocol version 4; call api_versions() first")
+        message = (message[:-4] + struct.pack('>i', partition) + key_field
+                   + counts + struct.pack('>i', len(batch)) + batch)
+
+        try:
+            self.socket.sendall(message)
+            response_data = self._receive_response(
+                lambda: self._recv_exact(16 + self._offset_size + self._throttle_size))
+            return self._parse_produce_batch_response(response_data)
+        except Exception as e:
+            raise RuntimeError(f"Error in produce_batch operation: {e}")
+
     def consume(self, topic_name: str, offset: int, correlation_id: int = 1) -> Dict[str, Any]:
         message = self._build_message(
             correlation_id=correlation_id,
@@ -79,11 +287,279 @@ class MessageClient:
         
         try:
             self.socket.sendall(message)
-            response_data = self._receive_data()
+            response_data = self._receive_response(self._consume_body)
             return self._parse_consume_response(response_data)
         except Exception as e:
             raise RuntimeError(f"Error in consume operation: {e}")
 
+    def fetch(self, topic_name: str, offset: int, max_records: int = 500,
+              max_bytes: int = 1024 * 1024, partition: int = 0, max_wait_ms: int = 0,
+              min_bytes: int = 1, correlation_id: int = 1) -> Dict[str, Any]:
+        message = self._build_message(
+            correlation_id=correlation_id,
+            message_type=MessageType.FETCH,
+            topic_name=topic_name,
+            payload=""
+        )
+        # Partition, offset, fetch limits and long-poll settings go ahead of the (empty) payload length
+        message = (message[:-4] + struct.pack('>i' + self._offset + 'iiii', partition, offset, max_records,
+                                              max_bytes, max_wait_ms, min_bytes) + message[-4:])
+
+        try:
+            self.socket.sendall(message)
+            response_data = self._receive_response(self._fetch_body)
+            response = self._parse_fetch_response(response_data)
+        except Exception as e:
+            raise RuntimeError(f"Error in fetch operation: {e}")
+        if response['success']:
+            # A compressed batch arrives whole, including records before the requested offset
+            response['records'] = [r for r in response['records'] if r['offset'] >= offset]
+        return response
+
+    def subscribe(self, topic_name: str, offset: int, credit: int = 1000, partition: int = 0,
+                  correlation_id: int = 1) -> Dict[str, Any]:
+        """Starts a stream; pushes then arrive through next_push() under the same correlation ID."""
+        message = self._build_message(
+            correlation_id=correlation_id,
+            message_type=MessageType.SUBSCRIBE,
+            topic_name=topic_name,
+            payload=""
+        )
+        # Partition, offset and initial credit go ahead of the (empty) payload length
+        message = message[:-4] + struct.pack('>i' + self._offset + 'i', partition, offset, credit) + message[-4:]
+
+        try:
+            self.socket.sendall(message)
+            return self.next_push()
+        except Exception as e:
+            raise RuntimeError(f"Error in subscribe operation: {e}")
+
+    def next_push(self) -> Dict[str, Any]:
+        """Reads the next frame of a subscription, shaped like a fetch response."""
+        return self._parse_fetch_response(self._receive_response(self._fetch_body))
+
+    def credit(self, subscription_id: int, records: int) -> None:
+        """Lets the subscription push up to `records` more messages; only a failure is answered."""
+        message = self._build_message(
+            correlation_id=subscription_id,
+            message_type=MessageType.CREDIT,
+            topic_name="",
+            payload=""
+        )
+        message = message[:-4] + struct.pack('>i', records) + message[-4:]
+        self.socket.sendall(message)
+
+    def unsubscribe(self, subscription_id: int) -> List[Dict[str, Any]]:
+        """Ends a subscription and returns the pushes still in flight, ending with the empty final frame."""
+        message = self._build_message(
+            correlation_id=subscription_id,
+            message_type=MessageType.UNSUBSCRIBE,
+            topic_name="",
+            payload=""
+        )
+        self.socket.sendall(message)
+        frames = []
+        while True:
+            frame = self.next_push()
+            frames.append(frame)
+            if not frame['success'] or not frame['records']:
+                return frames
+
+    def join_group(self, topic_name: str, group_id: str, member_id: str,
+                   correlation_id: int = 1) -> Dict[str, Any]:
+        """Joins a consumer group and returns the generation and the partitions this member owns."""
+        return self._group_request(MessageType.JOIN_GROUP, topic_name, group_id, member_id, b'',
+                                   correlation_id, with_partitions=True)
+
+    def heartbeat(self, group_id: str, member_id: str, correlation_id: int = 1) -> Dict[str, Any]:
+        """Keeps the member alive; a generation other than the joined one means: join again."""
+        return self._group_request(MessageType.HEARTBEAT, "", group_id, member_id, b'', correlation_id)
+
+    def leave_group(self, group_id: str, member_id: str, correlation_id: int = 1) -> Dict[str, Any]:
+        return self._group_request(MessageType.LEAVE_GROUP, "", group_id, member_id, b'', correlation_id)
+
+    def commit_offset(self, topic_name: str, group_id: str, member_id: str, generation: int,
+                      partition: int, offset: int, correlation_id: int = 1) -> Dict[str, Any]:
+        fields = struct.pack('>ii' + self._offset, generation, partition, offset)
+        return self._group_request(MessageType.COMMIT_OFFSET, topic_name, group_id, member_id, fields,
+                                   correlation_id)
+
+    def fetch_offset(self, topic_name: str, group_id: str, partition: int,
+                     correlation_id: int = 1) -> Dict[str, Any]:
+        """Returns the group's committed offset for a partition in 'value', -1 if none."""
+        return self._group_request(MessageType.FETCH_OFFSET, topic_name, group_id, None,
+                                   struct.pack('>i', partition), correlation_id)
+
+    def stats(self, prefix: str = "", correlation_id: int = 1) -> Dict[str, Any]:
+        """Reads the broker's metrics whose names start with prefix, all of them by default, into 'metrics'."""
+        message = self._build_message(
+            correlation_id=correlation_id,
+            message_type=MessageType.STATS,
+            topic_name=prefix,
+            payload=""
+        )
+        try:
+            self.socket.sendall(message)
+            data = self._receive_response(self._stats_body)
+        except Exception as e:
+            raise RuntimeError(f"Error in stats operation: {e}")
+        correlation_id, success = struct.unpack('>ib', data[:5])
+        if not success:
+            return {'correlation_id': correlation_id, 'success': False,
+                    'error_code': ErrorCode(data[5]).name}
+        metrics = {}
+        for line in data[9:].decode('utf-8').splitlines():
+            name, value = line.rsplit(' ', 1)
+            metrics[name] = float(value) if '.' in value or 'E' in value or 'N' in value else int(value)
+        return {'correlation_id': correlation_id, 'success': True, 'metrics': metrics}
+
+    def init_producer_id(self, correlation_id: int = 1) -> Dict[str, Any]:
+        """Gets a producer ID for idempotent produces into 'producer_id'; needs protocol version 4."""
+        if self.version < 4:
+            raise ValueError("Producer IDs need protocol version 4; call api_versions() first")
+        message = self._build_message(
+            correlation_id=correlation_id,
+            message_type=MessageType.INIT_PRODUCER_ID,
+            topic_name="",
+            payload=""
+        )
+        try:
+            self.socket.sendall(message)
+            data = self._receive_response(lambda: self._recv_exact(8))
+        except Exception as e:
+            raise RuntimeError(f"Error in init_producer_id operation: {e}")
+        correlation_id, success = struct.unpack('>ib', data[:5])
+        if not success:
+            return {'correlation_id': correlation_id, 'success': False,
+                    'error_code': ErrorCode(data[5]).name}
+        return {'correlation_id': correlation_id, 'success': True,
+                'producer_id': struct.unpack('>q', data[5:13])[0]}
+
+    def offset_for_time(self, topic_name: str, partition: int, timestamp: int,
+                        correlation_id: int = 1) -> Dict[str, Any]:
+        """Finds the first offset at or after timestamp (ms) in 'offset', the next offset if none; needs version 5."""
+        if self.version < 5:
+            raise ValueError("Offset for time needs protocol version 5; call api_versions() first")
+        message = self._build_message(
+            correlation_id=correlation_id,
+            message_type=MessageType.OFFSET_FOR_TIME,
+            topic_name=topic_name,
+            payload=""
+        )
+        message = message[:-4] + struct.pack('>iqi', partition, timestamp, 0)
+        try:
+            self.socket.sendall(message)
+            data = self._receive_response(lambda: self._recv_exact(8))
+        except Exception as e:
+            raise RuntimeError(f"Error in offset_for_time operation: {e}")
+        correlation_id, success = struct.unpack('>ib', data[:5])
+        if not success:
+            return {'correlation_id': correlation_id, 'success': False,
+                    'error_code': ErrorCode(data[5]).name}
+        return {'correlation_id': correlation_id, 'success': True,
+                'offset': struct.unpack('>q', data[5:13])[0]}
+
+    def _producer(self, producer_id: int, sequence: int) -> bytes:
+        # Producer ID and sequence follow the acks from version 4; -1 produces without deduplication
+        if self.version >= 4:
+            return struct.pack('>qi', producer_id, sequence)
+        if producer_id != -1:
+            raise ValueError("Producer IDs need protocol version 4; call api_versions() first")
+        return b''
+
+    def metadata(self, correlation_id: int = 1) -> Dict[str, Any]:
+        """Reads the cluster as the broker sees it: leader, epoch, nodes, in-sync replicas and topics."""
+        if self.version < 3:
+            raise ValueError("Metadata needs protocol version 3; call api_versions() first")
+        message = self._build_message(
+            correlation_id=correlation_id,
+            message_type=MessageType.METADATA,
+            topic_name="",
+            payload=""
+        )
+        fields: Dict[str, Any] = {}
+
+        def read_utf() -> str:
+            length = struct.unpack('>H', self._recv_exact(2))[0]
+            return self._recv_exact(length).decode('utf-8')
+
+        def read_int() -> int:
+            return struct.unpack('>i', self._recv_exact(4))[0]
+
+        def read_body() -> bytes:
+            fields['leader'] = read_int()
+            fields['epoch'] = read_int()
+            fields['nodes'] = {}
+            for _ in range(read_int()):
+                node_id = read_int()
+                fields['nodes'][node_id] = (read_utf(), read_int())
+            fields['in_sync_replicas'] = [read_int() for _ in range(read_int())]
+            fields['topics'] = {}
+            for _ in range(read_int()):
+                name = read_utf()
+                partitions = read_int()
+                self._recv_exact(25)  # Topic config
+                offsets = struct.unpack('>%dq' % (2 * partitions), self._recv_exact(16 * partitions))
+                fields['topics'][name] = {'partitions': partitions, 'epoch_start_offsets': list(offsets[0::2]),
+                                          'log_end_offsets': list(offsets[1::2])}
+            return b''
+
+        try:
+            self.socket.sendall(message)
+            data = self._receive_response(read_body)
+        except Exception as e:
+            raise RuntimeError(f"Error in metadata operation: {e}")
+        correlation_id, success = struct.unpack('>ib', data[:5])
+        if not success:
+            return {'correlation_id': correlation_id, 'success': False,
+                    'error_code': ErrorCode(data[5]).name}
+        return {'correlation_id': correlation_id, 'success': True, **fields}
+
+    def _group_request(self, message_type: MessageType, topic_name: str, group_id: str,
+                       member_id: Optional[str], fields: bytes, correlation_id: int,
+                       with_partitions: bool = False) -> Dict[str, Any]:
+        message = self._build_message(
+            correlation_id=correlation_id,
+            message_type=message_type,
+            topic_name=topic_name,
+            payload=""
+        )
+        # Group ID, member ID and request fields go ahead of the (empty) payload length
+        ids = b''
+        for value in (group_id, member_id):
+            if value is not None:
+                encoded = value.encode('utf-8')
+                ids += struct.pack('>i', len(encoded)) + encoded
+        message = message[:-4] + ids + fields + message[-4:]
+
+        # FETCH_OFFSET answers with an offset, the others with a 4-byte generation
+        value_format = '>' + self._offset if message_type == MessageType.FETCH_OFFSET else '>i'
+        value_size = struct.calcsize(value_format)
+
+        def read_body() -> bytes:
+            body = self._recv_exact(value_size)
+            if with_partitions:
+                count = self._recv_exact(4)
+                body += count + self._recv_exact(4 * struct.unpack('>i', count)[0])
+            return body
+
+        try:
+            self.socket.sendall(message)
+            data = self._receive_response(read_body)
+        except Exception as e:
+            raise RuntimeError(f"Error in {message_type.name.lower()} operation: {e}")
+        correlation_id, success = struct.unpack('>ib', data[:5])
+        if not success:
+            return {'correlation_id': correlation_id, 'success': False,
+                    'error_code': ErrorCode(data[5]).name}
+        value = struct.unpack(value_format, data[5:5 + value_size])[0]
+        response = {'correlation_id': correlation_id, 'success': True, 'value': value}
+        if with_partitions:
+            count = struct.unpack('>i', data[9:13])[0]
+            response['generation'] = value
+            response['partitions'] = list(struct.unpack('>%di' % count, data[13:13 + 4 * count]))
+        return response
+
     def _build_message(self, correlation_id: int, message_type: MessageType, 
                       topic_name: str, payload: str, offset: Optional[int] = None) -> bytes:
         topic_bytes = topic_name.encode('utf-8')
@@ -96,8 +572,8 @@ class MessageClient:
         message += topic_bytes  # Topic name (variable)
         message += struct.pack('>q', timestamp)  # Timestamp (8 bytes)
         
-        if message_type == MessageType.CONSUME and offset is not None:
-            message += struct.pack('>i', offset)  # Offset (4 bytes)
+        if message_type in (MessageType.CONSUME, MessageType.FETCH) and offset is not None:
+            message += struct.pack('>' + self._offset, offset)  # Offset (4 bytes, 8 from version 1)
             
         message += struct.pack('>i', len(payload_bytes))  # Payload length (4 bytes)
         if payload_bytes:
@@ -105,15 +581,44 @@ class MessageClient:
 
         return message
 
-    def _receive_data(self, buffer_size: int = 4096) -> bytes:
+    def _recv_exact(self, size: int) -> bytes:
+        data = b''
         try:
-            data = self.socket.recv(buffer_size)
-            if not data:
-                raise ConnectionError("Connection closed by server")
+            while len(data) < size:
+                chunk = self.socket.recv(size - len(data))
+                if not chunk:
+                    raise ConnectionError("Connection closed by server")
+                data += chunk
             return data
         except socket.error as e:
             raise ConnectionError(f"Error receiving data: {e}")
 
+    def _receive_response(self, read_body) -> bytes:
+        # Responses may arrive split across several TCP segments, so read exactly one frame
+        head = self._recv_exact(5)  # Correlation ID + success flag
+        if head[4] == 0:
+            return head + self._recv_exact(1)  # Error code
+        return head + read_body()
+
+    def _create_topic_body(self) -> bytes:
+        body = self._recv_exact(10)  # Timestamp + topic length
+        topic_length = struct.unpack('>H', body[8:10])[0]
+        return body + self._recv_exact(topic_length)
+
+    def _consume_body(self) -> bytes:
+        body = self._recv_exact(12 + self._offset_size)  # Timestamp + next offset + payload length
+        payload_length = struct.unpack('>i', body[-4:])[0]
+        return body + self._recv_exact(payload_length)
+
+    def _stats_body(self) -> bytes:
+        body = self._recv_exact(4)  # Payload length
+        return body + self._recv_exact(struct.unpack('>i', body)[0])
+
+    def _fetch_body(self) -> bytes:
+        body = self._recv_exact(8 + self._offset_size)  # Next offset + record count + batch size
+        batch_size = struct.unpack('>i', body[-4:])[0]
+        return body + self._recv_exact(batch_size)
+
     def _parse_create_topic_response(self, data: bytes) -> Dict[str, Any]:
         try:
             correlation_id = struct.unpack('>i', data[:4])[0]
@@ -128,7 +633,7 @@ class MessageClient:
                 }
                 
             timestamp = struct.unpack('>q', data[5:13])[0]
-            topic = data[13:].decode('utf-8')
+            topic = data[15:].decode('utf-8')
             
             return {
                 'correlation_id': correlation_id,
@@ -153,17 +658,46 @@ class MessageClient:
                 }
                 
             timestamp = struct.unpack('>q', data[5:13])[0]
-            offset = struct.unpack('>i', data[13:17])[0]
+            offset = struct.unpack('>' + self._offset, data[13:13 + self._offset_size])[0]
             
             return {
                 'correlation_id': correlation_id,
                 'success': True,
                 'timestamp': timestamp,
-                'offset': offset
+                'offset': offset,
+                'throttle_time_ms': self._throttle_time(data[13 + self._offset_size:])
             }
         except Exception as e:
             raise ValueError(f"Error parsing produce response: {e}")
 
+    def _parse_produce_batch_response(self, data: bytes) -> Dict[str, Any]:
+        try:
+            correlation_id = struct.unpack('>i', data[:4])[0]
+            success = struct.unpack('b', data[4:5])[0]
+
+            if not success:
+                error_code = struct.unpack('b', data[5:6])[0]
+                return {
+                    'correlation_id': correlation_id,
+                    'success': False,
+                    'error_code': ErrorCode(error_code).name
+                }
+
+            timestamp, partition, base_offset, record_count = struct.unpack(
+                '>qi' + self._offset + 'i', data[5:21 + self._offset_size])
+
+            return {
+                'correlation_id': correlation_id,
+                'success': True,
+                'timestamp': timestamp,
+                'partition': partition,
+                'base_offset': base_offset,
+                'record_count': record_count,
+                'throttle_time_ms': self._throttle_time(data[21 + self._offset_size:])
+            }
+        except Exception as e:
+            raise ValueError(f"Error parsing produce batch response: {e}")
+
     def _parse_consume_response(self, data: bytes) -> Dict[str, Any]:
         try:
             correlation_id = struct.unpack('>i', data[:4])[0]
@@ -178,9 +712,10 @@ class MessageClient:
                 }
                 
             timestamp = struct.unpack('>q', data[5:13])[0]
-            next_offset = struct.unpack('>i', data[13:17])[0]
-            payload_length = struct.unpack('>i', data[17:21])[0]
-            payload = data[21:21+payload_length].decode('utf-8') if payload_length > 0 else ""
+            pos = 13 + self._offset_size
+            next_offset = struct.unpack('>' + self._offset, data[13:pos])[0]
+            payload_length = struct.unpack('>i', data[pos:pos+4])[0]
+            payload = data[pos+4:pos+4+payload_length].decode('utf-8') if payload_length > 0 else ""
             
             return {
                 'correlation_id': correlation_id,
@@ -190,4 +725,54 @@ class MessageClient:
                 'payload': payload
             }
         except Exception as e:
-            raise ValueError(f"Error parsing consume response: {e}")
\ No newline at end of file
+            raise ValueError(f"Error parsing consume response: {e}")
+
+    def _parse_fetch_response(self, data: bytes) -> Dict[str, Any]:
+        try:
+            correlation_id = struct.unpack('>i', data[:4])[0]
+            success = struct.unpack('b', data[4:5])[0]
+
+            if not success:
+                error_code = struct.unpack('b', data[5:6])[0]
+                return {
+                    'correlation_id': correlation_id,
+                    'success': False,
+                    'error_code': ErrorCode(error_code).name
+                }
+
+            pos = 13 + self._offset_size
+            next_offset, record_count, _ = struct.unpack('>' + self._offset + 'ii', data[5:pos])
+            records = []
+            for _ in range(record_count):
+                # offset, size, crc, attributes, timestamp, key length
+                offset, size, _, attributes, timestamp, key_length = struct.unpack('>qiIbqi', data[pos:pos+29])
+                end = pos + 12 + size
+                pos += 29
+                key = data[pos:pos+key_length].decode('utf-8') if key_length >= 0 else None
+                pos += max(key_length, 0)
+                payload_length = struct.unpack('>i', data[pos:pos+4])[0]
+                payload = data[pos+4:pos+4+payload_length]
+                if attributes & 0x07:
+                    # A compressed batch: record count, then the compressed entries; it holds the
+                    # offsets up to its own
+                    count = struct.unpack('>i', payload[:4])[0]
+                    entries = lz_decompress(payload[4:])
+                    entry_pos = 0
+                    for inner in range(count):
+                        entry_length = struct.unpack('>i', entries[entry_pos:entry_pos+4])[0]
+                        records.append({'offset': offset - count + 1 + inner, 'timestamp': timestamp, 'key': key,
+                                        'payload': entries[entry_pos+4:entry_pos+4+entry_length].decode('utf-8')})
+                        entry_pos += 4 + entry_length
+                else:
+                    records.append({'offset': offset, 'timestamp': timestamp, 'key': key,
+                                    'payload': payload.decode('utf-8')})
+                pos = end
+
+            return {
+                'correlation_id': correlation_id,
+                'success': True,
+                'next_offset': next_offset,
+                'records': records
+            }
+        except Exception as e:
+            raise ValueError(f"Error parsing fetch response: {e}")